@@ -4,26 +4,42 @@
  * A minimal HTTP → TCP bridge that keeps the existing TCP server untouched.
  *
  * - HTTP POST requests are accepted at any path (default: http://127.0.0.1:8081/).
- * - The request body is forwarded as a single line (a trailing "\n" is appended
- *   when missing) to the backing TCP server (default: 127.0.0.1:8080).
- * - The bridge waits for the TCP server to close the socket, then streams the
- *   collected response back to the HTTP caller.
+ * - The first line of the request body is forwarded to the backing TCP server
+ *   (default: 127.0.0.1:8080) over a small pool of long-lived connections.
+ *   Each request is tagged "#<id> <line>" and the server answers "#<id> <reply>"
+ *   as soon as the reply is ready, so many HTTP requests share one socket and a
+ *   slow request does not hold up the others.
+ * - Pooled connections always negotiate "@accept-encoding:deflate".  Compressed
+ *   replies are forwarded unchanged with "Content-Encoding: deflate" when the
+ *   caller accepts it and inflated by the bridge otherwise.
+ * - Idle pooled connections are closed by the bridge before the server's idle
+ *   reaper would close them, so a request never races a server-side close.
+ * - "user,export,..." requests are streamed: the "@chunk:N" frames from the TCP
+ *   server are unwrapped and written to a chunked HTTP response as they arrive,
+ *   so the bridge never holds the whole export in memory.  The socket is paused
+ *   while the HTTP caller is slow to read.
  *
  * Environment variables:
  *   PROXY_HTTP_PORT   → listening port for the HTTP bridge           (default 8081)
  *   PROXY_TCP_HOST    → host name / IP of the existing TCP backend   (default 127.0.0.1)
  *   PROXY_TCP_PORT    → port of the TCP backend                      (default 8080)
  *   PROXY_TIMEOUT_MS  → timeout in milliseconds for TCP round trips  (default 8000)
+ *   PROXY_POOL_SIZE   → number of pooled TCP connections             (default 4)
+ *   PROXY_POOL_IDLE_MS→ close a pooled connection idle this long     (default 20000)
  */
 
 const http = require("http");
 const net = require("net");
+const zlib = require("zlib");
 
 const HTTP_PORT = parseInt(process.env.PROXY_HTTP_PORT ?? "8081", 10);
 const TCP_HOST = process.env.PROXY_TCP_HOST ?? "127.0.0.1";
 const TCP_PORT = parseInt(process.env.PROXY_TCP_PORT ?? "8080", 10);
 const REQUEST_TIMEOUT_MS = parseInt(process.env.PROXY_TIMEOUT_MS ?? "8000", 10);
 const MAX_BODY_BYTES = 16 * 1024; // hard limit to avoid accidental huge payloads
+const DEFLATE_PREFIX = "@deflate:"; // compressed reply marker used by the TCP server
+const POOL_SIZE = parseInt(process.env.PROXY_POOL_SIZE ?? "4", 10);
+const POOL_IDLE_MS = parseInt(process.env.PROXY_POOL_IDLE_MS ?? "20000", 10);
 
 function log(message, extra = "") {
     const timestamp = new Date().toISOString();
@@ -53,6 +69,114 @@ function sendPlain(res, status, text) {
     res.end(text);
 }
 
+function sendDeflated(res, status, compressed) {
+    res.writeHead(status, {
+        "Content-Type": "text/plain; charset=utf-8",
+        "Content-Encoding": "deflate",
+        "Content-Length": compressed.length,
+        "Vary": "Accept-Encoding",
+        "Access-Control-Allow-Origin": process.env.ALLOWED_ORIGIN || "*",
+        "Access-Control-Allow-Headers": "Content-Type, Cache-Control",
+        "Access-Control-Allow-Methods": "POST, OPTIONS",
+    });
+    res.end(compressed);
+}
+
+function acceptsDeflate(req) {
+    const header = req.headers["accept-encoding"] || "";
+    return /(^|,)\s*deflate\s*(;|,|$)/i.test(header);
+}
+
+function isExport(line) {
+    const fields = line.split(",", 3);
+    return fields.length >= 2 && fields[1].trim() === "export";
+}
+
+function corsHeaders() {
+    return {
+        "Access-Control-Allow-Origin": process.env.ALLOWED_ORIGIN || "*",
+        "Access-Control-Allow-Headers": "Content-Type, Cache-Control",
+        "Access-Control-Allow-Methods": "POST, OPTIONS",
+    };
+}
+
+/**
+ * Streams an export reply.  Frames: "export~1~<content type>~stream", then
+ * "@chunk:N" followed by N data lines, and finally "@end:rows" or "@abort:why".
+ * Any other first line is an ordinary (rejection) reply.
+ */
+function streamExport(req, res, line) {
+    const socket = new net.Socket();
+    let buffered = "";
+    let started = false;
+    let remaining = 0; // data lines left in the current chunk
+    let done = false;
+
+    const finish = (error) => {
+        if (done) {
+            return;
+        }
+        done = true;
+        socket.destroy();
+        if (!started) {
+            sendJson(res, 502, { error: `TCP backend error: ${error ? error.message : "no reply"}` });
+        } else if (error) {
+            res.destroy(error);
+        } else {
+            res.end();
+        }
+    };
+
+    const handleLine = (text) => {
+        if (!started) {
+            const header = /^export~1~(.+)~stream$/.exec(text);
+            if (!header) {
+                done = true;
+                socket.destroy();
+                sendPlain(res, 200, text);
+                return;
+            }
+            started = true;
+            res.writeHead(200, { "Content-Type": header[1], "Cache-Control": "no-store", ...corsHeaders() });
+            return;
+        }
+        if (remaining > 0) {
+            remaining -= 1;
+            if (!res.write(`${text}\n`)) {
+                socket.pause();
+            }
+        } else if (text.startsWith("@chunk:")) {
+            remaining = parseInt(text.slice(7), 10) || 0;
+        } else if (text.startsWith("@end:")) {
+            finish();
+        } else {
+            log("Export aborted by TCP backend", text);
+            finish(new Error(text));
+        }
+    };
+
+    res.on("drain", () => socket.resume());
+    res.on("close", () => finish());
+    // A slow export is fine as long as bytes keep flowing; only an idle backend times out
+    socket.setTimeout(REQUEST_TIMEOUT_MS, () => finish(new Error("TCP backend timed out")));
+    socket.setEncoding("utf8");
+    socket.once("error", (error) => finish(error));
+    socket.once("close", () => finish(started ? new Error("TCP backend closed mid-export") : null));
+    socket.on("data", (chunk) => {
+        buffered += chunk;
+        let newline = buffered.indexOf("\n");
+        while (newline >= 0 && !done) {
+            handleLine(buffered.slice(0, newline));
+            buffered = buffered.slice(newline + 1);
+            newline = buffered.indexOf("\n");
+        }
+    });
+    socket.connect(TCP_PORT, TCP_HOST, () => {
+        log("Streaming export", `${req.method} ${req.url} → ${TCP_HOST}:${TCP_PORT}`);
+        socket.write(line, "utf8", () => socket.end());
+    });
+}
+
 function handlePost(req, res) {
     let body = "";
     let aborted = false;
@@ -73,55 +197,154 @@ function handlePost(req, res) {
             return;
         }
 
-        const payload = body.endsWith("\n") ? body : `${body}\n`;
-        const socket = new net.Socket();
-        const chunks = [];
-        let finished = false;
+        const line = `${body.split("\n", 1)[0].replace(/\r/g, "")}\n`;
+        if (isExport(line)) {
+            streamExport(req, res, line);
+            return;
+        }
 
-        const timeoutId = setTimeout(() => {
-            if (finished) {
+        pool.request(line.trimEnd()).then((reply) => {
+            if (reply.startsWith(DEFLATE_PREFIX)) {
+                const compressed = Buffer.from(reply.slice(DEFLATE_PREFIX.length), "base64");
+                if (acceptsDeflate(req)) {
+                    sendDeflated(res, 200, compressed);
+                } else {
+                    sendPlain(res, 200, zlib.inflateSync(compressed).toString("utf8"));
+                }
                 return;
             }
-            finished = true;
-            log("TCP round-trip timed out", `(>${REQUEST_TIMEOUT_MS} ms)`);
-            socket.destroy(new Error("TCP request timed out"));
-            sendJson(res, 504, { error: "TCP backend timed out" });
-        }, REQUEST_TIMEOUT_MS);
-
-        socket.once("error", (error) => {
-            if (finished) {
-                return;
-            }
-            finished = true;
-            clearTimeout(timeoutId);
+            sendPlain(res, 200, reply);
+        }, (error) => {
             log("TCP error", error.message);
-            sendJson(res, 502, { error: `TCP backend error: ${error.message}` });
+            if (error.timeout) {
+                sendJson(res, 504, { error: "TCP backend timed out" });
+            } else {
+                sendJson(res, 502, { error: `TCP backend error: ${error.message}` });
+            }
         });
+    });
+}
 
-        socket.connect(TCP_PORT, TCP_HOST, () => {
-            log("Forwarding request", `${req.method} ${req.url} → ${TCP_HOST}:${TCP_PORT}`);
-            socket.write(payload, "utf8", () => {
-                socket.end();
-            });
+/**
+ * One long-lived TCP connection carrying tagged requests.  Replies are matched
+ * to their request by tag, in whatever order the server finishes them.
+ */
+class PooledConnection {
+    constructor(onClosed) {
+        this.onClosed = onClosed;
+        this.pending = new Map(); // tag → { resolve, reject, timer }
+        this.buffered = "";
+        this.closed = false;
+        this.idleTimer = null;
+        this.socket = net.connect(TCP_PORT, TCP_HOST);
+        this.socket.setEncoding("utf8");
+        this.socket.setNoDelay(true);
+        this.socket.write("@accept-encoding:deflate\n");
+        this.socket.on("data", (chunk) => this.onData(chunk));
+        this.socket.on("error", (error) => this.close(error));
+        this.socket.on("close", () => {
+            this.close(new Error("TCP connection closed"));
+            this.onClosed(this);
         });
+        this.touch();
+    }
 
-        socket.on("data", (chunk) => {
-            chunks.push(chunk);
+    request(tag, line) {
+        return new Promise((resolve, reject) => {
+            const timer = setTimeout(() => {
+                // A late reply for this tag is simply dropped
+                this.pending.delete(tag);
+                const error = new Error(`no reply within ${REQUEST_TIMEOUT_MS} ms`);
+                error.timeout = true;
+                reject(error);
+                this.touch();
+            }, REQUEST_TIMEOUT_MS);
+            this.pending.set(tag, { resolve, reject, timer });
+            this.touch();
+            this.socket.write(`#${tag} ${line}\n`, "utf8");
         });
+    }
 
-        socket.once("close", () => {
-            if (finished) {
-                return;
+    onData(chunk) {
+        this.buffered += chunk;
+        let newline = this.buffered.indexOf("\n");
+        while (newline >= 0) {
+            const text = this.buffered.slice(0, newline);
+            this.buffered = this.buffered.slice(newline + 1);
+            newline = this.buffered.indexOf("\n");
+            const space = text.indexOf(" ");
+            if (!text.startsWith("#") || space < 0) {
+                log("Ignoring untagged TCP line", text.slice(0, 80));
+                continue;
             }
-            finished = true;
-            clearTimeout(timeoutId);
-            const responseBuffer = Buffer.concat(chunks);
-            const responseText = responseBuffer.toString("utf8").trim();
-            sendPlain(res, 200, responseText);
-        });
-    });
+            const waiter = this.pending.get(text.slice(1, space));
+            if (waiter) {
+                this.pending.delete(text.slice(1, space));
+                clearTimeout(waiter.timer);
+                waiter.resolve(text.slice(space + 1));
+            }
+        }
+        this.touch();
+    }
+
+    touch() {
+        if (this.closed) {
+            return;
+        }
+        clearTimeout(this.idleTimer);
+        this.idleTimer = setTimeout(() => {
+            if (this.pending.size === 0) {
+                // Leave the pool before ending the socket so no request is written after end()
+                this.closed = true;
+                this.onClosed(this);
+                this.socket.end();
+            } else {
+                this.touch();
+            }
+        }, POOL_IDLE_MS);
+    }
+
+    close(error) {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        clearTimeout(this.idleTimer);
+        this.socket.destroy();
+        for (const waiter of this.pending.values()) {
+            clearTimeout(waiter.timer);
+            waiter.reject(error);
+        }
+        this.pending.clear();
+    }
 }
 
+/**
+ * Up to POOL_SIZE connections, opened lazily; each request goes to the
+ * connection with the fewest requests in flight.
+ */
+const pool = {
+    connections: [],
+    nextTag: 0,
+
+    request(line) {
+        let target = null;
+        for (const connection of this.connections) {
+            if (!connection.closed && (target === null || connection.pending.size < target.pending.size)) {
+                target = connection;
+            }
+        }
+        if (target === null || (target.pending.size > 0 && this.connections.length < POOL_SIZE)) {
+            target = new PooledConnection((closed) => {
+                this.connections = this.connections.filter((c) => c !== closed);
+            });
+            this.connections.push(target);
+        }
+        this.nextTag = (this.nextTag + 1) % Number.MAX_SAFE_INTEGER;
+        return target.request(this.nextTag.toString(36), line);
+    },
+};
+
 const server = http.createServer((req, res) => {
     if (req.method === "OPTIONS") {
         res.writeHead(204, {
@@ -144,6 +367,7 @@ const server = http.createServer((req, res) => {
             tcpHost: TCP_HOST,
             tcpPort: TCP_PORT,
             timeoutMs: REQUEST_TIMEOUT_MS,
+            pooledConnections: pool.connections.length,
         });
         return;
     }
@@ -10,7 +10,9 @@ const state = {
     recordsSortKey: "date-desc",
     searchSortKey: "date-desc",
     lastSearchEntries: [],
-    lastSearchFilters: null
+    lastSearchFilters: null,
+    // 尚未确认成功的记账提交：{ fingerprint, key }，重新提交相同内容时沿用同一个幂等键
+    pendingAdd: null
 };
 const DEFAULT_SORT_KEY = "date-desc";
 const SUPPORTED_SORT_KEYS = new Set(["date-desc", "date-asc", "amount-desc", "amount-asc", "type-income", "type-expense"]);
@@ -340,6 +342,7 @@ function updateAuthUI() {
         state.recordsLoaded = false;
         state.lastSearchEntries = [];
         state.lastSearchFilters = null;
+        state.pendingAdd = null;
         resetRecordsView();
         clearSearchResult();
     }
@@ -548,6 +551,10 @@ async function processActionFormSubmission(form) {
         handlePostAction(parsed, displayValues);
 
         const success = parsed?.success;
+        if (action === "add" && success === true) {
+            // 只有确认成功后才丢弃幂等键，超时或出错后重新提交仍使用原来的键
+            state.pendingAdd = null;
+        }
         if (success === false) {
             // 为注册与登录失败提供更友好的提示
             try {
@@ -791,6 +798,24 @@ function normalizeAmountFilter(rawAmount, { label }) {
     return numeric.toFixed(2);
 }
 
+function createIdempotencyKey() {
+    if (window.crypto && typeof window.crypto.randomUUID === "function") {
+        return window.crypto.randomUUID();
+    }
+    return `${Date.now().toString(36)}-${Math.random().toString(36).slice(2, 12)}`;
+}
+
+/**
+ * 同一笔记账在收到成功回复之前（例如代理超时后用户再次点击提交）沿用同一个幂等键，
+ * 服务器据此只插入一条记录；内容改变时视为新的一笔，换新键。
+ */
+function pendingIdempotencyKey(fingerprint) {
+    if (!state.pendingAdd || state.pendingAdd.fingerprint !== fingerprint) {
+        state.pendingAdd = { fingerprint, key: createIdempotencyKey() };
+    }
+    return state.pendingAdd.key;
+}
+
 function composePayload(action, formData) {
     const requiresFormUsername = action === "register" || action === "login";
     let username = "";
@@ -833,8 +858,10 @@ function composePayload(action, formData) {
             const entryType = validateEntryType(formData.get("type"));
             const subject = (formData.get("subject") || "").trim();
             const note = (formData.get("note") || "").trim();
+            const fingerprint = `${username},add,${normalizedAmount},${normalizedDate},${entryType},${subject},${note}`;
             return {
-                request: `${username},add,${normalizedAmount},${normalizedDate},${entryType},${subject},${note}`,
+                // 幂等键：同一次提交被代理、浏览器或用户重发时，服务器只插入一条记录
+                request: `${fingerprint},idem=${pendingIdempotencyKey(fingerprint)}`,
                 displayValues: {
                     username,
                     amount: normalizedAmount,
@@ -2074,6 +2101,12 @@ function logAddOutcome(parsed, context) {
         const typeLabel = formatEntryType(context?.entryType);
         const typeSegment = typeLabel ? `，类型 ${typeLabel}` : "";
         logMessage(`新增账目成功：日期 ${date}，金额 ${amountDisplay}${typeSegment}${subjectSegment}${noteSegment}。`);
+        // 回复形如 id:12;budget:month=523.40/500.00，分号之后是超出的预算
+        const budgetIndex = (parsed.message || "").indexOf(";budget:");
+        if (budgetIndex >= 0) {
+            const breaches = parsed.message.slice(budgetIndex + ";budget:".length).split(",").join("，");
+            logMessage(`${subject || "该用途"}已超出预算（本期已支出/上限）：${breaches}`, "warning");
+        }
     } else {
         const reason = parsed.message || "服务器未返回原因";
         logMessage(`新增账目未成功：${reason}`, "warning");
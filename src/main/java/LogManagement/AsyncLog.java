@@ -0,0 +1,253 @@
+package LogManagement;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 异步日志：请求线程只把事件字段放进预分配的环形缓冲区（无锁、不做格式化、不做 I/O），
+ * 由后台线程取出、格式化并写入滚动文件。缓冲区满时丢弃新事件并计数，绝不阻塞请求线程。
+ * 未调用 start 时所有记录方法都是空操作。
+ */
+public final class AsyncLog {
+    private static final int DEFAULT_CAPACITY = 8192;
+    private static volatile AsyncLog global;
+
+    private final slot[] slots;
+    // 每个槽位的序号，按 Vyukov 有界队列的方式协调多个生产者与唯一的消费者
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private long head;
+    private final AtomicLong dropped = new AtomicLong();
+    private final RollingFileWriter writer;
+    private final int errorSamplesPerSecond;
+    private final AtomicLong errorWindowStart = new AtomicLong();
+    private final AtomicInteger errorsInWindow = new AtomicInteger();
+    private final AtomicLong suppressedErrors = new AtomicLong();
+    private long reportedDropped;
+    private long reportedSuppressed;
+    private final Thread drainer;
+    private volatile boolean running = true;
+
+    AsyncLog(int capacity, RollingFileWriter writer, int errorSamplesPerSecond) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two");
+        }
+        this.slots = new slot[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new slot();
+            sequences.set(i, i);
+        }
+        this.mask = capacity - 1;
+        this.writer = writer;
+        this.errorSamplesPerSecond = errorSamplesPerSecond;
+        this.drainer = new Thread(this::drainLoop, "async-log");
+        this.drainer.setDaemon(true);
+    }
+
+    /**
+     * 启动全局日志。文件写在 dir 下的 accounting.log，超过 log.maxBytes 后滚动，保留 log.files 个旧文件。
+     */
+    public static synchronized AsyncLog start(Path dir) throws IOException {
+        if (global != null) {
+            return global;
+        }
+        RollingFileWriter files = new RollingFileWriter(dir, "accounting.log",
+                Long.getLong("log.maxBytes", 10L * 1024 * 1024), Integer.getInteger("log.files", 5));
+        AsyncLog log = new AsyncLog(Integer.getInteger("log.buffer", DEFAULT_CAPACITY), files,
+                Integer.getInteger("log.errorSamplesPerSec", 5));
+        log.startDrainer();
+        global = log;
+        return log;
+    }
+
+    /**
+     * 写出缓冲区中剩余的事件并关闭文件。
+     */
+    public static synchronized void shutdown() {
+        AsyncLog log = global;
+        global = null;
+        if (log != null) {
+            log.close();
+        }
+    }
+
+    /**
+     * 结构化审计事件，例如 audit("login", "alice", "bad_password", 0)。参数应为已有对象或常量，调用方不要拼接字符串。
+     */
+    public static void audit(String event, String username, String outcome, long value) {
+        AsyncLog log = global;
+        if (log != null) {
+            log.publish("AUDIT", event, username, outcome, value, null);
+        }
+    }
+
+    /**
+     * 记录一个异常。每秒最多保留 log.errorSamplesPerSec 个，其余只计数，避免异常风暴拖垮日志。
+     */
+    public static void error(String where, Throwable error) {
+        AsyncLog log = global;
+        if (log != null && log.sampleError()) {
+            log.publish("ERROR", where, null, null, 0, error);
+        }
+    }
+
+    public static long droppedCount() {
+        AsyncLog log = global;
+        return log == null ? 0 : log.dropped.get();
+    }
+
+    boolean sampleError() {
+        long now = System.nanoTime();
+        long windowStart = errorWindowStart.get();
+        if (now - windowStart > TimeUnit.SECONDS.toNanos(1) && errorWindowStart.compareAndSet(windowStart, now)) {
+            errorsInWindow.set(0);
+        }
+        if (errorsInWindow.incrementAndGet() <= errorSamplesPerSecond) {
+            return true;
+        }
+        suppressedErrors.incrementAndGet();
+        return false;
+    }
+
+    boolean publish(String level, String event, String username, String outcome, long value, Throwable error) {
+        long pos = tail.get();
+        while (true) {
+            int index = (int) (pos & mask);
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                // 缓冲区已满
+                dropped.incrementAndGet();
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+        int index = (int) (pos & mask);
+        slot s = slots[index];
+        s.timeMillis = System.currentTimeMillis();
+        s.level = level;
+        s.event = event;
+        s.username = username;
+        s.outcome = outcome;
+        s.value = value;
+        s.error = error;
+        sequences.set(index, pos + 1);
+        return true;
+    }
+
+    private void drainLoop() {
+        StringBuilder line = new StringBuilder(256);
+        while (running) {
+            int drained = drainAvailable(line) + reportLosses(line);
+            if (drained > 0) {
+                writer.flush();
+            } else {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(5));
+            }
+        }
+        drainAvailable(line);
+        reportLosses(line);
+        writer.flush();
+    }
+
+    /**
+     * 把上次报告之后新增的丢弃数和被抑制的异常数写成一行 WARN，只在后台线程调用。
+     */
+    private int reportLosses(StringBuilder line) {
+        long droppedNow = dropped.get();
+        long suppressedNow = suppressedErrors.get();
+        if (droppedNow == reportedDropped && suppressedNow == reportedSuppressed) {
+            return 0;
+        }
+        writeLine(line, System.currentTimeMillis(), "WARN", "log", null,
+                "dropped=" + (droppedNow - reportedDropped) + ",suppressed_errors=" + (suppressedNow - reportedSuppressed), 0, null);
+        reportedDropped = droppedNow;
+        reportedSuppressed = suppressedNow;
+        return 1;
+    }
+
+    private int drainAvailable(StringBuilder line) {
+        int count = 0;
+        while (true) {
+            int index = (int) (head & mask);
+            if (sequences.get(index) != head + 1) {
+                return count;
+            }
+            slot s = slots[index];
+            writeLine(line, s.timeMillis, s.level, s.event, s.username, s.outcome, s.value, s.error);
+            s.clear();
+            sequences.set(index, head + slots.length);
+            head++;
+            count++;
+        }
+    }
+
+    private void writeLine(StringBuilder line, long timeMillis, String level, String event, String username,
+            String outcome, long value, Throwable error) {
+        line.setLength(0);
+        line.append(Instant.ofEpochMilli(timeMillis)).append('\t').append(level).append('\t').append(event);
+        if (username != null) {
+            line.append("\tuser=").append(username);
+        }
+        if (outcome != null) {
+            line.append("\toutcome=").append(outcome);
+        }
+        if (value != 0) {
+            line.append("\tvalue=").append(value);
+        }
+        if (error != null) {
+            StringWriter trace = new StringWriter();
+            error.printStackTrace(new PrintWriter(trace));
+            line.append('\t').append(trace.toString().trim().replace("\n", "\n\t"));
+        }
+        writer.writeLine(line);
+    }
+
+    void close() {
+        running = false;
+        LockSupport.unpark(drainer);
+        try {
+            drainer.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writer.close();
+    }
+
+    void startDrainer() {
+        drainer.start();
+    }
+
+    private static final class slot {
+        long timeMillis;
+        String level;
+        String event;
+        String username;
+        String outcome;
+        long value;
+        Throwable error;
+
+        void clear() {
+            level = null;
+            event = null;
+            username = null;
+            outcome = null;
+            error = null;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package LogManagement;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 按大小滚动的日志文件：name 写满 maxBytes 后依次改名为 name.1 ... name.{files}，最旧的被删除。
+ * 只由 AsyncLog 的后台线程使用，不需要同步。写入失败时丢弃该行，不影响服务。
+ */
+final class RollingFileWriter {
+    private final Path dir;
+    private final String name;
+    private final long maxBytes;
+    private final int files;
+    private Writer out;
+    private long written;
+
+    RollingFileWriter(Path dir, String name, long maxBytes, int files) throws IOException {
+        if (maxBytes <= 0 || files < 0) {
+            throw new IllegalArgumentException("maxBytes must be positive and files non-negative");
+        }
+        this.dir = dir;
+        this.name = name;
+        this.maxBytes = maxBytes;
+        this.files = files;
+        Files.createDirectories(dir);
+        open();
+    }
+
+    void writeLine(CharSequence line) {
+        if (out == null) {
+            return;
+        }
+        try {
+            String text = line.toString();
+            out.write(text);
+            out.write('\n');
+            written += text.getBytes(StandardCharsets.UTF_8).length + 1;
+            if (written >= maxBytes) {
+                roll();
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    void flush() {
+        try {
+            if (out != null) {
+                out.flush();
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    void close() {
+        try {
+            if (out != null) {
+                out.close();
+            }
+        } catch (IOException ignored) {
+        } finally {
+            out = null;
+        }
+    }
+
+    private void roll() throws IOException {
+        out.close();
+        out = null;
+        Path current = dir.resolve(name);
+        if (files == 0) {
+            Files.deleteIfExists(current);
+        } else {
+            Files.deleteIfExists(dir.resolve(name + "." + files));
+            for (int i = files - 1; i >= 1; i--) {
+                Path older = dir.resolve(name + "." + i);
+                if (Files.exists(older)) {
+                    Files.move(older, dir.resolve(name + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            Files.move(current, dir.resolve(name + ".1"), StandardCopyOption.REPLACE_EXISTING);
+        }
+        open();
+    }
+
+    private void open() throws IOException {
+        Path current = dir.resolve(name);
+        written = Files.exists(current) ? Files.size(current) : 0;
+        out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(current,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND), StandardCharsets.UTF_8));
+    }
+}
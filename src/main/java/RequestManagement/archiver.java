@@ -0,0 +1,247 @@
+package RequestManagement;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import LogManagement.AsyncLog;
+import sharedmodel.Entry;
+
+/**
+ * 把日期早于截止日的记录从 entries 移到归档段文件。每个用户每次最多移动 segmentRows 条：
+ * 先写好段文件并原子改名，再在一个事务中删除这些行并登记该段；事务失败时段文件未登记，不会被读取。
+ * 事务期间持有用户版本行的锁，与同一用户的 clear 互斥，但不推进版本号（记录内容没有变化）。
+ *
+ * 服务内启用：-Darchive.cutoffDays=730（每 archive.intervalMinutes 分钟运行一次）；
+ * 也可以离线运行：java RequestManagement.archiver 截止天数
+ */
+public class archiver {
+    private static final Logger LOGGER = Logger.getLogger(archiver.class.getName());
+    // 日期可能以 / 或 - 分隔，与截止日比较前统一为 yyyy-MM-dd
+    private static final String DATE_KEY = "REPLACE(date, '/', '-')";
+
+    private final shardrouter router;
+    private final archivestore store;
+    private final int segmentRows;
+    private ScheduledExecutorService scheduler;
+
+    archiver(shardrouter router, archivestore store, int segmentRows) {
+        if (segmentRows <= 0) {
+            throw new IllegalArgumentException("segmentRows must be positive");
+        }
+        this.router = router;
+        this.store = store;
+        this.segmentRows = segmentRows;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.err.println("用法: archiver <截止天数>");
+            System.exit(2);
+        }
+        sqloperation sql = new sqloperation();
+        sql.initialize();
+        try {
+            long moved = sql.archiveOlderThan(Integer.parseInt(args[0]));
+            System.out.println("已归档 " + moved + " 条记录");
+        } finally {
+            sql.shutdown();
+        }
+    }
+
+    synchronized void startSchedule(int cutoffDays, long intervalMinutes) {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "archiver");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                long moved = run(LocalDate.now().minusDays(cutoffDays));
+                if (moved > 0) {
+                    LOGGER.info("已归档 " + moved + " 条记录");
+                }
+            } catch (Exception e) {
+                AsyncLog.error("archiver", e);
+                LOGGER.log(Level.WARNING, "归档失败", e);
+            }
+        }, 1, intervalMinutes, TimeUnit.MINUTES);
+    }
+
+    synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * 归档所有分片中早于 cutoff 的记录，返回移动的记录数。某个用户失败时记录日志并继续归档其他用户。
+     */
+    long run(LocalDate cutoff) throws SQLException, IOException {
+        String cutoffKey = cutoff.toString();
+        TreeSet<String> usernames = new TreeSet<>();
+        for (List<String> names : router.fanOut(c -> usersWithOldRows(c, cutoffKey))) {
+            usernames.addAll(names);
+        }
+        long moved = 0;
+        for (String username : usernames) {
+            try {
+                moved += runUser(username, cutoffKey);
+            } catch (SQLException | IOException | RuntimeException e) {
+                AsyncLog.error("archiver", e);
+                LOGGER.log(Level.WARNING, "归档用户 " + username + " 失败", e);
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * 分批归档该用户日期早于 cutoffKey 的全部记录，返回移动的记录数。
+     */
+    long runUser(String username, String cutoffKey) throws SQLException, IOException {
+        long moved = 0;
+        int batch;
+        do {
+            batch = archiveUser(username, cutoffKey);
+            moved += batch;
+        } while (batch == segmentRows);
+        return moved;
+    }
+
+    private static List<String> usersWithOldRows(Connection c, String cutoffKey) throws SQLException {
+        List<String> usernames = new ArrayList<>();
+        try (PreparedStatement query = c.prepareStatement(
+                "SELECT DISTINCT username FROM entries WHERE " + DATE_KEY + " < ?")) {
+            query.setString(1, cutoffKey);
+            try (ResultSet rs = query.executeQuery()) {
+                while (rs.next()) {
+                    usernames.add(rs.getString(1));
+                }
+            }
+        }
+        return usernames;
+    }
+
+    /**
+     * 归档该用户最多 segmentRows 条旧记录，返回移动的条数。
+     */
+    int archiveUser(String username, String cutoffKey) throws SQLException, IOException {
+        try (Connection c = router.connection(username)) {
+            c.setAutoCommit(false);
+            Path file = null;
+            boolean registered = false;
+            try {
+                lockUser(c, username);
+                List<Long> ids = new ArrayList<>();
+                String name = "seg-" + System.currentTimeMillis() + "-" + System.nanoTime() % 1000000 + ".acs";
+                file = store.userDir(username).resolve(name);
+                archivesegment segment;
+                String maxDate = null;
+                long minId = Long.MAX_VALUE;
+                long maxId = Long.MIN_VALUE;
+                try (archivesegment.writer writer = new archivesegment.writer(file);
+                     PreparedStatement query = c.prepareStatement(
+                             "SELECT id, amount, type, date, subject, note FROM entries WHERE username = ?"
+                                     + sqloperation.VISIBLE_ROWS + " AND " + DATE_KEY + " < ? ORDER BY date, id LIMIT ?")) {
+                    query.setString(1, username);
+                    query.setString(2, username);
+                    query.setString(3, cutoffKey);
+                    query.setInt(4, segmentRows);
+                    try (ResultSet rs = query.executeQuery()) {
+                        while (rs.next()) {
+                            long id = rs.getLong(1);
+                            Entry entry = new Entry(id, username, rs.getDouble(2), rs.getString(3),
+                                    rs.getString(4), rs.getString(5), rs.getString(6));
+                            writer.add(entry);
+                            ids.add(id);
+                            maxDate = entry.date;
+                            minId = Math.min(minId, id);
+                            maxId = Math.max(maxId, id);
+                        }
+                    }
+                    if (ids.isEmpty()) {
+                        c.rollback();
+                        return 0;
+                    }
+                    String minDate = writer.minDate();
+                    segment = writer.finish();
+                    try (PreparedStatement register = c.prepareStatement(
+                            "INSERT INTO archive_segments (username, name, min_date, max_date, min_id, max_id, row_count) VALUES (?, ?, ?, ?, ?, ?, ?)")) {
+                        register.setString(1, username);
+                        register.setString(2, name);
+                        register.setString(3, minDate);
+                        register.setString(4, maxDate);
+                        register.setLong(5, minId);
+                        register.setLong(6, maxId);
+                        register.setInt(7, ids.size());
+                        register.executeUpdate();
+                    }
+                }
+                try (PreparedStatement delete = c.prepareStatement("DELETE FROM entries WHERE username = ? AND id = ?")) {
+                    for (long id : ids) {
+                        delete.setString(1, username);
+                        delete.setLong(2, id);
+                        delete.addBatch();
+                    }
+                    delete.executeBatch();
+                }
+                c.commit();
+                registered = true;
+                store.remember(file, segment);
+                return ids.size();
+            } catch (SQLException | IOException e) {
+                c.rollback();
+                throw e;
+            } finally {
+                if (!registered && file != null) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * 锁住用户的版本行；用户还没有版本行时先插入一行（版本 0）。
+     */
+    static void lockUser(Connection c, String username) throws SQLException {
+        for (int attempt = 0; attempt < 2; attempt++) {
+            try (PreparedStatement lock = c.prepareStatement(
+                    "SELECT version FROM user_versions WHERE username = ? FOR UPDATE")) {
+                lock.setString(1, username);
+                try (ResultSet rs = lock.executeQuery()) {
+                    if (rs.next()) {
+                        return;
+                    }
+                }
+            }
+            try (PreparedStatement insert = c.prepareStatement(
+                    "INSERT INTO user_versions (username, version, cleared_version) VALUES (?, 0, 0)")) {
+                insert.setString(1, username);
+                insert.executeUpdate();
+                return;
+            } catch (SQLException e) {
+                if (e.getErrorCode() != 23505) {
+                    throw e;
+                }
+            }
+        }
+        throw new SQLException("无法锁定用户: " + username);
+    }
+}
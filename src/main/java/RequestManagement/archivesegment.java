@@ -0,0 +1,316 @@
+package RequestManagement;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+import sharedmodel.Entry;
+
+/**
+ * 归档段文件：一个用户的一批旧记录按 (date, id) 排序后每 BLOCK_ROWS 条压缩成一块，
+ * 文件末尾是稀疏索引（每块的首末日期、位置和 id 范围）。按日期读取时只解压与范围重叠的块。
+ * 段文件写完后不再修改，删除记录通过 archive_tombstones 表达。
+ *
+ * 布局：magic, 版本 | 块... | 块数, 每块(minDate, maxDate, offset, length, count, minId, maxId) | 索引位置, magic
+ */
+final class archivesegment {
+    private static final int MAGIC = 0x41435347;
+    private static final int FORMAT_VERSION = 1;
+    static final int BLOCK_ROWS = 256;
+
+    final List<block> blocks;
+
+    private archivesegment(List<block> blocks) {
+        this.blocks = blocks;
+    }
+
+    static final class block {
+        final String minDate;
+        final String maxDate;
+        final long offset;
+        final int length;
+        final int count;
+        final long minId;
+        final long maxId;
+
+        block(String minDate, String maxDate, long offset, int length, int count, long minId, long maxId) {
+            this.minDate = minDate;
+            this.maxDate = maxDate;
+            this.offset = offset;
+            this.length = length;
+            this.count = count;
+            this.minId = minId;
+            this.maxId = maxId;
+        }
+
+        /**
+         * 与 [startDate, endDate] 是否可能重叠，null 表示不限。日期按字符串比较，与热数据的 SQL 条件一致。
+         */
+        boolean overlaps(String startDate, String endDate) {
+            return (startDate == null || maxDate.compareTo(startDate) >= 0)
+                    && (endDate == null || minDate.compareTo(endDate) <= 0);
+        }
+    }
+
+    /**
+     * 顺序写入已按 (date, id) 排序的记录，finish 后以原子改名的方式出现在目标路径。
+     */
+    static final class writer implements AutoCloseable {
+        private final Path target;
+        private final Path temp;
+        private final OutputStream out;
+        private final List<block> index = new ArrayList<>();
+        private final List<Entry> pending = new ArrayList<>(BLOCK_ROWS);
+        private final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        private long position;
+        private long rows;
+        private boolean finished;
+
+        writer(Path target) throws IOException {
+            this.target = target;
+            this.temp = target.resolveSibling(target.getFileName() + ".tmp");
+            Files.createDirectories(target.getParent());
+            this.out = Files.newOutputStream(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+            DataOutputStream header = new DataOutputStream(out);
+            header.writeInt(MAGIC);
+            header.writeByte(FORMAT_VERSION);
+            position = 5;
+        }
+
+        void add(Entry entry) throws IOException {
+            pending.add(entry);
+            rows++;
+            if (pending.size() == BLOCK_ROWS) {
+                flushBlock();
+            }
+        }
+
+        long rows() {
+            return rows;
+        }
+
+        String minDate() {
+            return index.isEmpty() ? (pending.isEmpty() ? null : pending.get(0).date) : index.get(0).minDate;
+        }
+
+        private void flushBlock() throws IOException {
+            if (pending.isEmpty()) {
+                return;
+            }
+            ByteArrayOutputStream raw = new ByteArrayOutputStream();
+            deflater.reset();
+            try (DataOutputStream data = new DataOutputStream(new DeflaterOutputStream(raw, deflater))) {
+                for (Entry entry : pending) {
+                    data.writeLong(entry.id);
+                    data.writeDouble(entry.amount);
+                    writeNullable(data, entry.type);
+                    data.writeUTF(entry.date);
+                    writeNullable(data, entry.subject);
+                    writeNullable(data, entry.note);
+                }
+            }
+            byte[] compressed = raw.toByteArray();
+            out.write(compressed);
+            long minId = Long.MAX_VALUE;
+            long maxId = Long.MIN_VALUE;
+            for (Entry entry : pending) {
+                minId = Math.min(minId, entry.id);
+                maxId = Math.max(maxId, entry.id);
+            }
+            index.add(new block(pending.get(0).date, pending.get(pending.size() - 1).date,
+                    position, compressed.length, pending.size(), minId, maxId));
+            position += compressed.length;
+            pending.clear();
+        }
+
+        /**
+         * 写出索引并改名为目标文件，返回各块的索引。
+         */
+        archivesegment finish() throws IOException {
+            flushBlock();
+            DataOutputStream data = new DataOutputStream(out);
+            long indexOffset = position;
+            data.writeInt(index.size());
+            for (block b : index) {
+                data.writeUTF(b.minDate);
+                data.writeUTF(b.maxDate);
+                data.writeLong(b.offset);
+                data.writeInt(b.length);
+                data.writeInt(b.count);
+                data.writeLong(b.minId);
+                data.writeLong(b.maxId);
+            }
+            data.writeLong(indexOffset);
+            data.writeInt(MAGIC);
+            data.flush();
+            out.close();
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            finished = true;
+            return new archivesegment(List.copyOf(index));
+        }
+
+        @Override
+        public void close() throws IOException {
+            deflater.end();
+            if (!finished) {
+                out.close();
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    /**
+     * 只读取文件末尾的索引，不解压任何块。
+     */
+    static archivesegment open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer trailer = readFully(channel, size - 12, 12);
+            long indexOffset = trailer.getLong();
+            if (trailer.getInt() != MAGIC) {
+                throw new IOException("不是归档段文件: " + file);
+            }
+            ByteBuffer indexBytes = readFully(channel, indexOffset, (int) (size - 12 - indexOffset));
+            DataInputStream data = new DataInputStream(new ByteArrayInputStream(
+                    indexBytes.array(), indexBytes.arrayOffset(), indexBytes.remaining()));
+            int count = data.readInt();
+            List<block> blocks = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                blocks.add(new block(data.readUTF(), data.readUTF(), data.readLong(), data.readInt(),
+                        data.readInt(), data.readLong(), data.readLong()));
+            }
+            return new archivesegment(List.copyOf(blocks));
+        }
+    }
+
+    /**
+     * 逐条处理归档记录，visitor 抛出的异常原样传出。
+     */
+    interface visitor {
+        void accept(Entry entry) throws IOException;
+    }
+
+    /**
+     * 解压与日期范围重叠的块，按块依次交给 visitor，任一时刻只有一个块在内存中。
+     */
+    void scan(Path file, String username, String startDate, String endDate, visitor visitor) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            for (block b : blocks) {
+                if (!b.overlaps(startDate, endDate)) {
+                    continue;
+                }
+                for (Entry entry : decode(channel, b, username)) {
+                    visitor.accept(entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * 解压与日期范围重叠的块，把满足 filter 的记录加入 out。
+     */
+    void read(Path file, String username, String startDate, String endDate, Predicate<Entry> filter,
+            List<Entry> out) throws IOException {
+        scan(file, username, startDate, endDate, entry -> {
+            if (filter.test(entry)) {
+                out.add(entry);
+            }
+        });
+    }
+
+    /**
+     * 段中是否有该 id 的记录，只解压 id 范围覆盖它的块。
+     */
+    boolean contains(Path file, long id) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            for (block b : blocks) {
+                if (id < b.minId || id > b.maxId) {
+                    continue;
+                }
+                for (Entry entry : decode(channel, b, null)) {
+                    if (entry.id == id) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private static List<Entry> decode(FileChannel channel, block b, String username) throws IOException {
+        byte[] compressed = readFully(channel, b.offset, b.length).array();
+        Inflater inflater = new Inflater();
+        ByteArrayOutputStream raw = new ByteArrayOutputStream(b.length * 4);
+        try {
+            inflater.setInput(compressed);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("归档块已损坏");
+                }
+                raw.write(buffer, 0, n);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("归档块已损坏", e);
+        } finally {
+            inflater.end();
+        }
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(raw.toByteArray()));
+        List<Entry> entries = new ArrayList<>(b.count);
+        for (int i = 0; i < b.count; i++) {
+            long id = data.readLong();
+            double amount = data.readDouble();
+            String type = readNullable(data);
+            String date = data.readUTF();
+            String subject = readNullable(data);
+            String note = readNullable(data);
+            entries.add(new Entry(id, username, amount, type, date, subject, note));
+        }
+        return entries;
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        if (position < 0 || length < 0) {
+            throw new IOException("归档段文件已损坏");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("归档段文件被截断");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void writeNullable(DataOutputStream data, String value) throws IOException {
+        data.writeBoolean(value != null);
+        if (value != null) {
+            data.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(DataInputStream data) throws IOException {
+        return data.readBoolean() ? data.readUTF() : null;
+    }
+}
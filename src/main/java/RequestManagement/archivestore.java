@@ -0,0 +1,226 @@
+package RequestManagement;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+import sharedmodel.Entry;
+
+/**
+ * 冷数据归档的读取端。段文件按用户存放在 root/<摘要前两位>/<用户名 SHA-256>/ 下，哪些段有效由数据库中的
+ * archive_segments 登记表决定（与删除热数据在同一事务中提交），未登记的文件视为残留直接忽略。
+ * 登记表记录每段的日期范围，查询范围与之不重叠时不打开任何文件。
+ */
+class archivestore {
+    // 早期版本以用户名 UTF-8 字节的十六进制作目录名，超过这个长度的用户名不可能有这样的目录
+    private static final int LEGACY_MAX_BYTES = 127;
+    private final Path root;
+    // 段文件不可变，索引读过一次后缓存
+    private final ConcurrentHashMap<Path, archivesegment> indexes = new ConcurrentHashMap<>();
+
+    archivestore(Path root) {
+        this.root = root;
+    }
+
+    /**
+     * 目录名是用户名的 SHA-256，长度固定，不受用户名长度影响；早期版本留下的十六进制目录存在时继续使用。
+     */
+    Path userDir(String username) {
+        byte[] bytes = username.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= LEGACY_MAX_BYTES) {
+            Path legacy = root.resolve(HexFormat.of().formatHex(bytes));
+            if (Files.isDirectory(legacy)) {
+                return legacy;
+            }
+        }
+        String digest;
+        try {
+            digest = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        return root.resolve(digest.substring(0, 2)).resolve(digest);
+    }
+
+    /**
+     * 读取日期范围内（null 表示不限）满足 filter 的归档记录，已删除的记录被排除。
+     */
+    List<Entry> read(Connection c, String username, String startDate, String endDate, Predicate<Entry> filter)
+            throws SQLException {
+        List<Entry> results = new ArrayList<>();
+        try {
+            forEach(c, username, startDate, endDate, filter, results::add);
+        } catch (IOException e) {
+            throw new SQLException("读取归档段失败: " + e.getMessage(), e);
+        }
+        return results;
+    }
+
+    /**
+     * 逐条处理日期范围内满足 filter 且未删除的归档记录，内存中最多只有一个解压后的块。
+     * 段文件读取失败与 visitor 的异常都以 IOException 抛出。
+     */
+    void forEach(Connection c, String username, String startDate, String endDate, Predicate<Entry> filter,
+            archivesegment.visitor visitor) throws SQLException, IOException {
+        List<String> names = new ArrayList<>();
+        StringBuilder sql = new StringBuilder("SELECT name FROM archive_segments WHERE username = ?");
+        if (startDate != null) {
+            sql.append(" AND max_date >= ?");
+        }
+        if (endDate != null) {
+            sql.append(" AND min_date <= ?");
+        }
+        sql.append(" ORDER BY min_date");
+        try (PreparedStatement query = c.prepareStatement(sql.toString())) {
+            int index = 1;
+            query.setString(index++, username);
+            if (startDate != null) {
+                query.setString(index++, startDate);
+            }
+            if (endDate != null) {
+                query.setString(index, endDate);
+            }
+            try (ResultSet rs = query.executeQuery()) {
+                while (rs.next()) {
+                    names.add(rs.getString(1));
+                }
+            }
+        }
+        if (names.isEmpty()) {
+            return;
+        }
+        Set<Long> deleted = deletedIds(c, username);
+        for (String name : names) {
+            Path file = userDir(username).resolve(name);
+            segment(file).scan(file, username, startDate, endDate, entry -> {
+                if (!deleted.contains(entry.id) && filter.test(entry)) {
+                    visitor.accept(entry);
+                }
+            });
+        }
+    }
+
+    /**
+     * 归档中是否有该用户的这条记录且尚未删除。
+     */
+    boolean contains(Connection c, String username, long id) throws SQLException {
+        try (PreparedStatement query = c.prepareStatement(
+                "SELECT name FROM archive_segments WHERE username = ? AND min_id <= ? AND max_id >= ?"
+                        + " AND NOT EXISTS (SELECT 1 FROM archive_tombstones t WHERE t.username = ? AND t.id = ?)")) {
+            query.setString(1, username);
+            query.setLong(2, id);
+            query.setLong(3, id);
+            query.setString(4, username);
+            query.setLong(5, id);
+            try (ResultSet rs = query.executeQuery()) {
+                while (rs.next()) {
+                    Path file = userDir(username).resolve(rs.getString(1));
+                    try {
+                        if (segment(file).contains(file, id)) {
+                            return true;
+                        }
+                    } catch (IOException e) {
+                        throw new SQLException("读取归档段失败: " + file, e);
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 归档中尚未删除的记录数。
+     */
+    long count(Connection c, String username) throws SQLException {
+        try (PreparedStatement query = c.prepareStatement(
+                "SELECT COALESCE((SELECT SUM(row_count) FROM archive_segments WHERE username = ?), 0)"
+                        + " - (SELECT COUNT(*) FROM archive_tombstones WHERE username = ?)")) {
+            query.setString(1, username);
+            query.setString(2, username);
+            try (ResultSet rs = query.executeQuery()) {
+                rs.next();
+                return rs.getLong(1);
+            }
+        }
+    }
+
+    /**
+     * 在调用方的事务中注销该用户的全部段并返回文件名；提交后再调用 deleteFiles 删除文件。
+     */
+    List<String> unregisterAll(Connection c, String username) throws SQLException {
+        List<String> names = new ArrayList<>();
+        try (PreparedStatement query = c.prepareStatement("SELECT name FROM archive_segments WHERE username = ?")) {
+            query.setString(1, username);
+            try (ResultSet rs = query.executeQuery()) {
+                while (rs.next()) {
+                    names.add(rs.getString(1));
+                }
+            }
+        }
+        for (String table : new String[] {"archive_segments", "archive_tombstones"}) {
+            try (PreparedStatement delete = c.prepareStatement("DELETE FROM " + table + " WHERE username = ?")) {
+                delete.setString(1, username);
+                delete.executeUpdate();
+            }
+        }
+        return names;
+    }
+
+    void deleteFiles(String username, List<String> names) {
+        for (String name : names) {
+            Path file = userDir(username).resolve(name);
+            indexes.remove(file);
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                // 已注销的文件不会再被读取，删除失败只是占用空间
+            }
+        }
+    }
+
+    private Set<Long> deletedIds(Connection c, String username) throws SQLException {
+        Set<Long> ids = new HashSet<>();
+        try (PreparedStatement query = c.prepareStatement("SELECT id FROM archive_tombstones WHERE username = ?")) {
+            query.setString(1, username);
+            try (ResultSet rs = query.executeQuery()) {
+                while (rs.next()) {
+                    ids.add(rs.getLong(1));
+                }
+            }
+        }
+        return ids;
+    }
+
+    private archivesegment segment(Path file) throws IOException {
+        try {
+            return indexes.computeIfAbsent(file, path -> {
+                try {
+                    return archivesegment.open(path);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    void remember(Path file, archivesegment segment) {
+        indexes.put(file, segment);
+    }
+}
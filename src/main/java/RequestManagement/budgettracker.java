@@ -0,0 +1,307 @@
+package RequestManagement;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.IsoFields;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import sharedmodel.Entry;
+
+/**
+ * 预算规则（"food 每月不超过 500"）与内存中的累计支出。只为设有预算的科目维护每个周期的合计，
+ * 写入时按 (科目, 周期) 查表更新并判断是否超支，不再查询 entries。只统计 expense 类型、
+ * 日期可解析的热数据，归档记录不计入。
+ *
+ * 用户的状态在第一次用到时从数据库加载，之后随 add/delete 增量维护。增量更新在写入事务内、
+ * 持有用户版本行锁时进行，加载也在这把锁下（或在没有写入的只读路径上以 putIfAbsent 安装），
+ * 因此一笔写入不会既被加载又被累加。事务回滚、清空或其他实例修改了数据时调用 invalidate
+ * 丢弃该用户的状态，下次用到时重新加载；失效广播可能丢失，多实例时状态只在 ttlNanos 内可信。
+ */
+final class budgettracker {
+
+    enum period {
+        MONTH, WEEK;
+
+        /**
+         * 日期所在周期的键：月为 2024-05，周为 ISO 周 2024-W19。
+         */
+        String key(LocalDate date) {
+            if (this == MONTH) {
+                return date.getYear() + "-" + String.format("%02d", date.getMonthValue());
+            }
+            return date.get(IsoFields.WEEK_BASED_YEAR) + "-W" + String.format("%02d", date.get(IsoFields.WEEK_OF_WEEK_BASED_YEAR));
+        }
+
+        String label() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+
+        static period parse(String text) {
+            if (text == null || text.trim().isEmpty()) {
+                return MONTH;
+            }
+            switch (text.trim().toLowerCase(Locale.ROOT)) {
+                case "month":
+                    return MONTH;
+                case "week":
+                    return WEEK;
+                default:
+                    return null;
+            }
+        }
+    }
+
+    /**
+     * 一条规则在某个周期的使用情况。
+     */
+    static final class usage {
+        final String subject;
+        final period period;
+        final double limit;
+        final double spent;
+
+        usage(String subject, period period, double limit, double spent) {
+            this.subject = subject;
+            this.period = period;
+            this.limit = limit;
+            this.spent = spent;
+        }
+
+        @Override
+        public String toString() {
+            return period.label() + "=" + format(spent) + "/" + format(limit);
+        }
+    }
+
+    private static final class rule {
+        final period period;
+        final double limit;
+
+        rule(period period, double limit) {
+            this.period = period;
+            this.limit = limit;
+        }
+    }
+
+    /**
+     * 一个用户的规则与合计，读写都在该对象上加锁。
+     */
+    private static final class userstate {
+        // 科目 → 规则（每个周期最多一条）
+        final Map<String, List<rule>> rules = new HashMap<>();
+        // 科目 + '\0' + 周期键 → 合计
+        final Map<String, double[]> totals = new HashMap<>();
+        final long loadedNanos = System.nanoTime();
+    }
+
+    // 已加载的用户，没有预算的用户也保存一个空状态，避免每次写入都查询 budgets 表
+    private final ConcurrentHashMap<String, userstate> users = new ConcurrentHashMap<>();
+    private final long ttlNanos;
+
+    budgettracker(long ttlNanos) {
+        this.ttlNanos = ttlNanos;
+    }
+
+    private userstate current(String username) {
+        userstate state = users.get(username);
+        if (state != null && System.nanoTime() - state.loadedNanos >= ttlNanos) {
+            users.remove(username, state);
+            return null;
+        }
+        return state;
+    }
+
+    static String format(double value) {
+        return String.format(Locale.ROOT, "%.2f", value);
+    }
+
+    /**
+     * 启动时加载该连接所在分片中所有设有预算的用户。
+     */
+    void loadAll(Connection c) throws SQLException {
+        List<String> usernames = new ArrayList<>();
+        try (PreparedStatement query = c.prepareStatement("SELECT DISTINCT username FROM budgets");
+             ResultSet rs = query.executeQuery()) {
+            while (rs.next()) {
+                usernames.add(rs.getString(1));
+            }
+        }
+        for (String username : usernames) {
+            users.putIfAbsent(username, load(c, username));
+        }
+    }
+
+    /**
+     * 在调用方持有用户版本行锁的事务中重新加载（例如修改预算之后），覆盖已有的状态。
+     */
+    void reload(Connection c, String username) throws SQLException {
+        users.put(username, load(c, username));
+    }
+
+    /**
+     * 从数据库读取规则，并按科目与日期汇总可见的支出。
+     */
+    private static userstate load(Connection c, String username) throws SQLException {
+        userstate state = new userstate();
+        try (PreparedStatement query = c.prepareStatement(
+                "SELECT subject, period, limit_amount FROM budgets WHERE username = ?")) {
+            query.setString(1, username);
+            try (ResultSet rs = query.executeQuery()) {
+                while (rs.next()) {
+                    period p = period.parse(rs.getString(2));
+                    if (p != null) {
+                        state.rules.computeIfAbsent(rs.getString(1), s -> new ArrayList<>()).add(new rule(p, rs.getDouble(3)));
+                    }
+                }
+            }
+        }
+        if (state.rules.isEmpty()) {
+            return state;
+        }
+        try (PreparedStatement query = c.prepareStatement(
+                "SELECT subject, date, SUM(amount) FROM entries WHERE username = ?" + sqloperation.VISIBLE_ROWS
+                        + " AND type = 'expense' AND subject IN (SELECT subject FROM budgets WHERE username = ?)"
+                        + " GROUP BY subject, date")) {
+            query.setString(1, username);
+            query.setString(2, username);
+            query.setString(3, username);
+            try (ResultSet rs = query.executeQuery()) {
+                while (rs.next()) {
+                    apply(state, rs.getString(1), rs.getString(2), rs.getDouble(3), null);
+                }
+            }
+        }
+        return state;
+    }
+
+    /**
+     * 在 add 事务中、插入之后调用，返回这笔支出使之超出的预算；没有超支时返回空列表。
+     */
+    List<usage> added(Connection c, String username, String subject, String type, String date, double amount)
+            throws SQLException {
+        return added(c, username, List.of(new Entry(username, amount, type, date, subject, null)));
+    }
+
+    /**
+     * 同一用户在一个事务中插入多条记录之后调用（type 已规范化），返回超出的预算。
+     * 状态若是此时才加载的，加载的查询已经包含这些未提交的插入，不再重复累加。
+     */
+    List<usage> added(Connection c, String username, List<Entry> rows) throws SQLException {
+        userstate state = current(username);
+        boolean loaded = state == null;
+        if (loaded) {
+            state = load(c, username);
+            users.put(username, state);
+        }
+        List<usage> breaches = new ArrayList<>(1);
+        synchronized (state) {
+            for (Entry row : rows) {
+                if (row.subject != null && "expense".equals(row.type) && state.rules.containsKey(row.subject)) {
+                    apply(state, row.subject, row.date, loaded ? 0 : row.amount, breaches);
+                }
+            }
+        }
+        return breaches;
+    }
+
+    /**
+     * 在 delete 事务中、删除之前调用：该用户有预算时查出这条记录并从合计中扣除。
+     */
+    void deleting(Connection c, String username, long id) throws SQLException {
+        userstate state = current(username);
+        if (state == null) {
+            state = load(c, username);
+            users.put(username, state);
+        }
+        synchronized (state) {
+            if (state.rules.isEmpty()) {
+                return;
+            }
+        }
+        try (PreparedStatement query = c.prepareStatement(
+                "SELECT subject, date, amount FROM entries WHERE id = ? AND username = ? AND type = 'expense'"
+                        + sqloperation.VISIBLE_ROWS)) {
+            query.setLong(1, id);
+            query.setString(2, username);
+            query.setString(3, username);
+            try (ResultSet rs = query.executeQuery()) {
+                if (rs.next()) {
+                    synchronized (state) {
+                        apply(state, rs.getString(1), rs.getString(2), -rs.getDouble(3), null);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 把 amount 加到 subject 在 date 所在各周期的合计上；breaches 非空时收集加上后超出限额的规则。
+     */
+    private static void apply(userstate state, String subject, String date, double amount, List<usage> breaches) {
+        List<rule> rules = state.rules.get(subject);
+        LocalDate day = parseDate(date);
+        if (rules == null || day == null) {
+            return;
+        }
+        for (rule r : rules) {
+            double[] total = state.totals.computeIfAbsent(subject + '\0' + r.period.key(day), k -> new double[1]);
+            total[0] += amount;
+            if (breaches != null && total[0] > r.limit) {
+                breaches.add(new usage(subject, r.period, r.limit, total[0]));
+            }
+        }
+    }
+
+    static LocalDate parseDate(String date) {
+        if (date == null) {
+            return null;
+        }
+        try {
+            return LocalDate.parse(date.trim().replace('/', '-'));
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 丢弃该用户的状态（写入回滚、清空、其他实例的修改），下次用到时重新加载。
+     */
+    void invalidate(String username) {
+        users.remove(username);
+    }
+
+    /**
+     * 该用户每条预算在 today 所在周期的使用情况，按科目排序。
+     */
+    List<usage> usages(Connection c, String username, LocalDate today) throws SQLException {
+        userstate state = current(username);
+        if (state == null) {
+            // 不在写入事务中，与并发写入加载的状态以先安装的为准
+            userstate loaded = load(c, username);
+            state = users.putIfAbsent(username, loaded);
+            if (state == null) {
+                state = loaded;
+            }
+        }
+        List<usage> result = new ArrayList<>();
+        synchronized (state) {
+            for (Map.Entry<String, List<rule>> entry : state.rules.entrySet()) {
+                for (rule r : entry.getValue()) {
+                    double[] total = state.totals.get(entry.getKey() + '\0' + r.period.key(today));
+                    result.add(new usage(entry.getKey(), r.period, r.limit, total == null ? 0 : total[0]));
+                }
+            }
+        }
+        result.sort((a, b) -> a.subject.equals(b.subject) ? a.period.compareTo(b.period) : a.subject.compareTo(b.subject));
+        return result;
+    }
+}
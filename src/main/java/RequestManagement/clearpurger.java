@@ -0,0 +1,202 @@
+package RequestManagement;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import LogManagement.AsyncLog;
+
+/**
+ * 后台分批删除已清空用户的旧记录。clear 只在短事务里推进 user_versions.cleared_below 水位线，
+ * 水位线及以下的记录立即对查询不可见；本线程再按 id 从小到大每次删除一段（最多 chunkRows 行）并单独提交，
+ * 不会出现长时间持锁、撑大撤销日志的大事务。进度只保存在内存中，未完成的任务由 purge_pending 标记，重启后继续。
+ */
+class clearpurger {
+    /**
+     * 借出 username 所在分片的连接，使用后关闭即归还。
+     */
+    interface connector {
+        Connection open(String username) throws SQLException;
+    }
+
+    private final connector connections;
+    private final int chunkRows;
+    private final long pauseMillis;
+    private final LinkedBlockingQueue<String> queue = new LinkedBlockingQueue<>();
+    private final ConcurrentHashMap<String, progress> jobs = new ConcurrentHashMap<>();
+    private volatile boolean stopped;
+    private Thread worker;
+
+    clearpurger(connector connections, int chunkRows, long pauseMillis) {
+        if (chunkRows <= 0 || pauseMillis < 0) {
+            throw new IllegalArgumentException("chunkRows must be positive and pauseMillis non-negative");
+        }
+        this.connections = connections;
+        this.chunkRows = chunkRows;
+        this.pauseMillis = pauseMillis;
+    }
+
+    synchronized void start() {
+        if (worker != null) {
+            return;
+        }
+        stopped = false;
+        worker = new Thread(this::runLoop, "clear-purger");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * 停止后台线程。正在删除的一段会完成提交，剩余部分在下次启动时继续。
+     */
+    synchronized void stop(long timeoutMillis) throws InterruptedException {
+        stopped = true;
+        if (worker != null) {
+            worker.interrupt();
+            worker.join(timeoutMillis);
+            worker = null;
+        }
+    }
+
+    /**
+     * 为用户排队一次清理。已在排队或进行中时不重复排队：进行中的任务结束时会发现水位线变化并继续。
+     */
+    void submit(String username) {
+        if (jobs.putIfAbsent(username, new progress()) == null) {
+            queue.add(username);
+        }
+    }
+
+    /**
+     * 内存中的进度：排队中返回 queued，删除中返回 running:已删除/总数；没有任务时返回 null。
+     */
+    String status(String username) {
+        progress p = jobs.get(username);
+        if (p == null) {
+            return null;
+        }
+        return p.started ? "running:" + p.deleted + "/" + p.total : "queued";
+    }
+
+    private void runLoop() {
+        while (!stopped) {
+            String username;
+            try {
+                username = queue.poll(200, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (username == null) {
+                continue;
+            }
+            progress p = jobs.get(username);
+            try {
+                purge(username, p);
+            } catch (InterruptedException e) {
+                jobs.remove(username, p);
+                return;
+            } catch (SQLException e) {
+                // purge_pending 仍为 TRUE，下次启动时重试
+                jobs.remove(username, p);
+                AsyncLog.error("clear-purge", e);
+            }
+        }
+    }
+
+    void purge(String username, progress p) throws SQLException, InterruptedException {
+        long watermark;
+        try (Connection c = connections.open(username)) {
+            watermark = pendingWatermark(c, username);
+            if (watermark > 0) {
+                p.total = countBelow(c, username, watermark);
+            }
+        }
+        p.started = true;
+        while (watermark > 0 && !stopped) {
+            int deleted;
+            try (Connection c = connections.open(username)) {
+                deleted = deleteChunk(c, username, watermark);
+            }
+            p.deleted += deleted;
+            if (deleted < chunkRows) {
+                break;
+            }
+            // 两段之间让出数据库给前台请求
+            Thread.sleep(pauseMillis);
+        }
+        if (stopped) {
+            jobs.remove(username, p);
+            return;
+        }
+        // 先移除内存任务再清除标记：期间提交的新 clear 会重新排队，不会丢失
+        jobs.remove(username, p);
+        if (watermark > 0) {
+            try (Connection c = connections.open(username);
+                 PreparedStatement done = c.prepareStatement(
+                         "UPDATE user_versions SET purge_pending = FALSE WHERE username = ? AND cleared_below = ?")) {
+                done.setString(1, username);
+                done.setLong(2, watermark);
+                if (done.executeUpdate() == 0) {
+                    // 删除期间又清空了一次，水位线已经前移
+                    submit(username);
+                }
+            }
+        }
+    }
+
+    private static long pendingWatermark(Connection c, String username) throws SQLException {
+        try (PreparedStatement query = c.prepareStatement(
+                "SELECT cleared_below FROM user_versions WHERE username = ? AND purge_pending")) {
+            query.setString(1, username);
+            try (ResultSet rs = query.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0L;
+            }
+        }
+    }
+
+    private static long countBelow(Connection c, String username, long watermark) throws SQLException {
+        try (PreparedStatement query = c.prepareStatement(
+                "SELECT COUNT(*) FROM entries WHERE username = ? AND id <= ?")) {
+            query.setString(1, username);
+            query.setLong(2, watermark);
+            try (ResultSet rs = query.executeQuery()) {
+                rs.next();
+                return rs.getLong(1);
+            }
+        }
+    }
+
+    /**
+     * 删除水位线以下最小的一段 id 区间，区间上界取第 chunkRows 条的 id，因此每段最多 chunkRows 行。
+     */
+    private int deleteChunk(Connection c, String username, long watermark) throws SQLException {
+        long upper = watermark;
+        try (PreparedStatement query = c.prepareStatement(
+                "SELECT id FROM entries WHERE username = ? AND id <= ? ORDER BY id OFFSET ? ROWS FETCH NEXT 1 ROW ONLY")) {
+            query.setString(1, username);
+            query.setLong(2, watermark);
+            query.setInt(3, chunkRows - 1);
+            try (ResultSet rs = query.executeQuery()) {
+                if (rs.next()) {
+                    upper = rs.getLong(1);
+                }
+            }
+        }
+        try (PreparedStatement delete = c.prepareStatement(
+                "DELETE FROM entries WHERE username = ? AND id <= ?")) {
+            delete.setString(1, username);
+            delete.setLong(2, upper);
+            return delete.executeUpdate();
+        }
+    }
+
+    static final class progress {
+        volatile boolean started;
+        volatile long total;
+        volatile long deleted;
+    }
+}
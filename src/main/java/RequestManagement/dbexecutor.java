@@ -0,0 +1,218 @@
+package RequestManagement;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 专门执行 sqloperation 调用的有界执行器，由若干单线程“通道”组成，同一用户的请求总是进入同一通道。
+ * 因此同一用户的操作严格按提交顺序串行执行（先 add 后 delete 的结果是确定的），不会在 H2 行锁上互相等待，
+ * 不同用户的请求则在不同通道上并行。
+ * 网络线程只拿到 CompletableFuture，不会被 JDBC 阻塞；
+ * 超时或取消时，尚未开始的任务会被直接丢弃，正在执行的语句由 H2 的 QUERY_TIMEOUT 兜底。
+ * 通道内排队的任务按优先级出队（数值越小越先执行），同优先级内保持提交顺序；
+ * 为了不打乱同一用户的顺序，任务不会排到同一用户更早提交的任务之前。
+ * 通道排队数达到上限时新任务被立即拒绝，而不是继续堆积。
+ */
+public class dbexecutor implements dbexecutorMBean {
+    public static final int PRIORITY_HIGH = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_LOW = 2;
+
+    private static final AtomicInteger THREAD_SEQ = new AtomicInteger();
+
+    private final lane[] lanes;
+    private final int laneCapacity;
+    private final long timeoutMillis;
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * threads 为通道数，queueCapacity 为所有通道排队数之和的上限（平均分配到各通道）。
+     */
+    public dbexecutor(int threads, int queueCapacity, long timeoutMillis) {
+        if (threads <= 0 || queueCapacity <= 0 || timeoutMillis <= 0) {
+            throw new IllegalArgumentException("threads, queueCapacity and timeoutMillis must be positive");
+        }
+        ThreadFactory factory = r -> {
+            Thread t = new Thread(r, "db-worker-" + THREAD_SEQ.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        this.lanes = new lane[threads];
+        for (int i = 0; i < threads; i++) {
+            lanes[i] = new lane(factory);
+        }
+        this.laneCapacity = Math.max(1, (queueCapacity + threads - 1) / threads);
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public <T> CompletableFuture<T> submit(Callable<T> task) {
+        return submit(null, PRIORITY_NORMAL, task);
+    }
+
+    public <T> CompletableFuture<T> submit(int priority, Callable<T> task) {
+        return submit(null, priority, task);
+    }
+
+    /**
+     * 按给定优先级提交一个数据库任务，key（通常是用户名）相同的任务在同一通道中按提交顺序执行；
+     * key 为 null 时轮流分配通道。通道排队已满时返回的 future 以 RejectedExecutionException 失败，
+     * 超过 timeoutMillis 未完成时以 TimeoutException 失败。
+     */
+    public <T> CompletableFuture<T> submit(String key, int priority, Callable<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        long seq = sequence.getAndIncrement();
+        lane target = lanes[(int) Math.floorMod(key == null ? seq : key.hashCode(), (long) lanes.length)];
+        // 容量检查与入队之间不加锁，上限是近似的，但足以阻止队列无限增长
+        if (target.pool.getQueue().size() >= laneCapacity) {
+            rejected.incrementAndGet();
+            future.completeExceptionally(new RejectedExecutionException("db queue full"));
+            return future;
+        }
+        prioritizedtask queued;
+        try {
+            queued = target.enqueue(key, priority, seq, () -> {
+                if (future.isDone()) {
+                    // 排队期间已超时或被调用方取消，不再访问数据库
+                    return;
+                }
+                try {
+                    future.complete(task.call());
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            future.completeExceptionally(e);
+            return future;
+        }
+        future.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+        future.whenComplete((result, error) -> {
+            if (future.isCancelled() || error instanceof TimeoutException) {
+                // 立即腾出排队名额
+                target.remove(queued);
+            }
+        });
+        return future;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        int total = 0;
+        for (lane l : lanes) {
+            total += l.pool.getQueue().size();
+        }
+        return total;
+    }
+
+    @Override
+    public int getActiveCount() {
+        int total = 0;
+        for (lane l : lanes) {
+            total += l.pool.getActiveCount();
+        }
+        return total;
+    }
+
+    @Override
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (lane l : lanes) {
+            l.pool.shutdown();
+        }
+        for (lane l : lanes) {
+            if (!l.pool.awaitTermination(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                l.pool.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * 一个单线程通道。lastQueued 记录每个 key 最后一个仍在排队的任务，只在持有通道锁时访问。
+     */
+    private static final class lane {
+        final ThreadPoolExecutor pool;
+        private final Map<String, prioritizedtask> lastQueued = new HashMap<>();
+
+        lane(ThreadFactory factory) {
+            pool = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                    new PriorityBlockingQueue<>(), factory, new ThreadPoolExecutor.AbortPolicy());
+            // 空闲时回收线程，避免测试中大量创建的 parser 实例残留线程
+            pool.allowCoreThreadTimeOut(true);
+        }
+
+        synchronized prioritizedtask enqueue(String key, int priority, long seq, Runnable body) {
+            int effective = priority;
+            if (key != null) {
+                prioritizedtask previous = lastQueued.get(key);
+                if (previous != null) {
+                    // 不能排到同一 key 更早的任务之前
+                    effective = Math.max(effective, previous.priority);
+                }
+            }
+            prioritizedtask task = new prioritizedtask(effective, seq, key, this, body);
+            pool.execute(task);
+            if (key != null) {
+                lastQueued.put(key, task);
+            }
+            return task;
+        }
+
+        synchronized void dequeued(prioritizedtask task) {
+            if (task.key != null) {
+                lastQueued.remove(task.key, task);
+            }
+        }
+
+        void remove(prioritizedtask task) {
+            if (pool.remove(task)) {
+                dequeued(task);
+            }
+        }
+    }
+
+    private static final class prioritizedtask implements Runnable, Comparable<prioritizedtask> {
+        private final int priority;
+        private final long seq;
+        private final String key;
+        private final lane owner;
+        private final Runnable body;
+
+        prioritizedtask(int priority, long seq, String key, lane owner, Runnable body) {
+            this.priority = priority;
+            this.seq = seq;
+            this.key = key;
+            this.owner = owner;
+            this.body = body;
+        }
+
+        @Override
+        public void run() {
+            owner.dequeued(this);
+            body.run();
+        }
+
+        @Override
+        public int compareTo(prioritizedtask other) {
+            if (priority != other.priority) {
+                return Integer.compare(priority, other.priority);
+            }
+            return Long.compare(seq, other.seq);
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package RequestManagement;
+
+/**
+ * dbexecutor 通过 JMX 暴露的排队与拒绝计数。
+ */
+public interface dbexecutorMBean {
+    int getQueueDepth();
+
+    int getActiveCount();
+
+    long getRejectedCount();
+}
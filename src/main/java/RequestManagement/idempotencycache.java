@@ -0,0 +1,66 @@
+package RequestManagement;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * add 请求幂等键到已生成记录 ID 的有界缓存。按最近访问淘汰，超过有效期的条目视为不存在；
+ * 缓存之外的重复由 entries(username, idem_key) 唯一索引兜底。
+ */
+class idempotencycache {
+    private final int capacity;
+    private final long ttlNanos;
+    private final LinkedHashMap<String, cachedid> entries;
+
+    idempotencycache(int capacity, long ttlMillis) {
+        if (capacity <= 0 || ttlMillis <= 0) {
+            throw new IllegalArgumentException("capacity and ttlMillis must be positive");
+        }
+        this.capacity = capacity;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, cachedid> eldest) {
+                return size() > idempotencycache.this.capacity;
+            }
+        };
+    }
+
+    static String keyOf(String username, String idemKey) {
+        return username + '\u0000' + idemKey;
+    }
+
+    /**
+     * 返回缓存的记录 ID，不存在或已过期时返回 null。
+     */
+    synchronized Long get(String username, String idemKey) {
+        String key = keyOf(username, idemKey);
+        cachedid cached = entries.get(key);
+        if (cached == null) {
+            return null;
+        }
+        if (System.nanoTime() - cached.storedNanos > ttlNanos) {
+            entries.remove(key);
+            return null;
+        }
+        return cached.id;
+    }
+
+    synchronized void put(String username, String idemKey, long id) {
+        entries.put(keyOf(username, idemKey), new cachedid(id));
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private static final class cachedid {
+        final long id;
+        final long storedNanos = System.nanoTime();
+
+        cachedid(long id) {
+            this.id = id;
+        }
+    }
+}
@@ -0,0 +1,411 @@
+package RequestManagement;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 版本化的数据库结构迁移。已执行的版本记录在 schema_version 表中，启动时只执行尚未执行的步骤，
+ * 数据库已是最新时只需一次查询。耗时的数据回填标记为后台步骤，启动完成后在单独线程中分批执行。
+ */
+public class migrationrunner {
+    private static final Logger LOGGER = Logger.getLogger(migrationrunner.class.getName());
+    static final int BACKFILL_CHUNK = 1000;
+    // 迁移锁超过这个时间未释放视为持有者已崩溃
+    static final int LOCK_EXPIRY_SECONDS = 300;
+    // 必须比过期时间长：持有者崩溃后立即重启的实例要能等到旧锁过期并接管
+    private static final long LOCK_WAIT_MILLIS = (LOCK_EXPIRY_SECONDS + 60) * 1000L;
+    private static final int ERROR_DUPLICATE_KEY = 23505;
+    private static final int ERROR_LOCK_TIMEOUT = 50200;
+
+    public interface connectionsource {
+        Connection open() throws SQLException;
+    }
+
+    interface step {
+        /**
+         * stopRequested 在停机时变为 true，长时间运行的步骤应在批次之间检查它。
+         */
+        void apply(Connection c, BooleanSupplier stopRequested) throws SQLException;
+    }
+
+    static final class migration {
+        final int version;
+        final String description;
+        final boolean background;
+        final step body;
+
+        migration(int version, String description, boolean background, step body) {
+            this.version = version;
+            this.description = description;
+            this.background = background;
+            this.body = body;
+        }
+    }
+
+    private final List<migration> migrations;
+    private volatile Thread backgroundThread;
+    private volatile boolean stopping;
+
+    migrationrunner(List<migration> migrations) {
+        for (int i = 1; i < migrations.size(); i++) {
+            if (migrations.get(i).version <= migrations.get(i - 1).version) {
+                throw new IllegalArgumentException("migrations must be ordered by version");
+            }
+        }
+        this.migrations = migrations;
+    }
+
+    /**
+     * 本项目的迁移列表，新的结构变更只能追加在末尾，已发布的步骤不要修改。
+     */
+    public static migrationrunner standard() {
+        List<migration> list = new ArrayList<>();
+        list.add(new migration(1, "create users and entries", false, (c, stop) -> execute(c,
+                """
+                CREATE TABLE IF NOT EXISTS users (
+                    username VARCHAR(255) PRIMARY KEY,
+                    password VARCHAR(255) NOT NULL
+                )
+                """,
+                """
+                CREATE TABLE IF NOT EXISTS entries (
+                    id BIGINT AUTO_INCREMENT PRIMARY KEY,
+                    username VARCHAR(255) NOT NULL,
+                    amount DOUBLE NOT NULL,
+                    type VARCHAR(32),
+                    date VARCHAR(64),
+                    subject VARCHAR(255),
+                    note VARCHAR(1024)
+                )
+                """)));
+        // 兼容早期没有 id/type 列的数据库
+        list.add(new migration(2, "add entries.id and entries.type", false, (c, stop) -> execute(c,
+                "ALTER TABLE entries ADD COLUMN IF NOT EXISTS id BIGINT AUTO_INCREMENT",
+                "ALTER TABLE entries ADD COLUMN IF NOT EXISTS type VARCHAR(32)")));
+        list.add(new migration(3, "index entries by username, date and type", false, (c, stop) -> execute(c,
+                "CREATE INDEX IF NOT EXISTS idx_entries_username ON entries(username)",
+                "CREATE INDEX IF NOT EXISTS idx_entries_date ON entries(date)",
+                "CREATE INDEX IF NOT EXISTS idx_entries_type ON entries(type)")));
+        // mapEntry 读取时已把 NULL 视为 expense，回填期间查询结果不受影响
+        list.add(new migration(4, "backfill entries.type", true, (c, stop) -> backfillInChunks(c, stop,
+                "UPDATE entries SET type = 'expense' WHERE id IN "
+                        + "(SELECT id FROM entries WHERE type IS NULL LIMIT " + BACKFILL_CHUNK + ")")));
+        // 增量同步：每个用户一个单调递增的变更版本，删除留下墓碑，清空记录在 cleared_version
+        list.add(new migration(5, "add change versions and tombstones", false, (c, stop) -> execute(c,
+                "ALTER TABLE entries ADD COLUMN IF NOT EXISTS version BIGINT",
+                """
+                CREATE TABLE IF NOT EXISTS user_versions (
+                    username VARCHAR(255) PRIMARY KEY,
+                    version BIGINT NOT NULL,
+                    cleared_version BIGINT NOT NULL DEFAULT 0
+                )
+                """,
+                """
+                CREATE TABLE IF NOT EXISTS entry_tombstones (
+                    username VARCHAR(255) NOT NULL,
+                    id BIGINT NOT NULL,
+                    version BIGINT NOT NULL,
+                    PRIMARY KEY (username, id)
+                )
+                """,
+                "CREATE INDEX IF NOT EXISTS idx_entries_user_version ON entries(username, version)",
+                "CREATE INDEX IF NOT EXISTS idx_tombstones_user_version ON entry_tombstones(username, version)")));
+        // add 幂等键：唯一索引中 NULL 互不冲突，不带键的记录不受影响
+        list.add(new migration(6, "add entries.idem_key", false, (c, stop) -> execute(c,
+                "ALTER TABLE entries ADD COLUMN IF NOT EXISTS idem_key VARCHAR(128)",
+                "CREATE UNIQUE INDEX IF NOT EXISTS idx_entries_user_idem ON entries(username, idem_key)")));
+        // 分批清空：cleared_below 以下的记录不可见并由后台删除，purge_pending 表示还有未删完的记录
+        list.add(new migration(7, "add clear watermark", false, (c, stop) -> execute(c,
+                "ALTER TABLE user_versions ADD COLUMN IF NOT EXISTS cleared_below BIGINT NOT NULL DEFAULT 0",
+                "ALTER TABLE user_versions ADD COLUMN IF NOT EXISTS purge_pending BOOLEAN NOT NULL DEFAULT FALSE",
+                "CREATE INDEX IF NOT EXISTS idx_entries_user_id ON entries(username, id)")));
+        // 冷数据归档：有效的段文件登记在 archive_segments，归档记录的删除记在 archive_tombstones
+        list.add(new migration(8, "add archive segment registry", false, (c, stop) -> execute(c,
+                """
+                CREATE TABLE IF NOT EXISTS archive_segments (
+                    username VARCHAR(255) NOT NULL,
+                    name VARCHAR(255) NOT NULL,
+                    min_date VARCHAR(64) NOT NULL,
+                    max_date VARCHAR(64) NOT NULL,
+                    min_id BIGINT NOT NULL,
+                    max_id BIGINT NOT NULL,
+                    row_count INT NOT NULL,
+                    PRIMARY KEY (username, name)
+                )
+                """,
+                """
+                CREATE TABLE IF NOT EXISTS archive_tombstones (
+                    username VARCHAR(255) NOT NULL,
+                    id BIGINT NOT NULL,
+                    PRIMARY KEY (username, id)
+                )
+                """)));
+        // 预算规则：每个用户每个 subject 每种周期（month/week）一条
+        list.add(new migration(9, "add budgets", false, (c, stop) -> execute(c,
+                """
+                CREATE TABLE IF NOT EXISTS budgets (
+                    username VARCHAR(255) NOT NULL,
+                    subject VARCHAR(255) NOT NULL,
+                    period VARCHAR(16) NOT NULL,
+                    limit_amount DOUBLE NOT NULL,
+                    PRIMARY KEY (username, subject, period)
+                )
+                """)));
+        // 周期记账模板：next_index 为下一次发生的序号，next_date 为其日期（yyyy-MM-dd），供调度器按日期取到期模板
+        list.add(new migration(10, "add recurring templates", false, (c, stop) -> execute(c,
+                """
+                CREATE TABLE IF NOT EXISTS recurring (
+                    id BIGINT AUTO_INCREMENT PRIMARY KEY,
+                    username VARCHAR(255) NOT NULL,
+                    amount DOUBLE NOT NULL,
+                    type VARCHAR(16) NOT NULL,
+                    subject VARCHAR(255),
+                    note VARCHAR(1024),
+                    frequency VARCHAR(16) NOT NULL,
+                    start_date VARCHAR(10) NOT NULL,
+                    end_date VARCHAR(10),
+                    next_index BIGINT NOT NULL,
+                    next_date VARCHAR(10) NOT NULL
+                )
+                """,
+                "CREATE INDEX IF NOT EXISTS idx_recurring_next_date ON recurring(next_date)",
+                "CREATE INDEX IF NOT EXISTS idx_recurring_username ON recurring(username)")));
+        return new migrationrunner(list);
+    }
+
+    /**
+     * 在当前线程执行所有未执行的前台步骤，任何失败都会抛出异常。
+     */
+    public void migrate(Connection c) throws SQLException {
+        migrate(c, sqloperation.isServerMode());
+    }
+
+    /**
+     * shared 为 false 时数据库只被本进程打开（文件模式下 H2 独占文件），不需要迁移锁。
+     */
+    void migrate(Connection c, boolean shared) throws SQLException {
+        long started = System.nanoTime();
+        ensureVersionTable(c);
+        if (pendingForeground(appliedVersions(c)).isEmpty()) {
+            return;
+        }
+        // 多个实例共用一个数据库时，同时执行 DDL 会互相等待系统表锁而超时，因此先取得迁移锁
+        if (shared) {
+            acquireLock(c);
+        }
+        int count = 0;
+        try {
+            for (migration m : pendingForeground(appliedVersions(c))) {
+                run(c, m);
+                count++;
+            }
+        } finally {
+            if (shared) {
+                releaseLock(c);
+            }
+        }
+        if (count > 0) {
+            LOGGER.info("已执行 " + count + " 个数据库迁移，用时 " + elapsedMillis(started) + " ms");
+        }
+    }
+
+    private List<migration> pendingForeground(Set<Integer> applied) {
+        List<migration> pending = new ArrayList<>();
+        for (migration m : migrations) {
+            if (!m.background && !applied.contains(m.version)) {
+                pending.add(m);
+            }
+        }
+        return pending;
+    }
+
+    private static void acquireLock(Connection c) throws SQLException {
+        long deadline = System.nanoTime() + LOCK_WAIT_MILLIS * 1_000_000L;
+        boolean logged = false;
+        while (true) {
+            try (PreparedStatement insert = c.prepareStatement(
+                    "INSERT INTO schema_lock (id, acquired_at) VALUES (1, CURRENT_TIMESTAMP)")) {
+                insert.executeUpdate();
+                return;
+            } catch (SQLException e) {
+                if (e.getErrorCode() != ERROR_DUPLICATE_KEY && e.getErrorCode() != ERROR_LOCK_TIMEOUT) {
+                    throw e;
+                }
+            }
+            execute(c, "DELETE FROM schema_lock WHERE id = 1 AND acquired_at < DATEADD(SECOND, -"
+                    + LOCK_EXPIRY_SECONDS + ", CURRENT_TIMESTAMP)");
+            if (System.nanoTime() - deadline >= 0) {
+                throw new SQLException("等待迁移锁超时");
+            }
+            if (!logged) {
+                LOGGER.info("迁移锁被其他实例持有，等待其释放或在 " + LOCK_EXPIRY_SECONDS + " 秒后过期");
+                logged = true;
+            }
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("等待迁移锁时被中断", e);
+            }
+        }
+    }
+
+    private static void releaseLock(Connection c) throws SQLException {
+        execute(c, "DELETE FROM schema_lock WHERE id = 1");
+    }
+
+    /**
+     * 如果还有未执行的后台步骤，启动一个守护线程依次执行；没有时不创建线程。
+     */
+    public void startBackground(connectionsource source) throws SQLException {
+        List<migration> pending = new ArrayList<>();
+        try (Connection c = source.open()) {
+            Set<Integer> applied = appliedVersions(c);
+            for (migration m : migrations) {
+                if (m.background && !applied.contains(m.version)) {
+                    pending.add(m);
+                }
+            }
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+        Thread t = new Thread(() -> {
+            for (migration m : pending) {
+                if (stopping) {
+                    return;
+                }
+                try (Connection c = source.open()) {
+                    run(c, m);
+                } catch (SQLException e) {
+                    // 下次启动时会重试，分批执行的回填可以从中断处继续
+                    LOGGER.log(Level.WARNING, "后台迁移 " + m.version + " 失败: " + m.description, e);
+                    return;
+                }
+            }
+        }, "schema-migration");
+        t.setDaemon(true);
+        backgroundThread = t;
+        t.start();
+    }
+
+    /**
+     * 通知后台迁移在当前批次结束后退出，并最多等待 timeoutMillis。
+     */
+    public void stopBackground(long timeoutMillis) throws InterruptedException {
+        stopping = true;
+        Thread t = backgroundThread;
+        if (t != null) {
+            t.join(timeoutMillis);
+        }
+    }
+
+    /**
+     * 等待后台迁移结束，主要用于测试。
+     */
+    public void awaitBackground(long timeoutMillis) throws InterruptedException {
+        Thread t = backgroundThread;
+        if (t != null) {
+            t.join(timeoutMillis);
+        }
+    }
+
+    private void run(Connection c, migration m) throws SQLException {
+        long started = System.nanoTime();
+        try {
+            m.body.apply(c, () -> stopping);
+        } catch (SQLException e) {
+            throw new SQLException("迁移 " + m.version + " (" + m.description + ") 失败: " + e.getMessage(),
+                    e.getSQLState(), e.getErrorCode(), e);
+        }
+        if (stopping) {
+            // 后台步骤被中断，不记录为已完成
+            return;
+        }
+        long duration = elapsedMillis(started);
+        try (PreparedStatement insert = c.prepareStatement(
+                "INSERT INTO schema_version (version, description, applied_at, duration_ms) VALUES (?, ?, CURRENT_TIMESTAMP, ?)")) {
+            insert.setInt(1, m.version);
+            insert.setString(2, m.description);
+            insert.setLong(3, duration);
+            insert.executeUpdate();
+        } catch (SQLException e) {
+            // 多个实例共用一个数据库时可能同时执行同一步骤，步骤本身是幂等的，只保留先完成的记录
+            if (e.getErrorCode() != ERROR_DUPLICATE_KEY) {
+                throw e;
+            }
+            return;
+        }
+        LOGGER.info("迁移 " + m.version + " (" + m.description + ") 完成，用时 " + duration + " ms");
+    }
+
+    /**
+     * 每批更新一个短事务（自动提交），直到没有需要更新的行。
+     */
+    private static void backfillInChunks(Connection c, BooleanSupplier stop, String chunkSql) throws SQLException {
+        try (Statement stmt = c.createStatement()) {
+            while (!stop.getAsBoolean() && stmt.executeUpdate(chunkSql) > 0) {
+                // 继续下一批
+            }
+        }
+    }
+
+    private static void ensureVersionTable(Connection c) throws SQLException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                execute(c, """
+                        CREATE TABLE IF NOT EXISTS schema_version (
+                            version INT PRIMARY KEY,
+                            description VARCHAR(255),
+                            applied_at TIMESTAMP,
+                            duration_ms BIGINT
+                        )
+                        """, """
+                        CREATE TABLE IF NOT EXISTS schema_lock (
+                            id INT PRIMARY KEY,
+                            acquired_at TIMESTAMP NOT NULL
+                        )
+                        """);
+                return;
+            } catch (SQLException e) {
+                // 其他实例正在建表时可能等待系统表锁超时，稍后重试
+                if (e.getErrorCode() != ERROR_LOCK_TIMEOUT || attempt >= 5) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    static Set<Integer> appliedVersions(Connection c) throws SQLException {
+        Set<Integer> versions = new HashSet<>();
+        try (Statement stmt = c.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT version FROM schema_version")) {
+            while (rs.next()) {
+                versions.add(rs.getInt(1));
+            }
+        }
+        return versions;
+    }
+
+    private static void execute(Connection c, String... sqls) throws SQLException {
+        try (Statement stmt = c.createStatement()) {
+            for (String sql : sqls) {
+                stmt.execute(sql);
+            }
+        }
+    }
+
+    private static long elapsedMillis(long startedNanos) {
+        return (System.nanoTime() - startedNanos) / 1_000_000L;
+    }
+}
@@ -1,11 +1,22 @@
 package RequestManagement;
+import java.time.LocalDate;
+import java.util.List;
+
 import sharedmodel.*;
 
 class addrequest {
     Entry entry;
+    // 客户端提供的幂等键，可以为 null
+    String idemKey;
+    // 由 solveAddEntry 填写：这笔支出使之超出的预算
+    List<budgettracker.usage> budgetAlerts;
     public addrequest(String username, double amount, String type, String date, String subject, String note) {
         this.entry = new Entry(username, amount, type, date, subject, note);
     }
+    public addrequest(String username, double amount, String type, String date, String subject, String note, String idemKey) {
+        this(username, amount, type, date, subject, note);
+        this.idemKey = idemKey;
+    }
 }
 
 class registerOrloginrequest {
@@ -51,4 +62,62 @@ class deleterequest {
         this.username = username;
         this.entryId = entryId;
     }
-}
\ No newline at end of file
+}
+
+class syncrequest {
+    String username;
+    long sinceVersion;
+    public syncrequest(String username, long sinceVersion) {
+        this.username = username;
+        this.sinceVersion = sinceVersion;
+    }
+}
+
+class exportrequest {
+    String username;
+    String startDate;
+    String endDate;
+    String typeFilter;
+    public exportrequest(String username, String startDate, String endDate, String typeFilter) {
+        this.username = username;
+        this.startDate = startDate;
+        this.endDate = endDate;
+        this.typeFilter = typeFilter;
+    }
+}
+
+class budgetrequest {
+    String username;
+    String subject;
+    budgettracker.period period;
+    double limit;
+    public budgetrequest(String username, String subject, budgettracker.period period, double limit) {
+        this.username = username;
+        this.subject = subject;
+        this.period = period;
+        this.limit = limit;
+    }
+}
+
+class recurringrequest {
+    String username;
+    double amount;
+    String type;
+    String subject;
+    String note;
+    String frequency;
+    LocalDate startDate;
+    // null 表示不结束
+    LocalDate endDate;
+    public recurringrequest(String username, double amount, String type, String subject, String note,
+            String frequency, LocalDate startDate, LocalDate endDate) {
+        this.username = username;
+        this.amount = amount;
+        this.type = type;
+        this.subject = subject;
+        this.note = note;
+        this.frequency = frequency;
+        this.startDate = startDate;
+        this.endDate = endDate;
+    }
+}
@@ -1,11 +1,176 @@
 package RequestManagement;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import LogManagement.AsyncLog;
 import ResultManagement.*;
 
 public class parser {
+    private static final int DB_THREADS = Integer.getInteger("db.threads", Math.max(2, Runtime.getRuntime().availableProcessors()));
+    private static final int DB_QUEUE_CAPACITY = Integer.getInteger("db.queue", 256);
+    private static final String IDEM_PREFIX = "idem=";
+    private static final int MAX_IDEM_KEY_LENGTH = 128;
+    // 与 budgets.subject 列的长度一致
+    private static final int MAX_BUDGET_SUBJECT_LENGTH = 255;
+    // 周期模板的开始日期最多早于今天多少天，限制调度器一次需要补记的记录数
+    private static final int RECURRING_MAX_BACKFILL_DAYS = Integer.getInteger("recurring.maxBackfillDays", 366);
+    // 允许执行管理操作（如 stats）的用户名，逗号分隔，默认没有
+    private static final Set<String> ADMIN_USERS = adminUsers(System.getProperty("admin.users", ""));
+    private static final int ANALYTICS_MAX_DAYS = Integer.getInteger("analytics.days", 90);
+    private static final int DEFAULT_SUGGESTIONS = 8;
+    private static final int MAX_SUGGESTIONS = 20;
+
+    // 每个 @chunk 帧包含的行数
+    private static final int EXPORT_CHUNK_ROWS = Integer.getInteger("export.chunkRows", 500);
+
     public sqloperation sql;
+    private final dbexecutor dbExecutor;
+    // 导出写入速度取决于客户端，不占用数据库通道，单独限制并发数
+    private final ThreadPoolExecutor exportExecutor;
     public parser() {
         sql = new sqloperation();
+        dbExecutor = new dbexecutor(DB_THREADS, DB_QUEUE_CAPACITY, sqloperation.QUERY_TIMEOUT_MS);
+        int exportThreads = Integer.getInteger("export.threads", 2);
+        exportExecutor = new ThreadPoolExecutor(exportThreads, exportThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Integer.getInteger("export.queue", 8)), r -> {
+                    Thread t = new Thread(r, "export");
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    /**
+     * 需要流式回复的请求（目前只有 export），传输层把它交给 exportAsync 而不是 parseRequestAsync。
+     */
+    public static boolean isStreamingRequest(String request) {
+        return "export".equals(actionOf(request));
+    }
+
+    /**
+     * 流式导出：user,export,格式[,起始日期[,结束日期[,类型]]]，格式为 csv 或 jsonl。
+     * 记录边读边按 EXPORT_CHUNK_ROWS 行一段写给 sink，服务端内存占用与记录数无关。
+     * 返回的 future 在输出结束（包括失败）后完成。
+     */
+    public CompletableFuture<Void> exportAsync(String request, ChunkSink sink) {
+        String[] parts = request == null ? new String[0] : request.split(",", -1);
+        ExportFormat format = parts.length >= 3 ? ExportFormat.parse(parts[2]) : null;
+        String username = parts.length >= 1 ? parts[0].trim() : "";
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        if (username.isEmpty() || format == null || parts.length > 6) {
+            rejectQuietly(sink, new ParseResult("export", Boolean.FALSE, "导出格式错误，应为 user,export,csv|jsonl[,起始日期,结束日期,类型]", null));
+            done.complete(null);
+            return done;
+        }
+        exportrequest export = new exportrequest(username, optionalField(parts, 3), optionalField(parts, 4), optionalField(parts, 5));
+        try {
+            exportExecutor.execute(() -> {
+                try {
+                    export(export, format, sink);
+                } finally {
+                    done.complete(null);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejectQuietly(sink, new ParseResult("export", Boolean.FALSE, "导出任务过多，请稍后重试", null));
+            done.complete(null);
+        }
+        return done;
+    }
+
+    private void export(exportrequest export, ExportFormat format, ChunkSink sink) {
+        StringBuilder buffer = new StringBuilder(EXPORT_CHUNK_ROWS * 64);
+        int[] lines = {0};
+        try {
+            sink.begin("export", format.contentType);
+            String header = format.header();
+            if (header != null) {
+                buffer.append(header).append('\n');
+                lines[0]++;
+            }
+            long rows = sql.solveExport(export, entry -> {
+                format.appendRow(buffer, entry);
+                if (++lines[0] >= EXPORT_CHUNK_ROWS) {
+                    sink.chunk(lines[0], buffer);
+                    buffer.setLength(0);
+                    lines[0] = 0;
+                }
+            });
+            if (lines[0] > 0) {
+                sink.chunk(lines[0], buffer);
+            }
+            sink.end(rows);
+            AsyncLog.audit("export", export.username, format.name().toLowerCase(), rows);
+        } catch (IOException e) {
+            // 客户端已断开，不再写入
+        } catch (SQLException | RuntimeException e) {
+            try {
+                sink.abort("数据库错误: " + e.getMessage());
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static String optionalField(String[] parts, int index) {
+        if (index >= parts.length) {
+            return null;
+        }
+        String value = parts[index].trim();
+        return value.isEmpty() ? null : value;
+    }
+
+    private static void rejectQuietly(ChunkSink sink, ParseResult result) {
+        try {
+            sink.reject(result.toString());
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * parseRequest 的异步版本：整个请求（包括 sqloperation 调用）在专用的数据库线程池中执行，
+     * 调用线程立即返回。返回的 future 总是以 ParseResult 完成，超时或排队已满时给出失败结果；
+     * 取消返回的 future 会让尚未开始的数据库任务被丢弃。
+     */
+    public CompletableFuture<ParseResult> parseRequestAsync(String request) {
+        int priority = priorityOf(actionOf(request));
+        // 同一用户的请求进入同一个数据库通道，按到达顺序串行执行
+        CompletableFuture<ParseResult> pending = dbExecutor.submit(usernameOf(request), priority, () -> parseRequest(request));
+        CompletableFuture<ParseResult> result = pending.handle((parsed, error) ->
+                error == null ? parsed : failureResult(request, error));
+        result.whenComplete((parsed, error) -> {
+            if (result.isCancelled()) {
+                pending.cancel(false);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * 数据库线程池，供 Main 注册 JMX 监控使用。
+     */
+    public dbexecutor dbExecutor() {
+        return dbExecutor;
+    }
+
+    /**
+     * 停止数据库线程池，等待已提交的任务在 timeout 内完成。
+     */
+    public void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        exportExecutor.shutdownNow();
+        dbExecutor.shutdown(timeout, unit);
     }
     
         public ParseResult parseRequest(String request) {
@@ -19,18 +184,32 @@ public class parser {
             }
         }
 
-        if (request == null || request.trim().isEmpty()) {
-            return new ParseResult("unknown", Boolean.FALSE, "空请求", null);
-        }
-        
-        String[] parts = request.split(",", -1);
-        if (parts.length < 2) {
-            return new ParseResult("unknown", Boolean.FALSE, "请求格式错误", null);
+        // 空请求与格式错误的请求同样记录，action 为 "unknown"
+        tokenizeevent tokenize = new tokenizeevent();
+        tokenize.begin();
+        String[] parts = null;
+        String username = "";
+        String action = "unknown";
+        try {
+            if (request == null || request.trim().isEmpty()) {
+                return new ParseResult("unknown", Boolean.FALSE, "空请求", null);
+            }
+            parts = request.split(",", -1);
+            if (parts.length < 2) {
+                return new ParseResult("unknown", Boolean.FALSE, "请求格式错误", null);
+            }
+            username = parts[0] == null ? "" : parts[0].trim();
+            action = parts[1] == null ? "" : parts[1].trim();
+        } finally {
+            tokenize.end();
+            if (tokenize.shouldCommit()) {
+                tokenize.action = action;
+                tokenize.userHash = username.hashCode();
+                tokenize.fields = parts == null ? 0 : parts.length;
+                tokenize.commit();
+            }
         }
         
-        String username = parts[0] == null ? "" : parts[0].trim();
-        String action = parts[1] == null ? "" : parts[1].trim();
-        
         try {
             if (action.equals("add")) {
                 return handleAddRequest(username, parts);
@@ -44,8 +223,34 @@ public class parser {
                 return handleListRequest(username);
             } else if(action.equals("clear")) {
                 return handleClearRequest(username);
+            } else if(action.equals("clearstatus")) {
+                return handleClearStatusRequest(username);
             } else if(action.equals("delete")) {
                 return handleDeleteRequest(username, parts);
+            } else if(action.equals("sync")) {
+                return handleSyncRequest(username, parts);
+            } else if(action.equals("stats")) {
+                return handleStatsRequest(username);
+            } else if(action.equals("analytics")) {
+                return handleAnalyticsRequest(username, parts);
+            } else if(action.equals("budget")) {
+                return handleBudgetRequest(username, parts);
+            } else if(action.equals("budgets")) {
+                return handleListBudgetsRequest(username);
+            } else if(action.equals("recurring")) {
+                return handleRecurringRequest(username, parts);
+            } else if(action.equals("recurrings")) {
+                return handleListRecurringRequest(username);
+            } else if(action.equals("unrecurring")) {
+                return handleDeleteRecurringRequest(username, parts);
+            } else if(action.equals("suggest")) {
+                return handleSuggestRequest(username, parts);
+            } else if(action.equals("subscribe")) {
+                // 订阅由 ReceiveService 在 TCP 连接上处理，其他入口（如 HTTP）不支持
+                return new ParseResult("subscribe", Boolean.FALSE, "仅支持 TCP 长连接订阅", null);
+            } else if(action.equals("export")) {
+                // 导出由传输层交给 exportAsync 流式输出，不能作为一条完整回复返回
+                return new ParseResult("export", Boolean.FALSE, "导出仅支持流式连接", null);
             } else {
                 return new ParseResult("unknown", Boolean.FALSE, "未知操作: " + action, null);
             }
@@ -85,8 +290,168 @@ public class parser {
             }
         }
         
-        addrequest Add = new addrequest(username, amount, type, date, subject, note);
-        return new ParseResult("add", sql.solveAdd(Add), null, null);
+        // 可选的第 8 个字段 idem=<键>：带相同键的重试返回第一次生成的记录 ID，不会重复插入
+        String idemKey = null;
+        if (parts.length >= 8 && parts[7].startsWith(IDEM_PREFIX)) {
+            idemKey = parts[7].substring(IDEM_PREFIX.length()).trim();
+            if (idemKey.isEmpty() || idemKey.length() > MAX_IDEM_KEY_LENGTH) {
+                return new ParseResult("add", Boolean.FALSE, "幂等键无效", null);
+            }
+        }
+
+        addrequest Add = new addrequest(username, amount, type, date, subject, note, idemKey);
+        Long id = timedSql("add", username, () -> sql.solveAddEntry(Add));
+        if (id == null) {
+            return new ParseResult("add", Boolean.FALSE, null, null);
+        }
+        return new ParseResult("add", Boolean.TRUE, "id:" + id + budgetAlerts(Add.budgetAlerts), null);
+    }
+
+    /**
+     * 超支提醒附在 add 回复的 ID 之后：;budget:month=523.40/500.00,week=130.00/100.00
+     */
+    private static String budgetAlerts(List<budgettracker.usage> alerts) {
+        if (alerts == null || alerts.isEmpty()) {
+            return "";
+        }
+        StringJoiner joined = new StringJoiner(",", ";budget:", "");
+        for (budgettracker.usage alert : alerts) {
+            joined.add(alert.toString());
+        }
+        return joined.toString();
+    }
+
+    /**
+     * user,budget,subject,上限[,month|week]：周期默认 month，上限为 0 时删除该预算。
+     */
+    private ParseResult handleBudgetRequest(String username, String[] parts) throws SQLException {
+        if (parts.length < 4) {
+            return new ParseResult("budget", Boolean.FALSE, "参数不足", null);
+        }
+        String subject = parts[2].trim();
+        // ; = / 用作 budgets 回复与超支提醒的分隔符
+        if (subject.isEmpty() || subject.length() > MAX_BUDGET_SUBJECT_LENGTH
+                || subject.contains(";") || subject.contains("=") || subject.contains("/")) {
+            return new ParseResult("budget", Boolean.FALSE, "科目无效", null);
+        }
+        double limit;
+        try {
+            limit = Double.parseDouble(parts[3].trim());
+        } catch (NumberFormatException ex) {
+            return new ParseResult("budget", Boolean.FALSE, "金额格式错误", null);
+        }
+        if (Double.isNaN(limit) || Double.isInfinite(limit)) {
+            return new ParseResult("budget", Boolean.FALSE, "金额格式错误", null);
+        }
+        budgettracker.period period = budgettracker.period.parse(parts.length > 4 ? parts[4] : null);
+        if (period == null) {
+            return new ParseResult("budget", Boolean.FALSE, "周期应为 month 或 week", null);
+        }
+        budgetrequest Budget = new budgetrequest(username, subject, period, limit);
+        budgettracker.usage usage = timedSql("budget", username, () -> sql.solveSetBudget(Budget));
+        return new ParseResult("budget", Boolean.TRUE, usage == null ? "removed" : usage.toString(), null);
+    }
+
+    /**
+     * user,recurring,金额,类型,subject,备注,daily|weekly|monthly,开始日期[,结束日期]：
+     * 回复 id:模板ID;next:第一次发生的日期，记录由调度器在低峰时段生成。
+     */
+    private ParseResult handleRecurringRequest(String username, String[] parts) throws SQLException {
+        if (parts.length < 8) {
+            return new ParseResult("recurring", Boolean.FALSE, "参数不足", null);
+        }
+        double amount;
+        try {
+            amount = Double.parseDouble(parts[2].trim());
+        } catch (NumberFormatException ex) {
+            return new ParseResult("recurring", Boolean.FALSE, "金额格式错误", null);
+        }
+        if (Double.isNaN(amount) || Double.isInfinite(amount)) {
+            return new ParseResult("recurring", Boolean.FALSE, "金额格式错误", null);
+        }
+        String frequency = recurringscheduler.normalizeFrequency(parts[6]);
+        if (!recurringscheduler.isFrequency(frequency)) {
+            return new ParseResult("recurring", Boolean.FALSE, "周期应为 daily、weekly 或 monthly", null);
+        }
+        LocalDate startDate = budgettracker.parseDate(parts[7]);
+        LocalDate endDate = parts.length > 8 && !parts[8].trim().isEmpty() ? budgettracker.parseDate(parts[8]) : null;
+        if (startDate == null || (parts.length > 8 && !parts[8].trim().isEmpty() && endDate == null)) {
+            return new ParseResult("recurring", Boolean.FALSE, "日期格式错误", null);
+        }
+        if (endDate != null && endDate.isBefore(startDate)) {
+            return new ParseResult("recurring", Boolean.FALSE, "结束日期早于开始日期", null);
+        }
+        if (startDate.isBefore(LocalDate.now().minusDays(RECURRING_MAX_BACKFILL_DAYS))) {
+            return new ParseResult("recurring", Boolean.FALSE, "开始日期过早，最多补记 " + RECURRING_MAX_BACKFILL_DAYS + " 天", null);
+        }
+        recurringrequest Recurring = new recurringrequest(username, amount, parts[3], parts[4], parts[5],
+                frequency, startDate, endDate);
+        long id = timedSql("recurring", username, () -> sql.solveAddRecurring(Recurring));
+        return new ParseResult("recurring", Boolean.TRUE, "id:" + id + ";next:" + startDate, null);
+    }
+
+    /**
+     * 回复 ID:周期:下次日期:金额:类型:subject（URL 编码），多条以 ; 分隔。
+     */
+    private ParseResult handleListRecurringRequest(String username) throws SQLException {
+        List<recurringscheduler.template> templates = timedSql("recurrings", username, () -> sql.solveListRecurring(username));
+        StringJoiner joined = new StringJoiner(";");
+        for (recurringscheduler.template t : templates) {
+            joined.add(t.id + ":" + t.frequency + ":" + t.dateAt(t.nextIndex) + ":" + budgettracker.format(t.amount)
+                    + ":" + t.type + ":" + URLEncoder.encode(t.subject == null ? "" : t.subject, StandardCharsets.UTF_8));
+        }
+        return new ParseResult("recurrings", Boolean.TRUE, joined.toString(), null);
+    }
+
+    private ParseResult handleDeleteRecurringRequest(String username, String[] parts) throws SQLException {
+        if (parts.length < 3) {
+            return new ParseResult("unrecurring", Boolean.FALSE, "参数不足", null);
+        }
+        long id;
+        try {
+            id = Long.parseLong(parts[2].trim());
+        } catch (NumberFormatException ex) {
+            return new ParseResult("unrecurring", Boolean.FALSE, "模板ID无效", null);
+        }
+        return new ParseResult("unrecurring", timedSql("unrecurring", username, () -> sql.solveDeleteRecurring(username, id)), null, null);
+    }
+
+    /**
+     * user,suggest,前缀[,个数]：回复 subject（URL 编码）:次数，按次数从多到少，多条以 ; 分隔。
+     * 前缀为空时给出最常用的 subject，个数默认 8，最多 20。
+     */
+    private ParseResult handleSuggestRequest(String username, String[] parts) throws SQLException {
+        String prefix = parts.length > 2 ? parts[2].trim() : "";
+        int limit = DEFAULT_SUGGESTIONS;
+        if (parts.length > 3 && !parts[3].trim().isEmpty()) {
+            try {
+                limit = Integer.parseInt(parts[3].trim());
+            } catch (NumberFormatException e) {
+                limit = 0;
+            }
+        }
+        if (limit <= 0 || limit > MAX_SUGGESTIONS) {
+            return new ParseResult("suggest", Boolean.FALSE, "个数应在 1 到 " + MAX_SUGGESTIONS + " 之间", null);
+        }
+        int count = limit;
+        List<subjectindex.suggestion> suggestions = timedSql("suggest", username, () -> sql.solveSuggest(username, prefix, count));
+        StringJoiner joined = new StringJoiner(";");
+        for (subjectindex.suggestion suggestion : suggestions) {
+            joined.add(URLEncoder.encode(suggestion.subject, StandardCharsets.UTF_8) + ":" + suggestion.count);
+        }
+        return new ParseResult("suggest", Boolean.TRUE, joined.toString(), null);
+    }
+
+    /**
+     * 回复 subject/周期=本周期已支出/上限，多条以 ; 分隔。
+     */
+    private ParseResult handleListBudgetsRequest(String username) throws SQLException {
+        List<budgettracker.usage> usages = timedSql("budgets", username, () -> sql.solveListBudgets(username));
+        StringJoiner joined = new StringJoiner(";");
+        for (budgettracker.usage usage : usages) {
+            joined.add(usage.subject + "/" + usage);
+        }
+        return new ParseResult("budgets", Boolean.TRUE, joined.toString(), null);
     }
     
     private ParseResult handleRegisterRequest(String username, String[] parts) throws SQLException {
@@ -96,7 +461,7 @@ public class parser {
         
         String password = parts[2];
         registerrequest Register = new registerrequest(username, password);
-        return new ParseResult("register", sql.solveRegister(Register), null, null);
+        return new ParseResult("register", timedSql("register", username, () -> sql.solveRegister(Register)), null, null);
     }
     
     private ParseResult handleLoginRequest(String username, String[] parts) throws SQLException {
@@ -106,12 +471,12 @@ public class parser {
         
         String password = parts[2];
         // 先判断用户名是否存在，再判断密码，确保可以向客户端返回更明确的错误信息
-        if (!sql.userExists(username)) {
+        if (!timedSql("userExists", username, () -> sql.userExists(username))) {
             return new ParseResult("login", Boolean.FALSE, "用户名不存在", null);
         }
 
         loginrequest Login = new loginrequest(username, password);
-        Boolean ok = sql.solveLogin(Login);
+        Boolean ok = timedSql("login", username, () -> sql.solveLogin(Login));
         if (ok != null && ok) {
             return new ParseResult("login", Boolean.TRUE, null, null);
         } else {
@@ -127,17 +492,22 @@ public class parser {
         Double maxAmount = parseNullableDouble(parts.length > 6 ? parts[6] : "");
         
         searchrequest Search = new searchrequest(username, startDate, endDate, typeFilter, minAmount, maxAmount);
-        return new ParseResult("search", Boolean.TRUE, null, sql.solveSearch(Search));
+        return new ParseResult("search", Boolean.TRUE, null, timedSql("search", username, () -> sql.solveSearch(Search)));
     }
     
     private ParseResult handleListRequest(String username) throws SQLException {
-        return new ParseResult("list", Boolean.TRUE, null, sql.solveList(username));
+        return new ParseResult("list", Boolean.TRUE, null, timedSql("list", username, () -> sql.solveList(username)));
     }
     
     private ParseResult handleClearRequest(String username) throws SQLException {
-        int removed = sql.solveClear(username);
+        int removed = timedSql("clear", username, () -> sql.solveClear(username));
         return new ParseResult("clear", Boolean.TRUE, Integer.toString(removed), null);
     }
+
+    private ParseResult handleClearStatusRequest(String username) throws SQLException {
+        String status = timedSql("clearstatus", username, () -> sql.solveClearStatus(username));
+        return new ParseResult("clearstatus", Boolean.TRUE, status, null);
+    }
     
     private ParseResult handleDeleteRequest(String username, String[] parts) throws SQLException {
         if (parts.length < 3) {
@@ -147,7 +517,7 @@ public class parser {
         try {
             long entryId = Long.parseLong(parts[2]);
             deleterequest Delete = new deleterequest(username, entryId);
-            Boolean success = sql.solveDelete(Delete);
+            Boolean success = timedSql("delete", username, () -> sql.solveDelete(Delete));
             String message = (success != null && success) ? "删除成功" : "未找到要删除的记录";
             return new ParseResult("delete", success, message, null);
         } catch (NumberFormatException ex) {
@@ -155,6 +525,184 @@ public class parser {
         }
     }
 
+    /**
+     * sync 回复的 message 为 not_modified:版本、reset:版本 或 delta:版本:被删除ID（逗号分隔），
+     * entries 中是新增的记录（reset 时为完整列表）。
+     */
+    private ParseResult handleSyncRequest(String username, String[] parts) throws SQLException {
+        long sinceVersion = 0;
+        if (parts.length >= 3 && !parts[2].trim().isEmpty()) {
+            try {
+                sinceVersion = Long.parseLong(parts[2].trim());
+            } catch (NumberFormatException ex) {
+                return new ParseResult("sync", Boolean.FALSE, "版本号无效", null);
+            }
+        }
+        syncrequest syncRequest = new syncrequest(username, sinceVersion);
+        syncresult result = timedSql("sync", username, () -> sql.solveSync(syncRequest));
+        if (result.notModified) {
+            return new ParseResult("sync", Boolean.TRUE, "not_modified:" + result.version, null);
+        }
+        if (result.reset) {
+            return new ParseResult("sync", Boolean.TRUE, "reset:" + result.version, result.inserts);
+        }
+        StringBuilder deleted = new StringBuilder();
+        for (Long id : result.deletedIds) {
+            if (deleted.length() > 0) {
+                deleted.append(',');
+            }
+            deleted.append(id);
+        }
+        return new ParseResult("sync", Boolean.TRUE, "delta:" + result.version + ":" + deleted, result.inserts);
+    }
+
+    private ParseResult handleStatsRequest(String username) throws SQLException {
+        if (!ADMIN_USERS.contains(username)) {
+            return new ParseResult("stats", Boolean.FALSE, "无权限", null);
+        }
+        long[] totals = timedSql("stats", username, () -> sql.solveStats());
+        return new ParseResult("stats", Boolean.TRUE,
+                "users:" + totals[0] + ",entries:" + totals[1] + ",shards:" + sqloperation.SHARDS, null);
+    }
+
+    /**
+     * admin,analytics[,天数]：天数默认 7，最多为 analytics.days。
+     */
+    private ParseResult handleAnalyticsRequest(String username, String[] parts) {
+        if (!ADMIN_USERS.contains(username)) {
+            return new ParseResult("analytics", Boolean.FALSE, "无权限", null);
+        }
+        int days = 7;
+        if (parts.length > 2 && !parts[2].trim().isEmpty()) {
+            try {
+                days = Integer.parseInt(parts[2].trim());
+            } catch (NumberFormatException e) {
+                days = 0;
+            }
+        }
+        if (days <= 0 || days > ANALYTICS_MAX_DAYS) {
+            return new ParseResult("analytics", Boolean.FALSE, "天数应在 1 到 " + ANALYTICS_MAX_DAYS + " 之间", null);
+        }
+        return new ParseResult("analytics", Boolean.TRUE, sql.solveAnalytics(days), null);
+    }
+
+    static Set<String> adminUsers(String configured) {
+        Set<String> users = new HashSet<>();
+        for (String name : configured.split(",")) {
+            if (!name.trim().isEmpty()) {
+                users.add(name.trim());
+            }
+        }
+        return users;
+    }
+
+    private interface sqlcall<T> {
+        T run() throws SQLException;
+    }
+
+    /**
+     * 执行一次 sqloperation 调用并记录 JFR 事件；未开启记录时只多一次 shouldCommit 判断。
+     */
+    private static <T> T timedSql(String operation, String username, sqlcall<T> call) throws SQLException {
+        sqlevent event = new sqlevent();
+        event.begin();
+        T result = null;
+        boolean succeeded = false;
+        try {
+            result = call.run();
+            succeeded = true;
+            return result;
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.operation = operation;
+                event.userHash = username.hashCode();
+                event.rows = rowsOf(result);
+                event.succeeded = succeeded;
+                event.commit();
+            }
+        }
+    }
+
+    private static int rowsOf(Object result) {
+        if (result instanceof Collection) {
+            return ((Collection<?>) result).size();
+        }
+        if (result instanceof syncresult) {
+            syncresult sync = (syncresult) result;
+            return sync.inserts.size() + sync.deletedIds.size();
+        }
+        if (result instanceof Integer) {
+            return (Integer) result;
+        }
+        if (result instanceof Boolean) {
+            return (Boolean) result ? 1 : 0;
+        }
+        return result == null ? 0 : 1;
+    }
+
+    private ParseResult failureResult(String request, Throwable error) {
+        Throwable cause = (error instanceof CompletionException && error.getCause() != null) ? error.getCause() : error;
+        String action = actionOf(request);
+        if (cause instanceof TimeoutException) {
+            return new ParseResult(action, Boolean.FALSE, "处理超时", null);
+        }
+        if (cause instanceof RejectedExecutionException) {
+            return new ParseResult("busy", Boolean.FALSE, "服务器繁忙，请稍后重试", null);
+        }
+        return new ParseResult(action, Boolean.FALSE, "处理错误: " + cause.getMessage(), null);
+    }
+
+    /**
+     * 登录、注册、单条写入和逐键的输入联想优先于可能返回大量数据的 list/search。
+     */
+    static int priorityOf(String action) {
+        switch (action) {
+            case "login":
+            case "register":
+            case "add":
+            case "delete":
+            case "suggest":
+                return dbexecutor.PRIORITY_HIGH;
+            case "list":
+            case "stats":
+                return dbexecutor.PRIORITY_LOW;
+            default:
+                return dbexecutor.PRIORITY_NORMAL;
+        }
+    }
+
+    /**
+     * 请求中的 username 字段（第一个逗号之前），没有逗号或为空时返回 null。
+     */
+    static String usernameOf(String request) {
+        if (request == null) {
+            return null;
+        }
+        int first = request.indexOf(',');
+        if (first < 0) {
+            return null;
+        }
+        String username = request.substring(0, first).trim();
+        return username.isEmpty() ? null : username;
+    }
+
+    /**
+     * 不做完整拆分，只取出请求中的 action 字段（第二个逗号分隔的字段）。
+     */
+    static String actionOf(String request) {
+        if (request == null) {
+            return "unknown";
+        }
+        int first = request.indexOf(',');
+        if (first < 0) {
+            return "unknown";
+        }
+        int second = request.indexOf(',', first + 1);
+        String action = (second < 0 ? request.substring(first + 1) : request.substring(first + 1, second)).trim();
+        return action.isEmpty() ? "unknown" : action;
+    }
+
     private Double parseNullableDouble(String raw) {
         if (raw == null || raw.isEmpty()) {
             return null;
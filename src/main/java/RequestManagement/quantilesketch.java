@@ -0,0 +1,98 @@
+package RequestManagement;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 相对误差有界的分位数摘要：正数按对数分桶，桶 i 覆盖 (gamma^(i-1), gamma^i]，返回的分位数与真实值的相对误差不超过 accuracy。
+ * 只保存非空桶（金额从 0.01 到 1e9 约一千个桶），两个摘要按桶相加即可合并。非正数记入零桶。
+ * 非线程安全，由 spendinganalytics 加锁使用。
+ */
+final class quantilesketch {
+    private final double accuracy;
+    private final double gamma;
+    private final double logGamma;
+    private final TreeMap<Integer, Long> buckets = new TreeMap<>();
+    private long zeroCount;
+    private long count;
+
+    quantilesketch(double accuracy) {
+        if (!(accuracy > 0 && accuracy < 1)) {
+            throw new IllegalArgumentException("accuracy must be in (0, 1)");
+        }
+        this.accuracy = accuracy;
+        this.gamma = (1 + accuracy) / (1 - accuracy);
+        this.logGamma = Math.log(gamma);
+    }
+
+    void add(double value) {
+        count++;
+        if (!(value > 0)) {
+            zeroCount++;
+            return;
+        }
+        buckets.merge((int) Math.ceil(Math.log(value) / logGamma), 1L, Long::sum);
+    }
+
+    long count() {
+        return count;
+    }
+
+    /**
+     * q 取 [0, 1]，没有数据时返回 NaN。
+     */
+    double quantile(double q) {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        long rank = (long) Math.floor(Math.max(0, Math.min(1, q)) * (count - 1));
+        if (rank < zeroCount) {
+            return 0;
+        }
+        long seen = zeroCount;
+        for (Map.Entry<Integer, Long> bucket : buckets.entrySet()) {
+            seen += bucket.getValue();
+            if (seen > rank) {
+                // 桶内取使相对误差最小的代表值
+                return 2 * Math.pow(gamma, bucket.getKey()) / (gamma + 1);
+            }
+        }
+        return 2 * Math.pow(gamma, buckets.lastKey()) / (gamma + 1);
+    }
+
+    void merge(quantilesketch other) {
+        if (other.accuracy != accuracy) {
+            throw new IllegalArgumentException("cannot merge sketches with different accuracy");
+        }
+        other.buckets.forEach((index, n) -> buckets.merge(index, n, Long::sum));
+        zeroCount += other.zeroCount;
+        count += other.count;
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeDouble(accuracy);
+        out.writeLong(zeroCount);
+        out.writeInt(buckets.size());
+        for (Map.Entry<Integer, Long> bucket : buckets.entrySet()) {
+            out.writeInt(bucket.getKey());
+            out.writeLong(bucket.getValue());
+        }
+    }
+
+    static quantilesketch readFrom(DataInputStream in) throws IOException {
+        quantilesketch sketch = new quantilesketch(in.readDouble());
+        sketch.zeroCount = in.readLong();
+        sketch.count = sketch.zeroCount;
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            int index = in.readInt();
+            long n = in.readLong();
+            sketch.buckets.put(index, n);
+            sketch.count += n;
+        }
+        return sketch;
+    }
+}
@@ -0,0 +1,194 @@
+package RequestManagement;
+
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import LogManagement.AsyncLog;
+
+/**
+ * 周期记账（工资、房租、订阅）的定时生成。模板保存在 recurring 表中，记录第几次发生（next_index）
+ * 与对应日期（next_date）；调度器只在低峰时段内运行，每个分片每批最多生成 batchRows 条记录，
+ * 批与批之间暂停 pauseMs，停机期间错过的发生也按同样的节奏补齐，不会一次压满写入路径。
+ *
+ * 生成的记录带幂等键 rec:<模板 id>:<日期>，与模板的推进在同一事务中提交，重启后不会重复生成。
+ */
+class recurringscheduler {
+    private static final Logger LOGGER = Logger.getLogger(recurringscheduler.class.getName());
+
+    /**
+     * 一个周期模板；nextIndex 为下一次发生的序号，日期由 startDate 与序号算出，
+     * 因此每月 31 日开始的模板在短月落在月末，之后仍回到 31 日。
+     */
+    static final class template {
+        final long id;
+        final String username;
+        final double amount;
+        final String type;
+        final String subject;
+        final String note;
+        final String frequency;
+        final LocalDate startDate;
+        // null 表示不结束
+        final LocalDate endDate;
+        final long nextIndex;
+
+        template(long id, String username, double amount, String type, String subject, String note,
+                String frequency, LocalDate startDate, LocalDate endDate, long nextIndex) {
+            this.id = id;
+            this.username = username;
+            this.amount = amount;
+            this.type = type;
+            this.subject = subject;
+            this.note = note;
+            this.frequency = frequency;
+            this.startDate = startDate;
+            this.endDate = endDate;
+            this.nextIndex = nextIndex;
+        }
+
+        /**
+         * 第 index 次（从 0 开始）发生的日期。
+         */
+        LocalDate dateAt(long index) {
+            switch (frequency) {
+                case "daily":
+                    return startDate.plusDays(index);
+                case "weekly":
+                    return startDate.plusWeeks(index);
+                default:
+                    return startDate.plusMonths(index);
+            }
+        }
+
+        /**
+         * 第 index 次发生是否已超过结束日期。
+         */
+        boolean endedAt(long index) {
+            return endDate != null && dateAt(index).isAfter(endDate);
+        }
+
+        String idemKey(LocalDate date) {
+            return "rec:" + id + ":" + date;
+        }
+    }
+
+    static boolean isFrequency(String frequency) {
+        return "daily".equals(frequency) || "weekly".equals(frequency) || "monthly".equals(frequency);
+    }
+
+    static String normalizeFrequency(String raw) {
+        return raw == null ? "" : raw.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * 低峰时段 [start, end)，可以跨越午夜；start 等于 end 表示全天。
+     */
+    static final class window {
+        final LocalTime start;
+        final LocalTime end;
+
+        window(LocalTime start, LocalTime end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * 解析 HH:mm-HH:mm，空串表示全天。
+         */
+        static window parse(String text) {
+            if (text == null || text.trim().isEmpty()) {
+                return new window(LocalTime.MIDNIGHT, LocalTime.MIDNIGHT);
+            }
+            String[] bounds = text.trim().split("-");
+            if (bounds.length != 2) {
+                throw new IllegalArgumentException("时段格式应为 HH:mm-HH:mm: " + text);
+            }
+            return new window(LocalTime.parse(bounds[0].trim()), LocalTime.parse(bounds[1].trim()));
+        }
+
+        boolean contains(LocalTime time) {
+            if (start.equals(end)) {
+                return true;
+            }
+            if (start.isBefore(end)) {
+                return !time.isBefore(start) && time.isBefore(end);
+            }
+            return !time.isBefore(start) || time.isBefore(end);
+        }
+    }
+
+    private final sqloperation sql;
+    private final int shards;
+    private final window window;
+    private final int batchRows;
+    private final long pauseMs;
+    private ScheduledExecutorService scheduler;
+
+    recurringscheduler(sqloperation sql, int shards, window window, int batchRows, long pauseMs) {
+        if (batchRows <= 0) {
+            throw new IllegalArgumentException("batchRows must be positive");
+        }
+        this.sql = sql;
+        this.shards = shards;
+        this.window = window;
+        this.batchRows = batchRows;
+        this.pauseMs = pauseMs;
+    }
+
+    synchronized void startSchedule(long intervalMinutes) {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "recurring");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                long created = run(LocalDate.now());
+                if (created > 0) {
+                    LOGGER.info("已生成 " + created + " 条周期记录");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                AsyncLog.error("recurring", e);
+                LOGGER.log(Level.WARNING, "生成周期记录失败", e);
+            }
+        }, 1, intervalMinutes, TimeUnit.MINUTES);
+    }
+
+    synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * 在低峰时段内逐分片、逐批生成截至 today 的发生，离开时段时停下，下次从模板的进度继续。
+     * 返回生成的记录数。
+     */
+    long run(LocalDate today) throws SQLException, InterruptedException {
+        long created = 0;
+        for (int shard = 0; shard < shards; shard++) {
+            while (window.contains(LocalTime.now())) {
+                int batch = sql.materialiseRecurring(shard, today, batchRows);
+                created += batch;
+                if (batch == 0) {
+                    break;
+                }
+                Thread.sleep(pauseMs);
+            }
+        }
+        return created;
+    }
+}
@@ -0,0 +1,240 @@
+package RequestManagement;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.function.IntFunction;
+import java.util.logging.Logger;
+
+/**
+ * 修改分片数后的离线数据迁移工具，必须在服务停止时运行：
+ * java RequestManagement.shardrebalancer 旧分片数 新分片数
+ * 然后以 -Ddb.shards=新分片数 启动服务。
+ * 每个用户先完整写入目标分片并提交，再从源分片删除；中途失败后重新运行即可，
+ * 目标分片中残留的部分数据会先被清掉。搬迁后记录在目标库中重新分配 ID，
+ * 用户的同步版本随之推进并标记为已清空，客户端下次 sync 会整体重置。
+ * 归档段与 archive_tombstones 保留源分片的 ID，因此新 ID 从该用户最大的归档 ID 之后开始分配。
+ */
+public class shardrebalancer {
+    private static final Logger LOGGER = Logger.getLogger(shardrebalancer.class.getName());
+    private static final String[] USER_TABLES = {"entries", "entry_tombstones", "user_versions", "users",
+            "archive_segments", "archive_tombstones", "budgets", "recurring"};
+
+    private final IntFunction<String> urlForShard;
+    private final String user;
+    private final String password;
+
+    public shardrebalancer(IntFunction<String> urlForShard, String user, String password) {
+        this.urlForShard = urlForShard;
+        this.user = user;
+        this.password = password;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) {
+            System.err.println("用法: shardrebalancer <旧分片数> <新分片数>");
+            System.exit(2);
+        }
+        int from = Integer.parseInt(args[0]);
+        int to = Integer.parseInt(args[1]);
+        shardrebalancer tool = new shardrebalancer(sqloperation::shardUrl, sqloperation.JDBC_USER, sqloperation.JDBC_PASSWORD);
+        int moved = tool.rebalance(from, to);
+        System.out.println("已迁移 " + moved + " 个用户");
+    }
+
+    /**
+     * 把旧的 from 个分片中的用户按 to 个分片重新分布，返回搬迁的用户数。
+     */
+    public int rebalance(int from, int to) throws SQLException {
+        if (from <= 0 || to <= 0) {
+            throw new IllegalArgumentException("shard counts must be positive");
+        }
+        // 目标分片可能是新建的库，先补齐表结构
+        for (int shard = 0; shard < to; shard++) {
+            try (Connection c = open(shard)) {
+                migrationrunner.standard().migrate(c);
+            }
+        }
+        int moved = 0;
+        for (int source = 0; source < from; source++) {
+            for (String username : usernames(source)) {
+                int target = shardrouter.shardOf(username, to);
+                if (target != source) {
+                    moveUser(username, source, target);
+                    moved++;
+                }
+            }
+            LOGGER.info("分片 " + source + " 处理完成，累计迁移 " + moved + " 个用户");
+        }
+        return moved;
+    }
+
+    private List<String> usernames(int shard) throws SQLException {
+        TreeSet<String> names = new TreeSet<>();
+        try (Connection c = open(shard);
+             PreparedStatement query = c.prepareStatement(
+                     "SELECT username FROM users UNION SELECT DISTINCT username FROM entries");
+             ResultSet rs = query.executeQuery()) {
+            while (rs.next()) {
+                names.add(rs.getString(1));
+            }
+        }
+        return new ArrayList<>(names);
+    }
+
+    private void moveUser(String username, int source, int target) throws SQLException {
+        try (Connection src = open(source); Connection dst = open(target)) {
+            // DDL 会隐式提交，必须在搬迁事务开始之前执行
+            skipArchivedIds(src, dst, username);
+            dst.setAutoCommit(false);
+            try {
+                deleteUser(dst, username);
+                long version = 1;
+                try (PreparedStatement query = src.prepareStatement("SELECT version FROM user_versions WHERE username = ?")) {
+                    query.setString(1, username);
+                    try (ResultSet rs = query.executeQuery()) {
+                        if (rs.next()) {
+                            version = rs.getLong(1) + 1;
+                        }
+                    }
+                }
+                try (PreparedStatement query = src.prepareStatement("SELECT username, password FROM users WHERE username = ?");
+                     PreparedStatement insert = dst.prepareStatement("INSERT INTO users (username, password) VALUES (?, ?)")) {
+                    query.setString(1, username);
+                    try (ResultSet rs = query.executeQuery()) {
+                        if (rs.next()) {
+                            insert.setString(1, rs.getString(1));
+                            insert.setString(2, rs.getString(2));
+                            insert.executeUpdate();
+                        }
+                    }
+                }
+                try (PreparedStatement query = src.prepareStatement(
+                        // 已清空但尚未被后台删除的记录不再迁移
+                        "SELECT amount, type, date, subject, note FROM entries WHERE username = ?" + sqloperation.VISIBLE_ROWS + " ORDER BY id");
+                     PreparedStatement insert = dst.prepareStatement(
+                             "INSERT INTO entries (username, amount, type, date, subject, note, version) VALUES (?, ?, ?, ?, ?, ?, ?)")) {
+                    query.setString(1, username);
+                    query.setString(2, username);
+                    try (ResultSet rs = query.executeQuery()) {
+                        int batched = 0;
+                        while (rs.next()) {
+                            insert.setString(1, username);
+                            insert.setDouble(2, rs.getDouble(1));
+                            insert.setString(3, rs.getString(2));
+                            insert.setString(4, rs.getString(3));
+                            insert.setString(5, rs.getString(4));
+                            insert.setString(6, rs.getString(5));
+                            insert.setLong(7, version);
+                            insert.addBatch();
+                            if (++batched % 1000 == 0) {
+                                insert.executeBatch();
+                            }
+                        }
+                        insert.executeBatch();
+                    }
+                }
+                try (PreparedStatement insert = dst.prepareStatement(
+                        "INSERT INTO user_versions (username, version, cleared_version) VALUES (?, ?, ?)")) {
+                    insert.setString(1, username);
+                    insert.setLong(2, version);
+                    insert.setLong(3, version);
+                    insert.executeUpdate();
+                }
+                // 归档段文件按用户存放，与分片无关，只需搬迁登记
+                copyRows(src, dst, username, "archive_segments", "name, min_date, max_date, min_id, max_id, row_count");
+                copyRows(src, dst, username, "archive_tombstones", "id");
+                copyRows(src, dst, username, "budgets", "subject, period, limit_amount");
+                // 模板在目标库中重新分配 ID；已生成的发生由 next_index 记录，不会因此重复生成
+                copyRows(src, dst, username, "recurring",
+                        "amount, type, subject, note, frequency, start_date, end_date, next_index, next_date");
+                dst.commit();
+            } catch (SQLException e) {
+                dst.rollback();
+                throw e;
+            }
+            src.setAutoCommit(false);
+            try {
+                deleteUser(src, username);
+                src.commit();
+            } catch (SQLException e) {
+                src.rollback();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * 把目标库 entries 的 ID 序列推进到该用户归档记录的最大 ID 之后，否则搬迁后的热数据可能与归档记录同 ID：
+     * 查询合并时按 ID 去重会丢掉归档记录，删除时也可能在归档中找到另一条记录。
+     */
+    private static void skipArchivedIds(Connection src, Connection dst, String username) throws SQLException {
+        long maxArchived = 0;
+        try (PreparedStatement query = src.prepareStatement(
+                "SELECT COALESCE(MAX(max_id), 0) FROM archive_segments WHERE username = ?")) {
+            query.setString(1, username);
+            try (ResultSet rs = query.executeQuery()) {
+                rs.next();
+                maxArchived = rs.getLong(1);
+            }
+        }
+        if (maxArchived == 0) {
+            return;
+        }
+        long next;
+        try (PreparedStatement query = dst.prepareStatement(
+                "SELECT IDENTITY_BASE FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_SCHEMA = 'PUBLIC'"
+                        + " AND TABLE_NAME = 'ENTRIES' AND COLUMN_NAME = 'ID'");
+             ResultSet rs = query.executeQuery()) {
+            if (!rs.next()) {
+                throw new SQLException("找不到 entries.id 的序列");
+            }
+            next = rs.getLong(1);
+        }
+        if (next <= maxArchived) {
+            try (Statement restart = dst.createStatement()) {
+                restart.execute("ALTER TABLE entries ALTER COLUMN id RESTART WITH " + (maxArchived + 1));
+            }
+        }
+    }
+
+    private static void copyRows(Connection src, Connection dst, String username, String table, String columns)
+            throws SQLException {
+        int count = columns.split(",").length;
+        String placeholders = "?" + ", ?".repeat(count);
+        try (PreparedStatement query = src.prepareStatement("SELECT " + columns + " FROM " + table + " WHERE username = ?");
+             PreparedStatement insert = dst.prepareStatement(
+                     "INSERT INTO " + table + " (username, " + columns + ") VALUES (" + placeholders + ")")) {
+            query.setString(1, username);
+            try (ResultSet rs = query.executeQuery()) {
+                while (rs.next()) {
+                    insert.setString(1, username);
+                    for (int i = 1; i <= count; i++) {
+                        insert.setObject(i + 1, rs.getObject(i));
+                    }
+                    insert.addBatch();
+                }
+            }
+            insert.executeBatch();
+        }
+    }
+
+    private static void deleteUser(Connection c, String username) throws SQLException {
+        for (String table : USER_TABLES) {
+            try (PreparedStatement delete = c.prepareStatement("DELETE FROM " + table + " WHERE username = ?")) {
+                delete.setString(1, username);
+                delete.executeUpdate();
+            }
+        }
+    }
+
+    private Connection open(int shard) throws SQLException {
+        return DriverManager.getConnection(urlForShard.apply(shard), user, password);
+    }
+}
@@ -0,0 +1,104 @@
+package RequestManagement;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+import org.h2.jdbcx.JdbcConnectionPool;
+
+/**
+ * 按用户名哈希把用户路由到 N 个 H2 数据库之一，每个库有自己的连接池。
+ * 单个用户的所有数据都在同一个分片内；需要全库数据的管理查询在所有分片上并行执行后合并。
+ */
+public class shardrouter {
+    private static final AtomicInteger THREAD_SEQ = new AtomicInteger();
+
+    public interface shardquery<T> {
+        T run(Connection c) throws SQLException;
+    }
+
+    private final JdbcConnectionPool[] pools;
+    private final ExecutorService fanOutPool;
+
+    shardrouter(int shards, IntFunction<String> urlForShard, String user, String password, int maxConnections) {
+        if (shards <= 0) {
+            throw new IllegalArgumentException("shards must be positive");
+        }
+        pools = new JdbcConnectionPool[shards];
+        for (int i = 0; i < shards; i++) {
+            pools[i] = JdbcConnectionPool.create(urlForShard.apply(i), user, password);
+            pools[i].setMaxConnections(maxConnections);
+        }
+        fanOutPool = Executors.newFixedThreadPool(shards, r -> {
+            Thread t = new Thread(r, "shard-fanout-" + THREAD_SEQ.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * 分片编号只取决于用户名和分片数，String.hashCode 的算法由语言规范固定，重启后不变。
+     */
+    public static int shardOf(String username, int shards) {
+        return Math.floorMod(username == null ? 0 : username.hashCode(), shards);
+    }
+
+    public int shardCount() {
+        return pools.length;
+    }
+
+    public Connection connection(String username) throws SQLException {
+        return pools[shardOf(username, pools.length)].getConnection();
+    }
+
+    public Connection connection(int shard) throws SQLException {
+        return pools[shard].getConnection();
+    }
+
+    /**
+     * 在每个分片上并行执行 query，结果按分片编号排列。任一分片失败时抛出该异常。
+     */
+    public <T> List<T> fanOut(shardquery<T> query) throws SQLException {
+        List<Future<T>> futures = new ArrayList<>(pools.length);
+        for (JdbcConnectionPool pool : pools) {
+            futures.add(fanOutPool.submit(() -> {
+                try (Connection c = pool.getConnection()) {
+                    return query.run(c);
+                }
+            }));
+        }
+        List<T> results = new ArrayList<>(pools.length);
+        for (Future<T> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("分片查询被中断", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof SQLException) {
+                    throw (SQLException) cause;
+                }
+                throw new SQLException("分片查询失败: " + cause.getMessage(), cause);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * 关闭连接池，已借出的连接在归还时关闭。
+     */
+    public void close() {
+        fanOutPool.shutdownNow();
+        for (JdbcConnectionPool pool : pools) {
+            pool.dispose();
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package RequestManagement;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import LogManagement.AsyncLog;
+
+/**
+ * 全系统消费统计的近似摘要，在每次 add 提交后增量更新，查询不访问数据库：
+ * 金额分位数（quantilesketch）、每天的活跃用户数（按天的 hyperloglog，保留 retainDays 天）、
+ * 出现最多的 subject（topkcounter）。摘要只反映写入流量，delete/clear 不会扣减。
+ * 各摘要都可合并，定期整体写入快照文件，启动时读回；多份快照（例如多个实例各自的文件）可以 merge 成一份。
+ */
+final class spendinganalytics {
+    private static final int MAGIC = 0x53504e41;
+    private static final int FORMAT_VERSION = 1;
+    static final double ACCURACY = 0.01;
+    static final int HLL_PRECISION = 12;
+    static final int CMS_DEPTH = 4;
+    static final int CMS_WIDTH = 2048;
+
+    private final int retainDays;
+    private final int topK;
+    private quantilesketch amounts = new quantilesketch(ACCURACY);
+    private final TreeMap<LocalDate, hyperloglog> activeUsers = new TreeMap<>();
+    private topkcounter subjects;
+    private ScheduledExecutorService snapshots;
+
+    spendinganalytics(int retainDays, int topK) {
+        if (retainDays <= 0) {
+            throw new IllegalArgumentException("retainDays must be positive");
+        }
+        this.retainDays = retainDays;
+        this.topK = topK;
+        this.subjects = new topkcounter(CMS_DEPTH, CMS_WIDTH, topK);
+    }
+
+    /**
+     * 记录一次写入。所有摘要的更新加起来只有几十次内存访问，直接加锁即可。
+     */
+    synchronized void observe(String username, double amount, String subject, LocalDate day) {
+        amounts.add(amount);
+        activeUsers.computeIfAbsent(day, d -> new hyperloglog(HLL_PRECISION)).add(username);
+        if (subject != null && !subject.isEmpty()) {
+            subjects.add(subject);
+        }
+        expireDays(day);
+    }
+
+    /**
+     * 只更新金额与 subject，用于从已有记录回填（没有写入日期，无法计入活跃用户）。
+     */
+    synchronized void observeExisting(double amount, String subject) {
+        amounts.add(amount);
+        if (subject != null && !subject.isEmpty()) {
+            subjects.add(subject);
+        }
+    }
+
+    private void expireDays(LocalDate today) {
+        LocalDate oldest = today.minusDays(retainDays - 1L);
+        Iterator<LocalDate> days = activeUsers.keySet().iterator();
+        while (days.hasNext() && days.next().isBefore(oldest)) {
+            days.remove();
+        }
+    }
+
+    synchronized long count() {
+        return amounts.count();
+    }
+
+    synchronized double quantile(double q) {
+        return amounts.quantile(q);
+    }
+
+    /**
+     * 该天的活跃用户数估计。
+     */
+    synchronized long activeUsers(LocalDate day) {
+        hyperloglog sketch = activeUsers.get(day);
+        return sketch == null ? 0 : sketch.estimate();
+    }
+
+    /**
+     * 截至 today 的 days 天内去重后的活跃用户数估计（合并各天的摘要）。
+     */
+    synchronized long activeUsers(LocalDate today, int days) {
+        hyperloglog union = new hyperloglog(HLL_PRECISION);
+        for (hyperloglog sketch : activeUsers.subMap(today.minusDays(days - 1L), true, today, true).values()) {
+            union.merge(sketch);
+        }
+        return union.estimate();
+    }
+
+    /**
+     * 管理查询的回复正文：count、p50/p90/p99、近 days 天每天的活跃用户与去重总数、前 k 个 subject。
+     * subject 按 URL 编码，避免与分隔符混淆。
+     */
+    synchronized String report(LocalDate today, int days) {
+        StringBuilder out = new StringBuilder();
+        out.append("count:").append(amounts.count());
+        for (int p : new int[] {50, 90, 99}) {
+            out.append(",p").append(p).append(':').append(format(amounts.quantile(p / 100.0)));
+        }
+        out.append(",dau:");
+        for (int i = 0; i < days; i++) {
+            LocalDate day = today.minusDays(i);
+            if (i > 0) {
+                out.append(';');
+            }
+            out.append(day).append('=').append(activeUsers(day));
+        }
+        out.append(",active:").append(activeUsers(today, days));
+        out.append(",top:");
+        boolean first = true;
+        for (Map.Entry<String, Long> subject : subjects.top()) {
+            if (!first) {
+                out.append(';');
+            }
+            first = false;
+            out.append(URLEncoder.encode(subject.getKey(), StandardCharsets.UTF_8)).append('=').append(subject.getValue());
+        }
+        return out.toString();
+    }
+
+    private static String format(double value) {
+        return Double.isNaN(value) ? "-" : String.format(Locale.ROOT, "%.2f", value);
+    }
+
+    synchronized void merge(spendinganalytics other) {
+        amounts.merge(other.amounts);
+        other.activeUsers.forEach((day, sketch) ->
+                activeUsers.computeIfAbsent(day, d -> new hyperloglog(HLL_PRECISION)).merge(sketch));
+        subjects.merge(other.subjects);
+    }
+
+    /**
+     * 序列化当前状态。只在锁内写入内存缓冲，文件 IO 在锁外进行，不阻塞 add。
+     */
+    synchronized byte[] toBytes() throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeInt(MAGIC);
+        out.writeByte(FORMAT_VERSION);
+        amounts.writeTo(out);
+        out.writeInt(activeUsers.size());
+        for (Map.Entry<LocalDate, hyperloglog> day : activeUsers.entrySet()) {
+            out.writeLong(day.getKey().toEpochDay());
+            day.getValue().writeTo(out);
+        }
+        subjects.writeTo(out);
+        out.flush();
+        return buffer.toByteArray();
+    }
+
+    static spendinganalytics fromBytes(byte[] bytes, int retainDays) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (in.readInt() != MAGIC || in.readByte() != FORMAT_VERSION) {
+            throw new IOException("不是统计快照文件");
+        }
+        quantilesketch amounts = quantilesketch.readFrom(in);
+        TreeMap<LocalDate, hyperloglog> days = new TreeMap<>();
+        int dayCount = in.readInt();
+        for (int i = 0; i < dayCount; i++) {
+            days.put(LocalDate.ofEpochDay(in.readLong()), hyperloglog.readFrom(in));
+        }
+        topkcounter subjects = topkcounter.readFrom(in);
+        spendinganalytics analytics = new spendinganalytics(retainDays, subjects.k());
+        analytics.amounts = amounts;
+        analytics.activeUsers.putAll(days);
+        analytics.subjects = subjects;
+        return analytics;
+    }
+
+    /**
+     * 写入临时文件后原子改名，崩溃时旧快照保持完整。
+     */
+    void snapshot(Path file) throws IOException {
+        byte[] bytes = toBytes();
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(temp, bytes);
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * 把快照文件合并进当前状态；文件不存在时返回 false。
+     */
+    boolean load(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return false;
+        }
+        merge(fromBytes(Files.readAllBytes(file), retainDays));
+        return true;
+    }
+
+    synchronized void startSnapshots(Path file, long intervalSeconds) {
+        if (snapshots != null) {
+            return;
+        }
+        snapshots = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "analytics-snapshot");
+            t.setDaemon(true);
+            return t;
+        });
+        snapshots.scheduleWithFixedDelay(() -> {
+            try {
+                snapshot(file);
+            } catch (IOException e) {
+                AsyncLog.error("analytics-snapshot", e);
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 停止定期快照并立即写一次。
+     */
+    void stopSnapshots(Path file) throws IOException {
+        synchronized (this) {
+            if (snapshots == null) {
+                return;
+            }
+            snapshots.shutdownNow();
+            snapshots = null;
+        }
+        snapshot(file);
+    }
+}
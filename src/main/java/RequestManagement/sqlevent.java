@@ -0,0 +1,30 @@
+package RequestManagement;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * 一次 sqloperation 调用（借连接、执行语句、归还连接）的耗时与返回行数。
+ */
+@Name("acounting_system.Sql")
+@Label("SQL Operation")
+@Category({"Accounting", "Database"})
+@StackTrace(false)
+@Description("A single sqloperation call made while handling a request")
+class sqlevent extends Event {
+    @Label("Operation")
+    String operation;
+
+    @Label("Username Hash")
+    int userHash;
+
+    @Label("Rows")
+    int rows;
+
+    @Label("Succeeded")
+    boolean succeeded;
+}
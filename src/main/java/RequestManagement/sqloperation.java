@@ -1,74 +1,298 @@
 package RequestManagement;
 
+import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.sql.*;
+import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 
-import java.util.logging.Logger;
+import LogManagement.AsyncLog;
 import sharedmodel.*;
 
 public class sqloperation {
-    private static final Logger LOGGER = Logger.getLogger(sqloperation.class.getName());
-    private static final Path DB_PATH = Paths.get(System.getProperty("user.dir"), "accounting_db").toAbsolutePath();
-    public static final String JDBC_URL = "jdbc:h2:file:" + DB_PATH.toString().replace("\\", "/") + ";DB_CLOSE_DELAY=-1";
+    // 数据库文件所在目录（-Ddb.dir，默认工作目录）；归档段与统计快照默认也放在这里
+    private static final Path DB_PATH = Paths.get(System.getProperty("db.dir", System.getProperty("user.dir")),
+            "accounting_db").toAbsolutePath();
+    // 共享的 H2 TCP 服务器地址（host:port）。设置后多个服务实例连接同一组数据库，而不是各自以文件模式独占
+    private static final String DB_SERVER = System.getProperty("db.server");
+    // 单条语句的最长执行时间（毫秒），同时作为 parser 异步请求的超时时间
+    public static final long QUERY_TIMEOUT_MS = Long.getLong("db.timeout.ms", 10000L);
+    public static final String JDBC_URL = databaseUrl("accounting_db");
     public static String JDBC_USER = System.getenv("DB_USER") != null ? System.getenv("DB_USER") : "sa";
     public static String JDBC_PASSWORD = System.getenv("DB_PASSWORD") != null ? System.getenv("DB_PASSWORD") : "";
+    // 分片数：分片 0 仍是 accounting_db，其余为 accounting_db_1 ... accounting_db_{N-1}
+    public static final int SHARDS = Integer.getInteger("db.shards", 1);
+    // 每个分片连接池的最大连接数
+    private static final int POOL_SIZE = Integer.getInteger("db.pool", 16);
     
-    // 简单的连接缓存，避免频繁创建连接
+    // 当前线程正在使用的连接，每次操作结束时归还连接池
     private static final ThreadLocal<Connection> connectionThreadLocal = new ThreadLocal<>();
+    private static final Object ROUTER_LOCK = new Object();
+    private static volatile shardrouter router;
+
+    // 每个用户当前的变更版本，sync 请求在版本未变化时直接用它回答
+    private static final ConcurrentHashMap<String, cachedversion> VERSION_CACHE = new ConcurrentHashMap<>();
+    // 多实例时其他实例的写入靠失效广播通知，广播可能丢失，因此缓存只在有效期内可信
+    private static final long VERSION_CACHE_TTL_NANOS = DB_SERVER == null ? Long.MAX_VALUE
+            : TimeUnit.MILLISECONDS.toNanos(Long.getLong("cluster.cacheTtlMs", 2000L));
+
+    // add 幂等键 → 记录 ID，覆盖客户端超时重试的时间窗口
+    private static final idempotencycache IDEMPOTENCY_CACHE = new idempotencycache(
+            Integer.getInteger("idem.cacheSize", 10000), Long.getLong("idem.ttlMs", 600000L));
+
+    // 清空后仍对查询可见的记录：id 高于该用户的 cleared_below 水位线，其余的由 clearpurger 在后台删除
+    static final String VISIBLE_ROWS = " AND id > COALESCE((SELECT cleared_below FROM user_versions WHERE username = ?), 0)";
+
+    // 冷数据归档段文件的位置；多实例部署时必须是各实例共享的目录
+    private static final archivestore ARCHIVE = new archivestore(Paths.get(System.getProperty("archive.dir",
+            DB_PATH.resolveSibling("accounting_archive").toString())));
+    // 服务器模式下导出游标每次从 H2 服务器取回的行数
+    private static final int EXPORT_FETCH_SIZE = Integer.getInteger("export.fetchSize", 500);
+    private static final Comparator<Entry> BY_ID = Comparator.comparing(entry -> entry.id);
+    // 统计摘要的快照文件；多实例部署时每个实例应使用各自的文件
+    private static final Path ANALYTICS_FILE = Paths.get(System.getProperty("analytics.file",
+            DB_PATH.resolveSibling("accounting_analytics.bin").toString()));
+
+    private final List<migrationrunner> migrations = new ArrayList<>();
+    private clearpurger purger;
+    private archiver archiveJob;
+    private recurringscheduler recurringJob;
+    private volatile changelistener changeListener;
+    private final spendinganalytics analytics = new spendinganalytics(
+            Integer.getInteger("analytics.days", 90), Integer.getInteger("analytics.topK", 20));
+    private final budgettracker budgets = new budgettracker(VERSION_CACHE_TTL_NANOS);
+    // subject 输入联想的前缀索引，按需加载，最近使用的用户保留在内存中
+    private final subjectindex subjects = new subjectindex(Integer.getInteger("suggest.maxUsers", 10000),
+            Integer.getInteger("suggest.maxSubjects", 1000), VERSION_CACHE_TTL_NANOS);
+
+    /**
+     * 用户数据提交后的通知，在提交变更的数据库线程上调用，实现不应阻塞。
+     */
+    public interface changelistener {
+        void changed(String username, long version);
+    }
+
+    /**
+     * export 逐条接收记录，抛出的 IOException（例如客户端断开）会终止导出。
+     */
+    public interface entryvisitor {
+        void accept(Entry entry) throws IOException;
+    }
 
     public sqloperation() {
     }
 
+    public void setChangeListener(changelistener listener) {
+        this.changeListener = listener;
+    }
+
+    /**
+     * 分片的 JDBC URL，分片 0 与未分片时的 JDBC_URL 相同。
+     */
+    public static String shardUrl(int shard) {
+        return shard == 0 ? JDBC_URL : databaseUrl("accounting_db_" + shard);
+    }
+
+    /**
+     * 文件模式下数据库位于工作目录；服务器模式下由 H2 服务器的 -baseDir 决定位置。
+     */
+    private static String databaseUrl(String name) {
+        String location = DB_SERVER == null
+                ? "file:" + DB_PATH.resolveSibling(name).toString().replace("\\", "/")
+                : "tcp://" + DB_SERVER + "/" + name;
+        return "jdbc:h2:" + location + ";DB_CLOSE_DELAY=-1;QUERY_TIMEOUT=" + QUERY_TIMEOUT_MS;
+    }
+
+    public static boolean isServerMode() {
+        return DB_SERVER != null;
+    }
+
     public void initialize() throws ClassNotFoundException, SQLException {
         Class.forName("org.h2.Driver");
-        // 使用临时连接来创建表
-        try (Connection initConn = DriverManager.getConnection(JDBC_URL, JDBC_USER, JDBC_PASSWORD);
-             Statement stmt = initConn.createStatement()) {
-            
-            // 批量执行创建语句
-            String[] initSQLs = {
-                """
-                CREATE TABLE IF NOT EXISTS users (
-                    username VARCHAR(255) PRIMARY KEY,
-                    password VARCHAR(255) NOT NULL
-                )
-                """,
-                """
-                CREATE TABLE IF NOT EXISTS entries (
-                    id BIGINT AUTO_INCREMENT PRIMARY KEY,
-                    username VARCHAR(255) NOT NULL,
-                    amount DOUBLE NOT NULL,
-                    type VARCHAR(32),
-                    date VARCHAR(64),
-                    subject VARCHAR(255),
-                    note VARCHAR(1024)
-                )
-                """,
-                "ALTER TABLE entries ADD COLUMN IF NOT EXISTS id BIGINT AUTO_INCREMENT",
-                "ALTER TABLE entries ADD COLUMN IF NOT EXISTS type VARCHAR(32)",
-                "UPDATE entries SET type = 'expense' WHERE type IS NULL",
-                "CREATE INDEX IF NOT EXISTS idx_entries_username ON entries(username)",
-                "CREATE INDEX IF NOT EXISTS idx_entries_date ON entries(date)",
-                "CREATE INDEX IF NOT EXISTS idx_entries_type ON entries(type)"
-            };
-            
-            for (String sql : initSQLs) {
-                try {
-                    stmt.execute(sql);
-                } catch (SQLException e) {
-                    // 忽略重复创建索引等错误
+        // 每个分片独立迁移：只执行尚未执行的步骤，耗时的回填在后台分批进行
+        for (int shard = 0; shard < SHARDS; shard++) {
+            String url = shardUrl(shard);
+            migrationrunner runner = migrationrunner.standard();
+            try (Connection initConn = DriverManager.getConnection(url, JDBC_USER, JDBC_PASSWORD)) {
+                runner.migrate(initConn);
+            }
+            runner.startBackground(() -> DriverManager.getConnection(url, JDBC_USER, JDBC_PASSWORD));
+            migrations.add(runner);
+        }
+        purger = new clearpurger(username -> router().connection(username),
+                Integer.getInteger("clear.chunkRows", 1000), Long.getLong("clear.pauseMs", 10L));
+        // 上次停机时尚未删完的清空任务
+        for (List<String> pending : router().fanOut(sqloperation::pendingPurges)) {
+            pending.forEach(purger::submit);
+        }
+        purger.start();
+        // 设置 -Darchive.cutoffDays 后定期把更早的记录移到归档段
+        Integer cutoffDays = Integer.getInteger("archive.cutoffDays");
+        if (cutoffDays != null) {
+            archiveJob().startSchedule(cutoffDays, Long.getLong("archive.intervalMinutes", 1440L));
+        }
+        loadAnalytics();
+        router().fanOut(c -> {
+            budgets.loadAll(c);
+            return null;
+        });
+        analytics.startSnapshots(ANALYTICS_FILE, Long.getLong("analytics.snapshotSeconds", 60L));
+        // 周期记录只在低峰时段（-Drecurring.window，默认 01:00-05:00）生成；间隔为 0 时不启动
+        long recurringInterval = Long.getLong("recurring.intervalMinutes", 15L);
+        if (recurringInterval > 0) {
+            synchronized (this) {
+                recurringJob = new recurringscheduler(this, SHARDS,
+                        recurringscheduler.window.parse(System.getProperty("recurring.window", "01:00-05:00")),
+                        Integer.getInteger("recurring.batchRows", 1000), Long.getLong("recurring.pauseMs", 200L));
+                recurringJob.startSchedule(recurringInterval);
+            }
+        }
+    }
+
+    /**
+     * 读回上次的统计快照；没有快照（首次启用）时扫描一次现有记录回填金额与 subject。
+     */
+    private void loadAnalytics() throws SQLException {
+        try {
+            if (analytics.load(ANALYTICS_FILE)) {
+                return;
+            }
+        } catch (IOException e) {
+            AsyncLog.error("analytics-load", e);
+        }
+        router().fanOut(c -> {
+            try (Statement stmt = c.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT e.amount, e.subject FROM entries e WHERE e.id > "
+                         + "COALESCE((SELECT v.cleared_below FROM user_versions v WHERE v.username = e.username), 0)")) {
+                while (rs.next()) {
+                    analytics.observeExisting(rs.getDouble(1), rs.getString(2));
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 管理统计：金额分位数、近 days 天的活跃用户数与热门 subject，只读内存中的摘要。
+     */
+    public String solveAnalytics(int days) {
+        return analytics.report(LocalDate.now(), days);
+    }
+
+    private synchronized archiver archiveJob() {
+        if (archiveJob == null) {
+            archiveJob = new archiver(router(), ARCHIVE, Integer.getInteger("archive.segmentRows", 50000));
+        }
+        return archiveJob;
+    }
+
+    /**
+     * 立即把日期早于 cutoffDays 天前的记录移到归档段，返回移动的记录数。
+     */
+    public long archiveOlderThan(int cutoffDays) throws SQLException, IOException {
+        return archiveJob().run(LocalDate.now().minusDays(cutoffDays));
+    }
+
+    /**
+     * 只归档 username 一个用户日期早于 cutoffDays 天前的记录，返回移动的记录数。
+     */
+    public long archiveOlderThan(int cutoffDays, String username) throws SQLException, IOException {
+        return archiveJob().runUser(username, LocalDate.now().minusDays(cutoffDays).toString());
+    }
+
+    private static List<String> pendingPurges(Connection c) throws SQLException {
+        List<String> usernames = new ArrayList<>();
+        try (Statement stmt = c.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT username FROM user_versions WHERE purge_pending")) {
+            while (rs.next()) {
+                usernames.add(rs.getString(1));
+            }
+        }
+        return usernames;
+    }
+    
+    /**
+     * 关闭所有分片的 H2 数据库（DB_CLOSE_DELAY=-1 时数据库不会随最后一个连接自动关闭），
+     * 让未落盘的数据写入文件，下次启动无需恢复。
+     */
+    public void shutdown() throws SQLException {
+        try {
+            analytics.stopSnapshots(ANALYTICS_FILE);
+        } catch (IOException e) {
+            AsyncLog.error("analytics-snapshot", e);
+        }
+        if (purger != null) {
+            try {
+                purger.stop(2000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            if (archiveJob != null) {
+                archiveJob.stop();
+            }
+            if (recurringJob != null) {
+                recurringJob.stop();
+            }
+        }
+        for (migrationrunner runner : migrations) {
+            try {
+                runner.stopBackground(2000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (ROUTER_LOCK) {
+            if (router != null) {
+                router.close();
+                router = null;
+            }
+        }
+        if (isServerMode()) {
+            // 共享数据库由 H2 服务器管理，其他实例仍在使用，不能关闭
+            return;
+        }
+        for (int shard = 0; shard < SHARDS; shard++) {
+            try (Connection c = DriverManager.getConnection(shardUrl(shard), JDBC_USER, JDBC_PASSWORD);
+                 Statement stmt = c.createStatement()) {
+                stmt.execute("SHUTDOWN");
+            }
+        }
+    }
+
+    private static shardrouter router() {
+        shardrouter current = router;
+        if (current == null) {
+            synchronized (ROUTER_LOCK) {
+                current = router;
+                if (current == null) {
+                    current = new shardrouter(SHARDS, sqloperation::shardUrl, JDBC_USER, JDBC_PASSWORD, POOL_SIZE);
+                    router = current;
                 }
             }
         }
+        return current;
     }
     
-    private Connection getConnection() throws SQLException {
+    /**
+     * 从 username 所在分片的连接池借出连接。
+     */
+    private Connection getConnection(String username) throws SQLException {
         Connection conn = connectionThreadLocal.get();
         if (conn == null || conn.isClosed()) {
-            conn = DriverManager.getConnection(JDBC_URL, JDBC_USER, JDBC_PASSWORD);
+            conn = router().connection(username);
             connectionThreadLocal.set(conn);
         }
         return conn;
@@ -78,6 +302,7 @@ public class sqloperation {
         try {
             Connection conn = connectionThreadLocal.get();
             if (conn != null && !conn.isClosed()) {
+                // 归还连接池：池会回滚未提交的事务并恢复自动提交
                 conn.close();
             }
         } catch (SQLException e) {
@@ -87,29 +312,111 @@ public class sqloperation {
         }
     }
 
+    /**
+     * 管理统计：在所有分片上并行统计用户数与记录数后合并，返回 {users, entries}。
+     */
+    public long[] solveStats() throws SQLException {
+        List<long[]> perShard = router().fanOut(c -> {
+            try (Statement stmt = c.createStatement();
+                 ResultSet rs = stmt.executeQuery(
+                         "SELECT (SELECT COUNT(*) FROM users), (SELECT COUNT(*) FROM entries)")) {
+                rs.next();
+                return new long[] {rs.getLong(1), rs.getLong(2)};
+            }
+        });
+        long[] total = new long[2];
+        for (long[] counts : perShard) {
+            total[0] += counts[0];
+            total[1] += counts[1];
+        }
+        return total;
+    }
+
     public Boolean solveAdd(addrequest Add) throws SQLException {
+        solveAddEntry(Add);
+        return Boolean.TRUE;
+    }
+
+    /**
+     * 插入一条记录并返回生成的 ID。带幂等键的重试直接返回第一次插入的 ID，不会重复插入：
+     * 近期的键由内存缓存回答，不访问数据库；缓存之外的由唯一索引发现，再查出原记录的 ID。
+     * 这笔支出使之超出的预算记在 Add.budgetAlerts（重试不再报告）。
+     */
+    public Long solveAddEntry(addrequest Add) throws SQLException {
         Entry entry = Add.entry;
+        if (Add.idemKey != null) {
+            Long cached = IDEMPOTENCY_CACHE.get(entry.username, Add.idemKey);
+            if (cached != null) {
+                return cached;
+            }
+        }
         try {
-            Connection c = getConnection();
-            try (PreparedStatement insert = c.prepareStatement(
-                    "INSERT INTO entries (username, amount, type, date, subject, note) VALUES (?, ?, ?, ?, ?, ?)")) {
-                insert.setString(1, entry.username);
-                insert.setDouble(2, entry.amount);
-                insert.setString(3, normalizeType(entry.type));
-                insert.setString(4, entry.date);
-                insert.setString(5, entry.subject);
-                insert.setString(6, entry.note);
-                insert.executeUpdate();
+            Connection c = getConnection(entry.username);
+            c.setAutoCommit(false);
+            long id;
+            try {
+                long version = bumpVersion(c, entry.username);
+                try (PreparedStatement insert = c.prepareStatement(
+                        "INSERT INTO entries (username, amount, type, date, subject, note, version, idem_key) VALUES (?, ?, ?, ?, ?, ?, ?, ?)",
+                        new String[] {"ID"})) {
+                    insert.setString(1, entry.username);
+                    insert.setDouble(2, entry.amount);
+                    insert.setString(3, normalizeType(entry.type));
+                    insert.setString(4, entry.date);
+                    insert.setString(5, entry.subject);
+                    insert.setString(6, entry.note);
+                    insert.setLong(7, version);
+                    insert.setString(8, Add.idemKey);
+                    insert.executeUpdate();
+                    try (ResultSet keys = insert.getGeneratedKeys()) {
+                        keys.next();
+                        id = keys.getLong(1);
+                    }
+                }
+                // 仍持有版本行锁，与同一用户的其他写入及预算的重新加载互斥
+                Add.budgetAlerts = budgets.added(c, entry.username, entry.subject, normalizeType(entry.type),
+                        entry.date, entry.amount);
+                subjects.added(entry.username, List.of(entry));
+                c.commit();
+                notifyChanged(entry.username, version);
+                analytics.observe(entry.username, entry.amount, entry.subject, LocalDate.now());
+            } catch (SQLException e) {
+                c.rollback();
+                budgets.invalidate(entry.username);
+                subjects.invalidate(entry.username);
+                Add.budgetAlerts = null;
+                if (e.getErrorCode() == 23505 && Add.idemKey != null) {
+                    Long existing = findByIdemKey(c, entry.username, Add.idemKey);
+                    if (existing != null) {
+                        IDEMPOTENCY_CACHE.put(entry.username, Add.idemKey, existing);
+                        return existing;
+                    }
+                }
+                throw e;
             }
-            return Boolean.TRUE;
+            if (Add.idemKey != null) {
+                IDEMPOTENCY_CACHE.put(entry.username, Add.idemKey, id);
+            }
+            return id;
         } finally {
             closeThreadConnection();
         }
     }
 
+    private static Long findByIdemKey(Connection c, String username, String idemKey) throws SQLException {
+        try (PreparedStatement query = c.prepareStatement(
+                "SELECT id FROM entries WHERE username = ? AND idem_key = ?")) {
+            query.setString(1, username);
+            query.setString(2, idemKey);
+            try (ResultSet rs = query.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : null;
+            }
+        }
+    }
+
     public Boolean solveRegister(registerrequest Register) throws SQLException {
         try {
-            Connection c = getConnection();
+            Connection c = getConnection(Register.username);
             try (PreparedStatement insert = c.prepareStatement(
                     "INSERT INTO users (username, password) VALUES (?, ?)")) {
                 insert.setString(1, Register.username);
@@ -130,23 +437,18 @@ public class sqloperation {
 
     public Boolean solveLogin(loginrequest Login) throws SQLException {
         try {
-            Connection c = getConnection();
+            Connection c = getConnection(Login.username);
             try (PreparedStatement query = c.prepareStatement("SELECT password FROM users WHERE username = ?")) {
                 query.setString(1, Login.username);
                 try (ResultSet rs = query.executeQuery()) {
                     if (rs.next()) {
                         String storedPassword = rs.getString(1);
                         boolean ok = storedPassword != null && storedPassword.equals(Login.password);
-                        if (ok) {
-                            LOGGER.info("登录成功: 用户名='" + Login.username + "'");
-                        } else {
-                            // 用户存在但密码不匹配
-                            LOGGER.info("登录失败: 密码错误, 用户名='" + Login.username + "'");
-                        }
+                        // 审计事件只放入异步日志的缓冲区，格式化和写文件在后台线程完成
+                        AsyncLog.audit("login", Login.username, ok ? "success" : "bad_password", 0);
                         return ok;
                     } else {
-                        // 用户名不存在
-                        LOGGER.info("登录失败: 用户名不存在, 用户名='" + Login.username + "'");
+                        AsyncLog.audit("login", Login.username, "no_such_user", 0);
                     }
                 }
             }
@@ -161,7 +463,7 @@ public class sqloperation {
      */
     public boolean userExists(String username) throws SQLException {
         try {
-            Connection c = getConnection();
+            Connection c = getConnection(username);
             try (PreparedStatement query = c.prepareStatement("SELECT 1 FROM users WHERE username = ?")) {
                 query.setString(1, username);
                 try (ResultSet rs = query.executeQuery()) {
@@ -176,13 +478,14 @@ public class sqloperation {
     public List<Entry> solveSearch(searchrequest Search) throws SQLException {
         List<Entry> results = new ArrayList<>();
         try {
-            Connection c = getConnection();
+            Connection c = getConnection(Search.username);
             
             // 构建动态SQL，在数据库层面进行过滤
             StringBuilder sql = new StringBuilder(
-                "SELECT id, username, amount, type, date, subject, note FROM entries WHERE username = ?");
+                "SELECT id, username, amount, type, date, subject, note FROM entries WHERE username = ?" + VISIBLE_ROWS);
             List<Object> parameters = new ArrayList<>();
             parameters.add(Search.username);
+            parameters.add(Search.username);
             
             if (Search.startDate != null && !Search.startDate.isEmpty()) {
                 sql.append(" AND date >= ?");
@@ -218,59 +521,670 @@ public class sqloperation {
                     }
                 }
             }
+            String startDate = Search.startDate == null || Search.startDate.isEmpty() ? null : Search.startDate;
+            String endDate = Search.endDate == null || Search.endDate.isEmpty() ? null : Search.endDate;
+            String type = Search.typeFilter == null || Search.typeFilter.isEmpty() ? null : normalizeType(Search.typeFilter);
+            // 与上面的 SQL 条件相同；日期范围与归档段不重叠时 mergeArchived 不会打开任何文件
+            mergeArchived(c, Search.username, startDate, endDate, entry ->
+                    (startDate == null || entry.date.compareTo(startDate) >= 0)
+                            && (endDate == null || entry.date.compareTo(endDate) <= 0)
+                            && (type == null || type.equals(normalizeType(entry.type)))
+                            && (Search.minAmount == null || entry.amount >= Search.minAmount)
+                            && (Search.maxAmount == null || entry.amount <= Search.maxAmount), results);
         } finally {
             closeThreadConnection();
         }
         return results;
     }
 
+    /**
+     * 把满足条件的归档记录并入按 id 排序的热数据结果。先查热数据再查归档：
+     * 两次读取之间被归档的记录会出现两次，按 id 去重，不会漏掉。
+     */
+    private void mergeArchived(Connection c, String username, String startDate, String endDate,
+            Predicate<Entry> filter, List<Entry> results) throws SQLException {
+        List<Entry> archived = ARCHIVE.read(c, username, startDate, endDate, filter);
+        if (archived.isEmpty()) {
+            return;
+        }
+        Set<Long> seen = new HashSet<>();
+        for (Entry entry : results) {
+            seen.add(entry.id);
+        }
+        for (Entry entry : archived) {
+            if (seen.add(entry.id)) {
+                results.add(entry);
+            }
+        }
+        results.sort(BY_ID);
+    }
+
     public List<Entry> solveList(String username) throws SQLException {
         List<Entry> results = new ArrayList<>();
         try {
-            Connection c = getConnection();
+            Connection c = getConnection(username);
             try (PreparedStatement query = c.prepareStatement(
-                    "SELECT id, username, amount, type, date, subject, note FROM entries WHERE username = ? ORDER BY id")) {
+                    "SELECT id, username, amount, type, date, subject, note FROM entries WHERE username = ?" + VISIBLE_ROWS + " ORDER BY id")) {
                 query.setString(1, username);
+                query.setString(2, username);
                 try (ResultSet rs = query.executeQuery()) {
                     while (rs.next()) {
                         results.add(mapEntry(rs));
                     }
                 }
             }
+            mergeArchived(c, username, null, null, entry -> true, results);
         } finally {
             closeThreadConnection();
         }
         return results;
     }
 
+    /**
+     * 把满足条件的记录逐条交给 visitor：先是归档记录（按日期），再是热数据（按 id），返回输出的记录数。
+     * 两部分在同一个快照中读取；热数据使用只进游标与惰性执行，逐行取出而不先物化整个结果，
+     * 内存占用与记录数无关。导出可能因客户端较慢持续很久，因此暂时取消语句超时。
+     */
+    public long solveExport(exportrequest Export, entryvisitor visitor) throws SQLException, IOException {
+        try {
+            Connection c = getConnection(Export.username);
+            c.setAutoCommit(false);
+            c.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+            try (Statement session = c.createStatement()) {
+                session.execute("SET LAZY_QUERY_EXECUTION TRUE");
+                session.execute("SET QUERY_TIMEOUT 0");
+            }
+            try {
+                String type = Export.typeFilter == null ? null : normalizeType(Export.typeFilter);
+                long[] rows = {0};
+                ARCHIVE.forEach(c, Export.username, Export.startDate, Export.endDate, entry ->
+                        (Export.startDate == null || entry.date.compareTo(Export.startDate) >= 0)
+                                && (Export.endDate == null || entry.date.compareTo(Export.endDate) <= 0)
+                                && (type == null || type.equals(normalizeType(entry.type))), entry -> {
+                    visitor.accept(entry);
+                    rows[0]++;
+                });
+                StringBuilder sql = new StringBuilder(
+                        "SELECT id, username, amount, type, date, subject, note FROM entries WHERE username = ?" + VISIBLE_ROWS);
+                List<String> parameters = new ArrayList<>();
+                parameters.add(Export.username);
+                parameters.add(Export.username);
+                if (Export.startDate != null) {
+                    sql.append(" AND date >= ?");
+                    parameters.add(Export.startDate);
+                }
+                if (Export.endDate != null) {
+                    sql.append(" AND date <= ?");
+                    parameters.add(Export.endDate);
+                }
+                if (type != null) {
+                    sql.append(" AND type = ?");
+                    parameters.add(type);
+                }
+                sql.append(" ORDER BY id");
+                try (PreparedStatement query = c.prepareStatement(sql.toString(),
+                        ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                    for (int i = 0; i < parameters.size(); i++) {
+                        query.setString(i + 1, parameters.get(i));
+                    }
+                    query.setFetchSize(EXPORT_FETCH_SIZE);
+                    try (ResultSet rs = query.executeQuery()) {
+                        while (rs.next()) {
+                            visitor.accept(mapEntry(rs));
+                            rows[0]++;
+                        }
+                    }
+                }
+                return rows[0];
+            } finally {
+                c.rollback();
+                try (Statement session = c.createStatement()) {
+                    session.execute("SET LAZY_QUERY_EXECUTION FALSE");
+                    session.execute("SET QUERY_TIMEOUT " + QUERY_TIMEOUT_MS);
+                }
+                c.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+            }
+        } finally {
+            closeThreadConnection();
+        }
+    }
+
     public Boolean solveDelete(deleterequest Delete) throws SQLException {
         try {
-            Connection c = getConnection();
-            try (PreparedStatement delete = c.prepareStatement(
-                    "DELETE FROM entries WHERE id = ? AND username = ?")) {
-                delete.setLong(1, Delete.entryId);
-                delete.setString(2, Delete.username);
-                int affected = delete.executeUpdate();
-                return affected > 0;
+            Connection c = getConnection(Delete.username);
+            c.setAutoCommit(false);
+            try {
+                long version = bumpVersion(c, Delete.username);
+                budgets.deleting(c, Delete.username, Delete.entryId);
+                subjects.deleting(c, Delete.username, Delete.entryId);
+                int affected;
+                try (PreparedStatement delete = c.prepareStatement(
+                        "DELETE FROM entries WHERE id = ? AND username = ?" + VISIBLE_ROWS)) {
+                    delete.setLong(1, Delete.entryId);
+                    delete.setString(2, Delete.username);
+                    delete.setString(3, Delete.username);
+                    affected = delete.executeUpdate();
+                }
+                if (affected == 0) {
+                    if (!ARCHIVE.contains(c, Delete.username, Delete.entryId)) {
+                        // 没有删除任何记录，版本号不变
+                        c.rollback();
+                        return false;
+                    }
+                    // 归档段不可修改，删除记在 archive_tombstones 中
+                    try (PreparedStatement archived = c.prepareStatement(
+                            "INSERT INTO archive_tombstones (username, id) VALUES (?, ?)")) {
+                        archived.setString(1, Delete.username);
+                        archived.setLong(2, Delete.entryId);
+                        archived.executeUpdate();
+                    }
+                }
+                try (PreparedStatement tombstone = c.prepareStatement(
+                        "MERGE INTO entry_tombstones (username, id, version) KEY (username, id) VALUES (?, ?, ?)")) {
+                    tombstone.setString(1, Delete.username);
+                    tombstone.setLong(2, Delete.entryId);
+                    tombstone.setLong(3, version);
+                    tombstone.executeUpdate();
+                }
+                c.commit();
+                notifyChanged(Delete.username, version);
+                AsyncLog.audit("delete", Delete.username, "ok", Delete.entryId);
+                return true;
+            } catch (SQLException e) {
+                c.rollback();
+                budgets.invalidate(Delete.username);
+                subjects.invalidate(Delete.username);
+                throw e;
+            }
+        } finally {
+            closeThreadConnection();
+        }
+    }
+
+    /**
+     * 设置 subject 在一个周期内的支出上限，limit 不大于 0 时删除该预算。返回设置后本周期的使用情况，
+     * 删除时返回 null。
+     */
+    public budgettracker.usage solveSetBudget(budgetrequest Budget) throws SQLException {
+        try {
+            Connection c = getConnection(Budget.username);
+            c.setAutoCommit(false);
+            try {
+                // 锁住版本行（不推进版本号，记录没有变化），重新加载时不会与写入交错
+                archiver.lockUser(c, Budget.username);
+                String period = Budget.period.label();
+                try (PreparedStatement change = c.prepareStatement(Budget.limit > 0
+                        ? "MERGE INTO budgets (username, subject, period, limit_amount) KEY (username, subject, period) VALUES (?, ?, ?, ?)"
+                        : "DELETE FROM budgets WHERE username = ? AND subject = ? AND period = ?")) {
+                    change.setString(1, Budget.username);
+                    change.setString(2, Budget.subject);
+                    change.setString(3, period);
+                    if (Budget.limit > 0) {
+                        change.setDouble(4, Budget.limit);
+                    }
+                    change.executeUpdate();
+                }
+                budgets.reload(c, Budget.username);
+                c.commit();
+            } catch (SQLException e) {
+                c.rollback();
+                budgets.invalidate(Budget.username);
+                throw e;
+            }
+            for (budgettracker.usage usage : budgets.usages(c, Budget.username, LocalDate.now())) {
+                if (usage.subject.equals(Budget.subject) && usage.period == Budget.period) {
+                    return usage;
+                }
+            }
+            return null;
+        } finally {
+            closeThreadConnection();
+        }
+    }
+
+    /**
+     * 该用户全部预算在当前周期的使用情况，按 subject 排序，只读内存中的合计。
+     */
+    public List<budgettracker.usage> solveListBudgets(String username) throws SQLException {
+        try {
+            return budgets.usages(getConnection(username), username, LocalDate.now());
+        } finally {
+            closeThreadConnection();
+        }
+    }
+
+    /**
+     * 以 prefix 开头（不区分大小写）的常用 subject，最多 limit 个。索引已加载时只读内存，
+     * 否则在版本行锁下加载该用户的索引，之后的联想不再访问数据库。
+     */
+    public List<subjectindex.suggestion> solveSuggest(String username, String prefix, int limit) throws SQLException {
+        List<subjectindex.suggestion> cached = subjects.suggest(username, prefix, limit);
+        if (cached != null) {
+            return cached;
+        }
+        try {
+            Connection c = getConnection(username);
+            c.setAutoCommit(false);
+            try {
+                // 与写入互斥：加载期间不会有未提交的记录，之后的写入都能看到已安装的索引
+                archiver.lockUser(c, username);
+                List<subjectindex.suggestion> loaded = subjects.load(c, username, prefix, limit);
+                c.commit();
+                return loaded;
+            } catch (SQLException e) {
+                c.rollback();
+                subjects.invalidate(username);
+                throw e;
+            }
+        } finally {
+            closeThreadConnection();
+        }
+    }
+
+    /**
+     * 保存一个周期模板并返回其 ID，第一次发生在 startDate，由调度器在低峰时段生成记录。
+     */
+    public long solveAddRecurring(recurringrequest Recurring) throws SQLException {
+        try {
+            Connection c = getConnection(Recurring.username);
+            try (PreparedStatement insert = c.prepareStatement(
+                    "INSERT INTO recurring (username, amount, type, subject, note, frequency, start_date, end_date, next_index, next_date)"
+                            + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, 0, ?)",
+                    new String[] {"ID"})) {
+                insert.setString(1, Recurring.username);
+                insert.setDouble(2, Recurring.amount);
+                insert.setString(3, normalizeType(Recurring.type));
+                insert.setString(4, Recurring.subject);
+                insert.setString(5, Recurring.note);
+                insert.setString(6, Recurring.frequency);
+                insert.setString(7, Recurring.startDate.toString());
+                insert.setString(8, Recurring.endDate == null ? null : Recurring.endDate.toString());
+                insert.setString(9, Recurring.startDate.toString());
+                insert.executeUpdate();
+                try (ResultSet keys = insert.getGeneratedKeys()) {
+                    keys.next();
+                    return keys.getLong(1);
+                }
+            }
+        } finally {
+            closeThreadConnection();
+        }
+    }
+
+    /**
+     * 该用户尚未结束的周期模板，按下一次发生的日期排序。
+     */
+    public List<recurringscheduler.template> solveListRecurring(String username) throws SQLException {
+        try {
+            Connection c = getConnection(username);
+            try (PreparedStatement query = c.prepareStatement(
+                    "SELECT " + RECURRING_COLUMNS + " FROM recurring WHERE username = ? ORDER BY next_date, id")) {
+                query.setString(1, username);
+                return readTemplates(query);
+            }
+        } finally {
+            closeThreadConnection();
+        }
+    }
+
+    /**
+     * 删除周期模板，已生成的记录保留。
+     */
+    public Boolean solveDeleteRecurring(String username, long id) throws SQLException {
+        try {
+            Connection c = getConnection(username);
+            try (PreparedStatement delete = c.prepareStatement("DELETE FROM recurring WHERE id = ? AND username = ?")) {
+                delete.setLong(1, id);
+                delete.setString(2, username);
+                return delete.executeUpdate() > 0;
             }
         } finally {
             closeThreadConnection();
         }
     }
 
+    private static final String RECURRING_COLUMNS =
+            "id, username, amount, type, subject, note, frequency, start_date, end_date, next_index";
+
+    private static List<recurringscheduler.template> readTemplates(PreparedStatement query) throws SQLException {
+        List<recurringscheduler.template> templates = new ArrayList<>();
+        try (ResultSet rs = query.executeQuery()) {
+            while (rs.next()) {
+                String endDate = rs.getString(9);
+                templates.add(new recurringscheduler.template(rs.getLong(1), rs.getString(2), rs.getDouble(3),
+                        rs.getString(4), rs.getString(5), rs.getString(6), rs.getString(7),
+                        LocalDate.parse(rs.getString(8)), endDate == null ? null : LocalDate.parse(endDate), rs.getLong(10)));
+            }
+        }
+        return templates;
+    }
+
+    /**
+     * 在一个事务中生成该分片截至 today 的到期发生，最多 batchRows 条，返回生成的记录数。
+     * 每个用户推进一次版本号并批量插入；模板按 next_index 条件推进，另一个实例已经处理过时整批回滚。
+     */
+    int materialiseRecurring(int shard, LocalDate today, int batchRows) throws SQLException {
+        List<recurringscheduler.template> due;
+        // 按用户名排序加锁，多个实例同时运行时不会互相等待成环
+        TreeMap<String, List<Entry>> rows = new TreeMap<>();
+        TreeMap<String, List<String>> idemKeys = new TreeMap<>();
+        try (Connection c = router().connection(shard)) {
+            c.setAutoCommit(false);
+            try {
+                try (PreparedStatement query = c.prepareStatement("SELECT " + RECURRING_COLUMNS
+                        + " FROM recurring WHERE next_date <= ? ORDER BY username, id LIMIT ?")) {
+                    query.setString(1, today.toString());
+                    query.setInt(2, batchRows);
+                    due = readTemplates(query);
+                }
+                if (due.isEmpty()) {
+                    c.rollback();
+                    return 0;
+                }
+                int remaining = batchRows;
+                int created = 0;
+                try (PreparedStatement advance = c.prepareStatement(
+                        "UPDATE recurring SET next_index = ?, next_date = ? WHERE id = ? AND next_index = ?");
+                     PreparedStatement finish = c.prepareStatement(
+                        "DELETE FROM recurring WHERE id = ? AND next_index = ?")) {
+                    for (recurringscheduler.template t : due) {
+                        long index = t.nextIndex;
+                        while (remaining > 0 && !t.endedAt(index) && !t.dateAt(index).isAfter(today)) {
+                            LocalDate date = t.dateAt(index);
+                            rows.computeIfAbsent(t.username, u -> new ArrayList<>())
+                                    .add(new Entry(t.username, t.amount, t.type, date.toString(), t.subject, t.note));
+                            idemKeys.computeIfAbsent(t.username, u -> new ArrayList<>()).add(t.idemKey(date));
+                            index++;
+                            remaining--;
+                        }
+                        int updated;
+                        if (t.endedAt(index)) {
+                            finish.setLong(1, t.id);
+                            finish.setLong(2, t.nextIndex);
+                            updated = finish.executeUpdate();
+                        } else {
+                            advance.setLong(1, index);
+                            advance.setString(2, t.dateAt(index).toString());
+                            advance.setLong(3, t.id);
+                            advance.setLong(4, t.nextIndex);
+                            updated = advance.executeUpdate();
+                        }
+                        if (updated != 1) {
+                            c.rollback();
+                            return 0;
+                        }
+                    }
+                }
+                Map<String, Long> versions = new HashMap<>();
+                for (Map.Entry<String, List<Entry>> user : rows.entrySet()) {
+                    String username = user.getKey();
+                    long version = bumpVersion(c, username);
+                    versions.put(username, version);
+                    try (PreparedStatement insert = c.prepareStatement(
+                            "INSERT INTO entries (username, amount, type, date, subject, note, version, idem_key) VALUES (?, ?, ?, ?, ?, ?, ?, ?)")) {
+                        List<String> keys = idemKeys.get(username);
+                        for (int i = 0; i < user.getValue().size(); i++) {
+                            Entry entry = user.getValue().get(i);
+                            insert.setString(1, username);
+                            insert.setDouble(2, entry.amount);
+                            insert.setString(3, entry.type);
+                            insert.setString(4, entry.date);
+                            insert.setString(5, entry.subject);
+                            insert.setString(6, entry.note);
+                            insert.setLong(7, version);
+                            insert.setString(8, keys.get(i));
+                            insert.addBatch();
+                        }
+                        insert.executeBatch();
+                    }
+                    budgets.added(c, username, user.getValue());
+                    subjects.added(username, user.getValue());
+                    created += user.getValue().size();
+                }
+                c.commit();
+                for (Map.Entry<String, List<Entry>> user : rows.entrySet()) {
+                    notifyChanged(user.getKey(), versions.get(user.getKey()));
+                    for (Entry entry : user.getValue()) {
+                        analytics.observe(entry.username, entry.amount, entry.subject, LocalDate.now());
+                    }
+                }
+                return created;
+            } catch (SQLException e) {
+                c.rollback();
+                rows.keySet().forEach(budgets::invalidate);
+                rows.keySet().forEach(subjects::invalidate);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * 清空用户的全部记录。事务内只推进 cleared_below 水位线，记录立即不可见；
+     * 实际删除由 clearpurger 在后台分批完成，进度通过 solveClearStatus 查询。返回被清空的记录数。
+     */
     public int solveClear(String username) throws SQLException {
         try {
-            Connection c = getConnection();
-            try (PreparedStatement clear = c.prepareStatement(
-                    "DELETE FROM entries WHERE username = ?")) {
-                clear.setString(1, username);
-                return clear.executeUpdate();
+            Connection c = getConnection(username);
+            c.setAutoCommit(false);
+            try {
+                // 版本行锁保证同一用户的写入已全部提交，水位线之上只会出现之后新增的记录
+                long version = bumpVersion(c, username);
+                int hotRemoved;
+                long watermark;
+                try (PreparedStatement query = c.prepareStatement(
+                        "SELECT COUNT(*), COALESCE(MAX(id), 0) FROM entries WHERE username = ?" + VISIBLE_ROWS)) {
+                    query.setString(1, username);
+                    query.setString(2, username);
+                    try (ResultSet rs = query.executeQuery()) {
+                        rs.next();
+                        hotRemoved = rs.getInt(1);
+                        watermark = rs.getLong(2);
+                    }
+                }
+                // 归档段在同一事务中注销，提交后删除文件
+                int removed = hotRemoved + (int) ARCHIVE.count(c, username);
+                List<String> archivedSegments = ARCHIVE.unregisterAll(c, username);
+                // 清空之后旧墓碑不再需要：版本早于 cleared_version 的客户端一律整体重置
+                try (PreparedStatement tombstones = c.prepareStatement(
+                        "DELETE FROM entry_tombstones WHERE username = ?")) {
+                    tombstones.setString(1, username);
+                    tombstones.executeUpdate();
+                }
+                try (PreparedStatement mark = c.prepareStatement(hotRemoved > 0
+                        ? "UPDATE user_versions SET cleared_version = ?, cleared_below = ?, purge_pending = TRUE WHERE username = ?"
+                        : "UPDATE user_versions SET cleared_version = ? WHERE username = ?")) {
+                    mark.setLong(1, version);
+                    if (hotRemoved > 0) {
+                        mark.setLong(2, watermark);
+                        mark.setString(3, username);
+                    } else {
+                        mark.setString(2, username);
+                    }
+                    mark.executeUpdate();
+                }
+                c.commit();
+                notifyChanged(username, version);
+                // 提交之后再丢弃，之后的加载只会看到清空后的数据
+                budgets.invalidate(username);
+                subjects.invalidate(username);
+                ARCHIVE.deleteFiles(username, archivedSegments);
+                if (hotRemoved > 0 && purger != null) {
+                    purger.submit(username);
+                }
+                AsyncLog.audit("clear", username, "ok", removed);
+                return removed;
+            } catch (SQLException e) {
+                c.rollback();
+                throw e;
+            }
+        } finally {
+            closeThreadConnection();
+        }
+    }
+
+    /**
+     * 后台删除的进度：queued、running:已删除/总数 或 done（没有待删除的记录）。
+     */
+    public String solveClearStatus(String username) throws SQLException {
+        String inMemory = purger == null ? null : purger.status(username);
+        if (inMemory != null) {
+            return inMemory;
+        }
+        try {
+            // 任务可能在另一个实例上执行，或本实例重启后尚未开始
+            Connection c = getConnection(username);
+            try (PreparedStatement query = c.prepareStatement(
+                    "SELECT purge_pending FROM user_versions WHERE username = ?")) {
+                query.setString(1, username);
+                try (ResultSet rs = query.executeQuery()) {
+                    return rs.next() && rs.getBoolean(1) ? "queued" : "done";
+                }
+            }
+        } finally {
+            closeThreadConnection();
+        }
+    }
+
+    /**
+     * 返回客户端版本 sinceVersion 之后的变更。版本未变化时只读内存缓存，不访问数据库；
+     * sinceVersion 为 0、早于最近一次清空或大于当前版本时返回完整列表并要求客户端重置。
+     */
+    public syncresult solveSync(syncrequest Sync) throws SQLException {
+        cachedversion cached = VERSION_CACHE.get(Sync.username);
+        if (cached != null && cached.version == Sync.sinceVersion && Sync.sinceVersion > 0
+                && System.nanoTime() - cached.observedNanos < VERSION_CACHE_TTL_NANOS) {
+            return syncresult.notModified(cached.version);
+        }
+        try {
+            Connection c = getConnection(Sync.username);
+            // 在同一个快照中读取版本与变更，避免读到一半的提交
+            c.setAutoCommit(false);
+            c.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+            try {
+                long version = 0;
+                long clearedVersion = 0;
+                try (PreparedStatement query = c.prepareStatement(
+                        "SELECT version, cleared_version FROM user_versions WHERE username = ?")) {
+                    query.setString(1, Sync.username);
+                    try (ResultSet rs = query.executeQuery()) {
+                        if (rs.next()) {
+                            version = rs.getLong(1);
+                            clearedVersion = rs.getLong(2);
+                        }
+                    }
+                }
+                rememberVersion(Sync.username, version);
+                if (Sync.sinceVersion == version && Sync.sinceVersion > 0) {
+                    return syncresult.notModified(version);
+                }
+                if (Sync.sinceVersion <= 0 || Sync.sinceVersion < clearedVersion || Sync.sinceVersion > version) {
+                    List<Entry> all = new ArrayList<>();
+                    try (PreparedStatement query = c.prepareStatement(
+                            "SELECT id, username, amount, type, date, subject, note FROM entries WHERE username = ?" + VISIBLE_ROWS + " ORDER BY id")) {
+                        query.setString(1, Sync.username);
+                        query.setString(2, Sync.username);
+                        try (ResultSet rs = query.executeQuery()) {
+                            while (rs.next()) {
+                                all.add(mapEntry(rs));
+                            }
+                        }
+                    }
+                    mergeArchived(c, Sync.username, null, null, entry -> true, all);
+                    return new syncresult(version, false, true, all, List.of());
+                }
+                List<Entry> inserts = new ArrayList<>();
+                try (PreparedStatement query = c.prepareStatement(
+                        "SELECT id, username, amount, type, date, subject, note FROM entries WHERE username = ? AND version > ? ORDER BY id")) {
+                    query.setString(1, Sync.username);
+                    query.setLong(2, Sync.sinceVersion);
+                    try (ResultSet rs = query.executeQuery()) {
+                        while (rs.next()) {
+                            inserts.add(mapEntry(rs));
+                        }
+                    }
+                }
+                List<Long> deletedIds = new ArrayList<>();
+                try (PreparedStatement query = c.prepareStatement(
+                        "SELECT id FROM entry_tombstones WHERE username = ? AND version > ? ORDER BY id")) {
+                    query.setString(1, Sync.username);
+                    query.setLong(2, Sync.sinceVersion);
+                    try (ResultSet rs = query.executeQuery()) {
+                        while (rs.next()) {
+                            deletedIds.add(rs.getLong(1));
+                        }
+                    }
+                }
+                return new syncresult(version, false, false, inserts, deletedIds);
+            } finally {
+                c.rollback();
+                c.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
             }
         } finally {
             closeThreadConnection();
         }
     }
 
+    /**
+     * 在当前事务中把用户的变更版本加一并返回新版本。行锁持续到事务结束，
+     * 因此同一用户的写入按版本号顺序提交。
+     */
+    private long bumpVersion(Connection c, String username) throws SQLException {
+        for (int attempt = 0; attempt < 2; attempt++) {
+            try (PreparedStatement bump = c.prepareStatement(
+                    "SELECT version FROM FINAL TABLE (UPDATE user_versions SET version = version + 1 WHERE username = ?)")) {
+                bump.setString(1, username);
+                try (ResultSet rs = bump.executeQuery()) {
+                    if (rs.next()) {
+                        return rs.getLong(1);
+                    }
+                }
+            }
+            try (PreparedStatement insert = c.prepareStatement(
+                    "INSERT INTO user_versions (username, version, cleared_version) VALUES (?, 1, 0)")) {
+                insert.setString(1, username);
+                insert.executeUpdate();
+                return 1L;
+            } catch (SQLException e) {
+                // 另一个事务刚刚插入了该用户的版本行，重新走一次 UPDATE
+                if (e.getErrorCode() != 23505) {
+                    throw e;
+                }
+            }
+        }
+        throw new SQLException("无法更新用户版本: " + username);
+    }
+
+    private static void rememberVersion(String username, long version) {
+        VERSION_CACHE.merge(username, new cachedversion(version),
+                (old, fresh) -> fresh.version >= old.version ? fresh : old);
+    }
+
+    /**
+     * 其他实例提交了该用户的变更（来自失效广播），只更新本地版本缓存，不再通知监听器。
+     */
+    public void observeRemoteChange(String username, long version) {
+        rememberVersion(username, version);
+        budgets.invalidate(username);
+        subjects.invalidate(username);
+    }
+
+    private static final class cachedversion {
+        final long version;
+        final long observedNanos = System.nanoTime();
+
+        cachedversion(long version) {
+            this.version = version;
+        }
+    }
+
+    private void notifyChanged(String username, long version) {
+        rememberVersion(username, version);
+        changelistener listener = changeListener;
+        if (listener != null) {
+            listener.changed(username, version);
+        }
+    }
+
     private Entry mapEntry(ResultSet rs) throws SQLException {
         Long id = rs.getObject("id", Long.class);
         return new Entry(
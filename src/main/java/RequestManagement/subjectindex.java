@@ -0,0 +1,229 @@
+package RequestManagement;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+import sharedmodel.Entry;
+
+/**
+ * 按用户的 subject 前缀索引，回答输入联想（suggest）时不访问数据库。每个用户一棵按小写 subject
+ * 排序的 TreeMap，记录出现次数与最常用的写法；前缀查找是一次 tailMap 加顺序扫描，按次数取前几个。
+ *
+ * 用户的索引在第一次联想时加载（在用户版本行锁下读取，与写入互斥），之后在 add/delete 事务内、
+ * 持有版本行锁时增量维护；没有加载的用户写入时不做任何事。事务回滚、清空或其他实例修改了数据时
+ * 调用 invalidate，下次联想时重新加载。与 budgettracker 一样，多实例时索引只在 ttlNanos 内可信。
+ *
+ * 内存有两层上限：最多 maxUsers 个用户（按最近使用淘汰），每个用户最多 maxSubjects 个 subject
+ * （加载时只取最常用的，之后新增超出上限时淘汰次数最少的）。只统计热数据，归档记录不计入。
+ */
+final class subjectindex {
+
+    /**
+     * 一条联想结果。
+     */
+    static final class suggestion {
+        final String subject;
+        final int count;
+
+        suggestion(String subject, int count) {
+            this.subject = subject;
+            this.count = count;
+        }
+    }
+
+    private static final Comparator<suggestion> RANKING = Comparator.<suggestion>comparingInt(s -> -s.count)
+            .thenComparing(s -> s.subject);
+
+    private static final class bucket {
+        // 第一次见到（加载时为最常用）的写法
+        final String subject;
+        int count;
+
+        bucket(String subject, int count) {
+            this.subject = subject;
+            this.count = count;
+        }
+    }
+
+    /**
+     * 一个用户的索引，读写都在该对象上加锁。
+     */
+    private static final class userindex {
+        // 小写 subject → 次数，大小写不同的写法合并计数
+        final TreeMap<String, bucket> subjects = new TreeMap<>();
+        final long loadedNanos = System.nanoTime();
+    }
+
+    private final int maxSubjects;
+    private final long ttlNanos;
+    // 按访问顺序排列，超过 maxUsers 时淘汰最久未用的用户；所有访问都在该对象上加锁
+    private final LinkedHashMap<String, userindex> users;
+
+    subjectindex(int maxUsers, int maxSubjects, long ttlNanos) {
+        this.maxSubjects = Math.max(1, maxSubjects);
+        this.ttlNanos = ttlNanos;
+        this.users = new LinkedHashMap<String, userindex>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, userindex> eldest) {
+                return size() > Math.max(1, maxUsers);
+            }
+        };
+    }
+
+    private userindex current(String username) {
+        synchronized (users) {
+            userindex index = users.get(username);
+            if (index != null && System.nanoTime() - index.loadedNanos >= ttlNanos) {
+                users.remove(username);
+                return null;
+            }
+            return index;
+        }
+    }
+
+    static String key(String subject) {
+        return subject.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * 以 prefix 开头（不区分大小写）的 subject，按次数从多到少、再按名称排列，最多 limit 个。
+     * 该用户的索引尚未加载时返回 null，由调用方通过 load 加载。
+     */
+    List<suggestion> suggest(String username, String prefix, int limit) {
+        userindex index = current(username);
+        return index == null ? null : suggest(index, prefix, limit);
+    }
+
+    private static List<suggestion> suggest(userindex index, String prefix, int limit) {
+        String start = key(prefix);
+        // 小顶堆只保留当前最好的 limit 个
+        PriorityQueue<suggestion> best = new PriorityQueue<>(limit + 1, RANKING.reversed());
+        synchronized (index) {
+            for (Map.Entry<String, bucket> entry : index.subjects.tailMap(start, true).entrySet()) {
+                if (!entry.getKey().startsWith(start)) {
+                    break;
+                }
+                best.add(new suggestion(entry.getValue().subject, entry.getValue().count));
+                if (best.size() > limit) {
+                    best.poll();
+                }
+            }
+        }
+        List<suggestion> result = new ArrayList<>(best);
+        result.sort(RANKING);
+        return result;
+    }
+
+    /**
+     * 在调用方持有用户版本行锁的事务中从数据库加载该用户的索引并安装，然后回答这次联想。
+     */
+    List<suggestion> load(Connection c, String username, String prefix, int limit) throws SQLException {
+        userindex index = new userindex();
+        try (PreparedStatement query = c.prepareStatement(
+                "SELECT subject, COUNT(*) FROM entries WHERE username = ?" + sqloperation.VISIBLE_ROWS
+                        + " AND subject IS NOT NULL AND subject <> '' GROUP BY subject ORDER BY COUNT(*) DESC LIMIT ?")) {
+            query.setString(1, username);
+            query.setString(2, username);
+            query.setInt(3, maxSubjects);
+            try (ResultSet rs = query.executeQuery()) {
+                while (rs.next()) {
+                    String subject = rs.getString(1);
+                    int count = rs.getInt(2);
+                    bucket existing = index.subjects.putIfAbsent(key(subject), new bucket(subject, count));
+                    if (existing != null) {
+                        existing.count += count;
+                    }
+                }
+            }
+        }
+        synchronized (users) {
+            users.put(username, index);
+        }
+        return suggest(index, prefix, limit);
+    }
+
+    /**
+     * 在写入事务中、插入之后调用；该用户的索引未加载时什么也不做。
+     */
+    void added(String username, List<Entry> rows) {
+        userindex index = current(username);
+        if (index == null) {
+            return;
+        }
+        synchronized (index) {
+            for (Entry row : rows) {
+                if (row.subject == null || row.subject.isEmpty()) {
+                    continue;
+                }
+                bucket existing = index.subjects.get(key(row.subject));
+                if (existing != null) {
+                    existing.count++;
+                    continue;
+                }
+                if (index.subjects.size() >= maxSubjects) {
+                    evictLeastUsed(index);
+                }
+                index.subjects.put(key(row.subject), new bucket(row.subject, 1));
+            }
+        }
+    }
+
+    private static void evictLeastUsed(userindex index) {
+        String victim = null;
+        int fewest = Integer.MAX_VALUE;
+        for (Map.Entry<String, bucket> entry : index.subjects.entrySet()) {
+            if (entry.getValue().count < fewest) {
+                fewest = entry.getValue().count;
+                victim = entry.getKey();
+            }
+        }
+        index.subjects.remove(victim);
+    }
+
+    /**
+     * 在 delete 事务中、删除之前调用：该用户的索引已加载时查出这条记录的 subject 并减少计数。
+     */
+    void deleting(Connection c, String username, long id) throws SQLException {
+        userindex index = current(username);
+        if (index == null) {
+            return;
+        }
+        try (PreparedStatement query = c.prepareStatement(
+                "SELECT subject FROM entries WHERE id = ? AND username = ?" + sqloperation.VISIBLE_ROWS)) {
+            query.setLong(1, id);
+            query.setString(2, username);
+            query.setString(3, username);
+            try (ResultSet rs = query.executeQuery()) {
+                if (!rs.next() || rs.getString(1) == null) {
+                    return;
+                }
+                String key = key(rs.getString(1));
+                synchronized (index) {
+                    bucket existing = index.subjects.get(key);
+                    if (existing != null && --existing.count <= 0) {
+                        index.subjects.remove(key);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 丢弃该用户的索引（写入回滚、清空、其他实例的修改），下次联想时重新加载。
+     */
+    void invalidate(String username) {
+        synchronized (users) {
+            users.remove(username);
+        }
+    }
+}
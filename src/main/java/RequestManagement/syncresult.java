@@ -0,0 +1,29 @@
+package RequestManagement;
+
+import java.util.List;
+
+import sharedmodel.Entry;
+
+/**
+ * sync 请求的结果：客户端版本之后新增的记录和被删除的记录 ID。
+ * reset 为 true 时 inserts 是完整列表，客户端应丢弃本地数据。
+ */
+public class syncresult {
+    public final long version;
+    public final boolean notModified;
+    public final boolean reset;
+    public final List<Entry> inserts;
+    public final List<Long> deletedIds;
+
+    public syncresult(long version, boolean notModified, boolean reset, List<Entry> inserts, List<Long> deletedIds) {
+        this.version = version;
+        this.notModified = notModified;
+        this.reset = reset;
+        this.inserts = inserts;
+        this.deletedIds = deletedIds;
+    }
+
+    public static syncresult notModified(long version) {
+        return new syncresult(version, true, false, List.of(), List.of());
+    }
+}
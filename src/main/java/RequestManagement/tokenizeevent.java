@@ -0,0 +1,27 @@
+package RequestManagement;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * parser.parseRequest 拆分请求行、取出 username 与 action 的耗时。
+ */
+@Name("acounting_system.Tokenize")
+@Label("Request Tokenize")
+@Category({"Accounting", "Request"})
+@StackTrace(false)
+@Description("Splitting a request line into fields")
+class tokenizeevent extends Event {
+    @Label("Action")
+    String action;
+
+    @Label("Username Hash")
+    int userHash;
+
+    @Label("Fields")
+    int fields;
+}
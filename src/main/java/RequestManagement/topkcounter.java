@@ -0,0 +1,129 @@
+package RequestManagement;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 出现次数最多的 k 个值：计数由 count-min 摘要（depth 行 × width 列）估计，只会高估不会低估；
+ * 另外只保留当前估计值最大的 k 个候选，内存与不同值的个数无关。合并时计数表逐格相加，再从两边的候选中重选前 k 个。
+ * 非线程安全。
+ */
+final class topkcounter {
+    private final int depth;
+    private final int width;
+    private final int k;
+    private final long[] table;
+    private final HashMap<String, Long> candidates = new HashMap<>();
+
+    topkcounter(int depth, int width, int k) {
+        if (depth <= 0 || width <= 0 || k <= 0) {
+            throw new IllegalArgumentException("depth, width and k must be positive");
+        }
+        this.depth = depth;
+        this.width = width;
+        this.k = k;
+        this.table = new long[depth * width];
+    }
+
+    void add(String value) {
+        long hash = hyperloglog.hash64(value);
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            int cell = row * width + column(hash, row);
+            estimate = Math.min(estimate, ++table[cell]);
+        }
+        offer(value, estimate);
+    }
+
+    long estimate(String value) {
+        long hash = hyperloglog.hash64(value);
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, table[row * width + column(hash, row)]);
+        }
+        return estimate;
+    }
+
+    private int column(long hash, int row) {
+        return (int) Long.remainderUnsigned(hyperloglog.mix(hash + row * 0x9e3779b97f4a7c15L), width);
+    }
+
+    private void offer(String value, long estimate) {
+        if (candidates.containsKey(value) || candidates.size() < k) {
+            candidates.put(value, estimate);
+            return;
+        }
+        // k 很小，线性找最小值比维护堆更简单
+        String weakest = null;
+        long weakestCount = Long.MAX_VALUE;
+        for (Map.Entry<String, Long> candidate : candidates.entrySet()) {
+            if (candidate.getValue() < weakestCount) {
+                weakest = candidate.getKey();
+                weakestCount = candidate.getValue();
+            }
+        }
+        if (estimate > weakestCount) {
+            candidates.remove(weakest);
+            candidates.put(value, estimate);
+        }
+    }
+
+    int k() {
+        return k;
+    }
+
+    /**
+     * 按估计次数从大到小排列的候选。
+     */
+    List<Map.Entry<String, Long>> top() {
+        List<Map.Entry<String, Long>> sorted = new ArrayList<>(candidates.entrySet());
+        sorted.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+        return sorted;
+    }
+
+    void merge(topkcounter other) {
+        if (other.depth != depth || other.width != width) {
+            throw new IllegalArgumentException("cannot merge sketches with different dimensions");
+        }
+        for (int i = 0; i < table.length; i++) {
+            table[i] += other.table[i];
+        }
+        List<String> keys = new ArrayList<>(candidates.keySet());
+        keys.addAll(other.candidates.keySet());
+        candidates.clear();
+        for (String key : keys) {
+            offer(key, estimate(key));
+        }
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(depth);
+        out.writeInt(width);
+        out.writeInt(k);
+        for (long cell : table) {
+            out.writeLong(cell);
+        }
+        out.writeInt(candidates.size());
+        for (Map.Entry<String, Long> candidate : candidates.entrySet()) {
+            out.writeUTF(candidate.getKey());
+            out.writeLong(candidate.getValue());
+        }
+    }
+
+    static topkcounter readFrom(DataInputStream in) throws IOException {
+        topkcounter counter = new topkcounter(in.readInt(), in.readInt(), in.readInt());
+        for (int i = 0; i < counter.table.length; i++) {
+            counter.table[i] = in.readLong();
+        }
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            counter.candidates.put(in.readUTF(), in.readLong());
+        }
+        return counter;
+    }
+}
@@ -0,0 +1,35 @@
+package ResultManagement;
+
+import java.io.IOException;
+
+/**
+ * 流式回复的输出端，由传输层实现：TCP 写成 @chunk 帧，HTTP 写成分块传输的响应体。
+ * 调用顺序为 begin、若干次 chunk、end（出错时为 abort）；在 begin 之前失败时只调用一次 reject。
+ * 写入会阻塞直到对端接收，慢客户端因此自然限速，服务端不积压数据。
+ */
+public interface ChunkSink {
+    /**
+     * 开始输出，contentType 例如 text/csv。
+     */
+    void begin(String action, String contentType) throws IOException;
+
+    /**
+     * 一段数据，包含 lines 行，每行以换行结尾。
+     */
+    void chunk(int lines, CharSequence data) throws IOException;
+
+    /**
+     * 正常结束，rows 为输出的记录数。
+     */
+    void end(long rows) throws IOException;
+
+    /**
+     * begin 之后出错时中止输出，对端据此知道数据不完整。
+     */
+    void abort(String message) throws IOException;
+
+    /**
+     * 请求无效或无法开始时写一条普通回复（action~0~原因~null）。
+     */
+    void reject(String reply) throws IOException;
+}
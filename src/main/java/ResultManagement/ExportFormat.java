@@ -0,0 +1,137 @@
+package ResultManagement;
+
+import sharedmodel.Entry;
+
+/**
+ * export 的输出格式。每条记录一行，追加到调用方复用的 StringBuilder 中，不产生中间字符串。
+ */
+public enum ExportFormat {
+    CSV("text/csv; charset=utf-8") {
+        @Override
+        public String header() {
+            return "id,amount,type,date,subject,note";
+        }
+
+        @Override
+        public void appendRow(StringBuilder out, Entry entry) {
+            out.append(entry.id).append(',').append(entry.amount).append(',');
+            appendCsv(out, entry.type);
+            out.append(',');
+            appendCsv(out, entry.date);
+            out.append(',');
+            appendCsv(out, entry.subject);
+            out.append(',');
+            appendCsv(out, entry.note);
+            out.append('\n');
+        }
+    },
+    JSONL("application/x-ndjson; charset=utf-8") {
+        @Override
+        public String header() {
+            return null;
+        }
+
+        @Override
+        public void appendRow(StringBuilder out, Entry entry) {
+            out.append("{\"id\":").append(entry.id).append(",\"amount\":").append(entry.amount).append(",\"type\":");
+            appendJson(out, entry.type);
+            out.append(",\"date\":");
+            appendJson(out, entry.date);
+            out.append(",\"subject\":");
+            appendJson(out, entry.subject);
+            out.append(",\"note\":");
+            appendJson(out, entry.note);
+            out.append("}\n");
+        }
+    };
+
+    public final String contentType;
+
+    ExportFormat(String contentType) {
+        this.contentType = contentType;
+    }
+
+    /**
+     * 首行表头，没有表头时返回 null。
+     */
+    public abstract String header();
+
+    public abstract void appendRow(StringBuilder out, Entry entry);
+
+    /**
+     * csv 或 jsonl（不区分大小写），其他值返回 null。
+     */
+    public static ExportFormat parse(String name) {
+        if (name == null) {
+            return null;
+        }
+        switch (name.trim().toLowerCase()) {
+            case "csv":
+                return CSV;
+            case "jsonl":
+            case "json":
+                return JSONL;
+            default:
+                return null;
+        }
+    }
+
+    static void appendCsv(StringBuilder out, String value) {
+        if (value == null) {
+            return;
+        }
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            out.append(value);
+            return;
+        }
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                out.append('"');
+            }
+            out.append(c);
+        }
+        out.append('"');
+    }
+
+    static void appendJson(StringBuilder out, String value) {
+        if (value == null) {
+            out.append("null");
+            return;
+        }
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+}
@@ -17,13 +17,23 @@ public class ParseResult{
     }
     
     public String toString() {
+        SerializeEvent event = new SerializeEvent();
+        event.begin();
         String successStr = (success == null) ? "null" : (success ? "1" : "0");
         String entriesStr = (entries == null || entries.isEmpty())? "null": 
             entries.stream()
                    .map(Entry::toString)
                    .collect(Collectors.joining("|"));
-        return action + "~" + successStr + "~" + 
+        String text = action + "~" + successStr + "~" + 
                (message == null ? "null" : message.replace("~", "\\~")) + "~" + 
                entriesStr;
+        event.end();
+        if (event.shouldCommit()) {
+            event.action = action;
+            event.rows = entries == null ? 0 : entries.size();
+            event.characters = text.length();
+            event.commit();
+        }
+        return text;
     }
 }
\ No newline at end of file
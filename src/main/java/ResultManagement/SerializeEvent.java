@@ -0,0 +1,27 @@
+package ResultManagement;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * ParseResult.toString() 把结果序列化为回复行的耗时。
+ */
+@Name("acounting_system.Serialize")
+@Label("Reply Serialize")
+@Category({"Accounting", "Request"})
+@StackTrace(false)
+@Description("Turning a ParseResult into a reply line")
+class SerializeEvent extends Event {
+    @Label("Action")
+    String action;
+
+    @Label("Rows")
+    int rows;
+
+    @Label("Characters")
+    int characters;
+}
@@ -1,22 +1,95 @@
 package acounting_system;
 
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Function;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+
 import RequestManagement.*;
 import communication.*;
-import ResultManagement.*;
+import LogManagement.AsyncLog;
 
 public class Main {
     public static void main(String[] args) throws Exception {
+        // -Djfr.continuous=true 时持续记录请求各阶段的 JFR 事件，退出时写入 jfr.file
+        if (Boolean.getBoolean("jfr.continuous")) {
+            startContinuousRecording();
+        }
+
+        // 审计事件与异常由后台线程写入 log.dir 下的滚动日志文件
+        AsyncLog.start(Paths.get(System.getProperty("log.dir", "logs")));
+
         parser requestParser = new parser();
         requestParser.sql.initialize();
 
-        ReceiveService service = new ReceiveService(8080, (socket, rawRequest) -> {
-            ParseResult result = requestParser.parseRequest(rawRequest);
-            if (result == null) {
-                return "unknown_request";
-            }
-            return result.toString();
-        });
+        // 数据库访问在 parser 的专用线程池中完成；回复的序列化与写出在 I/O 线程上进行，
+        // 数据库线程不会被读得慢的客户端阻塞
+        ExecutorService replyExecutor = ReceiveService.newReplyExecutor();
+        Function<String, CompletionStage<String>> handler = rawRequest ->
+                requestParser.parseRequestAsync(rawRequest)
+                        .thenApplyAsync(result -> result == null ? "unknown_request" : result.toString(), replyExecutor);
+        ReceiveService service = new ReceiveService(8080, handler);
+        // 单客户端并发上限由 TCP 与 HTTP 入口共用
+        AdmissionControl admission = AdmissionControl.fromSystemProperties();
+        service.setAdmissionControl(admission);
+        service.setReplyExecutor(replyExecutor);
+        // 导出边查询边写出，不经过上面的整条回复处理器
+        service.setStreamingHandler(parser::isStreamingRequest, requestParser::exportAsync);
+        // 提交后的变更合并后推送给订阅了该用户的连接
+        SubscriptionHub subscriptions = service.subscriptions();
+        // 多实例部署（-Ddb.server 共享数据库）时通过失效广播让其他实例更新版本缓存并推送给各自的订阅者
+        InvalidationBus bus = InvalidationBus.fromSystemProperties();
+        if (bus == null) {
+            requestParser.sql.setChangeListener(subscriptions::publish);
+        } else {
+            requestParser.sql.setChangeListener((username, version) -> {
+                subscriptions.publish(username, version);
+                bus.publish(username, version);
+            });
+            bus.start((username, version) -> {
+                requestParser.sql.observeRemoteChange(username, version);
+                subscriptions.publish(username, version);
+            });
+        }
+
+        // 设置 -Dhttp.port 后直接提供 HTTP 入口，浏览器无需经过 Node 代理
+        HttpFrontEnd httpFrontEnd = null;
+        Integer httpPort = Integer.getInteger("http.port");
+        if (httpPort != null) {
+            httpFrontEnd = new HttpFrontEnd(httpPort, handler);
+            httpFrontEnd.setAdmissionControl(admission);
+            httpFrontEnd.setStreamingHandler(parser::isStreamingRequest, requestParser::exportAsync);
+            httpFrontEnd.start();
+        }
+
+        // 排队深度与拒绝计数可通过 JConsole 等 JMX 工具查看
+        MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+        mbeans.registerMBean(service, new ObjectName("acounting_system:type=ReceiveService"));
+        mbeans.registerMBean(requestParser.dbExecutor(), new ObjectName("acounting_system:type=DbExecutor"));
+
+        // 收到 SIGTERM/Ctrl+C 时先排空进行中的请求，再关闭数据库
+        ServerLifecycle lifecycle = new ServerLifecycle(service, httpFrontEnd, requestParser,
+                Long.getLong("server.drainTimeoutMs", 10000L));
+        Runtime.getRuntime().addShutdownHook(new Thread(lifecycle::shutdown, "server-shutdown"));
 
         service.start();
     }
-}
\ No newline at end of file
+
+    private static Recording startContinuousRecording() throws Exception {
+        Recording recording = new Recording(Configuration.getConfiguration(System.getProperty("jfr.settings", "default")));
+        recording.setName("acounting_system");
+        recording.setToDisk(true);
+        recording.setMaxAge(Duration.ofMinutes(Long.getLong("jfr.maxAgeMinutes", 30L)));
+        recording.setDestination(Paths.get(System.getProperty("jfr.file", "accounting.jfr")));
+        recording.setDumpOnExit(true);
+        recording.start();
+        return recording;
+    }
+}
@@ -0,0 +1,74 @@
+package acounting_system;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import RequestManagement.parser;
+import communication.HttpFrontEnd;
+import communication.ReceiveService;
+import LogManagement.AsyncLog;
+
+/**
+ * 服务的有序停机：停止接受连接（TCP 与 HTTP 入口） → 等待进行中的请求写出回复 → 执行完已排队的数据库任务
+ * → 关闭连接 → 关闭 H2。整个过程受 drainTimeoutMillis 限制，超时后继续后续步骤。
+ */
+public final class ServerLifecycle {
+    private static final Logger LOGGER = Logger.getLogger(ServerLifecycle.class.getName());
+
+    private final ReceiveService service;
+    private final HttpFrontEnd httpFrontEnd;
+    private final parser requestParser;
+    private final long drainTimeoutMillis;
+    private final AtomicBoolean stopped = new AtomicBoolean();
+
+    /**
+     * httpFrontEnd 可以为 null（未启用 HTTP 入口）。
+     */
+    public ServerLifecycle(ReceiveService service, HttpFrontEnd httpFrontEnd, parser requestParser, long drainTimeoutMillis) {
+        this.service = service;
+        this.httpFrontEnd = httpFrontEnd;
+        this.requestParser = requestParser;
+        this.drainTimeoutMillis = drainTimeoutMillis;
+    }
+
+    /**
+     * 可重复调用，只有第一次生效。适合注册为 JVM shutdown hook。
+     */
+    public void shutdown() {
+        if (!stopped.compareAndSet(false, true)) {
+            return;
+        }
+        long started = System.nanoTime();
+        long deadline = started + TimeUnit.MILLISECONDS.toNanos(drainTimeoutMillis);
+        try {
+            service.stopAccepting();
+            if (httpFrontEnd != null) {
+                httpFrontEnd.stop(remaining(deadline), TimeUnit.NANOSECONDS);
+            }
+            if (!service.awaitDrain(remaining(deadline), TimeUnit.NANOSECONDS)) {
+                LOGGER.warning("停机等待超时，仍有 " + service.getPendingReplies() + " 个请求未完成");
+            }
+            // 已排队的写入在这里执行完毕后线程池才退出
+            requestParser.shutdown(remaining(deadline), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "停机过程中出现异常", e);
+        } finally {
+            service.closeConnections();
+            try {
+                requestParser.sql.shutdown();
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "关闭数据库失败", e);
+            }
+            AsyncLog.shutdown();
+        }
+        LOGGER.info("服务已停止，用时 " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + " ms");
+    }
+
+    private static long remaining(long deadline) {
+        return Math.max(0L, deadline - System.nanoTime());
+    }
+}
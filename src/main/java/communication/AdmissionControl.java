@@ -0,0 +1,100 @@
+package communication;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import LogManagement.AsyncLog;
+
+/**
+ * 单个客户端同时处理中的请求数上限。TCP 入口与 HTTP 入口共用一个实例，同一客户端经由哪个入口
+ * 都计入同一个上限。客户端按地址区分；来自可信代理（默认本机，即 Node 代理）的请求按请求中的
+ * 用户名区分，否则经由代理的所有用户共用一个上限。
+ *
+ * 配置：-Dserver.maxRequestsPerClient（默认 16），-Dserver.trustedProxies（逗号分隔，默认 127.0.0.1,::1）。
+ */
+public final class AdmissionControl {
+    private final int maxPerClient;
+    private final Set<InetAddress> trustedProxies;
+    // 每个客户端正在处理中的请求数，归零后移除
+    private final ConcurrentHashMap<String, Integer> inFlightByClient = new ConcurrentHashMap<>();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public AdmissionControl(int maxPerClient, Set<InetAddress> trustedProxies) {
+        if (maxPerClient <= 0) {
+            throw new IllegalArgumentException("maxPerClient must be positive");
+        }
+        this.maxPerClient = maxPerClient;
+        this.trustedProxies = Set.copyOf(trustedProxies);
+    }
+
+    public static AdmissionControl fromSystemProperties() {
+        return new AdmissionControl(Integer.getInteger("server.maxRequestsPerClient", 16),
+                addresses(System.getProperty("server.trustedProxies", "127.0.0.1,::1")));
+    }
+
+    static Set<InetAddress> addresses(String list) {
+        Set<InetAddress> result = new HashSet<>();
+        for (String item : list.split(",")) {
+            if (item.trim().isEmpty()) {
+                continue;
+            }
+            try {
+                result.add(InetAddress.getByName(item.trim()));
+            } catch (UnknownHostException e) {
+                AsyncLog.error("trustedProxies", e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 并发上限的计数键：可信代理转发的请求按用户名，其他连接按客户端地址。
+     */
+    String clientKey(InetAddress address, String line) {
+        if (trustedProxies.contains(address)) {
+            int comma = line.indexOf(',');
+            String username = comma < 0 ? "" : line.substring(0, comma).trim();
+            if (!username.isEmpty()) {
+                return "user:" + username;
+            }
+        }
+        return "addr:" + address.getHostAddress();
+    }
+
+    /**
+     * 未超过上限时调用 handler 并在其回复完成时释放名额；超过上限时不调用 handler，直接回复 BUSY_REPLY。
+     */
+    CompletionStage<String> admit(InetAddress address, String line, Supplier<CompletionStage<String>> handler) {
+        String key = clientKey(address, line);
+        int inFlight = inFlightByClient.merge(key, 1, Integer::sum);
+        if (inFlight > maxPerClient) {
+            release(key);
+            rejected.incrementAndGet();
+            return CompletableFuture.completedFuture(ReceiveService.BUSY_REPLY);
+        }
+        CompletionStage<String> reply;
+        try {
+            reply = handler.get();
+        } catch (RuntimeException e) {
+            release(key);
+            throw e;
+        }
+        reply.whenComplete((text, error) -> release(key));
+        return reply;
+    }
+
+    private void release(String key) {
+        inFlightByClient.computeIfPresent(key, (k, count) -> count <= 1 ? null : count - 1);
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+}
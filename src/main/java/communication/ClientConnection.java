@@ -0,0 +1,292 @@
+package communication;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ResultManagement.ChunkSink;
+
+/**
+ * ReceiveService 中一条客户端连接的状态：回复写出顺序、未完成的请求数和最近活动时间。
+ */
+final class ClientConnection {
+    private static final AtomicLong ID_SEQ = new AtomicLong();
+    static final String ERROR_REPLY = "error~0~处理错误~null";
+
+    final long id = ID_SEQ.incrementAndGet();
+    final Socket socket;
+    private final Writer writer;
+    // 回复在这里按提交顺序写出：写入会因客户端读得慢而阻塞，不能占用完成处理结果的数据库线程
+    private final Executor io;
+    private final AtomicInteger pending = new AtomicInteger();
+    // 已排队尚未写出的推送数，只用于订阅连接
+    private final AtomicInteger queuedPushes = new AtomicInteger();
+    private volatile long lastActivityNanos = System.nanoTime();
+    // 客户端通过控制行协商压缩后才会设置
+    private volatile ResponseCompressor compressor;
+    // 回复链：每个回复在前一个回复写出之后才写，保证响应顺序与请求一致；只由读取线程修改
+    private CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+    // 带请求编号的回复不进入回复链，完成即写出；关闭连接前需等它们写完
+    private final Set<CompletableFuture<Void>> taggedInFlight = ConcurrentHashMap.newKeySet();
+
+    ClientConnection(Socket socket, Executor io) throws IOException {
+        this.socket = socket;
+        this.io = new serialExecutor(io);
+        this.writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+    }
+
+    void touch() {
+        lastActivityNanos = System.nanoTime();
+    }
+
+    void enableCompression(ResponseCompressor compressor) {
+        this.compressor = compressor;
+    }
+
+    int pendingReplies() {
+        return pending.get();
+    }
+
+    boolean isIdle(long nowNanos, long idleNanos) {
+        return pending.get() == 0 && nowNanos - lastActivityNanos > idleNanos;
+    }
+
+    /**
+     * 前一个回复写完（无论成败）后完成；一个回复失败不会让后续回复一直排不上。
+     */
+    private CompletableFuture<Void> settledTail() {
+        return tail.handle((v, t) -> null);
+    }
+
+    /**
+     * 处理失败时写一条失败回复，回复链继续。
+     */
+    void enqueueReply(CompletionStage<String> reply) {
+        pending.incrementAndGet();
+        CompletableFuture<String> text = reply.toCompletableFuture()
+                .handle((value, error) -> error == null ? value : ERROR_REPLY);
+        CompletableFuture<Void> next = settledTail().thenCombine(text, (previous, value) -> value)
+                .thenAcceptAsync(this::write, io);
+        next.whenComplete((v, t) -> {
+            touch();
+            pending.decrementAndGet();
+        });
+        tail = next;
+    }
+
+    /**
+     * 订阅推送：在本连接的写线程上写出，调用方不阻塞。已有 maxQueued 条推送排队未写出时不再排队并返回 false；
+     * 写入失败时调用 onFailure。
+     */
+    boolean push(String line, int maxQueued, Runnable onFailure) {
+        if (queuedPushes.incrementAndGet() > maxQueued) {
+            queuedPushes.decrementAndGet();
+            return false;
+        }
+        io.execute(() -> {
+            try {
+                write(line);
+            } catch (RuntimeException e) {
+                onFailure.run();
+            } finally {
+                queuedPushes.decrementAndGet();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * 流式回复：等前面的回复写完后才开始，后续回复也排在它结束之后。
+     * 数据帧不压缩，格式为 "action~1~contentType~stream"、若干个 "@chunk:行数" 加数据行、最后 "@end:记录数"；
+     * 中途出错时以 "@abort:原因" 结束。
+     */
+    void enqueueStream(StreamingHandler handler, String line) {
+        pending.incrementAndGet();
+        CompletableFuture<Void> next = settledTail().thenCompose(previous -> handler.stream(line, new framingSink()));
+        next.whenComplete((v, t) -> {
+            touch();
+            pending.decrementAndGet();
+        });
+        tail = next;
+    }
+
+    /**
+     * 带请求编号的回复：处理完成后立即写成 "#编号 回复"，不等待同一连接上更早的请求，
+     * 客户端按编号匹配。处理失败时也写一条失败回复，客户端不会一直等待。
+     */
+    void enqueueTagged(String tag, CompletionStage<String> reply) {
+        pending.incrementAndGet();
+        CompletableFuture<Void> written = reply.toCompletableFuture()
+                .handle((text, error) -> error == null ? text : ERROR_REPLY)
+                .thenAcceptAsync(text -> write(tag, text), io);
+        taggedInFlight.add(written);
+        written.whenComplete((v, t) -> {
+            taggedInFlight.remove(written);
+            touch();
+            pending.decrementAndGet();
+        });
+    }
+
+    /**
+     * 回复链与所有带编号的回复都写完（或失败）后完成。只在不再读取新请求之后调用。
+     */
+    private CompletableFuture<Void> allReplies() {
+        return settledTail().thenCompose(v ->
+                CompletableFuture.allOf(taggedInFlight.toArray(new CompletableFuture<?>[0])).handle((w, t) -> null));
+    }
+
+    /**
+     * 在共享线程池上逐个执行本连接的写入任务：同一连接的写入保持提交顺序，
+     * 读得慢的客户端最多占用池中的一个线程。
+     */
+    private static final class serialExecutor implements Executor {
+        private final Executor pool;
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        private boolean draining;
+
+        serialExecutor(Executor pool) {
+            this.pool = pool;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            synchronized (tasks) {
+                tasks.add(task);
+                if (draining) {
+                    return;
+                }
+                draining = true;
+            }
+            pool.execute(this::drain);
+        }
+
+        private void drain() {
+            while (true) {
+                Runnable next;
+                synchronized (tasks) {
+                    next = tasks.poll();
+                    if (next == null) {
+                        draining = false;
+                        return;
+                    }
+                }
+                next.run();
+            }
+        }
+    }
+
+    private final class framingSink implements ChunkSink {
+        @Override
+        public void begin(String action, String contentType) throws IOException {
+            writeRaw(action + "~1~" + contentType + "~stream\n");
+        }
+
+        @Override
+        public void chunk(int lines, CharSequence data) throws IOException {
+            synchronized (ClientConnection.this) {
+                writer.write("@chunk:" + lines + "\n");
+                writer.append(data);
+                writer.flush();
+            }
+            // 慢客户端的写入会阻塞，期间不应被当作空闲连接回收
+            touch();
+        }
+
+        @Override
+        public void end(long rows) throws IOException {
+            writeRaw("@end:" + rows + "\n");
+        }
+
+        @Override
+        public void abort(String message) throws IOException {
+            writeRaw("@abort:" + message.replace('\n', ' ') + "\n");
+        }
+
+        @Override
+        public void reject(String reply) throws IOException {
+            try {
+                write(reply);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    private synchronized void writeRaw(String text) throws IOException {
+        writer.write(text);
+        writer.flush();
+    }
+
+    void write(String line) {
+        write(null, line);
+    }
+
+    /**
+     * tag 非空时在回复前加上 "#tag "，压缩只作用于回复本身。
+     */
+    synchronized void write(String tag, String line) {
+        if (line == null) {
+            return;
+        }
+        ReplyWriteEvent event = new ReplyWriteEvent();
+        event.begin();
+        ResponseCompressor current = compressor;
+        String encoded = current == null ? line : current.encodeLine(line);
+        try {
+            if (tag != null) {
+                writer.write('#');
+                writer.write(tag);
+                writer.write(' ');
+            }
+            writer.write(encoded);
+            writer.write('\n');
+            writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                // 未启用记录时不计算字节数
+                event.connectionId = id;
+                event.bytes = encoded.getBytes(StandardCharsets.UTF_8).length + 1;
+                event.compressed = encoded != line;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * 在已排队的回复全部写出之后执行 action。
+     */
+    void afterReplies(Runnable action) {
+        allReplies().whenComplete((v, t) -> action.run());
+    }
+
+    /**
+     * 读到 EOF 后不等待未完成的回复，由最后一个回复完成时关闭连接。
+     */
+    void closeWhenDone(Runnable onClosed) {
+        allReplies().whenComplete((v, t) -> {
+            close();
+            onClosed.run();
+        });
+    }
+
+    void close() {
+        try {
+            socket.close();
+        } catch (Throwable ignored) {
+        }
+    }
+}
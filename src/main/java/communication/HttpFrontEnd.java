@@ -0,0 +1,338 @@
+package communication;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import ResultManagement.ChunkSink;
+
+/**
+ * 内嵌的 HTTP/1.1 入口，接受与 proxy/http_to_tcp_proxy.js 相同的 POST 请求体，
+ * 直接交给与 TCP 入口相同的异步处理器，省去 Node 代理这一跳和每次请求新建的 TCP 连接。
+ * HttpServer 默认支持 keep-alive；处理线程只负责读取请求体，回复在处理器完成时异步写出。
+ */
+public final class HttpFrontEnd {
+    private static final int MAX_BODY_BYTES = 16 * 1024;
+    private static final String ALLOWED_ORIGIN = System.getenv("ALLOWED_ORIGIN") != null ? System.getenv("ALLOWED_ORIGIN") : "*";
+    // 客户端收到 503 后至少等待的秒数
+    private static final String RETRY_AFTER_SECONDS = "1";
+    // 在 overflow 线程上执行的请求只回复 503
+    private static final ThreadLocal<Boolean> REJECTING = new ThreadLocal<>();
+
+    private final int port;
+    private final Function<String, CompletionStage<String>> handler;
+    private final ResponseCompressor compressor = ResponseCompressor.fromSystemProperties();
+    private HttpServer server;
+    private ThreadPoolExecutor executor;
+    private ThreadPoolExecutor overflow;
+    // 已读取请求体、尚未写完回复的请求数
+    private final AtomicInteger pending = new AtomicInteger();
+    private volatile Predicate<String> streamingRequests;
+    private volatile StreamingHandler streamingHandler;
+    // 单客户端并发上限，与 TCP 入口共用时两个入口的请求计入同一个上限
+    private volatile AdmissionControl admission = AdmissionControl.fromSystemProperties();
+
+    public HttpFrontEnd(int port, Function<String, CompletionStage<String>> handler) {
+        if (port <= 0 || port > 65535) {
+            throw new IllegalArgumentException("port out of range: " + port);
+        }
+        if (handler == null) {
+            throw new IllegalArgumentException("handler must not be null");
+        }
+        this.port = port;
+        this.handler = handler;
+    }
+
+    /**
+     * 满足 accepts 的请求交给 handler，以分块传输编码流式回复。需在 start 之前调用。
+     */
+    public void setStreamingHandler(Predicate<String> accepts, StreamingHandler handler) {
+        if (accepts == null || handler == null) {
+            throw new IllegalArgumentException("accepts and handler must not be null");
+        }
+        this.streamingRequests = accepts;
+        this.streamingHandler = handler;
+    }
+
+    /**
+     * 替换单客户端并发上限（通常与 ReceiveService 共用一个实例），需在 start 之前调用。
+     */
+    public void setAdmissionControl(AdmissionControl admission) {
+        if (admission == null) {
+            throw new IllegalArgumentException("admission must not be null");
+        }
+        this.admission = admission;
+    }
+
+    /**
+     * 启动监听后立即返回。
+     */
+    public void start() throws IOException {
+        if (server != null) {
+            throw new IllegalStateException("http front end already running");
+        }
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        int queue = Integer.getInteger("server.queue", 64);
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queue), new ThreadPoolExecutor.AbortPolicy());
+        overflow = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queue), new ThreadPoolExecutor.AbortPolicy());
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.setExecutor(this::dispatch);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    /**
+     * 最多等待 timeout 让进行中的请求写完回复，然后关闭监听与所有连接。
+     * 不直接使用 HttpServer.stop(delay)：JDK 17 中它总是等满 delay 秒。
+     */
+    public void stop(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (pending.get() > 0 && System.nanoTime() - deadline < 0) {
+            Thread.sleep(20);
+        }
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+        if (overflow != null) {
+            overflow.shutdown();
+            overflow = null;
+        }
+    }
+
+    /**
+     * 请求线程与队列都满时不能在调用方执行：调用方是 HttpServer 唯一的分发线程，它被占用期间
+     * 所有连接都得不到服务。被拒绝的请求交给单线程的 overflow 直接回复 503；overflow 也满时
+     * 异常传给 HttpServer，由它关闭这个连接。
+     */
+    private void dispatch(Runnable exchange) {
+        try {
+            executor.execute(exchange);
+        } catch (RejectedExecutionException e) {
+            overflow.execute(() -> {
+                REJECTING.set(Boolean.TRUE);
+                try {
+                    exchange.run();
+                } finally {
+                    REJECTING.remove();
+                }
+            });
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        if (REJECTING.get() != null) {
+            exchange.getResponseHeaders().set("Retry-After", RETRY_AFTER_SECONDS);
+            sendText(exchange, 503, "text/plain; charset=utf-8", ReceiveService.BUSY_REPLY);
+            return;
+        }
+        String method = exchange.getRequestMethod();
+        if (method.equals("OPTIONS")) {
+            addCorsHeaders(exchange.getResponseHeaders());
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+            return;
+        }
+        if (method.equals("GET") && exchange.getRequestURI().getPath().equals("/health")) {
+            sendText(exchange, 200, "application/json; charset=utf-8", "{\"status\":\"ok\"}");
+            return;
+        }
+        if (!method.equals("POST")) {
+            sendText(exchange, 405, "application/json; charset=utf-8", "{\"error\":\"Only POST is supported at this endpoint\"}");
+            return;
+        }
+
+        String body = readBody(exchange.getRequestBody());
+        if (body == null) {
+            sendText(exchange, 413, "application/json; charset=utf-8", "{\"error\":\"Request body too large\"}");
+            return;
+        }
+        // 与代理一致：请求体是一行协议文本，末尾换行可有可无
+        int newline = body.indexOf('\n');
+        String line = (newline >= 0 ? body.substring(0, newline) : body).replace("\r", "");
+        boolean deflate = acceptsDeflate(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+        if (streamingHandler != null && streamingRequests.test(line)) {
+            stream(exchange, line);
+            return;
+        }
+
+        CompletionStage<String> reply;
+        pending.incrementAndGet();
+        try {
+            // 超过上限时回复 BUSY_REPLY，与经由 Node 代理转发到 TCP 入口时客户端看到的一致
+            reply = admission.admit(exchange.getRemoteAddress().getAddress(), line, () -> handler.apply(line));
+        } catch (RuntimeException e) {
+            pending.decrementAndGet();
+            sendText(exchange, 500, "text/plain; charset=utf-8", "处理错误: " + e.getMessage());
+            return;
+        }
+        reply.whenComplete((text, error) -> {
+            try {
+                if (error != null) {
+                    sendText(exchange, 500, "text/plain; charset=utf-8", "处理错误: " + error.getMessage());
+                } else {
+                    sendReply(exchange, text == null ? "" : text, deflate);
+                }
+            } catch (IOException ignored) {
+                // 客户端已断开
+                exchange.close();
+            } finally {
+                pending.decrementAndGet();
+            }
+        });
+    }
+
+    private void stream(HttpExchange exchange, String line) {
+        pending.incrementAndGet();
+        CompletionStage<Void> done;
+        try {
+            done = streamingHandler.stream(line, new chunkedSink(exchange));
+        } catch (RuntimeException e) {
+            pending.decrementAndGet();
+            exchange.close();
+            throw e;
+        }
+        done.whenComplete((v, error) -> {
+            exchange.close();
+            pending.decrementAndGet();
+        });
+    }
+
+    /**
+     * 以分块传输编码写出响应体，每个 chunk 写完即 flush；数据行之外不加任何帧。
+     * 开始输出后无法再改状态码，中途出错时追加一行 "@abort:原因" 后关闭连接。
+     */
+    private static final class chunkedSink implements ChunkSink {
+        private final HttpExchange exchange;
+        private Writer body;
+
+        chunkedSink(HttpExchange exchange) {
+            this.exchange = exchange;
+        }
+
+        @Override
+        public void begin(String action, String contentType) throws IOException {
+            Headers headers = exchange.getResponseHeaders();
+            headers.set("Content-Type", contentType);
+            headers.set("Cache-Control", "no-store");
+            addCorsHeaders(headers);
+            exchange.sendResponseHeaders(200, 0);
+            body = new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void chunk(int lines, CharSequence data) throws IOException {
+            body.append(data);
+            body.flush();
+        }
+
+        @Override
+        public void end(long rows) throws IOException {
+            body.close();
+        }
+
+        @Override
+        public void abort(String message) throws IOException {
+            body.write("@abort:" + message.replace('\n', ' ') + "\n");
+            body.close();
+        }
+
+        @Override
+        public void reject(String reply) throws IOException {
+            sendText(exchange, 200, "text/plain; charset=utf-8", reply);
+        }
+    }
+
+    private void sendReply(HttpExchange exchange, String text, boolean deflate) throws IOException {
+        if (!deflate || !compressor.shouldCompress(text)) {
+            sendText(exchange, 200, "text/plain; charset=utf-8", text);
+            return;
+        }
+        byte[] compressed = compressor.deflate(text.getBytes(StandardCharsets.UTF_8));
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("Content-Encoding", ResponseCompressor.ENCODING_DEFLATE);
+        headers.set("Vary", "Accept-Encoding");
+        sendBytes(exchange, 200, "text/plain; charset=utf-8", compressed);
+    }
+
+    private static void sendText(HttpExchange exchange, int status, String contentType, String text) throws IOException {
+        sendBytes(exchange, status, contentType, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void sendBytes(HttpExchange exchange, int status, String contentType, byte[] bytes) throws IOException {
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("Content-Type", contentType);
+        addCorsHeaders(headers);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static void addCorsHeaders(Headers headers) {
+        headers.set("Access-Control-Allow-Origin", ALLOWED_ORIGIN);
+        headers.set("Access-Control-Allow-Headers", "Content-Type, Cache-Control");
+        headers.set("Access-Control-Allow-Methods", "POST, OPTIONS");
+    }
+
+    /**
+     * 读取请求体，超过 MAX_BODY_BYTES 时返回 null。
+     */
+    private static String readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        try (in) {
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                if (out.size() > MAX_BODY_BYTES) {
+                    return null;
+                }
+            }
+        }
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    static boolean acceptsDeflate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String part : acceptEncoding.split(",")) {
+            String coding = part.trim();
+            int semicolon = coding.indexOf(';');
+            if (semicolon >= 0) {
+                if (coding.substring(semicolon).replace(" ", "").equals(";q=0")) {
+                    continue;
+                }
+                coding = coding.substring(0, semicolon).trim();
+            }
+            if (coding.equalsIgnoreCase(ResponseCompressor.ENCODING_DEFLATE)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,145 @@
+package communication;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * 多个服务实例之间的缓存失效广播：某个实例提交了用户变更后，用 UDP 数据报把（用户名, 版本）发给所有对端，
+ * 对端据此更新本地版本缓存并推送给自己的订阅者。数据报可能丢失，接收方的缓存需要有过期时间兜底。
+ * 报文格式：v1|实例ID|版本|用户名（用户名放在最后，允许包含 '|'）。
+ */
+public final class InvalidationBus {
+    private static final String MAGIC = "v1";
+    private static final int MAX_DATAGRAM = 1024;
+
+    private final int port;
+    private final List<InetSocketAddress> peers;
+    private final long instanceId = ThreadLocalRandom.current().nextLong();
+    private DatagramSocket socket;
+    private Thread receiver;
+
+    public InvalidationBus(int port, List<InetSocketAddress> peers) {
+        if (port < 0 || port > 65535) {
+            throw new IllegalArgumentException("port out of range: " + port);
+        }
+        this.port = port;
+        this.peers = List.copyOf(peers);
+    }
+
+    /**
+     * 未设置 cluster.peers 时返回 null（单实例部署）。
+     * cluster.peers 为逗号分隔的 host:port，cluster.port 为本实例监听的 UDP 端口（默认 9099）。
+     */
+    public static InvalidationBus fromSystemProperties() {
+        String configured = System.getProperty("cluster.peers");
+        if (configured == null || configured.trim().isEmpty()) {
+            return null;
+        }
+        return new InvalidationBus(Integer.getInteger("cluster.port", 9099), parsePeers(configured));
+    }
+
+    static List<InetSocketAddress> parsePeers(String configured) {
+        List<InetSocketAddress> peers = new ArrayList<>();
+        for (String item : configured.split(",")) {
+            String peer = item.trim();
+            if (peer.isEmpty()) {
+                continue;
+            }
+            int colon = peer.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("peer must be host:port: " + peer);
+            }
+            peers.add(new InetSocketAddress(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1))));
+        }
+        return peers;
+    }
+
+    /**
+     * 绑定端口并启动接收线程，listener 在接收线程上调用。
+     */
+    public synchronized void start(ObjLongConsumer<String> listener) throws SocketException {
+        if (socket != null) {
+            throw new IllegalStateException("bus already started");
+        }
+        DatagramSocket bound = new DatagramSocket(port);
+        socket = bound;
+        receiver = new Thread(() -> receive(bound, listener), "invalidation-bus");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    public int localPort() {
+        DatagramSocket current = socket;
+        return current == null ? -1 : current.getLocalPort();
+    }
+
+    /**
+     * 把变更发给所有对端。发送失败只影响缓存时效，不影响请求本身，因此忽略。
+     */
+    public void publish(String username, long version) {
+        DatagramSocket current = socket;
+        if (current == null || username == null) {
+            return;
+        }
+        byte[] payload = (MAGIC + "|" + instanceId + "|" + version + "|" + username).getBytes(StandardCharsets.UTF_8);
+        if (payload.length > MAX_DATAGRAM) {
+            return;
+        }
+        for (InetSocketAddress peer : peers) {
+            try {
+                current.send(new DatagramPacket(payload, payload.length, peer));
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void receive(DatagramSocket bound, ObjLongConsumer<String> listener) {
+        byte[] buffer = new byte[MAX_DATAGRAM];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (!bound.isClosed()) {
+            try {
+                packet.setLength(buffer.length);
+                bound.receive(packet);
+            } catch (IOException e) {
+                // close() 之后退出
+                continue;
+            }
+            String[] parts = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8).split("\\|", 4);
+            if (parts.length != 4 || !parts[0].equals(MAGIC)) {
+                continue;
+            }
+            try {
+                if (Long.parseLong(parts[1]) == instanceId) {
+                    // 对端列表中包含自己时忽略自己发出的报文
+                    continue;
+                }
+                listener.accept(parts[3], Long.parseLong(parts[2]));
+            } catch (RuntimeException ignored) {
+                // 格式错误的报文或监听器异常不影响后续接收
+            }
+        }
+    }
+
+    public synchronized void close() {
+        if (socket != null) {
+            socket.close();
+            socket = null;
+        }
+        if (receiver != null) {
+            try {
+                receiver.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            receiver = null;
+        }
+    }
+}
@@ -1,82 +1,447 @@
 package communication;
 
 import java.io.BufferedReader;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
+import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
 import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import LogManagement.AsyncLog;
+
+public final class ReceiveService implements ReceiveServiceMBean {
+    // 与 ParseResult 的格式一致：action~success~message~entries
+    public static final String BUSY_REPLY = "busy~0~服务器繁忙，请稍后重试~null";
+
+    private static final int CONNECTION_QUEUE_CAPACITY = Integer.getInteger("server.queue", 64);
+    // 控制行以 '@' 开头且不含逗号，普通请求至少包含 "username,action"，两者不会混淆
+    private static final String ACCEPT_ENCODING_CONTROL = "@accept-encoding:";
+    private static final String SUBSCRIBE_ACTION = "subscribe";
+    private static final int MAX_TAG_LENGTH = 32;
 
-public final class ReceiveService {
     private final int port;
-    private final BiFunction<Socket, String, String> handler;
+    private final BiFunction<Socket, String, CompletionStage<String>> handler;
     private ServerSocket serverSocket;
     private volatile boolean running;
-    private ExecutorService executor;
+    private ThreadPoolExecutor executor;
+    private ScheduledExecutorService reaper;
+    private long idleTimeoutMillis = Long.getLong("server.idleTimeoutMs", 30000L);
+    private final Set<ClientConnection> connections = ConcurrentHashMap.newKeySet();
+    // 单客户端并发上限，可与 HTTP 入口共用
+    private volatile AdmissionControl admission = AdmissionControl.fromSystemProperties();
+    private final AtomicLong rejectedConnections = new AtomicLong();
+    private final AtomicLong reapedConnections = new AtomicLong();
+    private final ResponseCompressor compressor = ResponseCompressor.fromSystemProperties();
+    private final SubscriptionHub subscriptions = SubscriptionHub.fromSystemProperties();
+    private volatile Predicate<String> streamingRequests;
+    private volatile StreamingHandler streamingHandler;
+    // 设置 -Dcapture.dir 时把收到的请求行写入抓包文件，供 TrafficReplay 回放
+    private volatile TrafficRecorder recorder = TrafficRecorder.fromSystemProperties();
+    // 回复写出所在的线程池，与处理请求的数据库线程分开
+    private volatile Executor replyExecutor = newReplyExecutor();
 
     public ReceiveService(int port, BiFunction<Socket, String, String> handler) {
+        checkArguments(port, handler);
+        this.port = port;
+        this.handler = (socket, line) -> CompletableFuture.completedFuture(handler.apply(socket, line));
+    }
+
+    /**
+     * 使用异步处理器：handler 立即返回 CompletionStage，回复在其完成时写回客户端，
+     * 读取连接的线程不会等待处理结果。同一连接上的回复仍按请求顺序写出。
+     */
+    public ReceiveService(int port, Function<String, CompletionStage<String>> asyncHandler) {
+        checkArguments(port, asyncHandler);
+        this.port = port;
+        this.handler = (socket, line) -> asyncHandler.apply(line);
+    }
+
+    private static void checkArguments(int port, Object handler) {
         if (port <= 0 || port > 65535) {
             throw new IllegalArgumentException("port out of range: " + port);
         }
         if (handler == null) {
             throw new IllegalArgumentException("handler must not be null");
         }
-        this.port = port;
-        this.handler = handler;
     }
 
+    /**
+     * 写回复用的线程池：按需创建的守护线程，空闲一分钟后退出。写入慢客户端时只阻塞这里的一个线程。
+     */
+    public static ExecutorService newReplyExecutor() {
+        AtomicInteger seq = new AtomicInteger();
+        return Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "reply-io-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * 替换写回复的线程池（例如与处理器共用，在同一线程上序列化并写出），需在 start 之前调用。
+     */
+    public void setReplyExecutor(Executor replyExecutor) {
+        if (replyExecutor == null) {
+            throw new IllegalArgumentException("replyExecutor must not be null");
+        }
+        this.replyExecutor = replyExecutor;
+    }
+
+    /**
+     * 替换单客户端并发上限（例如与 HttpFrontEnd 共用一个实例），需在 start 之前调用。
+     */
+    public void setAdmissionControl(AdmissionControl admission) {
+        if (admission == null) {
+            throw new IllegalArgumentException("admission must not be null");
+        }
+        this.admission = admission;
+    }
+
+    /**
+     * 设置空闲连接的回收时间，需在 start 之前调用。
+     */
+    public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+        if (idleTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("idleTimeoutMillis must be positive");
+        }
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * 满足 accepts 的请求交给 handler 流式回复，不计入单客户端的并发上限（导出有自己的并发限制）。需在 start 之前调用。
+     */
+    public void setStreamingHandler(Predicate<String> accepts, StreamingHandler handler) {
+        if (accepts == null || handler == null) {
+            throw new IllegalArgumentException("accepts and handler must not be null");
+        }
+        this.streamingRequests = accepts;
+        this.streamingHandler = handler;
+    }
+
+    /**
+     * 替换抓包记录器（null 表示停止抓包），原记录器由调用方关闭。
+     */
+    public void setRecorder(TrafficRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * 数据变更时调用其 publish，向订阅了该用户的连接推送通知。
+     */
+    public SubscriptionHub subscriptions() {
+        return subscriptions;
+    }
+
+    /**
+     * 在当前线程上监听并接受连接，直到 stopAccepting/stop 被调用后返回。
+     */
     public void start() throws Exception {
         if (running) {
             throw new IllegalStateException("service already running");
         }
         serverSocket = new ServerSocket(port);
         running = true;
-        // 使用固定大小线程池，避免无限制创建线程
-        int corePoolSize = Math.max(2, Runtime.getRuntime().availableProcessors());
-        executor = Executors.newFixedThreadPool(corePoolSize);
+        // 使用固定大小线程池和有界等待队列，过载时直接拒绝而不是让排队时间无限增长。
+        // 每条连接在其生命周期内占用一个线程且大部分时间阻塞在读取上，线程数按长连接数而不是 CPU 数确定，
+        // 否则超出线程数的长连接（例如代理的连接池）会排队到有连接被回收为止
+        int corePoolSize = Integer.getInteger("server.threads",
+                Math.max(16, 2 * Runtime.getRuntime().availableProcessors()));
+        executor = new ThreadPoolExecutor(corePoolSize, corePoolSize, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(CONNECTION_QUEUE_CAPACITY));
+        // 空闲连接由单独的定时线程关闭，不再依赖占用工作线程的读超时
+        reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "connection-reaper");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(100L, Math.min(1000L, idleTimeoutMillis / 2));
+        reaper.scheduleWithFixedDelay(this::reapIdleConnections, period, period, TimeUnit.MILLISECONDS);
+        subscriptions.start();
         
+        ServerSocket listening = serverSocket;
         while (running) {
-            final Socket client = serverSocket.accept();
-            // 设置合理的超时时间
-            client.setSoTimeout(30000);
+            final Socket client;
+            try {
+                client = listening.accept();
+            } catch (SocketException e) {
+                if (!running) {
+                    break;
+                }
+                throw e;
+            }
             
-            executor.submit(() -> {
-                try (BufferedReader reader = new BufferedReader(
-                        new java.io.InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
-                     Writer writer = new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8)) {
-
-                    String line = reader.readLine();
-                    while (line != null) {
-                        String reply = handler.apply(client, line);
-                        if (reply != null) {
-                            writer.write(reply);
-                            writer.write('\n');
-                            writer.flush();
-                        }
-                        line = reader.readLine();
-                    }
-                } catch (Throwable t) {
-                    // 静默处理异常
-                } finally {
-                    try {
-                        client.close();
-                    } catch (Throwable ignored) {
+            try {
+                executor.execute(() -> serve(client));
+            } catch (RejectedExecutionException e) {
+                rejectedConnections.incrementAndGet();
+                rejectConnection(client);
+            }
+        }
+    }
+
+    private void serve(Socket client) {
+        ClientConnection connection;
+        try {
+            connection = new ClientConnection(client, replyExecutor);
+        } catch (IOException e) {
+            closeQuietly(client);
+            return;
+        }
+        connections.add(connection);
+        String subscribedUser = null;
+        try {
+            BufferedReader reader = new BufferedReader(
+                    new java.io.InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+
+            String line = readLine(reader, connection);
+            while (line != null) {
+                connection.touch();
+                TrafficRecorder capture = recorder;
+                if (capture != null) {
+                    capture.record(connection.id, line);
+                }
+                String tag = requestTag(line);
+                if (tag != null) {
+                    connection.enqueueTagged(tag, dispatchTagged(client, line.substring(tag.length() + 2)));
+                } else if (!handleControlLine(connection, line)) {
+                    String username = subscribeTarget(line);
+                    if (streamingHandler != null && streamingRequests.test(line)) {
+                        connection.enqueueStream(streamingHandler, line);
+                    } else if (username == null) {
+                        connection.enqueueReply(dispatch(client, line));
+                    } else if (subscriptions.subscribe(username, connection)) {
+                        connection.enqueueReply(CompletableFuture.completedFuture("subscribe~1~已订阅~null"));
+                        subscribedUser = username;
+                        break;
+                    } else {
+                        connection.enqueueReply(CompletableFuture.completedFuture("subscribe~0~订阅数已达上限~null"));
                     }
                 }
-            });
+                line = readLine(reader, connection);
+            }
+        } catch (SocketException e) {
+            // 客户端断开或空闲超时，属正常结束
+        } catch (Throwable t) {
+            AsyncLog.error("receive", t);
         }
+        if (subscribedUser != null) {
+            // 订阅后的连接只接收推送，交给 SubscriptionHub 管理，工作线程立即返回
+            connection.afterReplies(() -> connections.remove(connection));
+            return;
+        }
+        connection.closeWhenDone(() -> connections.remove(connection));
     }
 
-    public void stop() throws Exception {
+    private static String readLine(BufferedReader reader, ClientConnection connection) throws IOException {
+        SocketReadEvent event = new SocketReadEvent();
+        event.begin();
+        String line = reader.readLine();
+        event.end();
+        if (line != null && event.shouldCommit()) {
+            event.connectionId = connection.id;
+            event.characters = line.length();
+            event.commit();
+        }
+        return line;
+    }
+
+    /**
+     * "#编号 请求" 形式的请求编号（1 到 MAX_TAG_LENGTH 个字母、数字、'-' 或 '_'），不带编号时返回 null。
+     * 带编号的请求回复为 "#编号 回复"，且不按请求顺序写出，一条连接可以同时承载多个客户端的请求。
+     */
+    static String requestTag(String line) {
+        if (line.length() < 3 || line.charAt(0) != '#') {
+            return null;
+        }
+        int space = line.indexOf(' ');
+        if (space < 2 || space > MAX_TAG_LENGTH + 1) {
+            return null;
+        }
+        for (int i = 1; i < space; i++) {
+            char c = line.charAt(i);
+            if (!(Character.isLetterOrDigit(c) && c < 128) && c != '-' && c != '_') {
+                return null;
+            }
+        }
+        return line.substring(1, space);
+    }
+
+    /**
+     * 订阅与流式回复需要独占连接，不能与其他请求复用，带编号时直接拒绝。
+     */
+    private CompletionStage<String> dispatchTagged(Socket client, String request) {
+        if (subscribeTarget(request) != null) {
+            return CompletableFuture.completedFuture("subscribe~0~订阅需使用独立连接~null");
+        }
+        if (streamingHandler != null && streamingRequests.test(request)) {
+            return CompletableFuture.completedFuture("export~0~流式回复需使用独立连接~null");
+        }
+        return dispatch(client, request);
+    }
+
+    /**
+     * "username,subscribe" 返回 username，其他请求返回 null。
+     */
+    static String subscribeTarget(String line) {
+        int comma = line.indexOf(',');
+        if (comma <= 0) {
+            return null;
+        }
+        String action = line.substring(comma + 1).trim();
+        if (!action.equals(SUBSCRIBE_ACTION)) {
+            return null;
+        }
+        String username = line.substring(0, comma).trim();
+        return username.isEmpty() ? null : username;
+    }
+
+    /**
+     * 处理连接级别的控制行，不产生回复。返回 false 表示这是普通请求。
+     */
+    private boolean handleControlLine(ClientConnection connection, String line) {
+        if (!line.startsWith(ACCEPT_ENCODING_CONTROL) || line.indexOf(',') >= 0) {
+            return false;
+        }
+        String encoding = line.substring(ACCEPT_ENCODING_CONTROL.length()).trim();
+        if (encoding.equalsIgnoreCase(ResponseCompressor.ENCODING_DEFLATE)) {
+            connection.enableCompression(compressor);
+        }
+        return true;
+    }
+
+    private static void rejectConnection(Socket client) {
+        try {
+            new ClientConnection(client, Runnable::run).write(BUSY_REPLY);
+        } catch (Throwable ignored) {
+        } finally {
+            closeQuietly(client);
+        }
+    }
+
+    /**
+     * 超过单个客户端并发上限时不调用 handler，直接回复 BUSY_REPLY。
+     */
+    private CompletionStage<String> dispatch(Socket client, String line) {
+        return admission.admit(client.getInetAddress(), line, () -> handler.apply(client, line));
+    }
+
+    private void reapIdleConnections() {
+        long now = System.nanoTime();
+        long idleNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        for (ClientConnection connection : connections) {
+            if (connection.isIdle(now, idleNanos)) {
+                // 关闭套接字会让阻塞在 readLine 上的工作线程立即退出
+                reapedConnections.incrementAndGet();
+                connection.close();
+            }
+        }
+    }
+
+    private static void closeQuietly(Socket client) {
+        try {
+            client.close();
+        } catch (Throwable ignored) {
+        }
+    }
+
+    @Override
+    public int getQueueDepth() {
+        ThreadPoolExecutor current = executor;
+        return current == null ? 0 : current.getQueue().size();
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return connections.size();
+    }
+
+    @Override
+    public int getPendingReplies() {
+        int total = 0;
+        for (ClientConnection connection : connections) {
+            total += connection.pendingReplies();
+        }
+        return total;
+    }
+
+    @Override
+    public long getRejectedConnections() {
+        return rejectedConnections.get();
+    }
+
+    @Override
+    public long getRejectedRequests() {
+        return admission.getRejected();
+    }
+
+    @Override
+    public long getReapedConnections() {
+        return reapedConnections.get();
+    }
+
+    @Override
+    public int getSubscribers() {
+        return subscriptions.getSubscriberCount();
+    }
+
+    /**
+     * 停止接受新连接，已建立的连接继续处理。
+     */
+    public void stopAccepting() throws IOException {
         running = false;
         if (serverSocket != null) {
             serverSocket.close();
             serverSocket = null;
         }
+    }
+
+    /**
+     * 等待所有已收到的请求写出回复，超时返回 false。
+     */
+    public boolean awaitDrain(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (getPendingReplies() > 0) {
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            Thread.sleep(20);
+        }
+        return true;
+    }
+
+    /**
+     * 关闭所有连接并释放工作线程与回收线程。
+     */
+    public void closeConnections() {
+        for (ClientConnection connection : connections) {
+            connection.close();
+        }
+        subscriptions.close();
+        TrafficRecorder capture = recorder;
+        if (capture != null) {
+            capture.close();
+        }
+        if (reaper != null) {
+            reaper.shutdownNow();
+            reaper = null;
+        }
         if (executor != null) {
             executor.shutdown();
             try {
@@ -90,4 +455,13 @@ public final class ReceiveService {
             executor = null;
         }
     }
-}
\ No newline at end of file
+
+    public void stop() throws Exception {
+        stopAccepting();
+        try {
+            awaitDrain(2, TimeUnit.SECONDS);
+        } finally {
+            closeConnections();
+        }
+    }
+}
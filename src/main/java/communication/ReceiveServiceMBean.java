@@ -0,0 +1,23 @@
+package communication;
+
+/**
+ * ReceiveService 通过 JMX 暴露的排队深度、连接数、订阅数与拒绝计数。
+ */
+public interface ReceiveServiceMBean {
+    int getQueueDepth();
+
+    int getActiveConnections();
+
+    int getPendingReplies();
+
+    long getRejectedConnections();
+
+    /**
+     * 超过单客户端并发上限被拒绝的请求数；与 HttpFrontEnd 共用 AdmissionControl 时包括 HTTP 请求。
+     */
+    long getRejectedRequests();
+
+    long getReapedConnections();
+
+    int getSubscribers();
+}
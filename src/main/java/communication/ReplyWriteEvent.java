@@ -0,0 +1,29 @@
+package communication;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * 把一行回复（压缩后）写到套接字的耗时与字节数。
+ */
+@Name("acounting_system.ReplyWrite")
+@Label("Reply Write")
+@Category({"Accounting", "Network"})
+@StackTrace(false)
+@Description("Writing one reply line to a client connection")
+class ReplyWriteEvent extends Event {
+    @Label("Connection Id")
+    long connectionId;
+
+    @Label("Bytes Written")
+    @DataAmount
+    int bytes;
+
+    @Label("Compressed")
+    boolean compressed;
+}
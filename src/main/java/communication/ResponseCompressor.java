@@ -0,0 +1,95 @@
+package communication;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.Deflater;
+
+/**
+ * 大响应的 deflate 压缩。Deflater 持有本地 zlib 内存，创建和释放都不便宜，
+ * 因此连同输出缓冲区一起放在有界池中复用；池空时临时创建，用完即释放。
+ */
+public final class ResponseCompressor {
+    public static final String ENCODING_DEFLATE = "deflate";
+    // 文本行协议中压缩回复的前缀，后接 zlib 数据的 Base64
+    public static final String DEFLATE_PREFIX = "@deflate:";
+
+    private static final int INITIAL_BUFFER = 8 * 1024;
+    // 超过该大小的缓冲区不放回池中，避免偶发的大响应长期占用内存
+    private static final int MAX_POOLED_BUFFER = 1024 * 1024;
+
+    private final int minBytes;
+    private final ArrayBlockingQueue<slot> pool;
+
+    public ResponseCompressor(int minBytes, int poolSize) {
+        if (minBytes < 0 || poolSize <= 0) {
+            throw new IllegalArgumentException("minBytes must be >= 0 and poolSize positive");
+        }
+        this.minBytes = minBytes;
+        this.pool = new ArrayBlockingQueue<>(poolSize);
+    }
+
+    /**
+     * 按系统属性 compress.minBytes / compress.pool 创建，TCP 与 HTTP 入口使用相同的阈值。
+     */
+    public static ResponseCompressor fromSystemProperties() {
+        return new ResponseCompressor(Integer.getInteger("compress.minBytes", 1024), Integer.getInteger("compress.pool", 8));
+    }
+
+    public boolean shouldCompress(String text) {
+        return text != null && text.length() >= minBytes;
+    }
+
+    /**
+     * 短回复原样返回，长回复转换为 DEFLATE_PREFIX + Base64(zlib) 的单行形式。
+     */
+    public String encodeLine(String reply) {
+        if (!shouldCompress(reply)) {
+            return reply;
+        }
+        byte[] compressed = deflate(reply.getBytes(StandardCharsets.UTF_8));
+        return DEFLATE_PREFIX + Base64.getEncoder().encodeToString(compressed);
+    }
+
+    /**
+     * 压缩为 zlib 格式，即 HTTP 中 Content-Encoding: deflate 所指的格式。
+     */
+    public byte[] deflate(byte[] input) {
+        slot s = acquire();
+        try {
+            Deflater deflater = s.deflater;
+            deflater.setInput(input);
+            deflater.finish();
+            byte[] buffer = s.buffer;
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+            s.buffer = buffer.length <= MAX_POOLED_BUFFER ? buffer : new byte[INITIAL_BUFFER];
+            return Arrays.copyOf(buffer, length);
+        } finally {
+            release(s);
+        }
+    }
+
+    private slot acquire() {
+        slot s = pool.poll();
+        return s != null ? s : new slot();
+    }
+
+    private void release(slot s) {
+        s.deflater.reset();
+        if (!pool.offer(s)) {
+            s.deflater.end();
+        }
+    }
+
+    private static final class slot {
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        byte[] buffer = new byte[INITIAL_BUFFER];
+    }
+}
@@ -0,0 +1,24 @@
+package communication;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * ReceiveService 从套接字读取一行请求的耗时，包括等待客户端发送的时间。
+ */
+@Name("acounting_system.SocketRead")
+@Label("Socket Read")
+@Category({"Accounting", "Network"})
+@StackTrace(false)
+@Description("Reading one request line from a client connection")
+class SocketReadEvent extends Event {
+    @Label("Connection Id")
+    long connectionId;
+
+    @Label("Characters")
+    int characters;
+}
@@ -0,0 +1,14 @@
+package communication;
+
+import java.util.concurrent.CompletionStage;
+
+import ResultManagement.ChunkSink;
+
+/**
+ * 处理需要流式回复的请求：把输出写入 sink，返回的 CompletionStage 在输出结束后完成。
+ * 同一连接上后续请求的回复排在它之后写出。
+ */
+@FunctionalInterface
+public interface StreamingHandler {
+    CompletionStage<Void> stream(String line, ChunkSink sink);
+}
@@ -0,0 +1,176 @@
+package communication;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 按用户登记的推送订阅。数据变更通过 publish 通知，同一用户在合并窗口内的多次变更只推送一次最新版本；
+ * 定时线程只把推送放入各订阅连接自己的有界队列，由连接的写线程写出：一个不再读取的订阅方
+ * 只会堵住自己的队列，队列满时该订阅被关闭，其他用户的推送与心跳不受影响。
+ * 推送行与普通回复格式一致：push~1~版本号~null，客户端收到后用 sync 拉取变更。
+ */
+public final class SubscriptionHub {
+    static final String HEARTBEAT_LINE = "@ping";
+
+    private final long coalesceMillis;
+    private final long heartbeatMillis;
+    private final int maxSubscribers;
+    // 每个订阅连接最多排队的推送与心跳数
+    private final int maxQueued;
+    // 用户的订阅集合只在 compute 中修改，集合变空时随之从表中移除
+    private final ConcurrentHashMap<String, Set<ClientConnection>> subscribers = new ConcurrentHashMap<>();
+    // 所有用户的订阅连接数，先占用名额再登记，保证不超过 maxSubscribers
+    private final AtomicInteger subscriberCount = new AtomicInteger();
+    // 等待推送的用户及其最新版本
+    private final ConcurrentHashMap<String, Long> dirty = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private volatile ScheduledExecutorService scheduler;
+
+    public SubscriptionHub(long coalesceMillis, long heartbeatMillis, int maxSubscribers, int maxQueued) {
+        if (coalesceMillis < 0 || heartbeatMillis <= 0 || maxSubscribers <= 0 || maxQueued <= 0) {
+            throw new IllegalArgumentException("invalid subscription settings");
+        }
+        this.coalesceMillis = coalesceMillis;
+        this.heartbeatMillis = heartbeatMillis;
+        this.maxSubscribers = maxSubscribers;
+        this.maxQueued = maxQueued;
+    }
+
+    public static SubscriptionHub fromSystemProperties() {
+        return new SubscriptionHub(Long.getLong("push.coalesceMs", 50L),
+                Long.getLong("push.heartbeatMs", 15000L),
+                Integer.getInteger("push.maxSubscribers", 1024),
+                Integer.getInteger("push.maxQueued", 16));
+    }
+
+    void start() {
+        ScheduledExecutorService s = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "push-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+        // 心跳让已断开的订阅在写失败时被发现并移除
+        s.scheduleWithFixedDelay(this::heartbeat, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+        scheduler = s;
+    }
+
+    /**
+     * 记录一次已提交的变更，可在任意线程调用且不会阻塞。
+     */
+    public void publish(String username, long version) {
+        if (username == null || !subscribers.containsKey(username)) {
+            return;
+        }
+        dirty.merge(username, version, Math::max);
+        ScheduledExecutorService s = scheduler;
+        if (s != null && flushScheduled.compareAndSet(false, true)) {
+            try {
+                s.schedule(this::flush, coalesceMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // 已停止
+                flushScheduled.set(false);
+            }
+        }
+    }
+
+    public int getSubscriberCount() {
+        return subscriberCount.get();
+    }
+
+    boolean isSubscribed(String username, ClientConnection connection) {
+        Set<ClientConnection> set = subscribers.get(username);
+        return set != null && set.contains(connection);
+    }
+
+    /**
+     * 超过订阅上限时返回 false，调用方应拒绝订阅。
+     */
+    boolean subscribe(String username, ClientConnection connection) {
+        if (subscriberCount.incrementAndGet() > maxSubscribers) {
+            subscriberCount.decrementAndGet();
+            return false;
+        }
+        // 在 compute 中加入：与 unsubscribe 移除空集合互斥，不会加入一个已从表中移除的集合
+        boolean[] added = new boolean[1];
+        subscribers.compute(username, (key, set) -> {
+            Set<ClientConnection> current = set != null ? set : ConcurrentHashMap.newKeySet();
+            added[0] = current.add(connection);
+            return current;
+        });
+        if (!added[0]) {
+            subscriberCount.decrementAndGet();
+        }
+        return true;
+    }
+
+    void unsubscribe(String username, ClientConnection connection) {
+        boolean[] removed = new boolean[1];
+        subscribers.computeIfPresent(username, (key, set) -> {
+            removed[0] = set.remove(connection);
+            return set.isEmpty() ? null : set;
+        });
+        if (removed[0]) {
+            subscriberCount.decrementAndGet();
+        }
+    }
+
+    private void flush() {
+        // 先清除标记再取数据，flush 期间到达的变更会安排下一次 flush
+        flushScheduled.set(false);
+        for (String username : dirty.keySet()) {
+            Long version = dirty.remove(username);
+            if (version != null) {
+                send(username, "push~1~" + version + "~null");
+            }
+        }
+    }
+
+    private void heartbeat() {
+        for (String username : subscribers.keySet()) {
+            send(username, HEARTBEAT_LINE);
+        }
+    }
+
+    private void send(String username, String line) {
+        Set<ClientConnection> set = subscribers.get(username);
+        if (set == null) {
+            return;
+        }
+        for (ClientConnection connection : set) {
+            if (!connection.push(line, maxQueued, () -> drop(username, connection))) {
+                // 队列已满：订阅方长时间没有读取，关闭连接让其阻塞中的写入也随之结束
+                drop(username, connection);
+            }
+        }
+    }
+
+    private void drop(String username, ClientConnection connection) {
+        unsubscribe(username, connection);
+        connection.close();
+    }
+
+    /**
+     * 停止推送并关闭所有订阅连接。
+     */
+    void close() {
+        ScheduledExecutorService s = scheduler;
+        scheduler = null;
+        if (s != null) {
+            s.shutdownNow();
+        }
+        for (Set<ClientConnection> set : subscribers.values()) {
+            for (ClientConnection connection : set) {
+                connection.close();
+            }
+        }
+        subscribers.clear();
+        subscriberCount.set(0);
+        dirty.clear();
+    }
+}
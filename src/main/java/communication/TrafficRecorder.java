@@ -0,0 +1,382 @@
+package communication;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import LogManagement.AsyncLog;
+
+/**
+ * 把收到的请求行连同时间与连接编号写入滚动的抓包文件，供 TrafficReplay 按真实的请求组合与节奏回放。
+ * 用户名（以及 login/register 的密码）替换为以本次运行的随机密钥计算的 HMAC 假名，
+ * 同一用户在一次抓包中假名不变，回放时注册、登录与后续请求仍然对得上。
+ *
+ * 请求线程只把记录放入有界队列，由单独的线程压缩写盘；队列满时丢弃记录而不阻塞请求。
+ * 文件格式（gzip 压缩）：magic, 版本, 起始时间(微秒) | 记录：距上一条的微秒数, 连接编号, 长度, UTF-8 内容（均为变长整数）。
+ *
+ * 启用：-Dcapture.dir=目录，单个文件达到 -Dcapture.maxBytes（默认 64 MiB）后换新文件，最多保留 -Dcapture.maxFiles（默认 8）个。
+ */
+public final class TrafficRecorder implements AutoCloseable {
+    static final int MAGIC = 0x41434150;
+    static final int FORMAT_VERSION = 1;
+    static final String SUFFIX = ".acap";
+    private static final String[] PASSWORD_ACTIONS = {"login", "register"};
+
+    private static final class capture {
+        final long epochMicros;
+        final long connectionId;
+        final String line;
+
+        capture(long epochMicros, long connectionId, String line) {
+            this.epochMicros = epochMicros;
+            this.connectionId = connectionId;
+            this.line = line;
+        }
+    }
+
+    private final Path dir;
+    private final long maxBytes;
+    private final int maxFiles;
+    private final BlockingQueue<capture> queue;
+    private final Mac mac;
+    private final AtomicLong recorded = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+    private volatile boolean closing;
+
+    // 以下字段只由写盘线程访问
+    private countingstream counter;
+    private DataOutputStream out;
+    private long lastMicros;
+    private int fileSeq;
+
+    public TrafficRecorder(Path dir, long maxBytes, int maxFiles, int queueCapacity) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.maxFiles = Math.max(1, maxFiles);
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        Files.createDirectories(dir);
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        try {
+            mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("无法初始化假名密钥", e);
+        }
+        writer = new Thread(this::drain, "traffic-recorder");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * 未设置 capture.dir 时返回 null（不抓包）。
+     */
+    public static TrafficRecorder fromSystemProperties() {
+        String dir = System.getProperty("capture.dir");
+        if (dir == null || dir.trim().isEmpty()) {
+            return null;
+        }
+        try {
+            return new TrafficRecorder(Paths.get(dir.trim()), Long.getLong("capture.maxBytes", 64L << 20),
+                    Integer.getInteger("capture.maxFiles", 8), Integer.getInteger("capture.queue", 65536));
+        } catch (IOException e) {
+            AsyncLog.error("capture", e);
+            return null;
+        }
+    }
+
+    /**
+     * 记录一行请求；在请求线程上调用，只做假名替换与入队。
+     */
+    public void record(long connectionId, String line) {
+        if (closing) {
+            return;
+        }
+        long micros = ChronoUnit.MICROS.between(Instant.EPOCH, Instant.now());
+        if (queue.offer(new capture(micros, connectionId, anonymise(line)))) {
+            recorded.incrementAndGet();
+        } else {
+            dropped.incrementAndGet();
+        }
+    }
+
+    public long getRecorded() {
+        return recorded.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * 替换请求中的用户名（带 "#编号 " 前缀时替换其后的部分），login/register 的密码同样替换。
+     */
+    String anonymise(String line) {
+        String tag = ReceiveService.requestTag(line);
+        String prefix = tag == null ? "" : line.substring(0, tag.length() + 2);
+        String request = line.substring(prefix.length());
+        int comma = request.indexOf(',');
+        if (comma < 0) {
+            return line;
+        }
+        String[] parts = request.split(",", -1);
+        parts[0] = "u" + pseudonym(parts[0].trim());
+        if (parts.length > 2) {
+            String action = parts[1].trim();
+            for (String passwordAction : PASSWORD_ACTIONS) {
+                if (passwordAction.equals(action)) {
+                    parts[2] = "p" + pseudonym(parts[2]);
+                }
+            }
+        }
+        return prefix + String.join(",", parts);
+    }
+
+    private String pseudonym(String value) {
+        byte[] digest;
+        synchronized (mac) {
+            digest = mac.doFinal(value.getBytes(StandardCharsets.UTF_8));
+        }
+        return HexFormat.of().formatHex(digest, 0, 6);
+    }
+
+    private void drain() {
+        try {
+            while (!closing || !queue.isEmpty()) {
+                capture next = queue.poll(200, TimeUnit.MILLISECONDS);
+                if (next == null) {
+                    if (out != null) {
+                        out.flush();
+                    }
+                    continue;
+                }
+                write(next);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            AsyncLog.error("capture", e);
+        } finally {
+            try {
+                closeFile();
+            } catch (IOException e) {
+                AsyncLog.error("capture", e);
+            }
+        }
+    }
+
+    private void write(capture r) throws IOException {
+        if (out == null || counter.count >= maxBytes) {
+            rotate(r.epochMicros);
+        }
+        byte[] bytes = r.line.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, Math.max(0, r.epochMicros - lastMicros));
+        writeVarLong(out, r.connectionId);
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+        lastMicros = Math.max(lastMicros, r.epochMicros);
+    }
+
+    private void rotate(long epochMicros) throws IOException {
+        closeFile();
+        Path file = dir.resolve(String.format("capture-%d-%04d%s",
+                TimeUnit.MICROSECONDS.toMillis(epochMicros), fileSeq++ % 10000, SUFFIX));
+        counter = new countingstream(Files.newOutputStream(file));
+        out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(counter, 8192, true)));
+        out.writeInt(MAGIC);
+        out.writeByte(FORMAT_VERSION);
+        out.writeLong(epochMicros);
+        lastMicros = epochMicros;
+        prune();
+    }
+
+    private void closeFile() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    /**
+     * 只保留最新的 maxFiles 个文件（文件名以创建时间开头，按名称排序即按时间排序）。
+     */
+    private void prune() throws IOException {
+        List<Path> files = captureFiles(dir);
+        for (int i = 0; i < files.size() - maxFiles; i++) {
+            Files.deleteIfExists(files.get(i));
+        }
+    }
+
+    /**
+     * 目录中的抓包文件，按时间先后排序。
+     */
+    static List<Path> captureFiles(Path dir) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> listing = Files.list(dir)) {
+            listing.filter(p -> p.getFileName().toString().endsWith(SUFFIX)).sorted().forEach(files::add);
+        }
+        return files;
+    }
+
+    /**
+     * 等待写线程写完已排队的记录；被中断时不再等待，保留中断标记。
+     */
+    @Override
+    public void close() {
+        closing = true;
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 按顺序读出一个抓包文件中的记录，最后一条写到一半（例如进程被杀）时忽略它。
+     */
+    static void read(Path file, recordvisitor visitor) throws IOException {
+        try (cursor records = new cursor(file)) {
+            while (records.next()) {
+                visitor.accept(records.epochMicros, records.connectionId, records.line);
+            }
+        }
+    }
+
+    /**
+     * 逐条读取一个抓包文件，内存中只有当前一条；文件内的时间不递减。
+     * 最后一条写到一半或 gzip 尾部缺失（进程未正常关闭）时视为文件结束。
+     */
+    static final class cursor implements Closeable {
+        private final DataInputStream in;
+        private boolean ended;
+        long epochMicros;
+        long connectionId;
+        String line;
+
+        cursor(Path file) throws IOException {
+            InputStream raw = Files.newInputStream(file);
+            DataInputStream opened = null;
+            try {
+                opened = new DataInputStream(new BufferedInputStream(new GZIPInputStream(raw)));
+                if (opened.readInt() != MAGIC || opened.readByte() != FORMAT_VERSION) {
+                    throw new IOException("不是抓包文件: " + file);
+                }
+                epochMicros = opened.readLong();
+            } catch (EOFException e) {
+                ended = true;
+            } catch (IOException | RuntimeException e) {
+                raw.close();
+                throw e;
+            }
+            in = opened;
+            if (in == null) {
+                raw.close();
+            }
+        }
+
+        /**
+         * 读到下一条时返回 true 并更新 epochMicros、connectionId 与 line。
+         */
+        boolean next() throws IOException {
+            if (ended) {
+                return false;
+            }
+            try {
+                long delta = readVarLong(in);
+                long id = readVarLong(in);
+                byte[] bytes = new byte[(int) readVarLong(in)];
+                in.readFully(bytes);
+                epochMicros += delta;
+                connectionId = id;
+                line = new String(bytes, StandardCharsets.UTF_8);
+                return true;
+            } catch (EOFException e) {
+                ended = true;
+                return false;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (in != null) {
+                in.close();
+            }
+        }
+    }
+
+    interface recordvisitor {
+        void accept(long epochMicros, long connectionId, String line) throws IOException;
+    }
+
+    static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("变长整数过长");
+    }
+
+    /**
+     * 统计压缩后写入的字节数，用于决定何时换文件。
+     */
+    private static final class countingstream extends FilterOutputStream {
+        long count;
+
+        countingstream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
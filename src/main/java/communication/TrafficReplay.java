@@ -0,0 +1,486 @@
+package communication;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 把 TrafficRecorder 的抓包回放到一个新启动的服务，按 action 报告吞吐与延迟分位数：
+ * java communication.TrafficReplay 抓包目录或文件 host:port [1x|Nx|max]
+ *
+ * 抓包按时间顺序逐条读取，不整体载入内存。抓包中的连接在它的第一条请求到期时才打开一条新连接，
+ * 连接内的请求顺序不变；没有在途请求、空闲超过 -Dreplay.idleMs（默认 1000）的连接被关闭，该抓包连接
+ * 之后的请求再打开新连接。同时打开的连接数不超过 -Dreplay.maxConnections（默认 256），达到上限时
+ * 回放等待有连接关闭（落后于原始节奏），因此每条请求一条连接的旧抓包也只占用有限的线程。
+ * 1x/Nx 按抓包中的时间间隔（除以 N）开环发送；max 不等待时间，每条连接等上一条回复到达后立即发送下一条。
+ * 订阅、流式导出与连接控制行不回放。
+ * 回放机器不在目标的 -Dserver.trustedProxies 中时所有连接按同一地址计数，目标应以足够大的
+ * -Dserver.maxRequestsPerClient 启动，否则部分请求会收到 busy。
+ */
+public final class TrafficReplay {
+    // 回放结束后等待未到回复的最长时间
+    private static final long DRAIN_TIMEOUT_MS = Long.getLong("replay.timeoutMs", 10000L);
+    private static final int MAX_TAGGED_IN_FLIGHT = 16;
+    private static final int MAX_CONNECTIONS = Integer.getInteger("replay.maxConnections", 256);
+    private static final long IDLE_MILLIS = Long.getLong("replay.idleMs", 1000L);
+    // 每条连接排队等待发送的请求数上限，max 模式下读取抓包不会远远领先于发送
+    private static final int SESSION_QUEUE = 1024;
+
+    /**
+     * 抓包中的一条请求，epochMicros 为服务器收到它的时间。
+     */
+    static final class request {
+        final long epochMicros;
+        final long connectionId;
+        final String line;
+
+        request(long epochMicros, long connectionId, String line) {
+            this.epochMicros = epochMicros;
+            this.connectionId = connectionId;
+            this.line = line;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("用法: TrafficReplay <抓包目录或文件> <host:port> [1x|Nx|max]");
+            System.exit(2);
+        }
+        int colon = args[1].lastIndexOf(':');
+        double speed = parseSpeed(args.length > 2 ? args[2] : "1x");
+        report result = replay(Paths.get(args[0]), args[1].substring(0, colon),
+                Integer.parseInt(args[1].substring(colon + 1)), speed);
+        System.out.print(result);
+    }
+
+    /**
+     * "max" 返回 0，"Nx"（或 N）返回 N。
+     */
+    static double parseSpeed(String text) {
+        String speed = text.trim().toLowerCase(Locale.ROOT);
+        if (speed.equals("max")) {
+            return 0;
+        }
+        double factor = Double.parseDouble(speed.endsWith("x") ? speed.substring(0, speed.length() - 1) : speed);
+        if (!(factor > 0)) {
+            throw new IllegalArgumentException("速度应为正数或 max: " + text);
+        }
+        return factor;
+    }
+
+    /**
+     * 按时间顺序逐条读出一个抓包文件或目录中全部抓包文件的记录。记录器按时间先后换文件、
+     * 文件内时间不递减，因此按文件名顺序读取即按时间顺序。
+     */
+    static final class capturestream implements Closeable {
+        private final Iterator<Path> files;
+        private TrafficRecorder.cursor current;
+
+        capturestream(Path path) throws IOException {
+            files = (Files.isDirectory(path) ? TrafficRecorder.captureFiles(path) : List.of(path)).iterator();
+        }
+
+        /**
+         * 下一条记录，全部读完时返回 null。
+         */
+        request next() throws IOException {
+            while (true) {
+                if (current == null) {
+                    if (!files.hasNext()) {
+                        return null;
+                    }
+                    current = new TrafficRecorder.cursor(files.next());
+                }
+                if (current.next()) {
+                    return new request(current.epochMicros, current.connectionId, current.line);
+                }
+                current.close();
+                current = null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (current != null) {
+                current.close();
+                current = null;
+            }
+        }
+    }
+
+    /**
+     * 请求的 action（第二个逗号分隔字段），带编号时忽略 "#编号 " 前缀。
+     */
+    static String actionOf(String line) {
+        String tag = ReceiveService.requestTag(line);
+        String request = tag == null ? line : line.substring(tag.length() + 2);
+        String[] parts = request.split(",", 3);
+        return parts.length < 2 ? "unknown" : parts[1].trim();
+    }
+
+    /**
+     * 不回放的请求：控制行、订阅与流式导出（回复不是一问一答）。
+     */
+    static boolean replayable(String line) {
+        if (line.startsWith("@")) {
+            return false;
+        }
+        String action = actionOf(line);
+        return !action.equals("subscribe") && !action.equals("export");
+    }
+
+    /**
+     * 回放一个抓包文件或目录并等待回复，speed 为 0 表示不限速。
+     */
+    static report replay(Path path, String host, int port, double speed) throws Exception {
+        try (capturestream requests = new capturestream(path)) {
+            return replay(requests, host, port, speed, MAX_CONNECTIONS, IDLE_MILLIS);
+        }
+    }
+
+    /**
+     * 在调用线程上按时间顺序读取并分发请求：请求到期时交给它所属抓包连接的会话，
+     * 会话不存在或已因空闲关闭时占用一个名额打开新会话。
+     */
+    static report replay(capturestream requests, String host, int port, double speed, int maxConnections,
+            long idleMillis) throws Exception {
+        report result = new report();
+        AtomicInteger threadSeq = new AtomicInteger();
+        // 每个会话一个发送线程和一个读取线程
+        ExecutorService threads = Executors.newFixedThreadPool(2 * maxConnections, r -> {
+            Thread t = new Thread(r, "replay-" + threadSeq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        Semaphore slots = new Semaphore(maxConnections);
+        // 只由调用线程访问；关闭的会话通过 closed 队列告知，以便从表中移除
+        Map<Long, session> open = new HashMap<>();
+        ConcurrentLinkedQueue<session> closed = new ConcurrentLinkedQueue<>();
+        long firstMicros = -1;
+        long startNanos = System.nanoTime();
+        try {
+            request r;
+            while ((r = requests.next()) != null) {
+                if (!replayable(r.line)) {
+                    result.skipped.incrementAndGet();
+                    continue;
+                }
+                if (firstMicros < 0) {
+                    firstMicros = r.epochMicros;
+                    startNanos = System.nanoTime();
+                }
+                waitUntil(r, firstMicros, startNanos, speed);
+                for (session done; (done = closed.poll()) != null; ) {
+                    open.remove(done.connectionId, done);
+                }
+                session s = open.get(r.connectionId);
+                if (s == null || !s.offer(r)) {
+                    slots.acquire();
+                    s = new session(r.connectionId, host, port, result, speed, idleMillis, slots::release);
+                    s.offer(r);
+                    session started = s;
+                    threads.execute(() -> {
+                        started.run(threads);
+                        closed.add(started);
+                    });
+                    open.put(r.connectionId, s);
+                }
+            }
+            for (session s : open.values()) {
+                s.finish();
+            }
+            // 所有名额都归还即所有会话已结束
+            slots.acquire(maxConnections);
+        } finally {
+            threads.shutdownNow();
+        }
+        result.elapsedNanos = System.nanoTime() - startNanos;
+        return result;
+    }
+
+    private static void waitUntil(request r, long firstMicros, long startNanos, double speed) throws InterruptedException {
+        if (speed == 0) {
+            return;
+        }
+        long due = startNanos + (long) (TimeUnit.MICROSECONDS.toNanos(r.epochMicros - firstMicros) / speed);
+        long wait = due - System.nanoTime();
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    /**
+     * 回放一条抓包连接：发送线程取出到期的请求发出，读取线程把回复与请求配对（不带编号的按顺序，带编号的按编号）。
+     * 没有排队与在途的请求、空闲 idleMillis 后关闭；关闭后 offer 返回 false。
+     */
+    private static final class session {
+        private static final class pending {
+            final String action;
+            final long sentNanos;
+
+            pending(String action, long sentNanos) {
+                this.action = action;
+                this.sentNanos = sentNanos;
+            }
+        }
+
+        // 分发线程不再有请求时放入队列
+        private static final request END = new request(0, 0, "");
+
+        final long connectionId;
+        private final String host;
+        private final int port;
+        private final report result;
+        private final double speed;
+        private final long idleMillis;
+        private final Runnable onClosed;
+        private final BlockingQueue<request> queue = new ArrayBlockingQueue<>(SESSION_QUEUE);
+        private final ConcurrentLinkedQueue<pending> ordered = new ConcurrentLinkedQueue<>();
+        private final ConcurrentHashMap<String, pending> tagged = new ConcurrentHashMap<>();
+        private final AtomicLong outstanding = new AtomicLong();
+        // max 模式下不带编号的请求一次只有一个在途，带编号的最多 MAX_TAGGED_IN_FLIGHT 个
+        private final Semaphore orderedPermits = new Semaphore(1);
+        private final Semaphore taggedPermits = new Semaphore(MAX_TAGGED_IN_FLIGHT);
+        // 在本对象上加锁读写
+        private boolean closed;
+
+        session(long connectionId, String host, int port, report result, double speed, long idleMillis,
+                Runnable onClosed) {
+            this.connectionId = connectionId;
+            this.host = host;
+            this.port = port;
+            this.result = result;
+            this.speed = speed;
+            this.idleMillis = idleMillis;
+            this.onClosed = onClosed;
+        }
+
+        /**
+         * 由分发线程调用；会话已关闭时返回 false。队列满时等待发送线程取走请求。
+         */
+        synchronized boolean offer(request r) throws InterruptedException {
+            if (closed) {
+                return false;
+            }
+            queue.put(r);
+            return true;
+        }
+
+        void finish() throws InterruptedException {
+            offer(END);
+        }
+
+        /**
+         * 关闭空闲的会话：队列为空（加锁检查，与 offer 互斥）且没有在途请求时才关闭。
+         */
+        private synchronized boolean closeIfIdle() {
+            if (queue.isEmpty() && outstanding.get() == 0) {
+                closed = true;
+            }
+            return closed;
+        }
+
+        void run(Executor threads) {
+            CountDownLatch readerDone = new CountDownLatch(1);
+            try (Socket socket = new Socket(host, port)) {
+                Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                threads.execute(() -> {
+                    try {
+                        readReplies(reader);
+                    } finally {
+                        readerDone.countDown();
+                    }
+                });
+                while (true) {
+                    request r = queue.poll(idleMillis, TimeUnit.MILLISECONDS);
+                    if (r == null) {
+                        if (closeIfIdle()) {
+                            break;
+                        }
+                        continue;
+                    }
+                    if (r == END) {
+                        synchronized (this) {
+                            closed = true;
+                        }
+                        break;
+                    }
+                    send(writer, r);
+                }
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DRAIN_TIMEOUT_MS);
+                while (outstanding.get() > 0 && System.nanoTime() - deadline < 0 && readerDone.getCount() > 0) {
+                    Thread.sleep(5);
+                }
+                result.unanswered.addAndGet(outstanding.get());
+            } catch (Exception e) {
+                result.failedConnections.incrementAndGet();
+                synchronized (this) {
+                    closed = true;
+                }
+            } finally {
+                // 套接字已关闭，读取线程随之结束
+                try {
+                    readerDone.await(DRAIN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                onClosed.run();
+            }
+        }
+
+        private void send(Writer writer, request r) throws IOException, InterruptedException {
+            String tag = ReceiveService.requestTag(r.line);
+            if (speed == 0) {
+                (tag == null ? orderedPermits : taggedPermits).acquire();
+            }
+            pending p = new pending(actionOf(r.line), System.nanoTime());
+            outstanding.incrementAndGet();
+            if (tag == null) {
+                ordered.add(p);
+            } else {
+                tagged.put(tag, p);
+            }
+            writer.write(r.line);
+            writer.write('\n');
+            writer.flush();
+        }
+
+        private void readReplies(BufferedReader reader) {
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    pending p;
+                    String reply = line;
+                    String tag = line.startsWith("#") ? ReceiveService.requestTag(line) : null;
+                    if (tag != null) {
+                        p = tagged.remove(tag);
+                        reply = line.substring(tag.length() + 2);
+                        taggedPermits.release();
+                    } else {
+                        p = ordered.poll();
+                        orderedPermits.release();
+                    }
+                    if (p == null) {
+                        continue;
+                    }
+                    outstanding.decrementAndGet();
+                    result.record(p.action, System.nanoTime() - p.sentNanos, reply);
+                }
+            } catch (IOException e) {
+                // 连接被关闭，未到的回复计入 unanswered
+            }
+        }
+    }
+
+    /**
+     * 按 action 汇总的结果；toString 输出一张表。
+     */
+    static final class report {
+        final AtomicLong skipped = new AtomicLong();
+        final AtomicLong unanswered = new AtomicLong();
+        final AtomicLong failedConnections = new AtomicLong();
+        volatile long elapsedNanos;
+        private final Map<String, actionstats> actions = new TreeMap<>();
+
+        synchronized void record(String action, long latencyNanos, String reply) {
+            actions.computeIfAbsent(action, a -> new actionstats()).add(latencyNanos, reply);
+        }
+
+        synchronized long completed() {
+            long total = 0;
+            for (actionstats stats : actions.values()) {
+                total += stats.count;
+            }
+            return total;
+        }
+
+        synchronized actionstats stats(String action) {
+            return actions.get(action);
+        }
+
+        @Override
+        public synchronized String toString() {
+            double seconds = Math.max(1e-9, elapsedNanos / 1e9);
+            StringBuilder out = new StringBuilder();
+            out.append(String.format(Locale.ROOT, "完成 %d 条，用时 %.2f s，吞吐 %.1f 条/s；跳过 %d，未回复 %d，连接失败 %d%n",
+                    completed(), seconds, completed() / seconds, skipped.get(), unanswered.get(), failedConnections.get()));
+            out.append(String.format(Locale.ROOT, "%-12s %8s %8s %6s %10s %10s %10s %10s%n",
+                    "action", "count", "failed", "busy", "p50(ms)", "p90(ms)", "p99(ms)", "max(ms)"));
+            for (Map.Entry<String, actionstats> entry : actions.entrySet()) {
+                actionstats s = entry.getValue();
+                out.append(String.format(Locale.ROOT, "%-12s %8d %8d %6d %10.2f %10.2f %10.2f %10.2f%n",
+                        entry.getKey(), s.count, s.failed, s.busy, s.percentileMillis(0.5), s.percentileMillis(0.9),
+                        s.percentileMillis(0.99), s.percentileMillis(1.0)));
+            }
+            return out.toString();
+        }
+    }
+
+    static final class actionstats {
+        long count;
+        long failed;
+        long busy;
+        private long[] latencies = new long[64];
+
+        void add(long latencyNanos, String reply) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, latencies.length * 2);
+            }
+            latencies[(int) count++] = latencyNanos;
+            if (reply.equals(ReceiveService.BUSY_REPLY)) {
+                busy++;
+            } else if (!succeeded(reply)) {
+                failed++;
+            }
+        }
+
+        /**
+         * 回复格式 action~1/0~message~entries。
+         */
+        private static boolean succeeded(String reply) {
+            String[] fields = reply.split("~", 3);
+            return fields.length >= 2 && fields[1].equals("1");
+        }
+
+        double percentileMillis(double q) {
+            if (count == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(latencies, (int) count);
+            Arrays.sort(sorted);
+            int index = (int) Math.min(count - 1, Math.max(0, Math.ceil(q * count) - 1));
+            return sorted[index] / 1e6;
+        }
+    }
+
+    private TrafficReplay() {
+    }
+}
@@ -0,0 +1,91 @@
+package LogManagement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AsyncLogTest {
+    private Path dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("asynclog");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try (var files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+        Files.deleteIfExists(dir);
+    }
+
+    @Test
+    public void testEventsAreWrittenByDrainer() throws Exception {
+        AsyncLog log = new AsyncLog(16, new RollingFileWriter(dir, "test.log", 1 << 20, 2), 5);
+        log.startDrainer();
+        assertTrue(log.publish("AUDIT", "login", "alice", "bad_password", 0, null));
+        assertTrue(log.publish("ERROR", "receive", null, null, 0, new IllegalStateException("boom")));
+        log.close();
+
+        String content = Files.readString(dir.resolve("test.log"), StandardCharsets.UTF_8);
+        assertTrue(content.contains("AUDIT\tlogin\tuser=alice\toutcome=bad_password"));
+        assertTrue(content.contains("ERROR\treceive"));
+        assertTrue(content.contains("IllegalStateException: boom"));
+    }
+
+    @Test
+    public void testFullBufferDropsInsteadOfBlocking() throws Exception {
+        // 不启动后台线程，缓冲区写满后新事件被丢弃并计数
+        AsyncLog log = new AsyncLog(4, new RollingFileWriter(dir, "test.log", 1 << 20, 2), 5);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(log.publish("AUDIT", "delete", "bob", "ok", i + 1, null));
+        }
+        assertFalse(log.publish("AUDIT", "delete", "bob", "ok", 5, null));
+
+        log.startDrainer();
+        log.close();
+        String content = Files.readString(dir.resolve("test.log"), StandardCharsets.UTF_8);
+        assertTrue(content.contains("value=4"));
+        assertFalse(content.contains("value=5"));
+        assertTrue(content.contains("dropped=1"));
+    }
+
+    @Test
+    public void testErrorsAreSampledPerSecond() throws Exception {
+        AsyncLog log = new AsyncLog(16, new RollingFileWriter(dir, "test.log", 1 << 20, 2), 3);
+        int sampled = 0;
+        for (int i = 0; i < 10; i++) {
+            if (log.sampleError()) {
+                sampled++;
+            }
+        }
+        assertEquals(3, sampled);
+        log.close();
+    }
+
+    @Test
+    public void testFilesRollAtMaxBytes() throws Exception {
+        RollingFileWriter writer = new RollingFileWriter(dir, "test.log", 100, 2);
+        for (int i = 0; i < 20; i++) {
+            writer.writeLine("line-" + i + "-xxxxxxxxxxxxxxxxxxxxxxxxxxxxxx");
+        }
+        writer.close();
+
+        assertTrue(Files.exists(dir.resolve("test.log")));
+        assertTrue(Files.exists(dir.resolve("test.log.1")));
+        assertTrue(Files.exists(dir.resolve("test.log.2")));
+        assertFalse(Files.exists(dir.resolve("test.log.3")));
+        assertTrue(Files.readString(dir.resolve("test.log.1")).contains("line-17-"));
+    }
+}
@@ -0,0 +1,95 @@
+package RequestManagement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import sharedmodel.Entry;
+
+public class ArchiveSegmentTest {
+    private Path dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("segments");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try (var files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+        Files.deleteIfExists(dir);
+    }
+
+    private static String dateOf(int day) {
+        return String.format("2001-%02d-%02d", day / 28 + 1, day % 28 + 1);
+    }
+
+    private Path writeSegment(int rows) throws Exception {
+        Path file = dir.resolve("seg.acs");
+        try (archivesegment.writer writer = new archivesegment.writer(file)) {
+            for (int i = 0; i < rows; i++) {
+                writer.add(new Entry((long) i + 100, "alice", i, i % 2 == 0 ? "expense" : "income",
+                        dateOf(i / 3), "subject" + i, i % 5 == 0 ? null : "note" + i));
+            }
+            writer.finish();
+        }
+        assertFalse(Files.exists(dir.resolve("seg.acs.tmp")));
+        return file;
+    }
+
+    @Test
+    public void testRoundTripAllRows() throws Exception {
+        Path file = writeSegment(1000);
+        archivesegment segment = archivesegment.open(file);
+        assertEquals((1000 + archivesegment.BLOCK_ROWS - 1) / archivesegment.BLOCK_ROWS, segment.blocks.size());
+
+        List<Entry> out = new ArrayList<>();
+        segment.read(file, "alice", null, null, entry -> true, out);
+        assertEquals(1000, out.size());
+        Entry fifth = out.get(5);
+        assertEquals(Long.valueOf(105), fifth.id);
+        assertEquals("alice", fifth.username);
+        assertEquals("income", fifth.type);
+        assertEquals("subject5", fifth.subject);
+        assertNull(fifth.note);
+    }
+
+    @Test
+    public void testDateRangeOnlyTouchesOverlappingBlocks() throws Exception {
+        Path file = writeSegment(1000);
+        archivesegment segment = archivesegment.open(file);
+        String start = dateOf(10);
+        String end = dateOf(12);
+        long overlapping = segment.blocks.stream().filter(b -> b.overlaps(start, end)).count();
+        assertEquals(1, overlapping);
+
+        List<Entry> out = new ArrayList<>();
+        segment.read(file, "alice", start, end,
+                entry -> entry.date.compareTo(start) >= 0 && entry.date.compareTo(end) <= 0, out);
+        assertEquals(9, out.size());
+    }
+
+    @Test
+    public void testContainsUsesIdRanges() throws Exception {
+        Path file = writeSegment(600);
+        archivesegment segment = archivesegment.open(file);
+        assertTrue(segment.contains(file, 100));
+        assertTrue(segment.contains(file, 699));
+        assertFalse(segment.contains(file, 700));
+        assertFalse(segment.contains(file, 5));
+    }
+}
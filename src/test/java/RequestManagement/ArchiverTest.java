@@ -0,0 +1,84 @@
+package RequestManagement;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ArchiverTest {
+    private static final String URL = "jdbc:h2:mem:archivertest;DB_CLOSE_DELAY=-1";
+
+    private shardrouter router;
+
+    private static String url(int shard) {
+        return URL;
+    }
+
+    @Before
+    public void setUp() throws SQLException {
+        try (Connection c = DriverManager.getConnection(URL, "sa", "")) {
+            migrationrunner.standard().migrate(c);
+        }
+        router = new shardrouter(1, ArchiverTest::url, "sa", "", 2);
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        router.close();
+        try (Connection c = DriverManager.getConnection(URL, "sa", "");
+             Statement stmt = c.createStatement()) {
+            stmt.execute("DROP ALL OBJECTS");
+        }
+    }
+
+    private static void insertOld(String username) throws SQLException {
+        try (Connection c = DriverManager.getConnection(URL, "sa", "");
+             PreparedStatement entry = c.prepareStatement(
+                     "INSERT INTO entries (username, amount, type, date, subject, note, version) VALUES (?, 1.0, 'expense', '2001-01-01', 's', 'n', 1)")) {
+            entry.setString(1, username);
+            entry.executeUpdate();
+        }
+    }
+
+    @Test
+    public void testLongUsernameIsArchivedAndDoesNotStopThePass() throws Exception {
+        // 十六进制目录名会超过文件名长度上限
+        String longName = "a" + "长".repeat(100);
+        insertOld(longName);
+        insertOld("bob");
+        Path dir = Files.createTempDirectory("archiver");
+        archivestore store = new archivestore(dir);
+
+        assertEquals(2, new archiver(router, store, 100).run(LocalDate.of(2010, 1, 1)));
+        try (Connection c = DriverManager.getConnection(URL, "sa", "")) {
+            assertEquals(1, store.read(c, longName, null, null, entry -> true).size());
+            assertEquals(1, store.read(c, "bob", null, null, entry -> true).size());
+        }
+    }
+
+    @Test
+    public void testFailingUserDoesNotStopThePass() throws Exception {
+        insertOld("alice");
+        insertOld("bob");
+        Path dir = Files.createTempDirectory("archiver");
+        archivestore store = new archivestore(dir);
+        // alice 的目录位置被一个普通文件占住，她的归档失败
+        Files.createDirectories(store.userDir("alice").getParent());
+        Files.writeString(store.userDir("alice"), "");
+
+        assertEquals(1, new archiver(router, store, 100).run(LocalDate.of(2010, 1, 1)));
+        try (Connection c = DriverManager.getConnection(URL, "sa", "")) {
+            assertEquals(1, store.read(c, "bob", null, null, entry -> true).size());
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package RequestManagement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BudgetTrackerTest {
+
+    private static final String URL = "jdbc:h2:mem:budgettrackertest;DB_CLOSE_DELAY=-1";
+    private static final LocalDate MAY = LocalDate.of(2024, 5, 15);
+    private Connection conn;
+
+    @Before
+    public void setUp() throws SQLException {
+        conn = DriverManager.getConnection(URL, "sa", "");
+        migrationrunner.standard().migrate(conn);
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("DROP ALL OBJECTS");
+        }
+        conn.close();
+    }
+
+    private long insert(String username, double amount, String type, String date, String subject) throws SQLException {
+        try (PreparedStatement insert = conn.prepareStatement(
+                "INSERT INTO entries (username, amount, type, date, subject, note, version) VALUES (?, ?, ?, ?, ?, '', 1)",
+                new String[] {"ID"})) {
+            insert.setString(1, username);
+            insert.setDouble(2, amount);
+            insert.setString(3, type);
+            insert.setString(4, date);
+            insert.setString(5, subject);
+            insert.executeUpdate();
+            try (ResultSet keys = insert.getGeneratedKeys()) {
+                keys.next();
+                return keys.getLong(1);
+            }
+        }
+    }
+
+    private void budget(String username, String subject, String period, double limit) throws SQLException {
+        try (PreparedStatement insert = conn.prepareStatement(
+                "INSERT INTO budgets (username, subject, period, limit_amount) VALUES (?, ?, ?, ?)")) {
+            insert.setString(1, username);
+            insert.setString(2, subject);
+            insert.setString(3, period);
+            insert.setDouble(4, limit);
+            insert.executeUpdate();
+        }
+    }
+
+    @Test
+    public void testLoadAllRebuildsCurrentPeriodTotals() throws SQLException {
+        budget("alice", "food", "month", 500);
+        budget("alice", "food", "week", 100);
+        insert("alice", 200, "expense", "2024/05/02", "food");
+        insert("alice", 30, "expense", "2024-05-14", "food");
+        // 其他月份、收入、其他科目与无法解析的日期都不计入
+        insert("alice", 999, "expense", "2024-04-30", "food");
+        insert("alice", 999, "income", "2024-05-03", "food");
+        insert("alice", 999, "expense", "2024-05-03", "rent");
+        insert("alice", 999, "expense", "someday", "food");
+
+        budgettracker tracker = new budgettracker(Long.MAX_VALUE);
+        tracker.loadAll(conn);
+        List<budgettracker.usage> usages = tracker.usages(conn, "alice", MAY);
+        assertEquals(2, usages.size());
+        assertEquals("month=230.00/500.00", usages.get(0).toString());
+        assertEquals("week=30.00/100.00", usages.get(1).toString());
+    }
+
+    @Test
+    public void testAddedReportsBreachesAndDeleteDecrements() throws SQLException {
+        budget("alice", "food", "month", 100);
+        budgettracker tracker = new budgettracker(Long.MAX_VALUE);
+
+        // 第一次用到时才加载，加载的查询已经包含这笔插入，不会重复累加
+        insert("alice", 60, "expense", "2024-05-01", "food");
+        assertTrue(tracker.added(conn, "alice", "food", "expense", "2024-05-01", 60).isEmpty());
+
+        long second = insert("alice", 50, "expense", "2024-05-20", "food");
+        List<budgettracker.usage> breaches = tracker.added(conn, "alice", "food", "expense", "2024-05-20", 50);
+        assertEquals(1, breaches.size());
+        assertEquals("month=110.00/100.00", breaches.get(0).toString());
+
+        assertTrue(tracker.added(conn, "alice", "rent", "expense", "2024-05-20", 5000).isEmpty());
+        assertTrue(tracker.added(conn, "alice", "food", "income", "2024-05-20", 5000).isEmpty());
+
+        tracker.deleting(conn, "alice", second);
+        assertEquals(60.0, tracker.usages(conn, "alice", MAY).get(0).spent, 1e-9);
+    }
+
+    @Test
+    public void testInvalidateReloadsFromDatabase() throws SQLException {
+        budgettracker tracker = new budgettracker(Long.MAX_VALUE);
+        assertTrue(tracker.usages(conn, "bob", MAY).isEmpty());
+        budget("bob", "travel", "month", 1000);
+        insert("bob", 400, "expense", "2024-05-05", "travel");
+        // 状态已缓存，直到失效为止
+        assertTrue(tracker.usages(conn, "bob", MAY).isEmpty());
+        tracker.invalidate("bob");
+        assertEquals("month=400.00/1000.00", tracker.usages(conn, "bob", MAY).get(0).toString());
+
+        // 有效期为 0 时每次都从数据库加载
+        budgettracker shared = new budgettracker(0);
+        shared.usages(conn, "bob", MAY);
+        insert("bob", 700, "expense", "2024-05-06", "travel");
+        assertEquals(1100.0, shared.usages(conn, "bob", MAY).get(0).spent, 1e-9);
+    }
+
+    @Test
+    public void testPeriodKeys() {
+        assertEquals("2024-05", budgettracker.period.MONTH.key(MAY));
+        // ISO 周：2024-12-30 属于 2025 年第 1 周
+        assertEquals("2025-W01", budgettracker.period.WEEK.key(LocalDate.of(2024, 12, 30)));
+        assertEquals(budgettracker.period.MONTH, budgettracker.period.parse(""));
+        assertEquals(budgettracker.period.WEEK, budgettracker.period.parse(" Week "));
+        assertNull(budgettracker.period.parse("year"));
+        assertNull(budgettracker.parseDate("2024-13-01"));
+    }
+}
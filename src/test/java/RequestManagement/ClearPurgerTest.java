@@ -0,0 +1,104 @@
+package RequestManagement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ClearPurgerTest {
+
+    private static final String URL = "jdbc:h2:mem:clearpurgertest;DB_CLOSE_DELAY=-1";
+    private Connection conn;
+
+    @Before
+    public void setUp() throws SQLException {
+        conn = DriverManager.getConnection(URL, "sa", "");
+        migrationrunner.standard().migrate(conn);
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("DROP ALL OBJECTS");
+        }
+        conn.close();
+    }
+
+    private void insert(String username, int rows) throws SQLException {
+        try (PreparedStatement insert = conn.prepareStatement(
+                "INSERT INTO entries (username, amount, type, date, subject, note, version) VALUES (?, 1.0, 'expense', '2024/01/01', 's', 'n', 1)")) {
+            for (int i = 0; i < rows; i++) {
+                insert.setString(1, username);
+                insert.addBatch();
+            }
+            insert.executeBatch();
+        }
+    }
+
+    private long count(String sql) throws SQLException {
+        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(sql)) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    @Test
+    public void testPurgeDeletesBelowWatermarkInChunks() throws Exception {
+        insert("alice", 10);
+        insert("bob", 4);
+        long watermark = count("SELECT MAX(id) FROM entries WHERE username = 'alice'");
+        // 水位线之后新增的记录不受影响
+        insert("alice", 2);
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("INSERT INTO user_versions (username, version, cleared_version, cleared_below, purge_pending) "
+                    + "VALUES ('alice', 2, 2, " + watermark + ", TRUE)");
+        }
+
+        clearpurger purger = new clearpurger(username -> DriverManager.getConnection(URL, "sa", ""), 3, 0);
+        purger.submit("alice");
+        assertEquals("queued", purger.status("alice"));
+        // 不启动后台线程，直接在测试线程执行
+        clearpurger.progress p = new clearpurger.progress();
+        purger.purge("alice", p);
+
+        assertEquals(10, p.total);
+        assertEquals(10, p.deleted);
+        assertEquals(2, count("SELECT COUNT(*) FROM entries WHERE username = 'alice'"));
+        assertEquals(4, count("SELECT COUNT(*) FROM entries WHERE username = 'bob'"));
+        assertFalse(count("SELECT COUNT(*) FROM user_versions WHERE username = 'alice' AND purge_pending") > 0);
+    }
+
+    @Test
+    public void testBackgroundWorkerFinishesJob() throws Exception {
+        insert("carol", 7);
+        long watermark = count("SELECT MAX(id) FROM entries WHERE username = 'carol'");
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("INSERT INTO user_versions (username, version, cleared_version, cleared_below, purge_pending) "
+                    + "VALUES ('carol', 1, 1, " + watermark + ", TRUE)");
+        }
+        clearpurger purger = new clearpurger(username -> DriverManager.getConnection(URL, "sa", ""), 2, 1);
+        purger.start();
+        try {
+            purger.submit("carol");
+            long deadline = System.currentTimeMillis() + 5000;
+            while (purger.status("carol") != null && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        } finally {
+            purger.stop(2000);
+        }
+        assertNull(purger.status("carol"));
+        assertEquals(0, count("SELECT COUNT(*) FROM entries WHERE username = 'carol'"));
+        assertEquals(0, count("SELECT COUNT(*) FROM user_versions WHERE purge_pending"));
+    }
+}
@@ -0,0 +1,134 @@
+package RequestManagement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class DbExecutorTest {
+
+    private dbexecutor executor;
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (executor != null) {
+            executor.shutdown(1, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testSubmitReturnsValue() throws Exception {
+        executor = new dbexecutor(1, 4, 1000);
+        assertEquals(Integer.valueOf(42), executor.submit(() -> 42).get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testSubmitTimesOut() throws Exception {
+        executor = new dbexecutor(1, 4, 50);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Integer> future = executor.submit(() -> {
+            release.await(2, TimeUnit.SECONDS);
+            return 1;
+        });
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            fail("expected timeout");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void testQueuedTaskSkippedAfterCancel() throws Exception {
+        executor = new dbexecutor(1, 4, 1000);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.submit(() -> release.await(2, TimeUnit.SECONDS));
+        AtomicBoolean ran = new AtomicBoolean();
+        CompletableFuture<Boolean> queued = executor.submit(() -> {
+            ran.set(true);
+            return true;
+        });
+        queued.cancel(false);
+        release.countDown();
+        executor.shutdown(1, TimeUnit.SECONDS);
+        assertTrue(!ran.get());
+    }
+
+    @Test
+    public void testRejectsWhenQueueFull() throws Exception {
+        executor = new dbexecutor(1, 1, 1000);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.submit(() -> release.await(2, TimeUnit.SECONDS));
+        executor.submit(() -> 1);
+        CompletableFuture<Integer> rejected = executor.submit(() -> 2);
+        assertEquals(1, executor.getRejectedCount());
+        try {
+            rejected.get(1, TimeUnit.SECONDS);
+            fail("expected rejection");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void testHigherPriorityRunsFirst() throws Exception {
+        executor = new dbexecutor(1, 8, 1000);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.submit(() -> release.await(2, TimeUnit.SECONDS));
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        CompletableFuture<Boolean> low = executor.submit(dbexecutor.PRIORITY_LOW, () -> order.add("list"));
+        CompletableFuture<Boolean> high = executor.submit(dbexecutor.PRIORITY_HIGH, () -> order.add("login"));
+        release.countDown();
+        CompletableFuture.allOf(low, high).get(1, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList("login", "list"), order);
+        assertEquals(0, executor.getRejectedCount());
+    }
+
+    @Test
+    public void testSameKeyKeepsSubmissionOrder() throws Exception {
+        executor = new dbexecutor(1, 8, 1000);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.submit(() -> release.await(2, TimeUnit.SECONDS));
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        CompletableFuture<Boolean> list = executor.submit("alice", dbexecutor.PRIORITY_LOW, () -> order.add("alice-list"));
+        CompletableFuture<Boolean> delete = executor.submit("alice", dbexecutor.PRIORITY_HIGH, () -> order.add("alice-delete"));
+        CompletableFuture<Boolean> other = executor.submit("bob", dbexecutor.PRIORITY_HIGH, () -> order.add("bob-add"));
+        release.countDown();
+        CompletableFuture.allOf(list, delete, other).get(1, TimeUnit.SECONDS);
+        // 其他用户的高优先级任务仍可插队，同一用户的任务不会
+        assertEquals(Arrays.asList("bob-add", "alice-list", "alice-delete"), order);
+    }
+
+    @Test
+    public void testDifferentKeysRunInParallelLanes() throws Exception {
+        executor = new dbexecutor(2, 8, 1000);
+        CountDownLatch release = new CountDownLatch(1);
+        // "a" 与 "b" 的哈希值相邻，落在不同通道
+        CompletableFuture<Boolean> blocked = executor.submit("a", dbexecutor.PRIORITY_NORMAL,
+                () -> release.await(2, TimeUnit.SECONDS));
+        try {
+            assertEquals("done", executor.submit("b", dbexecutor.PRIORITY_NORMAL, () -> "done").get(1, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+        }
+        assertTrue(blocked.get(1, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,31 @@
+package RequestManagement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class IdempotencyCacheTest {
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        idempotencycache cache = new idempotencycache(2, 60000);
+        cache.put("alice", "k1", 1);
+        cache.put("alice", "k2", 2);
+        // 访问 k1 后 k2 成为最久未使用的条目
+        assertEquals(Long.valueOf(1), cache.get("alice", "k1"));
+        cache.put("bob", "k1", 3);
+        assertNull(cache.get("alice", "k2"));
+        assertEquals(Long.valueOf(3), cache.get("bob", "k1"));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testExpiredEntriesAreIgnored() throws Exception {
+        idempotencycache cache = new idempotencycache(10, 20);
+        cache.put("alice", "k1", 1);
+        Thread.sleep(50);
+        assertNull(cache.get("alice", "k1"));
+        assertEquals(0, cache.size());
+    }
+}
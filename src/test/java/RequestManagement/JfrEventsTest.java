@@ -0,0 +1,90 @@
+package RequestManagement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import sharedmodel.Entry;
+
+public class JfrEventsTest {
+
+    @Test
+    public void testRequestStagesAreRecorded() throws Exception {
+        parser p = new parser();
+        p.sql = new sqloperation() {
+            @Override
+            public List<Entry> solveList(String username) throws SQLException {
+                return List.of(new Entry("alice", 1.0, "expense", "2024-01-01", "a", "b"),
+                        new Entry("alice", 2.0, "expense", "2024-01-02", "c", "d"));
+            }
+        };
+        Path file = Files.createTempFile("events", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("acounting_system.Tokenize");
+            recording.enable("acounting_system.Sql");
+            recording.enable("acounting_system.Serialize");
+            recording.start();
+            p.parseRequest("alice,list").toString();
+            recording.stop();
+            recording.dump(file);
+        }
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file).stream()
+                .filter(e -> e.getEventType().getName().startsWith("acounting_system."))
+                .collect(Collectors.toList());
+        Files.deleteIfExists(file);
+
+        RecordedEvent tokenize = only(events, "acounting_system.Tokenize");
+        assertEquals("list", tokenize.getString("action"));
+        assertEquals("alice".hashCode(), tokenize.getInt("userHash"));
+
+        RecordedEvent sql = only(events, "acounting_system.Sql");
+        assertEquals("list", sql.getString("operation"));
+        assertEquals(2, sql.getInt("rows"));
+        assertTrue(sql.getBoolean("succeeded"));
+
+        RecordedEvent serialize = only(events, "acounting_system.Serialize");
+        assertEquals(2, serialize.getInt("rows"));
+        assertTrue(serialize.getInt("characters") > 0);
+    }
+
+    @Test
+    public void testMalformedRequestsAreRecorded() throws Exception {
+        parser p = new parser();
+        Path file = Files.createTempFile("events", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("acounting_system.Tokenize");
+            recording.start();
+            p.parseRequest("alice");
+            p.parseRequest("  ");
+            recording.stop();
+            recording.dump(file);
+        }
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file).stream()
+                .filter(e -> e.getEventType().getName().equals("acounting_system.Tokenize"))
+                .collect(Collectors.toList());
+        Files.deleteIfExists(file);
+
+        assertEquals(2, events.size());
+        assertEquals("unknown", events.get(0).getString("action"));
+        assertEquals(1, events.get(0).getInt("fields"));
+        assertEquals(0, events.get(1).getInt("fields"));
+    }
+
+    private static RecordedEvent only(List<RecordedEvent> events, String name) {
+        List<RecordedEvent> matching = events.stream()
+                .filter(e -> e.getEventType().getName().equals(name))
+                .collect(Collectors.toList());
+        assertEquals(name, 1, matching.size());
+        return matching.get(0);
+    }
+}
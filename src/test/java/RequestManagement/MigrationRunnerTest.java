@@ -0,0 +1,138 @@
+package RequestManagement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.h2.tools.Server;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MigrationRunnerTest {
+
+    private static final String URL = "jdbc:h2:mem:migrationtest;DB_CLOSE_DELAY=-1";
+    private Connection conn;
+
+    @Before
+    public void setUp() throws SQLException {
+        conn = DriverManager.getConnection(URL, "sa", "");
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("DROP ALL OBJECTS");
+        }
+        conn.close();
+    }
+
+    private long count(String sql) throws SQLException {
+        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(sql)) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    @Test
+    public void testFreshDatabaseAppliesForegroundSteps() throws Exception {
+        migrationrunner runner = migrationrunner.standard();
+        runner.migrate(conn);
+        Set<Integer> applied = migrationrunner.appliedVersions(conn);
+        assertTrue(applied.contains(1));
+        assertTrue(applied.contains(3));
+        // 后台步骤不在 migrate 中执行
+        assertTrue(!applied.contains(4));
+
+        // 再次执行不会重复记录
+        migrationrunner.standard().migrate(conn);
+        assertEquals(applied.size(), migrationrunner.appliedVersions(conn).size());
+    }
+
+    @Test
+    public void testLegacyTableUpgradedAndBackfilledInChunks() throws Exception {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE entries (id BIGINT AUTO_INCREMENT PRIMARY KEY, username VARCHAR(255) NOT NULL, "
+                    + "amount DOUBLE NOT NULL, date VARCHAR(64), subject VARCHAR(255), note VARCHAR(1024))");
+            stmt.execute("INSERT INTO entries (username, amount, date) SELECT 'u', X, '2024-01-01' FROM SYSTEM_RANGE(1, "
+                    + (migrationrunner.BACKFILL_CHUNK * 2 + 5) + ")");
+        }
+        migrationrunner runner = migrationrunner.standard();
+        runner.migrate(conn);
+        assertEquals(migrationrunner.BACKFILL_CHUNK * 2 + 5, count("SELECT COUNT(*) FROM entries WHERE type IS NULL"));
+
+        runner.startBackground(() -> DriverManager.getConnection(URL, "sa", ""));
+        runner.awaitBackground(10000);
+        assertEquals(0, count("SELECT COUNT(*) FROM entries WHERE type IS NULL"));
+        assertTrue(migrationrunner.appliedVersions(conn).contains(4));
+    }
+
+    @Test
+    public void testExpiredLockLeftByCrashedInstanceIsTakenOver() throws Exception {
+        migrationrunner.standard().migrate(conn);
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("DELETE FROM schema_version WHERE version = 10");
+            // 上一个实例在迁移中途崩溃，锁没有释放
+            stmt.execute("INSERT INTO schema_lock (id, acquired_at) VALUES (1, DATEADD(SECOND, -"
+                    + (migrationrunner.LOCK_EXPIRY_SECONDS + 1) + ", CURRENT_TIMESTAMP))");
+        }
+        migrationrunner.standard().migrate(conn, true);
+        assertTrue(migrationrunner.appliedVersions(conn).contains(10));
+        assertEquals(0, count("SELECT COUNT(*) FROM schema_lock"));
+    }
+
+    @Test
+    public void testUnsharedDatabaseIgnoresMigrationLock() throws Exception {
+        migrationrunner.standard().migrate(conn);
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("DELETE FROM schema_version WHERE version = 10");
+            stmt.execute("INSERT INTO schema_lock (id, acquired_at) VALUES (1, CURRENT_TIMESTAMP)");
+        }
+        // 文件模式下只有本进程打开数据库，残留的锁不会让启动等待
+        migrationrunner.standard().migrate(conn, false);
+        assertTrue(migrationrunner.appliedVersions(conn).contains(10));
+    }
+
+    @Test
+    public void testInstancesSharingAServerMigrateConcurrently() throws Exception {
+        // 多实例部署时各实例连接同一个 H2 TCP 服务器，启动时可能同时执行迁移
+        Path baseDir = Files.createTempDirectory("h2server");
+        Server server = Server.createTcpServer("-tcpPort", "0", "-baseDir", baseDir.toString(), "-ifNotExists").start();
+        try {
+            String url = "jdbc:h2:tcp://localhost:" + server.getPort() + "/shared";
+            List<Thread> instances = new ArrayList<>();
+            List<Throwable> failures = new CopyOnWriteArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                Thread t = new Thread(() -> {
+                    try (Connection c = DriverManager.getConnection(url, "sa", "")) {
+                        migrationrunner.standard().migrate(c, true);
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                });
+                instances.add(t);
+                t.start();
+            }
+            for (Thread t : instances) {
+                t.join(10000);
+            }
+            assertTrue(failures.toString(), failures.isEmpty());
+            try (Connection c = DriverManager.getConnection(url, "sa", "")) {
+                assertTrue(migrationrunner.appliedVersions(c).contains(5));
+            }
+        } finally {
+            server.stop();
+        }
+    }
+}
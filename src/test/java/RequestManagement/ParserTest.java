@@ -2,16 +2,20 @@ package RequestManagement;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.IOException;
 import java.sql.SQLException;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Before;
 import org.junit.Test;
 
+import ResultManagement.ChunkSink;
 import ResultManagement.ParseResult;
 import sharedmodel.Entry;
 
@@ -31,12 +35,40 @@ public class ParserTest {
         public int clearCount = 5;
         public List<Entry> searchResults = new ArrayList<>();
         public List<Entry> listResults = new ArrayList<>();
+        public syncresult syncResult = syncresult.notModified(3);
+        public long lastSyncVersion = -1;
+
+        public addrequest lastAdd;
 
         @Override
         public Boolean solveAdd(addrequest Add) throws SQLException {
             return addSuccess;
         }
 
+        @Override
+        public Long solveAddEntry(addrequest Add) throws SQLException {
+            lastAdd = Add;
+            Add.budgetAlerts = addAlerts;
+            return addSuccess ? 17L : null;
+        }
+
+        public List<budgettracker.usage> addAlerts;
+        public budgetrequest lastBudget;
+
+        @Override
+        public budgettracker.usage solveSetBudget(budgetrequest Budget) throws SQLException {
+            lastBudget = Budget;
+            return Budget.limit > 0 ? new budgettracker.usage(Budget.subject, Budget.period, Budget.limit, 120) : null;
+        }
+
+        public int lastSuggestLimit;
+
+        @Override
+        public List<subjectindex.suggestion> solveSuggest(String username, String prefix, int limit) throws SQLException {
+            lastSuggestLimit = limit;
+            return List.of(new subjectindex.suggestion("Food", 12), new subjectindex.suggestion("fo;o d", 3));
+        }
+
         @Override
         public Boolean solveRegister(registerrequest Register) throws SQLException {
             return registerSuccess;
@@ -62,6 +94,23 @@ public class ParserTest {
             return clearCount;
         }
 
+        public List<Entry> exportEntries = new ArrayList<>();
+        public exportrequest lastExport;
+
+        @Override
+        public long solveExport(exportrequest Export, entryvisitor visitor) throws SQLException, IOException {
+            lastExport = Export;
+            for (Entry entry : exportEntries) {
+                visitor.accept(entry);
+            }
+            return exportEntries.size();
+        }
+
+        @Override
+        public String solveClearStatus(String username) throws SQLException {
+            return "running:2000/5000";
+        }
+
         @Override
         public List<Entry> solveSearch(searchrequest Search) throws SQLException {
             return searchResults;
@@ -72,6 +121,12 @@ public class ParserTest {
             return listResults;
         }
 
+        @Override
+        public syncresult solveSync(syncrequest Sync) throws SQLException {
+            lastSyncVersion = Sync.sinceVersion;
+            return syncResult;
+        }
+
         @Override
         public void initialize() throws ClassNotFoundException, SQLException {
             // Do nothing
@@ -223,6 +278,83 @@ public class ParserTest {
         assertEquals("缺少要删除的记录ID", result.message);
     }
 
+    @Test
+    public void testHandleSyncRequestNotModified() {
+        ParseResult result = p.parseRequest("user,sync,3");
+        assertEquals("sync", result.action);
+        assertTrue(result.success);
+        assertEquals("not_modified:3", result.message);
+        assertEquals(3, mockSql.lastSyncVersion);
+    }
+
+    @Test
+    public void testHandleSyncRequestDelta() {
+        List<Entry> inserts = new ArrayList<>();
+        inserts.add(new Entry("user", 1.0, "expense", "2023-01-01", "Food", "Lunch"));
+        mockSql.syncResult = new syncresult(7, false, false, inserts, List.of(4L, 5L));
+        ParseResult result = p.parseRequest("user,sync,5");
+        assertTrue(result.success);
+        assertEquals("delta:7:4,5", result.message);
+        assertEquals(inserts, result.entries);
+    }
+
+    @Test
+    public void testHandleSyncRequestWithoutVersion() {
+        mockSql.syncResult = new syncresult(2, false, true, new ArrayList<>(), List.of());
+        ParseResult result = p.parseRequest("user,sync");
+        assertEquals("reset:2", result.message);
+        assertEquals(0, mockSql.lastSyncVersion);
+    }
+
+    @Test
+    public void testHandleSyncRequestInvalidVersion() {
+        ParseResult result = p.parseRequest("user,sync,abc");
+        assertFalse(result.success);
+        assertEquals("版本号无效", result.message);
+    }
+
+    @Test
+    public void testAddWithIdempotencyKey() {
+        ParseResult result = p.parseRequest("user,add,100,2023-01-01,expense,food,lunch,idem=k-1");
+        assertTrue(result.success);
+        assertEquals("id:17", result.message);
+        assertEquals("k-1", mockSql.lastAdd.idemKey);
+
+        // 第 8 个字段不带 idem= 前缀时（例如备注中含逗号）不视为幂等键
+        p.parseRequest("user,add,100,2023-01-01,expense,food,lunch,more");
+        assertNull(mockSql.lastAdd.idemKey);
+
+        ParseResult invalid = p.parseRequest("user,add,100,2023-01-01,expense,food,lunch,idem=");
+        assertFalse(invalid.success);
+        assertEquals("幂等键无效", invalid.message);
+    }
+
+    @Test
+    public void testUsernameOf() {
+        assertEquals("alice", parser.usernameOf(" alice ,list"));
+        assertNull(parser.usernameOf("nocomma"));
+        assertNull(parser.usernameOf(",list"));
+        assertNull(parser.usernameOf(null));
+    }
+
+    @Test
+    public void testStatsRequiresAdmin() {
+        ParseResult result = p.parseRequest("user,stats");
+        assertEquals("stats", result.action);
+        assertFalse(result.success);
+        assertEquals("无权限", result.message);
+        assertTrue(parser.adminUsers(" root ,ops,").contains("root"));
+        assertEquals(2, parser.adminUsers(" root ,ops,").size());
+    }
+
+    @Test
+    public void testAnalyticsRequiresAdmin() {
+        ParseResult result = p.parseRequest("user,analytics,7");
+        assertEquals("analytics", result.action);
+        assertFalse(result.success);
+        assertEquals("无权限", result.message);
+    }
+
     @Test
     public void testHandleClearRequest() {
         String request = "user,clear";
@@ -231,4 +363,157 @@ public class ParserTest {
         assertTrue(result.success);
         assertEquals("5", result.message);
     }
+
+    @Test
+    public void testHandleClearStatusRequest() {
+        ParseResult result = p.parseRequest("user,clearstatus");
+        assertEquals("clearstatus", result.action);
+        assertTrue(result.success);
+        assertEquals("running:2000/5000", result.message);
+    }
+
+    @Test
+    public void testParseRequestAsyncCompletesWithResult() throws Exception {
+        ParseResult result = p.parseRequestAsync("user,list").get(5, TimeUnit.SECONDS);
+        assertEquals("list", result.action);
+        assertTrue(result.success);
+    }
+
+    @Test
+    public void testParseRequestAsyncInvalidRequest() throws Exception {
+        ParseResult result = p.parseRequestAsync("user").get(5, TimeUnit.SECONDS);
+        assertEquals("unknown", result.action);
+        assertFalse(result.success);
+        assertEquals("请求格式错误", result.message);
+    }
+
+    @Test
+    public void testActionOf() {
+        assertEquals("list", parser.actionOf("user, list "));
+        assertEquals("add", parser.actionOf("user,add,1,2023-01-01"));
+        assertEquals("unknown", parser.actionOf("user"));
+        assertEquals("unknown", parser.actionOf(null));
+    }
+
+    @Test
+    public void testPriorityOf() {
+        assertEquals(dbexecutor.PRIORITY_HIGH, parser.priorityOf("login"));
+        assertEquals(dbexecutor.PRIORITY_HIGH, parser.priorityOf("add"));
+        assertEquals(dbexecutor.PRIORITY_HIGH, parser.priorityOf("suggest"));
+        assertEquals(dbexecutor.PRIORITY_NORMAL, parser.priorityOf("search"));
+        assertEquals(dbexecutor.PRIORITY_LOW, parser.priorityOf("list"));
+    }
+
+    /**
+     * 把 ChunkSink 的调用按顺序记录成文本。
+     */
+    static class RecordingSink implements ChunkSink {
+        final List<String> events = new ArrayList<>();
+        final StringBuilder data = new StringBuilder();
+
+        @Override
+        public void begin(String action, String contentType) {
+            events.add("begin:" + contentType);
+        }
+
+        @Override
+        public void chunk(int lines, CharSequence chunk) {
+            events.add("chunk:" + lines);
+            data.append(chunk);
+        }
+
+        @Override
+        public void end(long rows) {
+            events.add("end:" + rows);
+        }
+
+        @Override
+        public void abort(String message) {
+            events.add("abort");
+        }
+
+        @Override
+        public void reject(String reply) {
+            events.add("reject:" + reply);
+        }
+    }
+
+    @Test
+    public void testExportAsyncStreamsCsvInChunks() throws Exception {
+        for (int i = 1; i <= 3; i++) {
+            mockSql.exportEntries.add(new Entry((long) i, "user", i * 1.5, "expense", "2024-01-0" + i, "food", "note " + i));
+        }
+        RecordingSink sink = new RecordingSink();
+        p.exportAsync("user,export,csv,2024-01-01,2024-01-31", sink).get(5, TimeUnit.SECONDS);
+
+        assertEquals("begin:text/csv; charset=utf-8", sink.events.get(0));
+        assertEquals("end:3", sink.events.get(sink.events.size() - 1));
+        assertEquals("2024-01-01", mockSql.lastExport.startDate);
+        assertNull(mockSql.lastExport.typeFilter);
+        String[] lines = sink.data.toString().split("\n");
+        assertEquals(4, lines.length);
+        assertEquals("id,amount,type,date,subject,note", lines[0]);
+        assertEquals("2,3.0,expense,2024-01-02,food,note 2", lines[2]);
+    }
+
+    @Test
+    public void testExportAsyncRejectsUnknownFormat() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        p.exportAsync("user,export,xml", sink).get(5, TimeUnit.SECONDS);
+        assertEquals(1, sink.events.size());
+        assertTrue(sink.events.get(0).startsWith("reject:export~0~"));
+    }
+
+    @Test
+    public void testExportOverPlainReplyIsRejected() {
+        ParseResult result = p.parseRequest("user,export,csv");
+        assertEquals("export", result.action);
+        assertFalse(result.success);
+        assertTrue(parser.isStreamingRequest("user,export,csv"));
+        assertFalse(parser.isStreamingRequest("user,list"));
+    }
+
+    @Test
+    public void testBudgetRequest() {
+        ParseResult result = p.parseRequest("user,budget,food,500");
+        assertTrue(result.success);
+        assertEquals("month=120.00/500.00", result.message);
+        assertEquals(budgettracker.period.MONTH, mockSql.lastBudget.period);
+
+        result = p.parseRequest("user,budget,food,100,week");
+        assertEquals("week=120.00/100.00", result.message);
+        assertEquals("removed", p.parseRequest("user,budget,food,0").message);
+
+        assertEquals("科目无效", p.parseRequest("user,budget,a/b,100").message);
+        assertEquals("金额格式错误", p.parseRequest("user,budget,food,NaN").message);
+        assertEquals("周期应为 month 或 week", p.parseRequest("user,budget,food,100,year").message);
+    }
+
+    @Test
+    public void testAddReplyCarriesBudgetAlerts() {
+        mockSql.addAlerts = List.of(new budgettracker.usage("food", budgettracker.period.MONTH, 500, 523.4),
+                new budgettracker.usage("food", budgettracker.period.WEEK, 100, 130));
+        ParseResult result = p.parseRequest("user,add,60,2024-05-08,expense,food,lunch");
+        assertEquals("id:17;budget:month=523.40/500.00,week=130.00/100.00", result.message);
+    }
+
+    @Test
+    public void testSuggestRequest() {
+        ParseResult result = p.parseRequest("user,suggest,fo");
+        assertTrue(result.success);
+        assertEquals("Food:12;fo%3Bo+d:3", result.message);
+        assertEquals(8, mockSql.lastSuggestLimit);
+
+        assertTrue(p.parseRequest("user,suggest,,20").success);
+        assertEquals(20, mockSql.lastSuggestLimit);
+        assertFalse(p.parseRequest("user,suggest,fo,21").success);
+        assertFalse(p.parseRequest("user,suggest,fo,x").success);
+    }
+
+    @Test
+    public void testRecurringRejectsUnboundedBackfill() {
+        ParseResult result = p.parseRequest("user,recurring,1,expense,rent,n,daily,0001-01-01,9999-12-31");
+        assertFalse(result.success);
+        assertTrue(result.message, result.message.startsWith("开始日期过早"));
+    }
 }
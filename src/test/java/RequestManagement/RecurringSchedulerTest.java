@@ -0,0 +1,76 @@
+package RequestManagement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.List;
+
+import org.junit.Test;
+
+import ResultManagement.ParseResult;
+import sharedmodel.Entry;
+
+public class RecurringSchedulerTest {
+
+    private static recurringscheduler.template monthly(LocalDate start, LocalDate end) {
+        return new recurringscheduler.template(1, "alice", 3000, "expense", "rent", "", "monthly", start, end, 0);
+    }
+
+    @Test
+    public void testMonthlyOccurrencesKeepDayOfMonth() {
+        recurringscheduler.template rent = monthly(LocalDate.of(2024, 1, 31), LocalDate.of(2024, 4, 29));
+        assertEquals(LocalDate.of(2024, 2, 29), rent.dateAt(1));
+        // 短月落在月末之后仍回到 31 日
+        assertEquals(LocalDate.of(2024, 3, 31), rent.dateAt(2));
+        assertFalse(rent.endedAt(2));
+        assertTrue(rent.endedAt(3));
+        assertEquals("rec:1:2024-02-29", rent.idemKey(rent.dateAt(1)));
+    }
+
+    @Test
+    public void testWindowMayCrossMidnight() {
+        recurringscheduler.window night = recurringscheduler.window.parse("23:00-02:00");
+        assertTrue(night.contains(LocalTime.of(23, 30)));
+        assertTrue(night.contains(LocalTime.of(1, 59)));
+        assertFalse(night.contains(LocalTime.of(2, 0)));
+        assertFalse(night.contains(LocalTime.of(12, 0)));
+        assertTrue(recurringscheduler.window.parse("").contains(LocalTime.NOON));
+        assertTrue(recurringscheduler.window.parse("01:00-05:00").contains(LocalTime.of(4, 59)));
+    }
+
+    @Test
+    public void testCatchUpInBatchesIsIdempotent() throws Exception {
+        parser p = new parser();
+        try {
+            p.sql.initialize();
+            p.parseRequest("recuruser,clear");
+            LocalDate today = LocalDate.now();
+            ParseResult created = p.parseRequest("recuruser,recurring,12.5,expense,Coffee,daily,daily,"
+                    + today.minusDays(4) + "," + today.plusDays(10));
+            assertTrue(created.message, created.success);
+            String templateId = created.message.substring("id:".length(), created.message.indexOf(';'));
+
+            // 停机期间错过的 5 次发生按每批 2 条补齐
+            recurringscheduler scheduler = new recurringscheduler(p.sql, sqloperation.SHARDS,
+                    recurringscheduler.window.parse(""), 2, 0);
+            assertEquals(5, scheduler.run(today));
+            assertEquals(0, scheduler.run(today));
+
+            List<Entry> entries = p.parseRequest("recuruser,list").entries;
+            assertEquals(5, entries.size());
+            assertEquals(12.5, entries.get(0).amount, 1e-9);
+            assertTrue(p.parseRequest("recuruser,recurrings").message
+                    .startsWith(templateId + ":daily:" + today.plusDays(1) + ":12.50:expense:Coffee"));
+
+            assertEquals(1, scheduler.run(today.plusDays(1)));
+            assertTrue(p.parseRequest("recuruser,unrecurring," + templateId).success);
+            assertEquals("", p.parseRequest("recuruser,recurrings").message);
+            assertEquals(0, scheduler.run(today.plusDays(5)));
+        } finally {
+            p.parseRequest("recuruser,clear");
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package RequestManagement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Test;
+
+import sharedmodel.Entry;
+
+public class ShardRebalancerTest {
+
+    private static String url(int shard) {
+        return "jdbc:h2:mem:rebalance_" + shard + ";DB_CLOSE_DELAY=-1";
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        for (int shard = 0; shard < 3; shard++) {
+            try (Connection c = DriverManager.getConnection(url(shard), "sa", "");
+                 Statement stmt = c.createStatement()) {
+                stmt.execute("DROP ALL OBJECTS");
+            }
+        }
+    }
+
+    private static long count(int shard, String sql) throws SQLException {
+        try (Connection c = DriverManager.getConnection(url(shard), "sa", "");
+             Statement stmt = c.createStatement(); ResultSet rs = stmt.executeQuery(sql)) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    @Test
+    public void testRebalanceMovesUsersToTheirNewShard() throws SQLException {
+        try (Connection c = DriverManager.getConnection(url(0), "sa", "")) {
+            migrationrunner.standard().migrate(c);
+            try (PreparedStatement user = c.prepareStatement("INSERT INTO users VALUES (?, 'pw')");
+                 PreparedStatement entry = c.prepareStatement(
+                         "INSERT INTO entries (username, amount, type, date, subject, note, version) VALUES (?, 1.0, 'expense', '2024-01-01', 's', 'n', 1)")) {
+                for (int i = 0; i < 20; i++) {
+                    user.setString(1, "user" + i);
+                    user.executeUpdate();
+                    entry.setString(1, "user" + i);
+                    entry.executeUpdate();
+                    entry.executeUpdate();
+                }
+            }
+        }
+
+        shardrebalancer tool = new shardrebalancer(ShardRebalancerTest::url, "sa", "");
+        int moved = tool.rebalance(1, 3);
+        // 再次运行不会重复搬迁
+        assertEquals(0, tool.rebalance(3, 3));
+
+        long users = 0;
+        long entries = 0;
+        for (int shard = 0; shard < 3; shard++) {
+            users += count(shard, "SELECT COUNT(*) FROM users");
+            entries += count(shard, "SELECT COUNT(*) FROM entries");
+            for (int i = 0; i < 20; i++) {
+                long expected = shardrouter.shardOf("user" + i, 3) == shard ? 2 : 0;
+                assertEquals(expected, count(shard, "SELECT COUNT(*) FROM entries WHERE username = 'user" + i + "'"));
+            }
+        }
+        assertEquals(20, users);
+        assertEquals(40, entries);
+        assertEquals(20 - count(0, "SELECT COUNT(*) FROM users"), moved);
+    }
+
+    @Test
+    public void testMovedHotRowsDoNotReuseArchivedIds() throws Exception {
+        String username = "archived0";
+        for (int i = 1; shardrouter.shardOf(username, 2) != 1; i++) {
+            username = "archived" + i;
+        }
+        try (Connection c = DriverManager.getConnection(url(0), "sa", "")) {
+            migrationrunner.standard().migrate(c);
+            try (PreparedStatement entry = c.prepareStatement(
+                    "INSERT INTO entries (username, amount, type, date, subject, note, version) VALUES (?, 1.0, 'expense', ?, 's', 'n', 1)")) {
+                for (String date : new String[] {"2001-01-01", "2001-01-02", "2001-01-03", "2024-01-01", "2024-01-02"}) {
+                    entry.setString(1, username);
+                    entry.setString(2, date);
+                    entry.executeUpdate();
+                }
+            }
+        }
+        Path dir = Files.createTempDirectory("rebalance-archive");
+        archivestore store = new archivestore(dir);
+        shardrouter router = new shardrouter(1, ShardRebalancerTest::url, "sa", "", 2);
+        try {
+            assertEquals(3, new archiver(router, store, 100).run(LocalDate.of(2010, 1, 1)));
+        } finally {
+            router.close();
+        }
+
+        new shardrebalancer(ShardRebalancerTest::url, "sa", "").rebalance(1, 2);
+
+        try (Connection c = DriverManager.getConnection(url(1), "sa", "")) {
+            List<Entry> archived = store.read(c, username, null, null, entry -> true);
+            assertEquals(3, archived.size());
+            Set<Long> ids = new HashSet<>();
+            for (Entry entry : archived) {
+                ids.add(entry.id);
+                assertTrue(store.contains(c, username, entry.id));
+            }
+            try (PreparedStatement query = c.prepareStatement("SELECT id FROM entries WHERE username = ?")) {
+                query.setString(1, username);
+                try (ResultSet rs = query.executeQuery()) {
+                    while (rs.next()) {
+                        // 热数据的 ID 不与归档重叠：查询合并不丢记录，删除不会落到归档记录上
+                        assertTrue(ids.add(rs.getLong(1)));
+                        assertFalse(store.contains(c, username, rs.getLong(1)));
+                    }
+                }
+            }
+            assertEquals(5, ids.size());
+        }
+    }
+
+    @Test
+    public void testFanOutQueriesEveryShard() throws SQLException {
+        shardrouter router = new shardrouter(3, ShardRebalancerTest::url, "sa", "", 2);
+        try {
+            List<Integer> shards = router.fanOut(c -> {
+                try (Statement stmt = c.createStatement(); ResultSet rs = stmt.executeQuery("SELECT 7")) {
+                    rs.next();
+                    return rs.getInt(1);
+                }
+            });
+            assertEquals(List.of(7, 7, 7), shards);
+            assertEquals(router.shardCount(), shards.size());
+        } finally {
+            router.close();
+        }
+    }
+}
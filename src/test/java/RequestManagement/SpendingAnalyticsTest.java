@@ -0,0 +1,120 @@
+package RequestManagement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SpendingAnalyticsTest {
+
+    private static final LocalDate TODAY = LocalDate.of(2024, 5, 20);
+
+    @Test
+    public void testQuantilesWithinRelativeAccuracy() {
+        quantilesketch sketch = new quantilesketch(0.01);
+        for (int i = 1; i <= 10000; i++) {
+            sketch.add(i);
+        }
+        assertEquals(10000, sketch.count());
+        assertEquals(5000, sketch.quantile(0.5), 5000 * 0.01);
+        assertEquals(9900, sketch.quantile(0.99), 9900 * 0.01);
+        assertEquals(1, sketch.quantile(0), 0.01);
+    }
+
+    @Test
+    public void testMergedQuantileSketchMatchesSingleSketch() {
+        quantilesketch left = new quantilesketch(0.01);
+        quantilesketch right = new quantilesketch(0.01);
+        quantilesketch all = new quantilesketch(0.01);
+        Random random = new Random(42);
+        for (int i = 0; i < 5000; i++) {
+            double value = Math.exp(random.nextGaussian() * 2 + 3);
+            (i % 2 == 0 ? left : right).add(value);
+            all.add(value);
+        }
+        left.merge(right);
+        assertEquals(all.quantile(0.9), left.quantile(0.9), 0.0);
+    }
+
+    @Test
+    public void testHyperLogLogEstimateAndMerge() {
+        hyperloglog first = new hyperloglog(12);
+        hyperloglog second = new hyperloglog(12);
+        for (int i = 0; i < 20000; i++) {
+            first.add("user-" + i);
+            // 一半与 first 重合
+            second.add("user-" + (i + 10000));
+        }
+        assertEquals(20000, first.estimate(), 20000 * 0.05);
+        first.merge(second);
+        assertEquals(30000, first.estimate(), 30000 * 0.05);
+
+        hyperloglog small = new hyperloglog(12);
+        for (int i = 0; i < 3; i++) {
+            small.add("same");
+            small.add("other-" + i);
+        }
+        assertEquals(4, small.estimate());
+    }
+
+    @Test
+    public void testTopKFindsHeavySubjects() {
+        topkcounter counter = new topkcounter(4, 2048, 3);
+        for (int i = 0; i < 5000; i++) {
+            counter.add("noise-" + i);
+            if (i % 5 == 0) {
+                counter.add("rent");
+            }
+            if (i % 2 == 0) {
+                counter.add("food");
+            }
+        }
+        List<Map.Entry<String, Long>> top = counter.top();
+        assertEquals("food", top.get(0).getKey());
+        assertEquals("rent", top.get(1).getKey());
+        // count-min 只会高估
+        assertTrue(counter.estimate("rent") >= 1000);
+    }
+
+    @Test
+    public void testReportAndSnapshotRoundTrip() throws Exception {
+        spendinganalytics analytics = new spendinganalytics(30, 5);
+        for (int i = 0; i < 100; i++) {
+            analytics.observe("u" + (i % 10), 10 + i, i % 3 == 0 ? "food" : "bus,ticket", TODAY);
+        }
+        analytics.observe("late", 5, "food", TODAY.minusDays(1));
+        analytics.observeExisting(0, null);
+
+        String report = analytics.report(TODAY, 2);
+        assertTrue(report, report.startsWith("count:102,p50:"));
+        assertTrue(report, report.contains(",dau:2024-05-20=10;2024-05-19=1,active:11,"));
+        assertTrue(report, report.endsWith(",top:bus%2Cticket=66;food=35"));
+
+        Path file = Files.createTempDirectory("analytics").resolve("snapshot.bin");
+        analytics.snapshot(file);
+        spendinganalytics restored = new spendinganalytics(30, 5);
+        assertTrue(restored.load(file));
+        assertEquals(report, restored.report(TODAY, 2));
+
+        // 再合并一份快照，计数翻倍而去重用户数不变
+        assertTrue(restored.load(file));
+        assertEquals(204, restored.count());
+        assertEquals(11, restored.activeUsers(TODAY, 2));
+    }
+
+    @Test
+    public void testOldDaysExpire() {
+        spendinganalytics analytics = new spendinganalytics(3, 5);
+        analytics.observe("a", 1, "x", TODAY.minusDays(5));
+        analytics.observe("b", 1, "x", TODAY);
+        assertEquals(0, analytics.activeUsers(TODAY.minusDays(5)));
+        assertEquals(1, analytics.activeUsers(TODAY));
+    }
+}
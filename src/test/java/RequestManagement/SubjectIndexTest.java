@@ -0,0 +1,123 @@
+package RequestManagement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import sharedmodel.Entry;
+
+public class SubjectIndexTest {
+
+    private static final String URL = "jdbc:h2:mem:subjectindextest;DB_CLOSE_DELAY=-1";
+    private Connection conn;
+
+    @Before
+    public void setUp() throws SQLException {
+        conn = DriverManager.getConnection(URL, "sa", "");
+        migrationrunner.standard().migrate(conn);
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("DROP ALL OBJECTS");
+        }
+        conn.close();
+    }
+
+    private long insert(String username, String subject) throws SQLException {
+        try (PreparedStatement insert = conn.prepareStatement(
+                "INSERT INTO entries (username, amount, type, date, subject, note, version) VALUES (?, 1, 'expense', '2024-05-01', ?, '', 1)",
+                new String[] {"ID"})) {
+            insert.setString(1, username);
+            insert.setString(2, subject);
+            insert.executeUpdate();
+            try (ResultSet keys = insert.getGeneratedKeys()) {
+                keys.next();
+                return keys.getLong(1);
+            }
+        }
+    }
+
+    private static String render(List<subjectindex.suggestion> suggestions) {
+        return suggestions.stream().map(s -> s.subject + ":" + s.count).collect(Collectors.joining(","));
+    }
+
+    private static List<Entry> rows(String username, String... subjects) {
+        List<Entry> rows = new ArrayList<>();
+        for (String subject : subjects) {
+            rows.add(new Entry(username, 1, "expense", "2024-05-01", subject, null));
+        }
+        return rows;
+    }
+
+    @Test
+    public void testLoadRanksByCountAndMatchesPrefixIgnoringCase() throws SQLException {
+        for (String subject : new String[] {"Food", "Food", "food", "fuel", "Fun", "fun", "fun", "rent", ""}) {
+            insert("alice", subject);
+        }
+        insert("bob", "football");
+
+        subjectindex index = new subjectindex(10, 100, Long.MAX_VALUE);
+        assertNull(index.suggest("alice", "f", 5));
+        // 大小写不同的写法合并计数，显示最常用的写法
+        assertEquals("Food:3,fun:3", render(index.load(conn, "alice", "F", 2)));
+        assertEquals("Food:3,fun:3,fuel:1", render(index.suggest("alice", "f", 5)));
+        assertEquals("fun:3,fuel:1", render(index.suggest("alice", "FU", 5)));
+        assertEquals("Food:3,fun:3,fuel:1,rent:1", render(index.suggest("alice", "", 8)));
+        assertEquals("", render(index.suggest("alice", "x", 8)));
+    }
+
+    @Test
+    public void testWritesUpdateLoadedUsersOnly() throws SQLException {
+        insert("alice", "food");
+        long rent = insert("alice", "rent");
+        subjectindex index = new subjectindex(10, 100, Long.MAX_VALUE);
+        index.load(conn, "alice", "", 8);
+
+        index.added("alice", rows("alice", "Rent", "travel"));
+        assertEquals("rent:2,food:1,travel:1", render(index.suggest("alice", "", 8)));
+        index.deleting(conn, "alice", rent);
+        assertEquals("food:1,rent:1,travel:1", render(index.suggest("alice", "", 8)));
+
+        // 未加载的用户写入时不建索引
+        index.added("bob", rows("bob", "food"));
+        assertNull(index.suggest("bob", "", 8));
+        index.invalidate("alice");
+        assertNull(index.suggest("alice", "", 8));
+    }
+
+    @Test
+    public void testBoundsEvictLeastUsed() throws SQLException {
+        insert("alice", "food");
+        insert("alice", "food");
+        insert("alice", "fuel");
+        insert("alice", "rent");
+        subjectindex index = new subjectindex(2, 2, Long.MAX_VALUE);
+        // 加载时只保留最常用的 maxSubjects 个
+        assertEquals(2, index.load(conn, "alice", "", 8).size());
+
+        index.added("alice", rows("alice", "travel"));
+        assertEquals("food:2,travel:1", render(index.suggest("alice", "", 8)));
+
+        index.load(conn, "bob", "", 8);
+        index.suggest("alice", "", 8);
+        index.load(conn, "carol", "", 8);
+        // bob 最久未用，被淘汰
+        assertNull(index.suggest("bob", "", 8));
+        assertEquals("food:2,travel:1", render(index.suggest("alice", "", 8)));
+    }
+}
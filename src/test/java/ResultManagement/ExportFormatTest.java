@@ -0,0 +1,42 @@
+package ResultManagement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import sharedmodel.Entry;
+
+public class ExportFormatTest {
+
+    @Test
+    public void testCsvQuotesSpecialCharacters() {
+        StringBuilder out = new StringBuilder();
+        ExportFormat.CSV.appendRow(out, new Entry(7L, "u", 12.5, "expense", "2024-03-01", "a,b", "say \"hi\""));
+        assertEquals("7,12.5,expense,2024-03-01,\"a,b\",\"say \"\"hi\"\"\"\n", out.toString());
+    }
+
+    @Test
+    public void testCsvNullFieldIsEmpty() {
+        StringBuilder out = new StringBuilder();
+        ExportFormat.CSV.appendRow(out, new Entry(1L, "u", 1.0, "income", "2024-03-01", "s", null));
+        assertEquals("1,1.0,income,2024-03-01,s,\n", out.toString());
+    }
+
+    @Test
+    public void testJsonLinesEscapes() {
+        StringBuilder out = new StringBuilder();
+        ExportFormat.JSONL.appendRow(out, new Entry(2L, "u", 3.0, "expense", "2024-03-02", "x\"y", "line1\nline2\u0001"));
+        assertEquals("{\"id\":2,\"amount\":3.0,\"type\":\"expense\",\"date\":\"2024-03-02\","
+                + "\"subject\":\"x\\\"y\",\"note\":\"line1\\nline2\\u0001\"}\n", out.toString());
+        assertNull(ExportFormat.JSONL.header());
+    }
+
+    @Test
+    public void testParse() {
+        assertEquals(ExportFormat.CSV, ExportFormat.parse(" CSV "));
+        assertEquals(ExportFormat.JSONL, ExportFormat.parse("jsonl"));
+        assertNull(ExportFormat.parse("xml"));
+        assertNull(ExportFormat.parse(null));
+    }
+}
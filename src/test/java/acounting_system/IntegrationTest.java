@@ -5,7 +5,10 @@ import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.After;
 import org.junit.Before;
@@ -13,20 +16,18 @@ import org.junit.Test;
 
 import RequestManagement.parser;
 import RequestManagement.sqloperation;
+import ResultManagement.ChunkSink;
+import ResultManagement.ExportFormat;
 import ResultManagement.ParseResult;
 import sharedmodel.Entry;
 
 public class IntegrationTest {
 
     private parser p;
-    private String originalUserDir;
 
     @Before
     public void setUp() throws Exception {
-        // Set a temporary directory for the database to avoid affecting the real DB
-        originalUserDir = System.getProperty("user.dir");
-        System.setProperty("user.dir", System.getProperty("java.io.tmpdir"));
-        
+        // The database lives under target/test-db (db.dir is set by surefire), not in the working tree
         p = new parser();
         // Initialize the database (create tables)
         p.sql.initialize();
@@ -42,10 +43,6 @@ public class IntegrationTest {
         if (p != null) {
             p.parseRequest("testuser,clear");
         }
-        // Restore user.dir
-        if (originalUserDir != null) {
-            System.setProperty("user.dir", originalUserDir);
-        }
     }
 
     @Test
@@ -135,4 +132,190 @@ public class IntegrationTest {
         listResult = p.parseRequest("testuser,list");
         assertTrue(listResult.entries.isEmpty());
     }
+
+    @Test
+    public void testSyncFlow() {
+        ParseResult initial = p.parseRequest("testuser,sync,0");
+        assertTrue(initial.message.startsWith("reset:"));
+        long version = Long.parseLong(initial.message.substring("reset:".length()));
+
+        // 1. Nothing changed since the reset
+        assertEquals("not_modified:" + version, p.parseRequest("testuser,sync," + version).message);
+
+        // 2. Add two entries and delete one of them
+        p.parseRequest("testuser,add,100.0,2023-01-01,expense,Food,Lunch");
+        p.parseRequest("testuser,add,200.0,2023-01-02,income,Salary,Bonus");
+        List<Entry> listed = p.parseRequest("testuser,list").entries;
+        Long deletedId = listed.get(0).id;
+        p.parseRequest("testuser,delete," + deletedId);
+
+        // 3. The delta contains only the surviving insert and the tombstone
+        ParseResult delta = p.parseRequest("testuser,sync," + version);
+        assertEquals("delta:" + (version + 3) + ":" + deletedId, delta.message);
+        assertEquals(1, delta.entries.size());
+        assertEquals("Salary", delta.entries.get(0).subject);
+
+        // 4. A version from before a clear forces a reset
+        p.parseRequest("testuser,clear");
+        ParseResult afterClear = p.parseRequest("testuser,sync," + (version + 3));
+        assertEquals("reset:" + (version + 4), afterClear.message);
+        assertTrue(afterClear.entries == null || afterClear.entries.isEmpty());
+    }
+
+    @Test
+    public void testClearHidesRowsAndPurgesInBackground() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            p.parseRequest("testuser,add,10.0,2023-03-0" + (i + 1) + ",expense,Snack,Item" + i);
+        }
+        ParseResult cleared = p.parseRequest("testuser,clear");
+        assertEquals("3", cleared.message);
+        assertTrue(p.parseRequest("testuser,list").entries.isEmpty());
+
+        // 清空后新增的记录立即可见，不受后台删除影响
+        p.parseRequest("testuser,add,20.0,2023-03-05,expense,Dinner,After clear");
+        List<Entry> listed = p.parseRequest("testuser,list").entries;
+        assertEquals(1, listed.size());
+        assertEquals("Dinner", listed.get(0).subject);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        String status = p.parseRequest("testuser,clearstatus").message;
+        while (!"done".equals(status) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+            status = p.parseRequest("testuser,clearstatus").message;
+        }
+        assertEquals("done", status);
+        assertEquals(1, p.parseRequest("testuser,list").entries.size());
+    }
+
+    @Test
+    public void testArchivedEntriesAreMergedIntoReads() throws Exception {
+        p.parseRequest("testuser,add,11.0,2001-01-05,expense,Old,Archived one");
+        p.parseRequest("testuser,add,12.0,2001/02/05,income,Older,Archived two");
+        p.parseRequest("testuser,add,13.0,2999-01-01,expense,Recent,Stays hot");
+        // 只归档本测试用户的记录，不动其他测试留下的数据
+        int cutoffDays = (int) ChronoUnit.DAYS.between(LocalDate.of(2001, 3, 1), LocalDate.now());
+        assertEquals(2, p.sql.archiveOlderThan(cutoffDays, "testuser"));
+
+        List<Entry> listed = p.parseRequest("testuser,list").entries;
+        assertEquals(3, listed.size());
+        assertEquals("Old", listed.get(0).subject);
+        assertEquals("Recent", listed.get(2).subject);
+
+        List<Entry> recent = p.parseRequest("testuser,search,2999-01-01,2999-12-31").entries;
+        assertEquals(1, recent.size());
+        List<Entry> old = p.parseRequest("testuser,search,2001-01-01,2001-01-31").entries;
+        assertEquals(1, old.size());
+        assertEquals("Archived one", old.get(0).note);
+
+        // 归档记录可以删除，之后不再出现
+        assertTrue(p.parseRequest("testuser,delete," + old.get(0).id).success);
+        assertEquals(2, p.parseRequest("testuser,list").entries.size());
+        assertEquals("2", p.parseRequest("testuser,clear").message);
+        assertTrue(p.parseRequest("testuser,list").entries.isEmpty());
+    }
+
+    @Test
+    public void testAddRetryWithIdempotencyKey() {
+        String request = "testuser,add,30.0,2023-02-01,expense,Taxi,Airport,idem=retry-" + System.nanoTime();
+        ParseResult first = p.parseRequest(request);
+        ParseResult retry = p.parseRequest(request);
+        assertTrue(first.success);
+        assertTrue(retry.success);
+        assertTrue(first.message.startsWith("id:"));
+        assertEquals(first.message, retry.message);
+        assertEquals(1, p.parseRequest("testuser,list").entries.size());
+    }
+
+    @Test
+    public void testExportStreamsArchivedAndHotRows() throws Exception {
+        p.parseRequest("testuser,add,11.0,2001-01-07,expense,Old,\"quoted\"");
+        p.parseRequest("testuser,add,13.0,2999-02-01,expense,Recent,Hot");
+        p.parseRequest("testuser,add,14.0,2999-02-02,income,Salary,Hot");
+        int cutoffDays = (int) ChronoUnit.DAYS.between(LocalDate.of(2001, 3, 1), LocalDate.now());
+        assertEquals(1, p.sql.archiveOlderThan(cutoffDays, "testuser"));
+
+        StringBuilder body = new StringBuilder();
+        long[] ended = {-1};
+        ChunkSink sink = new ChunkSink() {
+            @Override
+            public void begin(String action, String contentType) {
+                assertEquals(ExportFormat.CSV.contentType, contentType);
+            }
+
+            @Override
+            public void chunk(int lines, CharSequence data) {
+                body.append(data);
+            }
+
+            @Override
+            public void end(long rows) {
+                ended[0] = rows;
+            }
+
+            @Override
+            public void abort(String message) {
+                throw new AssertionError(message);
+            }
+
+            @Override
+            public void reject(String reply) {
+                throw new AssertionError(reply);
+            }
+        };
+        p.exportAsync("testuser,export,csv,,,expense", sink).get(10, TimeUnit.SECONDS);
+
+        assertEquals(2, ended[0]);
+        String[] lines = body.toString().split("\n");
+        assertEquals(3, lines.length);
+        // 归档部分在前，类型过滤对两部分都生效
+        assertTrue(lines[1].endsWith(",2001-01-07,Old,\"\"\"quoted\"\"\""));
+        assertTrue(lines[2].endsWith(",2999-02-01,Recent,Hot"));
+    }
+
+    @Test
+    public void testBudgetTotalsFollowWritesAndSurviveRestart() throws Exception {
+        String today = LocalDate.now().toString();
+        try {
+            ParseResult set = p.parseRequest("testuser,budget,BudgetFood,100");
+            assertTrue(set.success);
+            assertEquals("month=0.00/100.00", set.message);
+
+            ParseResult first = p.parseRequest("testuser,add,60.0," + today + ",expense,BudgetFood,Lunch");
+            assertTrue(first.message.matches("id:\\d+"));
+            ParseResult second = p.parseRequest("testuser,add,50.0," + today + ",expense,BudgetFood,Dinner");
+            assertTrue(second.message, second.message.endsWith(";budget:month=110.00/100.00"));
+
+            String secondId = second.message.substring("id:".length(), second.message.indexOf(';'));
+            assertTrue(p.parseRequest("testuser,delete," + secondId).success);
+            assertEquals("BudgetFood/month=60.00/100.00", p.parseRequest("testuser,budgets").message);
+
+            // 新实例启动时从数据库重建合计
+            parser restarted = new parser();
+            restarted.sql.initialize();
+            assertEquals("BudgetFood/month=60.00/100.00", restarted.parseRequest("testuser,budgets").message);
+        } finally {
+            p.parseRequest("testuser,budget,BudgetFood,0");
+        }
+        assertEquals("", p.parseRequest("testuser,budgets").message);
+    }
+
+    @Test
+    public void testSuggestFollowsWritesWithoutReload() throws Exception {
+        String today = LocalDate.now().toString();
+        p.parseRequest("testuser,clear");
+        p.parseRequest("testuser,add,5.0," + today + ",expense,Coffee,a");
+        p.parseRequest("testuser,add,5.0," + today + ",expense,coffee,b");
+        p.parseRequest("testuser,add,9.0," + today + ",expense,Cinema,c");
+        assertEquals("Coffee:2;Cinema:1", p.parseRequest("testuser,suggest,c").message);
+
+        // 索引已加载，之后的写入增量维护
+        ParseResult added = p.parseRequest("testuser,add,9.0," + today + ",expense,Cinema,d");
+        String id = added.message.substring("id:".length());
+        assertEquals("Cinema:2;Coffee:2", p.parseRequest("testuser,suggest,C").message);
+        assertTrue(p.parseRequest("testuser,delete," + id).success);
+        assertEquals("Cinema:1", p.parseRequest("testuser,suggest,ci").message);
+
+        p.parseRequest("testuser,clear");
+        assertEquals("", p.parseRequest("testuser,suggest,").message);
+    }
 }
@@ -0,0 +1,113 @@
+package acounting_system;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+import com.code_intelligence.jazzer.junit.FuzzTest;
+import RequestManagement.parser;
+import org.junit.jupiter.api.BeforeAll;
+
+/**
+ * 性能预算模式的模糊测试：不只找崩溃，而是找解析加处理耗时或分配字节数超出预算的输入
+ * （例如字段极多、单个字段极大、大量连续分隔符）。超预算的输入作为发现抛出，并写入本类的
+ * .cifuzz-corpus 目录，之后每次 mvn test 的回归模式都会重放它，修复之前构建不会通过。
+ *
+ * 预算：-Dperf.fuzz.maxMillis（默认 100）；分配上限为 -Dperf.fuzz.maxBytes（默认 4 MiB）
+ * 加上输入长度乘以 -Dperf.fuzz.bytesPerChar（默认 32），大输入本身的拆分与复制不算回归。
+ * 正式寻找：JAZZER_FUZZ=1 mvn test -Dtest=ParserPerfFuzzTest
+ */
+public class ParserPerfFuzzTest {
+    private static final long MAX_NANOS = Long.getLong("perf.fuzz.maxMillis", 100L) * 1_000_000L;
+    private static final long MAX_BYTES = Long.getLong("perf.fuzz.maxBytes", 4L << 20);
+    private static final long BYTES_PER_CHAR = Long.getLong("perf.fuzz.bytesPerChar", 32L);
+    // 超预算时再测几次取最小值，排除 JIT、类加载与 GC 停顿造成的偶发超时
+    private static final int ATTEMPTS = 3;
+    private static final Path CORPUS = Paths.get(".cifuzz-corpus", ParserPerfFuzzTest.class.getName(), "fuzzerTestOneInput");
+
+    private static parser p;
+    private static com.sun.management.ThreadMXBean threads;
+
+    @BeforeAll
+    public static void setUp() {
+        p = new parser();
+        try {
+            p.sql.initialize();
+        } catch (Exception e) {
+            // 与 ParserFuzzTest 一致：数据库不可用时仍然测量解析路径
+        }
+        threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    }
+
+    /**
+     * 一次测量的结果。
+     */
+    static final class cost {
+        final long nanos;
+        final long bytes;
+
+        cost(long nanos, long bytes) {
+            this.nanos = nanos;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * 超出预算的输入，由 Jazzer 作为发现报告并最小化。
+     */
+    static final class budgetexceeded extends RuntimeException {
+        budgetexceeded(String message) {
+            super(message);
+        }
+    }
+
+    @FuzzTest(maxDuration = "10s")
+    public void fuzzerTestOneInput(byte[] data) {
+        String input = new String(data, StandardCharsets.UTF_8);
+        long maxBytes = MAX_BYTES + BYTES_PER_CHAR * input.length();
+        long nanos = Long.MAX_VALUE;
+        long bytes = Long.MAX_VALUE;
+        for (int attempt = 0; attempt < ATTEMPTS; attempt++) {
+            cost measured = measure(input);
+            nanos = Math.min(nanos, measured.nanos);
+            bytes = Math.min(bytes, measured.bytes);
+            if (nanos <= MAX_NANOS && bytes <= maxBytes) {
+                return;
+            }
+        }
+        keep(data);
+        throw new budgetexceeded(String.format("输入 %d 字符：耗时 %.1f ms（预算 %d ms），分配 %d 字节（预算 %d）",
+                input.length(), nanos / 1e6, MAX_NANOS / 1_000_000L, bytes, maxBytes));
+    }
+
+    private static cost measure(String input) {
+        long thread = Thread.currentThread().getId();
+        long bytesBefore = threads.getThreadAllocatedBytes(thread);
+        long started = System.nanoTime();
+        p.parseRequest(input);
+        long nanos = System.nanoTime() - started;
+        return new cost(nanos, threads.getThreadAllocatedBytes(thread) - bytesBefore);
+    }
+
+    /**
+     * 把发现写入语料目录（文件名为内容的 SHA-1，与 Jazzer 的命名一致），回归模式会重放它。
+     */
+    private static void keep(byte[] data) {
+        try {
+            Files.createDirectories(CORPUS);
+            String name = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-1").digest(data));
+            Path file = CORPUS.resolve(name);
+            if (!Files.exists(file)) {
+                Files.write(file, data);
+            }
+        } catch (IOException | NoSuchAlgorithmException e) {
+            // 保存失败不影响报告，Jazzer 仍会写出 crash 文件
+        }
+    }
+}
@@ -0,0 +1,403 @@
+package acounting_system;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import RequestManagement.parser;
+import RequestManagement.sqloperation;
+import communication.ReceiveService;
+
+/**
+ * 长时间稳定性测试：在临时目录的 H2 数据库上启动内嵌的 ReceiveService，多个客户端持续发送混合请求
+ * （注册、登录、增删查、sync、clear、导出、带编号的请求，以及每次新建连接的短连接客户端），
+ * 定期采样 GC 后的堆、存活线程、打开的文件描述符、H2 会话数与活动连接数，结束时任一指标持续上升即失败。
+ *
+ * 类名不以 Test 结尾，不会被日常的 mvn test 执行，需要单独运行（放在单独的 JVM 中，数据库位置才会指向临时目录）：
+ * mvn test -Dtest=ServerSoak -Dsoak.duration=PT2H
+ * 可选：-Dsoak.clients=8 -Dsoak.sampleSeconds=30；采样结果写入 target/soak-samples.csv。
+ */
+public class ServerSoak {
+
+    private static final Duration DURATION = parseDuration(System.getProperty("soak.duration", "PT2M"));
+    private static final int CLIENTS = Integer.getInteger("soak.clients", 8);
+    private static final long SAMPLE_MILLIS = TimeUnit.SECONDS.toMillis(
+            Long.getLong("soak.sampleSeconds", Math.max(2, DURATION.getSeconds() / 60)));
+
+    private static parser requestParser;
+    private static ReceiveService service;
+    private static Thread acceptThread;
+    private static int port;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong busyReplies = new AtomicLong();
+    private final List<String> clientErrors = new ArrayList<>();
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        Path dir = Files.createTempDirectory("soak");
+        // sqloperation 在类加载时根据 db.dir 确定数据库、归档与统计快照的位置
+        System.setProperty("db.dir", dir.toString());
+        requestParser = new parser();
+        requestParser.sql.initialize();
+        Function<String, CompletionStage<String>> handler = rawRequest ->
+                requestParser.parseRequestAsync(rawRequest)
+                        .thenApply(result -> result == null ? "unknown_request" : result.toString());
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        service = new ReceiveService(port, handler);
+        service.setIdleTimeoutMillis(30000);
+        service.setStreamingHandler(parser::isStreamingRequest, requestParser::exportAsync);
+        acceptThread = new Thread(() -> {
+            try {
+                service.start();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }, "soak-accept");
+        acceptThread.start();
+        for (int i = 0; i < 100; i++) {
+            try (Socket probe = new Socket("127.0.0.1", port)) {
+                return;
+            } catch (IOException e) {
+                Thread.sleep(20);
+            }
+        }
+        fail("server did not start");
+    }
+
+    @AfterClass
+    public static void stopServer() throws Exception {
+        if (service != null) {
+            service.stop();
+        }
+        if (acceptThread != null) {
+            acceptThread.join(2000);
+        }
+        if (requestParser != null) {
+            requestParser.shutdown(2, TimeUnit.SECONDS);
+            requestParser.sql.shutdown();
+        }
+    }
+
+    @Test
+    public void testResourcesStayFlat() throws Exception {
+        long deadline = System.nanoTime() + DURATION.toNanos();
+        List<Thread> clients = new ArrayList<>();
+        for (int i = 0; i < CLIENTS; i++) {
+            int client = i;
+            Thread t = new Thread(() -> runClient(client, deadline), "soak-client-" + i);
+            t.start();
+            clients.add(t);
+        }
+
+        List<long[]> samples = new ArrayList<>();
+        String[] names = {"heapBytes", "threads", "openFds", "h2Sessions", "connections"};
+        while (System.nanoTime() < deadline) {
+            Thread.sleep(Math.min(SAMPLE_MILLIS, Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()))));
+            samples.add(sample());
+        }
+        for (Thread t : clients) {
+            t.join(10000);
+        }
+        writeCsv(names, samples);
+
+        synchronized (clientErrors) {
+            assertTrue("client errors: " + clientErrors, clientErrors.isEmpty());
+        }
+        assertTrue("no requests were sent", requests.get() > 0);
+        System.out.println("soak: " + requests.get() + " requests, " + busyReplies.get() + " busy replies, "
+                + samples.size() + " samples");
+
+        // 各指标允许的增长：固定余量加上相对基线的比例
+        long[] absolute = {16L << 20, 4, 16, 2, 2};
+        double[] relative = {0.10, 0.0, 0.0, 0.0, 0.0};
+        List<String> growing = new ArrayList<>();
+        for (int m = 0; m < names.length; m++) {
+            double[] series = new double[samples.size()];
+            for (int i = 0; i < series.length; i++) {
+                series[i] = samples.get(i)[m];
+            }
+            if (series.length > 0 && series[0] < 0) {
+                // 平台不支持该指标
+                continue;
+            }
+            trend t = trend.of(series);
+            if (t != null && t.growth > absolute[m] + relative[m] * t.baseline) {
+                growing.add(names[m] + " grew by " + Math.round(t.growth) + " from " + Math.round(t.baseline));
+            }
+        }
+        assertTrue("resources trend upward: " + growing, growing.isEmpty());
+    }
+
+    private long[] sample() throws Exception {
+        // 两次 GC 之间稍作等待，让引用处理与终结完成
+        System.gc();
+        Thread.sleep(100);
+        System.gc();
+        long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        long threads = ManagementFactory.getThreadMXBean().getThreadCount();
+        long fds = -1;
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.UnixOperatingSystemMXBean) {
+            fds = ((com.sun.management.UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount();
+        }
+        long sessions;
+        try (Connection c = DriverManager.getConnection(sqloperation.shardUrl(0), "sa", "");
+             Statement stmt = c.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM INFORMATION_SCHEMA.SESSIONS")) {
+            rs.next();
+            // 不计采样本身的会话
+            sessions = rs.getLong(1) - 1;
+        }
+        return new long[] {heap, threads, fds, sessions, service.getActiveConnections()};
+    }
+
+    private static void writeCsv(String[] names, List<long[]> samples) throws IOException {
+        Path file = Paths.get(System.getProperty("soak.output", "target/soak-samples.csv")).toAbsolutePath();
+        Files.createDirectories(file.getParent());
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8))) {
+            out.println(String.join(",", names));
+            for (long[] sample : samples) {
+                StringBuilder line = new StringBuilder();
+                for (int i = 0; i < sample.length; i++) {
+                    line.append(i == 0 ? "" : ",").append(sample[i]);
+                }
+                out.println(line);
+            }
+        }
+    }
+
+    /**
+     * 一个客户端：大部分请求走长连接（偶尔断开重连），每个客户端轮流扮演短连接、导出与带编号请求的角色。
+     */
+    private void runClient(int client, long deadline) {
+        String user = "soak" + client;
+        Random random = new Random(client);
+        List<Long> ids = new ArrayList<>();
+        Socket socket = null;
+        try {
+            call(null, user + ",register,pw");
+            while (System.nanoTime() < deadline) {
+                if (socket == null || random.nextInt(200) == 0) {
+                    closeQuietly(socket);
+                    socket = new Socket("127.0.0.1", port);
+                    socket.setSoTimeout(30000);
+                }
+                int op = random.nextInt(100);
+                String request;
+                if (op < 40) {
+                    request = user + ",add," + (1 + random.nextInt(50000) / 100.0) + ",2024-0" + (1 + random.nextInt(9))
+                            + "-1" + random.nextInt(10) + "," + (random.nextBoolean() ? "expense" : "income")
+                            + ",subject" + random.nextInt(20) + ",note";
+                } else if (op < 50 && !ids.isEmpty()) {
+                    request = user + ",delete," + ids.remove(random.nextInt(ids.size()));
+                } else if (op < 60) {
+                    request = user + ",search,2024-03-01,2024-06-30";
+                } else if (op < 70) {
+                    request = user + ",sync," + random.nextInt(5);
+                } else if (op < 75) {
+                    request = user + ",login,pw";
+                } else if (op < 77 || ids.size() > 300) {
+                    request = user + ",clear";
+                    ids.clear();
+                } else if (op < 79) {
+                    export(user);
+                    continue;
+                } else if (op < 84) {
+                    // 每次新建连接的短连接客户端
+                    call(null, user + ",list");
+                    continue;
+                } else if (op < 90) {
+                    tagged(socket, user);
+                    continue;
+                } else {
+                    request = user + ",list";
+                }
+                String reply = call(socket, request);
+                if (reply.startsWith("add~1~id:")) {
+                    ids.add(Long.parseLong(reply.substring("add~1~id:".length(), reply.indexOf('~', 9))));
+                }
+            }
+        } catch (Exception e) {
+            synchronized (clientErrors) {
+                clientErrors.add(Thread.currentThread().getName() + ": " + e);
+            }
+        } finally {
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * 发送一条请求并读取回复；socket 为 null 时使用一次性连接。
+     */
+    private String call(Socket socket, String request) throws IOException {
+        requests.incrementAndGet();
+        if (socket == null) {
+            Socket once = new Socket("127.0.0.1", port);
+            try {
+                once.setSoTimeout(30000);
+                requests.decrementAndGet();
+                return call(once, request);
+            } finally {
+                closeQuietly(once);
+            }
+        }
+        Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+        writer.write(request);
+        writer.write('\n');
+        writer.flush();
+        String reply = reader(socket).readLine();
+        if (reply == null) {
+            throw new IOException("connection closed before reply to " + request);
+        }
+        if (reply.startsWith("busy~")) {
+            busyReplies.incrementAndGet();
+        } else if (reply.contains("处理错误") || reply.contains("数据库错误")) {
+            throw new IOException("server error for " + request + ": " + reply);
+        }
+        return reply;
+    }
+
+    private void tagged(Socket socket, String user) throws IOException {
+        requests.addAndGet(2);
+        Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+        writer.write("#a " + user + ",list\n#b " + user + ",sync,0\n");
+        writer.flush();
+        BufferedReader reader = reader(socket);
+        for (int i = 0; i < 2; i++) {
+            String reply = reader.readLine();
+            if (reply == null || !(reply.startsWith("#a ") || reply.startsWith("#b "))) {
+                throw new IOException("bad tagged reply: " + reply);
+            }
+        }
+    }
+
+    private void export(String user) throws IOException {
+        requests.incrementAndGet();
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.setSoTimeout(30000);
+            Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            writer.write(user + ",export,csv\n");
+            writer.flush();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            String line = reader.readLine();
+            if (line == null || line.startsWith("export~0~")) {
+                // 导出线程都在忙时会被拒绝
+                return;
+            }
+            while ((line = reader.readLine()) != null && !line.startsWith("@end:")) {
+                if (line.startsWith("@abort:")) {
+                    throw new IOException("export aborted: " + line);
+                }
+            }
+            if (line == null) {
+                throw new IOException("export ended without @end");
+            }
+        }
+    }
+
+    // 长连接上的读取器需跨请求复用，否则缓冲区中已读入的下一条回复会丢失
+    private final Map<Socket, BufferedReader> readers = new ConcurrentHashMap<>();
+
+    private BufferedReader reader(Socket socket) throws IOException {
+        BufferedReader reader = readers.get(socket);
+        if (reader == null) {
+            reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            readers.put(socket, reader);
+        }
+        return reader;
+    }
+
+    private void closeQuietly(Socket socket) {
+        if (socket == null) {
+            return;
+        }
+        readers.remove(socket);
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    static Duration parseDuration(String value) {
+        String text = value.trim();
+        if (text.chars().allMatch(Character::isDigit)) {
+            return Duration.ofSeconds(Long.parseLong(text));
+        }
+        return Duration.parse(text);
+    }
+
+    /**
+     * 丢弃前 20% 的预热样本后做最小二乘直线拟合，growth 为拟合直线在剩余区间首尾的差值，
+     * baseline 为拟合直线起点。单个尖峰对斜率影响有限，只有持续上升才会得到明显的 growth。
+     */
+    static final class trend {
+        final double baseline;
+        final double growth;
+
+        private trend(double baseline, double growth) {
+            this.baseline = baseline;
+            this.growth = growth;
+        }
+
+        /**
+         * 样本不足 5 个时返回 null。
+         */
+        static trend of(double[] series) {
+            int from = series.length / 5;
+            int n = series.length - from;
+            if (n < 5) {
+                return null;
+            }
+            double meanX = (n - 1) / 2.0;
+            double meanY = 0;
+            for (int i = from; i < series.length; i++) {
+                meanY += series[i];
+            }
+            meanY /= n;
+            double covariance = 0;
+            double variance = 0;
+            for (int i = 0; i < n; i++) {
+                covariance += (i - meanX) * (series[from + i] - meanY);
+                variance += (i - meanX) * (i - meanX);
+            }
+            double slope = covariance / variance;
+            double start = meanY - slope * meanX;
+            return new trend(start, slope * (n - 1));
+        }
+    }
+}
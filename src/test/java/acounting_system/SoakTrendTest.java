@@ -0,0 +1,37 @@
+package acounting_system;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+
+import org.junit.Test;
+
+public class SoakTrendTest {
+
+    @Test
+    public void testSteadyGrowthIsDetectedAfterWarmup() {
+        double[] series = new double[20];
+        for (int i = 0; i < series.length; i++) {
+            // 前 4 个预热样本很高，之后每个样本 +2
+            series[i] = i < 4 ? 500 : 100 + 2 * i;
+        }
+        ServerSoak.trend t = ServerSoak.trend.of(series);
+        assertEquals(30, t.growth, 1e-9);
+        assertEquals(108, t.baseline, 1e-9);
+    }
+
+    @Test
+    public void testFlatSeriesWithSpikeHasLittleGrowth() {
+        double[] series = {50, 50, 50, 50, 50, 50, 80, 50, 50, 50, 50, 50};
+        assertTrue(Math.abs(ServerSoak.trend.of(series).growth) < 10);
+        assertNull(ServerSoak.trend.of(new double[] {1, 2, 3}));
+    }
+
+    @Test
+    public void testParseDuration() {
+        assertEquals(Duration.ofSeconds(90), ServerSoak.parseDuration("90"));
+        assertEquals(Duration.ofHours(2), ServerSoak.parseDuration("PT2H"));
+    }
+}
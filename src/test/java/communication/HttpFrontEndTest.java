@@ -0,0 +1,181 @@
+package communication;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.InflaterInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HttpFrontEndTest {
+
+    private HttpFrontEnd frontEnd;
+    private int port;
+
+    @Before
+    public void setUp() throws Exception {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        frontEnd = new HttpFrontEnd(port, line -> CompletableFuture.supplyAsync(() ->
+                line.equals("big") ? "x".repeat(5000) : "echo:" + line));
+        frontEnd.setStreamingHandler(line -> line.startsWith("stream"), (line, sink) -> CompletableFuture.runAsync(() -> {
+            try {
+                sink.begin("export", "text/csv; charset=utf-8");
+                sink.chunk(1, "a,1\n");
+                sink.chunk(1, "b,2\n");
+                sink.end(2);
+            } catch (java.io.IOException e) {
+                throw new java.io.UncheckedIOException(e);
+            }
+        }));
+        frontEnd.start();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        frontEnd.stop(1, TimeUnit.SECONDS);
+    }
+
+    private static byte[] readAll(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        in.transferTo(out);
+        return out.toByteArray();
+    }
+
+    private HttpURLConnection post(String body, String acceptEncoding) throws Exception {
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://127.0.0.1:" + port + "/").openConnection();
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        if (acceptEncoding != null) {
+            conn.setRequestProperty("Accept-Encoding", acceptEncoding);
+        }
+        try (OutputStream out = conn.getOutputStream()) {
+            out.write(body.getBytes(StandardCharsets.UTF_8));
+        }
+        return conn;
+    }
+
+    @Test
+    public void testPostDispatchesFirstLine() throws Exception {
+        HttpURLConnection conn = post("user,list\n", null);
+        assertEquals(200, conn.getResponseCode());
+        assertEquals("echo:user,list", new String(readAll(conn.getInputStream()), StandardCharsets.UTF_8));
+        assertEquals("*", conn.getHeaderField("Access-Control-Allow-Origin"));
+    }
+
+    @Test
+    public void testStreamingReplyUsesChunkedBody() throws Exception {
+        HttpURLConnection conn = post("stream\n", null);
+        assertEquals(200, conn.getResponseCode());
+        assertEquals("chunked", conn.getHeaderField("Transfer-Encoding"));
+        assertEquals("text/csv; charset=utf-8", conn.getHeaderField("Content-Type"));
+        assertEquals("a,1\nb,2\n", new String(readAll(conn.getInputStream()), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testLargeReplyDeflated() throws Exception {
+        HttpURLConnection conn = post("big", "gzip, deflate");
+        assertEquals(200, conn.getResponseCode());
+        assertEquals("deflate", conn.getHeaderField("Content-Encoding"));
+        byte[] body = readAll(new InflaterInputStream(conn.getInputStream()));
+        assertEquals("x".repeat(5000), new String(body, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testGetRejected() throws Exception {
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://127.0.0.1:" + port + "/").openConnection();
+        assertEquals(405, conn.getResponseCode());
+    }
+
+    @Test
+    public void testOverloadRepliesServiceUnavailable() throws Exception {
+        int busyPort;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            busyPort = probe.getLocalPort();
+        }
+        System.setProperty("server.queue", "1");
+        HttpFrontEnd busy = new HttpFrontEnd(busyPort, line -> CompletableFuture.completedFuture("echo:" + line));
+        try {
+            busy.start();
+        } finally {
+            System.clearProperty("server.queue");
+        }
+        List<Socket> held = new ArrayList<>();
+        try {
+            // 只发请求头不发请求体：每个请求占住一个处理线程，最后一个占住队列的唯一位置
+            int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+            for (int i = 0; i < threads + 1; i++) {
+                Socket socket = new Socket("127.0.0.1", busyPort);
+                socket.getOutputStream().write(("POST / HTTP/1.1\r\nHost: localhost\r\nContent-Length: 10\r\n\r\n")
+                        .getBytes(StandardCharsets.US_ASCII));
+                socket.getOutputStream().flush();
+                held.add(socket);
+            }
+            Thread.sleep(300);
+
+            HttpURLConnection conn = (HttpURLConnection) new URL("http://127.0.0.1:" + busyPort + "/").openConnection();
+            conn.setReadTimeout(5000);
+            conn.setRequestMethod("POST");
+            conn.setDoOutput(true);
+            try (OutputStream out = conn.getOutputStream()) {
+                out.write("user,list\n".getBytes(StandardCharsets.UTF_8));
+            }
+            assertEquals(503, conn.getResponseCode());
+            assertEquals("1", conn.getHeaderField("Retry-After"));
+            assertEquals(ReceiveService.BUSY_REPLY, new String(readAll(conn.getErrorStream()), StandardCharsets.UTF_8));
+        } finally {
+            for (Socket socket : held) {
+                socket.close();
+            }
+            busy.stop(1, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testSharedAdmissionLimitAppliesToHttp() throws Exception {
+        AdmissionControl admission = new AdmissionControl(1, Set.of());
+        frontEnd.stop(1, TimeUnit.SECONDS);
+        frontEnd = new HttpFrontEnd(port, line -> CompletableFuture.completedFuture("echo:" + line));
+        frontEnd.setAdmissionControl(admission);
+        frontEnd.start();
+
+        // 同一客户端经由 TCP 入口的一个请求尚未完成，占满了共用的上限
+        CompletableFuture<String> held = new CompletableFuture<>();
+        admission.admit(InetAddress.getByName("127.0.0.1"), "alice,list", () -> held);
+        HttpURLConnection busy = post("alice,list\n", null);
+        assertEquals(200, busy.getResponseCode());
+        assertEquals(ReceiveService.BUSY_REPLY, new String(readAll(busy.getInputStream()), StandardCharsets.UTF_8));
+        assertEquals(1, admission.getRejected());
+
+        held.complete("done");
+        HttpURLConnection ok = post("alice,list\n", null);
+        assertEquals("echo:alice,list", new String(readAll(ok.getInputStream()), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testAcceptsDeflate() {
+        assertTrue(HttpFrontEnd.acceptsDeflate("gzip, deflate, br"));
+        assertTrue(HttpFrontEnd.acceptsDeflate("Deflate;q=0.5"));
+        assertFalse(HttpFrontEnd.acceptsDeflate("gzip"));
+        assertFalse(HttpFrontEnd.acceptsDeflate("deflate;q=0"));
+        assertFalse(HttpFrontEnd.acceptsDeflate(null));
+    }
+}
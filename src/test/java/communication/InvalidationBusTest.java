@@ -0,0 +1,62 @@
+package communication;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class InvalidationBusTest {
+
+    private InvalidationBus first;
+    private InvalidationBus second;
+
+    @After
+    public void tearDown() {
+        if (first != null) {
+            first.close();
+        }
+        if (second != null) {
+            second.close();
+        }
+    }
+
+    private static int freePort() throws Exception {
+        try (DatagramSocket probe = new DatagramSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+
+    @Test
+    public void testChangesReachPeersButNotSender() throws Exception {
+        int firstPort = freePort();
+        int secondPort = freePort();
+        List<InetSocketAddress> everyone = List.of(
+                new InetSocketAddress("127.0.0.1", firstPort), new InetSocketAddress("127.0.0.1", secondPort));
+        LinkedBlockingQueue<String> firstReceived = new LinkedBlockingQueue<>();
+        LinkedBlockingQueue<String> secondReceived = new LinkedBlockingQueue<>();
+        first = new InvalidationBus(firstPort, everyone);
+        second = new InvalidationBus(secondPort, everyone);
+        first.start((username, version) -> firstReceived.add(username + "@" + version));
+        second.start((username, version) -> secondReceived.add(username + "@" + version));
+
+        first.publish("alice|x", 7);
+        assertEquals("alice|x@7", secondReceived.poll(5, TimeUnit.SECONDS));
+        // 发送方在对端列表中，但会忽略自己的报文
+        assertNull(firstReceived.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testParsePeers() {
+        List<InetSocketAddress> peers = InvalidationBus.parsePeers("10.0.0.1:9099, host-b:9100,");
+        assertEquals(2, peers.size());
+        assertEquals(9100, peers.get(1).getPort());
+        assertEquals("host-b", peers.get(1).getHostString());
+    }
+}
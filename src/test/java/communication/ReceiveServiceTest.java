@@ -0,0 +1,267 @@
+package communication;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class ReceiveServiceTest {
+
+    private ReceiveService service;
+    private Thread acceptThread;
+    private int port;
+    // 非空时在启动前注册，处理以 "stream" 开头的请求
+    private StreamingHandler streaming;
+
+    private void startService(Function<String, java.util.concurrent.CompletionStage<String>> handler,
+            long idleTimeoutMillis) throws Exception {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        service = new ReceiveService(port, handler);
+        service.setIdleTimeoutMillis(idleTimeoutMillis);
+        if (streaming != null) {
+            service.setStreamingHandler(line -> line.startsWith("stream"), streaming);
+        }
+        acceptThread = new Thread(() -> {
+            try {
+                service.start();
+            } catch (Exception ignored) {
+            }
+        });
+        acceptThread.start();
+        // 等待监听套接字就绪
+        for (int i = 0; i < 100; i++) {
+            try (Socket s = new Socket("127.0.0.1", port)) {
+                return;
+            } catch (Exception e) {
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (service != null) {
+            service.stop();
+        }
+        if (acceptThread != null) {
+            acceptThread.join(2000);
+        }
+    }
+
+    @Test
+    public void testRepliesKeepRequestOrder() throws Exception {
+        CompletableFuture<String> slow = new CompletableFuture<>();
+        startService(line -> line.equals("slow") ? slow : CompletableFuture.completedFuture("re:" + line), 5000);
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            writer.write("slow\nfast\n");
+            writer.flush();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            slow.complete("re:slow");
+            assertEquals("re:slow", reader.readLine());
+            assertEquals("re:fast", reader.readLine());
+        }
+    }
+
+    @Test
+    public void testFailedReplyDoesNotStallLaterReplies() throws Exception {
+        CompletableFuture<String> failing = new CompletableFuture<>();
+        startService(line -> line.equals("fail") ? failing : CompletableFuture.completedFuture("re:" + line), 5000);
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.setSoTimeout(5000);
+            Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            writer.write("fail\nfast\n");
+            writer.flush();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            failing.completeExceptionally(new IllegalStateException("boom"));
+            assertEquals(ClientConnection.ERROR_REPLY, reader.readLine());
+            assertEquals("re:fast", reader.readLine());
+            writer.write("after\n");
+            writer.flush();
+            assertEquals("re:after", reader.readLine());
+        }
+    }
+
+    @Test
+    public void testProxiedRequestsAreLimitedPerUser() throws Exception {
+        CompletableFuture<String> held = new CompletableFuture<>();
+        startService(line -> line.startsWith("alice,") ? held : CompletableFuture.completedFuture("re:" + line), 5000);
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.setSoTimeout(5000);
+            Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            // 本机是默认的可信代理：alice 占满自己的上限，不影响 bob
+            for (int i = 0; i < 16; i++) {
+                writer.write("#a" + i + " alice,list\n");
+            }
+            writer.write("#over alice,list\n#b bob,list\n");
+            writer.flush();
+            assertEquals("#over " + ReceiveService.BUSY_REPLY, reader.readLine());
+            assertEquals("#b re:bob,list", reader.readLine());
+            held.complete("done");
+        }
+        InetAddress remote = InetAddress.getByName("192.0.2.7");
+        AdmissionControl admission = AdmissionControl.fromSystemProperties();
+        assertEquals("addr:192.0.2.7", admission.clientKey(remote, "alice,list"));
+        assertEquals("user:alice", admission.clientKey(InetAddress.getLoopbackAddress(), "alice,list"));
+    }
+
+    @Test
+    public void testStreamingReplyIsFramedAndOrdered() throws Exception {
+        streaming = (line, sink) -> CompletableFuture.runAsync(() -> {
+            try {
+                sink.begin("export", "text/csv");
+                sink.chunk(2, "a,1\nb,2\n");
+                sink.chunk(1, "c,3\n");
+                sink.end(3);
+            } catch (java.io.IOException e) {
+                throw new java.io.UncheckedIOException(e);
+            }
+        });
+        startService(line -> CompletableFuture.completedFuture("re:" + line), 5000);
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.setSoTimeout(5000);
+            Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            writer.write("first\nstream\nlast\n");
+            writer.flush();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            assertEquals("re:first", reader.readLine());
+            assertEquals("export~1~text/csv~stream", reader.readLine());
+            assertEquals("@chunk:2", reader.readLine());
+            assertEquals("a,1", reader.readLine());
+            assertEquals("b,2", reader.readLine());
+            assertEquals("@chunk:1", reader.readLine());
+            assertEquals("c,3", reader.readLine());
+            assertEquals("@end:3", reader.readLine());
+            assertEquals("re:last", reader.readLine());
+        }
+    }
+
+    @Test
+    public void testTaggedRepliesAreWrittenWhenReady() throws Exception {
+        CompletableFuture<String> slow = new CompletableFuture<>();
+        startService(line -> line.equals("slow") ? slow : CompletableFuture.completedFuture("re:" + line), 5000);
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.setSoTimeout(5000);
+            Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            writer.write("#1 slow\n#2 fast\n#3 u,subscribe\n");
+            writer.flush();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            assertEquals("#2 re:fast", reader.readLine());
+            assertEquals("#3 subscribe~0~订阅需使用独立连接~null", reader.readLine());
+            slow.complete("re:slow");
+            assertEquals("#1 re:slow", reader.readLine());
+        }
+    }
+
+    @Test
+    public void testRequestTag() {
+        assertEquals("a-1", ReceiveService.requestTag("#a-1 user,list"));
+        assertNull(ReceiveService.requestTag("user,list"));
+        assertNull(ReceiveService.requestTag("# user,list"));
+        assertNull(ReceiveService.requestTag("#a,b user,list"));
+        assertNull(ReceiveService.requestTag("#" + "x".repeat(33) + " user,list"));
+    }
+
+    @Test
+    public void testIdleConnectionIsReaped() throws Exception {
+        startService(line -> CompletableFuture.completedFuture(line), 200);
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.setSoTimeout(5000);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            // 服务端关闭连接后读到 EOF
+            assertNull(reader.readLine());
+        }
+        assertTrue(service.getReapedConnections() >= 1);
+    }
+
+    @Test
+    public void testDrainWaitsForPendingReplies() throws Exception {
+        CompletableFuture<String> pending = new CompletableFuture<>();
+        startService(line -> pending, 5000);
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            writer.write("work\n");
+            writer.flush();
+            for (int i = 0; i < 100 && service.getPendingReplies() == 0; i++) {
+                Thread.sleep(10);
+            }
+            service.stopAccepting();
+            assertEquals(false, service.awaitDrain(50, TimeUnit.MILLISECONDS));
+            pending.complete("done");
+            assertTrue(service.awaitDrain(2, TimeUnit.SECONDS));
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            assertEquals("done", reader.readLine());
+        }
+    }
+
+    @Test
+    public void testCompressionNegotiatedByControlLine() throws Exception {
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            big.append("1,user,1.0,expense,2024-01-01,a,b|");
+        }
+        String reply = big.toString();
+        startService(line -> CompletableFuture.completedFuture(line.equals("big") ? reply : "small"), 5000);
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            writer.write("@accept-encoding:deflate\nsmall\nbig\n");
+            writer.flush();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            assertEquals("small", reader.readLine());
+            String compressed = reader.readLine();
+            assertTrue(compressed.startsWith(ResponseCompressor.DEFLATE_PREFIX));
+            assertTrue(compressed.length() < reply.length());
+        }
+    }
+
+    @Test
+    public void testSubscriberReceivesCoalescedPush() throws Exception {
+        startService(line -> CompletableFuture.completedFuture("re:" + line), 5000);
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.setSoTimeout(5000);
+            Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            writer.write("alice,subscribe\n");
+            writer.flush();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            assertEquals("subscribe~1~已订阅~null", reader.readLine());
+            assertEquals(1, service.getSubscribers());
+            // 订阅连接交给 SubscriptionHub 后不再计入普通连接，也不会被空闲回收
+            for (int i = 0; i < 100 && service.getActiveConnections() > 0; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, service.getActiveConnections());
+
+            service.subscriptions().publish("bob", 9);
+            service.subscriptions().publish("alice", 1);
+            service.subscriptions().publish("alice", 3);
+            service.subscriptions().publish("alice", 2);
+            assertEquals("push~1~3~null", reader.readLine());
+        }
+    }
+
+    @Test
+    public void testSubscribeTarget() {
+        assertEquals("alice", ReceiveService.subscribeTarget("alice,subscribe"));
+        assertEquals("alice", ReceiveService.subscribeTarget(" alice , subscribe "));
+        assertNull(ReceiveService.subscribeTarget("alice,list"));
+        assertNull(ReceiveService.subscribeTarget("alice,subscribe,extra"));
+        assertNull(ReceiveService.subscribeTarget(",subscribe"));
+    }
+}
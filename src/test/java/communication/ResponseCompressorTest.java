@@ -0,0 +1,63 @@
+package communication;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.zip.Inflater;
+
+import org.junit.Test;
+
+public class ResponseCompressorTest {
+
+    private static String inflate(byte[] compressed) throws Exception {
+        Inflater inflater = new Inflater();
+        inflater.setInput(compressed);
+        byte[] buffer = new byte[1 << 20];
+        int length = inflater.inflate(buffer);
+        inflater.end();
+        return new String(Arrays.copyOf(buffer, length), StandardCharsets.UTF_8);
+    }
+
+    private static String largeReply() {
+        StringBuilder sb = new StringBuilder("list~1~null~");
+        for (int i = 0; i < 500; i++) {
+            if (i > 0) {
+                sb.append('|');
+            }
+            sb.append(i).append(",user,12.5,expense,2024-01-01,餐饮,午饭");
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testShortReplyUnchanged() {
+        ResponseCompressor compressor = new ResponseCompressor(1024, 2);
+        String reply = "login~1~null~null";
+        assertSame(reply, compressor.encodeLine(reply));
+    }
+
+    @Test
+    public void testLargeReplyRoundTrip() throws Exception {
+        ResponseCompressor compressor = new ResponseCompressor(1024, 2);
+        String reply = largeReply();
+        String encoded = compressor.encodeLine(reply);
+        assertTrue(encoded.startsWith(ResponseCompressor.DEFLATE_PREFIX));
+        assertTrue(encoded.length() < reply.length() / 4);
+        byte[] compressed = Base64.getDecoder().decode(encoded.substring(ResponseCompressor.DEFLATE_PREFIX.length()));
+        assertEquals(reply, inflate(compressed));
+    }
+
+    @Test
+    public void testPooledDeflaterIsReset() throws Exception {
+        ResponseCompressor compressor = new ResponseCompressor(0, 1);
+        byte[] first = "first reply".getBytes(StandardCharsets.UTF_8);
+        byte[] second = largeReply().getBytes(StandardCharsets.UTF_8);
+        assertEquals("first reply", inflate(compressor.deflate(first)));
+        assertEquals(largeReply(), inflate(compressor.deflate(second)));
+        assertEquals("first reply", inflate(compressor.deflate(first)));
+    }
+}
@@ -0,0 +1,125 @@
+package communication;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class SubscriptionHubTest {
+
+    @Test
+    public void testStalledSubscriberDoesNotBlockOthers() throws Exception {
+        ExecutorService pool = ReceiveService.newReplyExecutor();
+        SubscriptionHub hub = new SubscriptionHub(0, 50, 10, 2);
+        try (ServerSocket server = new ServerSocket(0);
+             Socket stalledClient = new Socket("127.0.0.1", server.getLocalPort());
+             Socket stalledSide = server.accept();
+             Socket liveClient = new Socket("127.0.0.1", server.getLocalPort());
+             Socket liveSide = server.accept()) {
+            ClientConnection stalled = new ClientConnection(stalledSide, pool);
+            ClientConnection live = new ClientConnection(liveSide, pool);
+            liveClient.setSoTimeout(5000);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(liveClient.getInputStream(), StandardCharsets.UTF_8));
+            // 先写一条，第一次写入时的类初始化不计入心跳间隔
+            assertTrue(live.push("hello", 2, () -> { }));
+            assertEquals("hello", reader.readLine());
+            assertTrue(hub.subscribe("alice", stalled));
+            assertTrue(hub.subscribe("bob", live));
+            // alice 从不读取：一条很大的推送塞满套接字缓冲区，它的写线程阻塞在这里
+            assertTrue(stalled.push("x".repeat(16 << 20), 2, () -> { }));
+            hub.start();
+
+            assertEquals(SubscriptionHub.HEARTBEAT_LINE, reader.readLine());
+            hub.publish("bob", 5);
+            String line = reader.readLine();
+            while (SubscriptionHub.HEARTBEAT_LINE.equals(line)) {
+                line = reader.readLine();
+            }
+            assertEquals("push~1~5~null", line);
+
+            // alice 的队列满后被关闭，bob 仍然订阅
+            for (int i = 0; i < 200 && hub.getSubscriberCount() > 1; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, hub.getSubscriberCount());
+            assertTrue(stalledSide.isClosed());
+        } finally {
+            hub.close();
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testConcurrentUnsubscribeDoesNotLoseNewSubscriber() throws Exception {
+        try (ServerSocket server = new ServerSocket(0);
+             Socket client = new Socket("127.0.0.1", server.getLocalPort());
+             Socket side = server.accept()) {
+            for (int i = 0; i < 2000; i++) {
+                SubscriptionHub hub = new SubscriptionHub(0, 60000, 10, 2);
+                ClientConnection leaving = new ClientConnection(side, Runnable::run);
+                ClientConnection joining = new ClientConnection(side, Runnable::run);
+                assertTrue(hub.subscribe("alice", leaving));
+                CountDownLatch go = new CountDownLatch(1);
+                Thread unsubscriber = new Thread(() -> {
+                    awaitQuietly(go);
+                    hub.unsubscribe("alice", leaving);
+                });
+                unsubscriber.start();
+                go.countDown();
+                assertTrue(hub.subscribe("alice", joining));
+                unsubscriber.join();
+                assertTrue(hub.isSubscribed("alice", joining));
+                assertEquals(1, hub.getSubscriberCount());
+            }
+        }
+    }
+
+    @Test
+    public void testSubscriberLimitHoldsUnderConcurrency() throws Exception {
+        SubscriptionHub hub = new SubscriptionHub(0, 60000, 4, 2);
+        AtomicInteger accepted = new AtomicInteger();
+        CountDownLatch go = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        try (ServerSocket server = new ServerSocket(0);
+             Socket client = new Socket("127.0.0.1", server.getLocalPort());
+             Socket side = server.accept()) {
+            for (int i = 0; i < 16; i++) {
+                ClientConnection connection = new ClientConnection(side, Runnable::run);
+                String username = "user" + i;
+                Thread t = new Thread(() -> {
+                    awaitQuietly(go);
+                    if (hub.subscribe(username, connection)) {
+                        accepted.incrementAndGet();
+                    }
+                });
+                threads.add(t);
+                t.start();
+            }
+            go.countDown();
+            for (Thread t : threads) {
+                t.join();
+            }
+        }
+        assertEquals(4, accepted.get());
+        assertEquals(4, hub.getSubscriberCount());
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
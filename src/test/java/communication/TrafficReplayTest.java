@@ -0,0 +1,146 @@
+package communication;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class TrafficReplayTest {
+
+    private ReceiveService service;
+    private Thread acceptThread;
+    private int port;
+    // 处理请求时服务端同时打开的连接数的最大值
+    private final AtomicInteger peakConnections = new AtomicInteger();
+
+    private void startService() throws Exception {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        service = new ReceiveService(port, line -> {
+            peakConnections.accumulateAndGet(service.getActiveConnections(), Math::max);
+            // 假名是十六进制，可能包含 "bad"，只看最后一个字段
+            return CompletableFuture.completedFuture(
+                    TrafficReplay.actionOf(line) + (line.endsWith(",bad") ? "~0~" : "~1~") + "ok~null");
+        });
+        acceptThread = new Thread(() -> {
+            try {
+                service.start();
+            } catch (Exception ignored) {
+            }
+        });
+        acceptThread.start();
+        for (int i = 0; i < 100; i++) {
+            try (Socket s = new Socket("127.0.0.1", port)) {
+                return;
+            } catch (Exception e) {
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (service != null) {
+            service.stop();
+        }
+        if (acceptThread != null) {
+            acceptThread.join(2000);
+        }
+    }
+
+    @Test
+    public void testAnonymiseKeepsPseudonymsConsistent() throws Exception {
+        Path dir = Files.createTempDirectory("capture");
+        try (TrafficRecorder recorder = new TrafficRecorder(dir, 1 << 20, 2, 16)) {
+            String login = recorder.anonymise("alice,login,secret");
+            String add = recorder.anonymise("#7 alice,add,12.5,2024-05-01,expense,food,lunch");
+            String user = login.substring(0, login.indexOf(','));
+            assertTrue(user.matches("u[0-9a-f]{12}"));
+            assertFalse(login.contains("alice") || login.contains("secret"));
+            assertEquals("#7 " + user + ",add,12.5,2024-05-01,expense,food,lunch", add);
+            assertNotEquals(user, recorder.anonymise("bob,list").split(",")[0]);
+            assertEquals("@accept-encoding:deflate", recorder.anonymise("@accept-encoding:deflate"));
+        }
+    }
+
+    @Test
+    public void testCapturedTrafficReplaysPerAction() throws Exception {
+        Path dir = Files.createTempDirectory("capture");
+        startService();
+        TrafficRecorder recorder = new TrafficRecorder(dir, 1 << 20, 2, 1024);
+        service.setRecorder(recorder);
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            for (String line : new String[] {"alice,login,pw", "alice,add,1,2024-05-01", "alice,add,bad",
+                    "#t1 alice,list", "alice,export,csv"}) {
+                writer.write(line + "\n");
+                writer.flush();
+                reader.readLine();
+            }
+        }
+        service.setRecorder(null);
+        recorder.close();
+        assertEquals(5, recorder.getRecorded());
+
+        List<TrafficReplay.request> requests = new ArrayList<>();
+        try (TrafficReplay.capturestream stream = new TrafficReplay.capturestream(dir)) {
+            for (TrafficReplay.request r; (r = stream.next()) != null; ) {
+                requests.add(r);
+            }
+        }
+        assertEquals(5, requests.size());
+        assertTrue(requests.get(1).line.endsWith(",add,1,2024-05-01"));
+        assertFalse(requests.get(0).line.contains("alice"));
+
+        TrafficReplay.report report = TrafficReplay.replay(dir, "127.0.0.1", port, 0);
+        assertEquals(4, report.completed());
+        assertEquals(1, report.skipped.get());
+        assertEquals(0, report.unanswered.get());
+        assertEquals(2, report.stats("add").count);
+        assertEquals(1, report.stats("add").failed);
+        assertEquals(1, report.stats("list").count);
+        assertTrue(report.toString().contains("p99(ms)"));
+        assertEquals(2.0, TrafficReplay.parseSpeed("2x"), 0);
+    }
+
+    @Test
+    public void testManyCapturedConnectionsShareABoundedPool() throws Exception {
+        Path dir = Files.createTempDirectory("capture");
+        startService();
+        // 旧抓包：每个 HTTP 请求一条连接
+        try (TrafficRecorder recorder = new TrafficRecorder(dir, 1 << 20, 2, 1024)) {
+            for (int i = 0; i < 300; i++) {
+                recorder.record(i + 1, "user" + i + ",list");
+            }
+        }
+
+        TrafficReplay.report report;
+        try (TrafficReplay.capturestream stream = new TrafficReplay.capturestream(dir)) {
+            report = TrafficReplay.replay(stream, "127.0.0.1", port, 0, 4, 20);
+        }
+        assertEquals(300, report.completed());
+        assertEquals(0, report.unanswered.get());
+        assertEquals(0, report.failedConnections.get());
+        // 服务端发现连接关闭有延迟，计数会略高于 4，但远少于一次打开全部 300 条
+        assertTrue("peak " + peakConnections.get(), peakConnections.get() < 50);
+    }
+}